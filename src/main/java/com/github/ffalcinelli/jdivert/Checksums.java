@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.github.ffalcinelli.jdivert.headers.Ip;
+import com.github.ffalcinelli.jdivert.headers.Ipv4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Internet checksum (RFC 1071) helpers working directly on the packet buffer.
+ * <p>
+ * Unlike {@link Packet#recalculateChecksum(Enums.CalcChecksumsOption...)}, which delegates to
+ * {@code WinDivertHelperCalcChecksums}, these helpers do not copy the packet into native memory. The incremental
+ * variants (RFC 1624) fix a checksum in O(1) when a single field changes, e.g. an address or a port rewritten by a
+ * NAT.
+ * </p>
+ */
+public class Checksums {
+
+    /**
+     * Sum 16 bit big endian words, as needed by the Internet checksum. An odd trailing byte is padded with zero.
+     *
+     * @param data   The array holding the data.
+     * @param offset The offset of the first byte.
+     * @param length How many bytes to sum.
+     * @param sum    The partial sum to add to.
+     * @return The (unfolded) sum.
+     */
+    public static long sum(byte[] data, int offset, int length, long sum) {
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+        }
+        if ((length & 1) != 0) {
+            sum += (data[end] & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    /**
+     * Fold a sum into 16 bits and take its ones' complement.
+     *
+     * @param sum The sum to fold.
+     * @return The checksum.
+     */
+    public static int fold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) (~sum & 0xFFFF);
+    }
+
+    /**
+     * Compute the Internet checksum of a range of bytes.
+     *
+     * @param data   The array holding the data.
+     * @param offset The offset of the first byte.
+     * @param length How many bytes to checksum.
+     * @return The checksum.
+     */
+    public static int checksum(byte[] data, int offset, int length) {
+        return fold(sum(data, offset, length, 0));
+    }
+
+    /**
+     * Update a checksum after a 16 bit word changed (RFC 1624, eqn. 3).
+     *
+     * @param checksum The current checksum.
+     * @param oldValue The old 16 bit value.
+     * @param newValue The new 16 bit value.
+     * @return The updated checksum.
+     */
+    public static int update(int checksum, int oldValue, int newValue) {
+        long sum = (~checksum & 0xFFFF) + (~oldValue & 0xFFFF) + (newValue & 0xFFFF);
+        return fold(sum);
+    }
+
+    /**
+     * Update a checksum after a 32 bit word (e.g. an Ipv4 address) changed.
+     *
+     * @param checksum The current checksum.
+     * @param oldValue The old 32 bit value.
+     * @param newValue The new 32 bit value.
+     * @return The updated checksum.
+     */
+    public static int update32(int checksum, int oldValue, int newValue) {
+        long sum = (~checksum & 0xFFFF)
+                + (~(oldValue >>> 16) & 0xFFFF) + (~oldValue & 0xFFFF)
+                + ((newValue >>> 16) & 0xFFFF) + (newValue & 0xFFFF);
+        return fold(sum);
+    }
+
+    /**
+     * Update a checksum after a range of bytes changed, e.g. an Ipv6 address. The range must start at an even offset
+     * from the beginning of the checksummed data and have an even length.
+     *
+     * @param checksum The current checksum.
+     * @param oldData  The array holding the old bytes.
+     * @param oldOff   The offset of the old bytes.
+     * @param newData  The array holding the new bytes.
+     * @param newOff   The offset of the new bytes.
+     * @param length   How many bytes changed.
+     * @return The updated checksum.
+     */
+    public static int update(int checksum, byte[] oldData, int oldOff, byte[] newData, int newOff, int length) {
+        long sum = ~checksum & 0xFFFF;
+        for (int i = 0; i < length; i += 2) {
+            sum += ~(((oldData[oldOff + i] & 0xFF) << 8) | (oldData[oldOff + i + 1] & 0xFF)) & 0xFFFF;
+            sum += ((newData[newOff + i] & 0xFF) << 8) | (newData[newOff + i + 1] & 0xFF);
+        }
+        return fold(sum);
+    }
+
+    /**
+     * Sum the pseudo header used by Tcp, Udp and Icmpv6 checksums.
+     *
+     * @param data     The array holding the packet, whose Ip header starts at 0.
+     * @param ipv4     Whether the Ip header is version 4.
+     * @param protocol The transport protocol number.
+     * @param length   The transport length (header and payload).
+     * @return The (unfolded) pseudo header sum.
+     */
+    public static long pseudoHeaderSum(byte[] data, boolean ipv4, int protocol, int length) {
+        long sum = ipv4 ? sum(data, 12, 8, 0) : sum(data, 8, 32, 0);
+        return sum + protocol + (length & 0xFFFF) + (length >>> 16);
+    }
+
+    /**
+     * Recompute the Ipv4 header checksum and the Tcp/Udp/Icmp checksum of the given {@link Packet} in place.
+     *
+     * @param packet The {@link Packet} to fix.
+     */
+    public static void calculate(Packet packet) {
+        ByteBuffer buffer = packet.getByteBuffer();
+        byte[] data = buffer.array();
+        int base = buffer.arrayOffset();
+        if (base != 0) {
+            throw new IllegalArgumentException("The packet must start at the beginning of its buffer");
+        }
+        Ip<?> ip = packet.isIpv4() ? packet.getIpv4() : packet.getIpv6();
+        int ipLen = ip.getHeaderLength();
+        int transportLen;
+        if (packet.isIpv4()) {
+            Ipv4 ipv4 = packet.getIpv4();
+            ipv4.setChecksum(0);
+            ipv4.setChecksum(checksum(data, 0, ipLen));
+            transportLen = Math.min(ipv4.getTotalLength(), buffer.capacity()) - ipLen;
+        } else {
+            transportLen = Math.min(packet.getIpv6().getPayloadLength(), buffer.capacity() - ipLen);
+        }
+        if (packet.isTcp()) {
+            packet.getTcp().setChecksum(0);
+            packet.getTcp().setChecksum(fold(sum(data, ipLen, transportLen,
+                    pseudoHeaderSum(data, packet.isIpv4(), Enums.Protocol.TCP.getValue(), transportLen))));
+        } else if (packet.isUdp()) {
+            packet.getUdp().setChecksum(0);
+            int cksum = fold(sum(data, ipLen, transportLen,
+                    pseudoHeaderSum(data, packet.isIpv4(), Enums.Protocol.UDP.getValue(), transportLen)));
+            // A zero Udp checksum means "no checksum"
+            packet.getUdp().setChecksum(cksum == 0 ? 0xFFFF : cksum);
+        } else if (packet.isIcmpv4()) {
+            packet.getIcmpv4().setChecksum(0);
+            packet.getIcmpv4().setChecksum(checksum(data, ipLen, transportLen));
+        } else if (packet.isIcmpv6()) {
+            packet.getIcmpv6().setChecksum(0);
+            packet.getIcmpv6().setChecksum(fold(sum(data, ipLen, transportLen,
+                    pseudoHeaderSum(data, false, Enums.Protocol.ICMPV6.getValue(), transportLen))));
+        }
+    }
+}
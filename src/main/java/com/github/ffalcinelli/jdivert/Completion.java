@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous operation, e.g. {@link WinDivert#recvAsync()}.
+ * <p>
+ * Callers either wait for it as a {@link Future}, or register a {@link Callback} run as soon as the result is known:
+ * on the thread completing the operation, or at once on the registering thread if already done. Callbacks must
+ * therefore not block. Operations already handed to the driver cannot be cancelled.
+ * </p>
+ *
+ * @param <T> The result type.
+ */
+public class Completion<T> implements Future<T> {
+
+    private final List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>(1);
+    private T result;
+    private Exception error;
+    private boolean done;
+
+    /**
+     * Set the result, unless already done.
+     *
+     * @param result The result.
+     * @return True if set, false if the completion was already done.
+     */
+    public boolean complete(T result) {
+        return finish(result, null);
+    }
+
+    /**
+     * Set the failure, unless already done.
+     *
+     * @param error The cause of the failure.
+     * @return True if set, false if the completion was already done.
+     */
+    public boolean fail(Exception error) {
+        return finish(null, error);
+    }
+
+    private boolean finish(T result, Exception error) {
+        List<Callback<? super T>> pending;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.result = result;
+            this.error = error;
+            this.done = true;
+            notifyAll();
+            pending = new ArrayList<Callback<? super T>>(callbacks);
+            callbacks.clear();
+        }
+        for (Callback<? super T> callback : pending) {
+            callback.done(result, error);
+        }
+        return true;
+    }
+
+    /**
+     * Run a callback once the result is known.
+     *
+     * @param callback The {@link Callback}.
+     * @return this instance to allow call chaining.
+     */
+    public Completion<T> whenDone(Callback<? super T> callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        callback.done(result, error);
+        return this;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long left = unit.toNanos(timeout);
+        while (!done) {
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+            left = deadline - System.nanoTime();
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Completion {done=%s, failed=%s}", done, error != null);
+    }
+
+    /**
+     * Receives the result of a {@link Completion}.
+     *
+     * @param <T> The result type.
+     */
+    public interface Callback<T> {
+        /**
+         * Handle the result.
+         *
+         * @param result The result, {@code null} if failed.
+         * @param error  The cause of the failure, {@code null} if succeeded.
+         */
+        void done(T result, Exception error);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.windivert.IoPort;
+import com.github.ffalcinelli.jdivert.windivert.Kernel32IoPort;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
+
+/**
+ * Completes the overlapped receives and sends of {@link WinDivert} handles, from a few threads.
+ * <p>
+ * Handles {@link WinDivert#setCompletionPort(CompletionPort) attached} to the port issue their
+ * {@link WinDivert#recvAsync() asynchronous} operations to the driver and return at once; the driver reports each
+ * completion to the {@link IoPort}, where the completion threads pick it up and complete its {@link Completion}.
+ * Many handles can so keep many receives outstanding, keeping the driver queues drained, with one or two threads.
+ * </p><p>
+ * An operation stays referenced, its native buffers reachable, until the driver reports it. The port can so only be
+ * {@link #close() closed} once its handles are: closing a handle has the driver report its pending operations as
+ * aborted.
+ * </p>
+ * The class is thread safe.
+ */
+public class CompletionPort {
+
+    /**
+     * The size of an {@code OVERLAPPED} structure, on either architecture.
+     */
+    static final int OVERLAPPED_SIZE = 32;
+
+    private static final int ERROR_OPERATION_ABORTED = 995;
+    private static CompletionPort shared;
+
+    private final IoPort io;
+    private final Thread[] threads;
+    private final Map<Long, Operation> pending = new ConcurrentHashMap<Long, Operation>();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private int handles;
+    private volatile boolean closed;
+
+    /**
+     * Create a new {@link CompletionPort} on a Windows I/O completion port.
+     *
+     * @param threads The number of completion threads.
+     * @throws WinDivertException If the Windows port cannot be created.
+     */
+    public CompletionPort(int threads) throws WinDivertException {
+        this(new Kernel32IoPort(), threads);
+    }
+
+    /**
+     * Create a new {@link CompletionPort}.
+     *
+     * @param io      The {@link IoPort} the driver reports completions to.
+     * @param threads The number of completion threads.
+     */
+    public CompletionPort(IoPort io, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid number of threads %d", threads));
+        }
+        this.io = io;
+        this.threads = new Thread[threads];
+    }
+
+    /**
+     * Get the port shared by handles not given one, with a single completion thread, started on first use.
+     *
+     * @return The shared {@link CompletionPort}.
+     * @throws WinDivertException If the Windows port cannot be created.
+     */
+    public static synchronized CompletionPort getDefault() throws WinDivertException {
+        if (shared == null) {
+            shared = new CompletionPort(1).start();
+        }
+        return shared;
+    }
+
+    /**
+     * Start the completion threads.
+     *
+     * @return this instance to allow call chaining.
+     */
+    public synchronized CompletionPort start() {
+        if (threads[0] != null) {
+            throw new IllegalStateException("Completion port already started");
+        }
+        for (int i = 0; i < threads.length; i++) {
+            // Allocated here as JNA classes may deadlock when first loaded by several threads at once
+            final IntByReference transferred = new IntByReference();
+            final IntByReference error = new IntByReference();
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop(transferred, error);
+                }
+            }, "jdivert-completion-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        return this;
+    }
+
+    private void loop(IntByReference transferred, IntByReference error) {
+        Pointer overlapped;
+        while ((overlapped = io.take(transferred, error)) != null) {
+            Operation operation = pending.remove(Pointer.nativeValue(overlapped));
+            if (operation != null) {
+                finish(operation, transferred.getValue(), error.getValue());
+            }
+            if (closed) {
+                // Close waits for the last operations to be reported
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void finish(Operation operation, int transferred, int error) {
+        (error == 0 ? completed : failed).incrementAndGet();
+        try {
+            operation.completed(transferred, error);
+        } catch (RuntimeException e) {
+            // A failing callback must not stop the completion thread
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Associate a handle with the port.
+     *
+     * @param handle The open handle.
+     * @throws WinDivertException If the handle cannot be associated.
+     */
+    synchronized void associate(HANDLE handle) throws WinDivertException {
+        if (closed) {
+            throw new IllegalStateException("Completion port closed");
+        }
+        io.associate(handle);
+        handles++;
+    }
+
+    /**
+     * Tell the port that an associated handle was closed, the driver reporting its pending operations as aborted.
+     */
+    synchronized void dissociate() {
+        handles--;
+    }
+
+    /**
+     * Allocate a zeroed {@code OVERLAPPED} structure and register the operation using it, before issuing it.
+     *
+     * @param operation The {@link Operation} to run on completion.
+     * @return The {@code OVERLAPPED} structure to issue the operation with, {@code null} if the port is closed and the
+     * operation already aborted.
+     */
+    Memory register(Operation operation) {
+        Memory overlapped = new Memory(OVERLAPPED_SIZE);
+        overlapped.clear();
+        operation.overlapped = overlapped;
+        pending.put(Pointer.nativeValue(overlapped), operation);
+        if (closed) {
+            abort(overlapped, ERROR_OPERATION_ABORTED);
+            return null;
+        }
+        return overlapped;
+    }
+
+    /**
+     * Complete an operation the driver refused at once, which will never reach the port.
+     *
+     * @param overlapped The {@code OVERLAPPED} structure of the operation.
+     * @param error      The error code.
+     */
+    void abort(Pointer overlapped, int error) {
+        Operation operation = pending.remove(Pointer.nativeValue(overlapped));
+        if (operation != null) {
+            finish(operation, 0, error);
+        }
+    }
+
+    /**
+     * Close the port and stop the completion threads, once the operations still pending are reported by the driver.
+     * Operations issued from then on fail with {@code ERROR_OPERATION_ABORTED}.
+     *
+     * @throws IllegalStateException If handles associated with the port are still open.
+     * @throws InterruptedException  If interrupted while waiting for the operations or the threads.
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (handles > 0) {
+                throw new IllegalStateException(String.format("%d handles of the completion port are still open",
+                        handles));
+            }
+            closed = true;
+            // The handles are closed, the driver reports what they left pending
+            while (!pending.isEmpty() && threads[0] != null) {
+                wait();
+            }
+        }
+        io.close();
+        for (Thread thread : threads) {
+            if (thread != null) {
+                thread.join();
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Get the number of operations issued and not completed yet.
+     *
+     * @return The number of operations.
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompletionPort {threads=%d, pending=%d, completed=%d, failed=%d}",
+                threads.length, getPending(), getCompleted(), getFailed());
+    }
+
+    /**
+     * An overlapped operation, keeping its native buffers reachable until it completes.
+     */
+    abstract static class Operation {
+        Memory overlapped;
+
+        /**
+         * Hand the operation to the driver.
+         *
+         * @param handle     The handle to issue the operation on.
+         * @param overlapped The {@code OVERLAPPED} structure of the operation.
+         * @return True if completed at once, false if pending or failed as told by the last error.
+         */
+        abstract boolean start(HANDLE handle, Pointer overlapped);
+
+        /**
+         * Complete the operation, on a completion thread.
+         *
+         * @param transferred The number of bytes transferred.
+         * @param error       The error code, 0 on success.
+         */
+        abstract void completed(int transferred, int error);
+    }
+}
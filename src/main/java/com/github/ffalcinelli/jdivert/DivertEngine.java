@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a pool of receiver threads on a single {@link WinDivert} handle, handing every packet to a {@link Handler}.
+ * <p>
+ * Each thread receives and handles its packets on its own, with no queue in between, so throughput grows with the
+ * number of threads as long as handlers do not contend. Packets of a flow may therefore be handled out of order by
+ * different threads; handlers needing per flow ordering should dispatch on a flow hash.
+ * </p><p>
+ * Receivers wait for a packet a short while at a time, with {@link WinDivert#recv(long, TimeUnit) timed receives}.
+ * {@link #stop()} marks the engine as stopping and {@link WinDivert#wakeup() wakes} the receivers up, waits for them
+ * to exit, hands the packets of the receives they left outstanding to the handler and closes the handle last, so
+ * that every packet taken from the driver can still be sent. Receive errors while running and handler errors are
+ * counted, and receiving goes on.
+ * </p><p>
+ * Packets are received into buffers of the {@link #setBufferPool(BufferPool) pool} when one is set: handlers own
+ * them and give them back once the packet has been sent or dropped.
+ * </p><p>
+ * In {@link Mode#VIRTUAL} mode receivers are virtual threads, on the JDKs having them, which issue
+ * {@link WinDivert#recvAsync() asynchronous receives} and {@link VirtualThreads#await(Completion, long, TimeUnit)
+ * park} until they are done: handles with little traffic then cost a parked virtual thread each, rather than a full
+ * platform thread.
+ * </p>
+ * The class is thread safe.
+ */
+public class DivertEngine {
+
+    private static final long POLL_MILLIS = 100;
+
+    private final WinDivert divert;
+    private final Handler handler;
+    private final Thread[] threads;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final List<Completion<Packet>> outstanding = new ArrayList<Completion<Packet>>();
+    private volatile boolean running;
+    private volatile int bufferSize = WinDivert.DEFAULT_PACKET_BUFFER_SIZE;
+    private volatile BufferPool pool;
+    private volatile Mode mode = Mode.PLATFORM;
+
+    /**
+     * Create a new {@link DivertEngine}.
+     *
+     * @param divert  The {@link WinDivert} handle to receive from, open by the time the engine starts.
+     * @param threads The number of receiver threads.
+     * @param handler The {@link Handler} of the received packets, called concurrently.
+     */
+    public DivertEngine(WinDivert divert, int threads, Handler handler) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid number of threads %d", threads));
+        }
+        this.divert = divert;
+        this.handler = handler;
+        this.threads = new Thread[threads];
+    }
+
+    /**
+     * Start the receiver threads.
+     *
+     * @return this instance to allow call chaining.
+     */
+    public synchronized DivertEngine start() {
+        if (threads[0] != null) {
+            throw new IllegalStateException("Engine already started");
+        }
+        running = true;
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        for (int i = 0; i < threads.length; i++) {
+            if (mode == Mode.VIRTUAL) {
+                threads[i] = VirtualThreads.newThread("jdivert-receiver-" + i, task);
+            } else {
+                threads[i] = new Thread(task, "jdivert-receiver-" + i);
+                threads[i].setDaemon(true);
+            }
+            threads[i].start();
+        }
+        return this;
+    }
+
+    private void loop() {
+        boolean virtual = mode == Mode.VIRTUAL;
+        // The receive a virtual receiver awaits, kept from one wait to the next until done
+        Completion<Packet> pending = null;
+        while (running) {
+            Packet packet;
+            try {
+                if (!virtual) {
+                    packet = recv();
+                } else {
+                    if (pending == null) {
+                        pending = VirtualThreads.unparkWhenDone(recvAsync());
+                    }
+                    try {
+                        packet = VirtualThreads.await(pending, POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    } finally {
+                        if (pending.isDone()) {
+                            pending = null;
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // The handle was closed under the engine. Otherwise the error is counted, be it a failed receive or
+                // e.g. a packet that cannot be parsed, and the receiver goes on
+                if (!divert.isOpen()) {
+                    break;
+                }
+                errors.incrementAndGet();
+                continue;
+            }
+            // Null when timed out or woken up to stop
+            if (packet != null) {
+                handle(packet);
+            }
+        }
+        if (pending != null) {
+            synchronized (outstanding) {
+                outstanding.add(pending);
+            }
+        }
+    }
+
+    private void handle(Packet packet) {
+        received.incrementAndGet();
+        try {
+            handler.handle(divert, packet);
+        } catch (Exception e) {
+            errors.incrementAndGet();
+        }
+    }
+
+    private Packet recv() throws WinDivertException {
+        BufferPool p = pool;
+        return p != null ? divert.recv(p, POLL_MILLIS, TimeUnit.MILLISECONDS)
+                : divert.recv(bufferSize, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private Completion<Packet> recvAsync() {
+        BufferPool p = pool;
+        return p != null ? divert.recvAsync(p) : divert.recvAsync(bufferSize);
+    }
+
+    /**
+     * Stop the receiver threads, handle the packets they left outstanding on the handle, then close the handle. The
+     * packets still queued in the driver are lost.
+     *
+     * @throws InterruptedException If interrupted while waiting for the threads to stop.
+     */
+    public void stop() throws InterruptedException {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        divert.wakeup();
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Packet packet : divert.drain(0, TimeUnit.MILLISECONDS)) {
+            handle(packet);
+        }
+        synchronized (outstanding) {
+            for (Completion<Packet> completion : outstanding) {
+                // The ones not done yet are aborted by closing
+                if (completion.isDone()) {
+                    try {
+                        handle(completion.get());
+                    } catch (Exception e) {
+                        // Failed receives hold no packet
+                    }
+                }
+            }
+            outstanding.clear();
+        }
+        divert.close();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Set the size of the receive buffers.
+     *
+     * @param bufferSize The size in bytes, at least the largest packet expected.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Receive into pooled buffers instead of allocating one per packet.
+     *
+     * @param pool The {@link BufferPool} to take buffers from, {@code null} to allocate them.
+     */
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the kind of receiver threads, before starting.
+     *
+     * @param mode The {@link Mode}.
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DivertEngine {threads=%d, running=%s, received=%d, errors=%d}",
+                threads.length, running, getReceived(), getErrors());
+    }
+
+    /**
+     * The kind of receiver threads.
+     */
+    public enum Mode {
+        /**
+         * Platform threads, blocking in the native receive.
+         */
+        PLATFORM,
+        /**
+         * Virtual threads parking on asynchronous receives, platform threads on JDKs without virtual threads.
+         */
+        VIRTUAL
+    }
+
+    /**
+     * Handles the packets received by a {@link DivertEngine}.
+     */
+    public interface Handler {
+        /**
+         * Handle a packet, e.g. reinjecting it as is or modified, or dropping it by doing nothing.
+         *
+         * @param divert The {@link WinDivert} handle the packet was received from, to send with.
+         * @param packet The {@link Packet}.
+         * @throws Exception If handling fails, the error is counted and the packet dropped.
+         */
+        void handle(WinDivert divert, Packet packet) throws Exception;
+    }
+}
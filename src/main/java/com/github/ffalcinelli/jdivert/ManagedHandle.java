@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.github.ffalcinelli.jdivert.Enums.*;
+
+/**
+ * A {@link WinDivert} handle whose filter can be changed without letting packets leak past or get dropped.
+ * <p>
+ * {@link #reload(String)} opens the replacement handle first, with the same priority and queue parameters, so that
+ * packets keep being diverted. Receivers keep reading the old handle until its queue is drained, that is until no
+ * packet came from it for an {@link #setIdleTime(long) idle time}, or its {@link Param#QUEUE_TIME QUEUE_TIME} elapsed
+ * and the driver would drop what is left anyway. The old handle is then closed and receivers blocked on it are handed
+ * over to the replacement, transparently to the callers of {@link #recv()}. Packets matching the new filter wait in
+ * the replacement queue meanwhile; how long is measured as the switchover gap.
+ * </p>
+ * The class is thread safe: any number of threads may receive and send while another reloads.
+ */
+public class ManagedHandle {
+
+    private final Layer layer;
+    private final int priority;
+    private final Flag[] flags;
+    private final AtomicLong reloads = new AtomicLong();
+    private volatile Generation current;
+    private volatile Generation draining;
+    private volatile long idleTime = 5;
+    private volatile long lastSwitchNanos;
+    private volatile long lastGapNanos = -1;
+    private volatile long lastDrained;
+    private Generation previous;
+
+    /**
+     * Create a new {@link ManagedHandle}, with the same parameters of a {@link WinDivert} handle.
+     *
+     * @param filter   The initial filter.
+     * @param layer    The {@link Layer layer}.
+     * @param priority The priority of the handles.
+     * @param flags    Additional {@link Flag flags}.
+     */
+    public ManagedHandle(String filter, Layer layer, int priority, Flag... flags) {
+        this.layer = layer;
+        this.priority = priority;
+        this.flags = flags;
+        this.current = new Generation(filter, null);
+    }
+
+    /**
+     * Open the handle.
+     *
+     * @return this instance to allow call chaining.
+     * @throws WinDivertException If the handle cannot be opened.
+     */
+    public synchronized ManagedHandle open() throws WinDivertException {
+        if (current.divert != null) {
+            throw new IllegalStateException("The instance is already in open state");
+        }
+        current = new Generation(current.filter, newHandle(current.filter).open());
+        return this;
+    }
+
+    /**
+     * Create a handle, not yet open.
+     *
+     * @param filter The filter of the handle.
+     * @return The {@link WinDivert} handle.
+     */
+    protected WinDivert newHandle(String filter) {
+        return new WinDivert(filter, layer, priority, flags);
+    }
+
+    /**
+     * Receive a packet from the handle being drained if any, from the current one otherwise.
+     *
+     * @return The {@link Packet}.
+     * @throws WinDivertException If receiving fails for reasons other than a handover.
+     */
+    public Packet recv() throws WinDivertException {
+        return recv(WinDivert.DEFAULT_PACKET_BUFFER_SIZE);
+    }
+
+    /**
+     * Receive a packet from the handle being drained if any, from the current one otherwise.
+     *
+     * @param bufsize The size for the buffer to allocate.
+     * @return The {@link Packet}.
+     * @throws WinDivertException If receiving fails for reasons other than a handover.
+     */
+    public Packet recv(int bufsize) throws WinDivertException {
+        while (true) {
+            Generation g = draining;
+            if (g == null) {
+                g = current;
+            }
+            if (g.divert == null) {
+                throw new IllegalStateException("WinDivert handle not in OPEN state");
+            }
+            try {
+                Packet packet = g.divert.recv(bufsize);
+                g.received(nanoTime());
+                return packet;
+            } catch (WinDivertException e) {
+                // Closed by a reload, move on to the replacement
+                if (!g.retired) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Inject a packet with the current handle.
+     *
+     * @param packet              The {@link Packet} to send.
+     * @param recalculateChecksum Whether to recalculate the checksums.
+     * @param options             The {@link CalcChecksumsOption options} to use when recalculating checksums.
+     * @return The number of bytes actually sent.
+     * @throws WinDivertException If sending fails.
+     */
+    public int send(Packet packet, boolean recalculateChecksum, CalcChecksumsOption... options)
+            throws WinDivertException {
+        Generation g = current;
+        if (g.divert == null) {
+            throw new IllegalStateException("WinDivert handle not in OPEN state");
+        }
+        return g.divert.send(packet, recalculateChecksum, options);
+    }
+
+    /**
+     * Replace the filter. Returns once the old handle is drained and closed.
+     *
+     * @param filter The new filter.
+     * @throws WinDivertException If the replacement cannot be opened, the old handle is then kept.
+     */
+    public synchronized void reload(String filter) throws WinDivertException {
+        Generation old = current;
+        if (old.divert == null) {
+            throw new IllegalStateException("WinDivert handle not in OPEN state");
+        }
+        WinDivert replacement = newHandle(filter).open();
+        for (Param param : Param.values()) {
+            replacement.setParam(param, old.divert.getParam(param));
+        }
+        long drainNanos = old.divert.getParam(Param.QUEUE_TIME) * 1000000L;
+        long idleNanos = idleTime * 1000000L;
+        long start = nanoTime();
+        old.switched = true;
+        draining = old;
+        current = new Generation(filter, replacement);
+        while (true) {
+            long now = nanoTime();
+            long last = Math.max(old.lastReceived, start);
+            if (now - last >= idleNanos || now - start >= drainNanos) {
+                break;
+            }
+            LockSupport.parkNanos(Math.min(idleNanos - (now - last), drainNanos - (now - start)));
+        }
+        old.retired = true;
+        draining = null;
+        old.divert.close();
+        lastSwitchNanos = nanoTime() - start;
+        lastDrained = old.drained.get();
+        previous = old;
+        lastGapNanos = -1;
+        reloads.incrementAndGet();
+    }
+
+    /**
+     * Close the current handle.
+     */
+    public synchronized void close() {
+        Generation g = current;
+        if (g.divert != null) {
+            g.divert.close();
+            current = new Generation(g.filter, null);
+        }
+    }
+
+    /**
+     * Get the current time in nanoseconds, used to drain handles and measure the switchover.
+     *
+     * @return The current time.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    public boolean isOpen() {
+        return current.divert != null;
+    }
+
+    public String getFilter() {
+        return current.filter;
+    }
+
+    /**
+     * Get the handle packets are currently sent with.
+     *
+     * @return The current {@link WinDivert} handle, {@code null} if closed.
+     */
+    public WinDivert getHandle() {
+        return current.divert;
+    }
+
+    /**
+     * Set how long the old handle must stay silent to be deemed drained.
+     *
+     * @param idleTime The time in milliseconds.
+     */
+    public void setIdleTime(long idleTime) {
+        this.idleTime = idleTime;
+    }
+
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * Get how long the last reload kept receivers on the old handle, the longest a packet diverted by the new
+     * handle may have waited because of the switch.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getLastSwitchNanos() {
+        return lastSwitchNanos;
+    }
+
+    /**
+     * Get the number of packets received from the old handle during the last reload.
+     *
+     * @return The number of packets.
+     */
+    public long getLastDrained() {
+        return lastDrained;
+    }
+
+    /**
+     * Get the time between the last packet received from the old handle and the first received from the new one, in
+     * the last reload.
+     *
+     * @return The time in nanoseconds, -1 if no packet was received from either handle yet.
+     */
+    public synchronized long getLastGapNanos() {
+        Generation g = current;
+        if (lastGapNanos < 0 && previous != null && previous.lastReceived != Long.MIN_VALUE
+                && g.firstReceived != Long.MIN_VALUE) {
+            lastGapNanos = g.firstReceived - previous.lastReceived;
+        }
+        return lastGapNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ManagedHandle {filter=%s, state=%s, reloads=%d, lastSwitchNanos=%d}",
+                getFilter(), isOpen() ? "OPEN" : "CLOSED", getReloads(), getLastSwitchNanos());
+    }
+
+    /**
+     * A handle and its receive statistics.
+     */
+    private static class Generation {
+        final String filter;
+        final WinDivert divert;
+        final AtomicLong drained = new AtomicLong();
+        volatile boolean retired;
+        volatile boolean switched;
+        volatile long firstReceived = Long.MIN_VALUE;
+        volatile long lastReceived = Long.MIN_VALUE;
+
+        Generation(String filter, WinDivert divert) {
+            this.filter = filter;
+            this.divert = divert;
+        }
+
+        void received(long now) {
+            if (firstReceived == Long.MIN_VALUE) {
+                firstReceived = now;
+            }
+            lastReceived = now;
+            if (switched) {
+                drained.incrementAndGet();
+            }
+        }
+    }
+}
@@ -70,14 +70,46 @@ public class Packet {
      * @param direction The {@link Enums.Direction Direction}.
      */
     public Packet(byte[] raw, int[] iface, Direction direction) {
+        this(raw, raw.length, iface, direction);
+    }
+
+    /**
+     * Construct a {@link Packet} from the first {@code length} bytes of the given array and for the given metadata.
+     * <p>
+     * Useful when the packet lives in a larger, reusable buffer: the array is not copied.
+     * </p>
+     *
+     * @param raw       The array of bytes holding the packet from offset 0.
+     * @param length    The packet length.
+     * @param iface     The interface in form of {InterfaceIndex, InterfaceSubIndex} integer pair.
+     * @param direction The {@link Enums.Direction Direction}.
+     */
+    public Packet(byte[] raw, int length, int[] iface, Direction direction) {
+        this(raw, length, iface, direction, 0, null);
+    }
+
+    /**
+     * Construct a {@link Packet} whose Ip version and transport protocol are already known, e.g. because its headers
+     * have just been written, sparing their parsing.
+     *
+     * @param raw       The array of bytes holding the packet from offset 0.
+     * @param length    The packet length.
+     * @param iface     The interface in form of {InterfaceIndex, InterfaceSubIndex} integer pair.
+     * @param direction The {@link Enums.Direction Direction}.
+     * @param version   The Ip version, 4 or 6.
+     * @param protocol  The transport {@link Enums.Protocol Protocol}.
+     */
+    public Packet(byte[] raw, int length, int[] iface, Direction direction, int version, Enums.Protocol protocol) {
         if (iface.length != 2) {
             throw new IllegalArgumentException("Iface parameter must be a IfIdx, IfSubIdx pair");
         }
-        this.raw = ByteBuffer.wrap(raw);
+        this.raw = ByteBuffer.wrap(raw, 0, length).slice();
         this.raw.order(ByteOrder.BIG_ENDIAN);
         this.direction = direction;
         this.iface = iface;
-        for (Header header : Header.buildHeaders(raw)) {
+        Header[] headers = protocol == null ? Header.buildHeaders(this.raw)
+                : Header.buildHeaders(this.raw, version, protocol);
+        for (Header header : headers) {
             if (header instanceof Ip) {
                 ipHdr = (Ip) header;
             } else if (header instanceof Icmp) {
@@ -116,6 +148,33 @@ public class Packet {
         return direction == Direction.INBOUND;
     }
 
+    /**
+     * Get the packet {@link Enums.Direction Direction}.
+     *
+     * @return The packet direction.
+     */
+    public Direction getDirection() {
+        return direction;
+    }
+
+    /**
+     * Set the {@link Enums.Direction Direction} the packet will be reinjected with.
+     *
+     * @param direction The packet direction.
+     */
+    public void setDirection(Direction direction) {
+        this.direction = direction;
+    }
+
+    /**
+     * Get the interface the packet has been captured on.
+     *
+     * @return The interface in form of {InterfaceIndex, InterfaceSubIndex} integer pair.
+     */
+    public int[] getIface() {
+        return iface;
+    }
+
     /**
      * Convenience method to check if the packet has a {@link com.github.ffalcinelli.jdivert.headers.Ipv4 Ip header version 4}.
      *
@@ -313,6 +372,28 @@ public class Packet {
         return Util.getBytesAtOffset(raw, getHeadersLength(), raw.capacity() - getHeadersLength());
     }
 
+    /**
+     * Get the offset of the payload inside the {@link Packet} buffer.
+     * <p>
+     * Together with {@link #getPayloadLength()} and {@link #getByteBuffer()} it allows to inspect the payload in place,
+     * without the copy performed by {@link #getPayload()}.
+     * </p>
+     *
+     * @return The offset of the first payload byte.
+     */
+    public int getPayloadOffset() {
+        return getHeadersLength();
+    }
+
+    /**
+     * Get the length of the {@link Packet} payload.
+     *
+     * @return The payload length (in bytes).
+     */
+    public int getPayloadLength() {
+        return raw.capacity() - getHeadersLength();
+    }
+
     /**
      * Sets the given byte array as {@link Packet} payload.
      *
@@ -340,6 +421,19 @@ public class Packet {
         return Util.getBytesAtOffset(raw, 0, raw.capacity());
     }
 
+    /**
+     * Return the {@link java.nio.ByteBuffer} holding the {@link Packet} content.
+     * <p>
+     * The buffer is shared with the headers, so any change made through it is reflected by the {@link Packet} and
+     * vice versa. The buffer is always array-backed, use {@link java.nio.ByteBuffer#array()} to access data in place.
+     * </p>
+     *
+     * @return The internal {@link java.nio.ByteBuffer}.
+     */
+    public ByteBuffer getByteBuffer() {
+        return raw;
+    }
+
     /**
      * Recalculates the checksum fields matching the given {@link Enums.CalcChecksumsOption options}.
      *
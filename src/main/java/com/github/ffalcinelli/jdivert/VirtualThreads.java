@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Virtual threads, on the JDKs having them, looked up by reflection so that the library still runs on older ones.
+ * <p>
+ * A virtual thread blocked in a native call, e.g. {@link WinDivert#recv()}, or waiting on a monitor pins the platform
+ * thread carrying it. Virtual threads rather issue {@link WinDivert#recvAsync() asynchronous} operations and
+ * {@link #await(Completion, long, TimeUnit) park} until their {@link Completion} is done, leaving their carrier to
+ * the others: no thread at all is held while the driver works.
+ * </p>
+ */
+public final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+    private static final Method IS_VIRTUAL;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        Method isVirtual = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            isVirtual = Thread.class.getMethod("isVirtual");
+            // Preview releases have the methods but refuse to run them
+            unstarted.invoke(ofVirtual.invoke(null), new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        } catch (Exception e) {
+            ofVirtual = null;
+        } catch (LinkageError e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+        IS_VIRTUAL = isVirtual;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Tell whether the running JDK has virtual threads.
+     *
+     * @return True if {@link #newThread(String, Runnable)} creates virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Tell whether a thread is virtual.
+     *
+     * @param thread The {@link Thread}.
+     * @return True if virtual, always false if the JDK has no virtual threads.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create a virtual thread, or a daemon platform thread if the JDK has no virtual threads.
+     *
+     * @param name The thread name.
+     * @param task The task to run.
+     * @return The unstarted {@link Thread}.
+     */
+    public static Thread newThread(String name, Runnable task) {
+        if (OF_VIRTUAL != null) {
+            try {
+                return (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot create virtual thread " + name, e);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Have a {@link Completion} unpark the calling thread once done, so that the thread can
+     * {@link #await(Completion, long, TimeUnit) await} it. Register once, however many times the thread awaits.
+     *
+     * @param completion The {@link Completion}.
+     * @param <T>        The result type.
+     * @return The {@link Completion}.
+     */
+    public static <T> Completion<T> unparkWhenDone(Completion<T> completion) {
+        final Thread waiter = Thread.currentThread();
+        return completion.whenDone(new Completion.Callback<T>() {
+            @Override
+            public void done(T result, Exception error) {
+                LockSupport.unpark(waiter);
+            }
+        });
+    }
+
+    /**
+     * Park the calling thread until a {@link Completion} is done, the timeout elapses or the thread is unparked,
+     * e.g. to be told to stop. The completion must {@link #unparkWhenDone(Completion) unpark} the thread once done.
+     *
+     * @param completion The {@link Completion}.
+     * @param timeout    The maximum time to wait.
+     * @param unit       The {@link TimeUnit} of the timeout.
+     * @param <T>        The result type.
+     * @return The result, {@code null} if not done yet.
+     * @throws Exception The cause of the failure of the operation.
+     */
+    public static <T> T await(Completion<T> completion, long timeout, TimeUnit unit) throws Exception {
+        if (!completion.isDone()) {
+            LockSupport.parkNanos(completion, unit.toNanos(timeout));
+            if (!completion.isDone()) {
+                return null;
+            }
+        }
+        try {
+            return completion.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+}
@@ -18,15 +18,25 @@
 package com.github.ffalcinelli.jdivert;
 
 
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
 import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
 import com.github.ffalcinelli.jdivert.windivert.WinDivertAddress;
 import com.github.ffalcinelli.jdivert.windivert.WinDivertDLL;
 import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.LongByReference;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.github.ffalcinelli.jdivert.Enums.*;
 import static com.github.ffalcinelli.jdivert.exceptions.WinDivertException.throwExceptionOnGetLastError;
@@ -35,17 +45,59 @@ import static com.sun.jna.platform.win32.WinNT.HANDLE;
 /**
  * A WinDivert handle that can be used to capture packets.<p>
  * The main methods are {@link #open()}, {@link #recv()}, {@link #send(Packet)} and {@link #close()}.
+ * </p><p>
+ * Several threads may receive and send concurrently. {@link #close()} may be called at any time from any thread:
+ * it waits for the calls already using the handle to leave the driver, then closes it, and later calls fail with a
+ * {@link WinDivertException}. Only the blocking {@link #recv()} calls are not waited for, closing the handle is what
+ * releases them: a thread calling one as the handle is closed may reach the driver with the closed handle. Receivers
+ * that must be stopped safely use {@link #recv(long, TimeUnit)} and {@link #wakeup()} instead.
+ * </p><p>
+ * {@link #recvAsync()} and {@link #sendAsync(Packet)} issue overlapped operations and return at once, their
+ * {@link Completion} completed later by the threads of a {@link CompletionPort}.
+ * </p><p>
+ * {@link #recv(long, TimeUnit)} and {@link #tryRecv()} wait for a packet for a bounded time on top of them, and
+ * {@link #wakeup()} releases the threads waiting, so that control threads can have receivers check for shutdown
+ * without closing the handle under them. Once the receivers are stopped, {@link #drain(long, TimeUnit)} takes the
+ * packets of the receives they left outstanding, to be sent or dropped before closing the handle.
  * </p>
  * Created by fabio on 20/10/2016.
  */
 public class WinDivert {
     public static int DEFAULT_PACKET_BUFFER_SIZE = 1500;
-    private WinDivertDLL dll = WinDivertDLL.INSTANCE;
+    private static final int ERROR_INVALID_HANDLE = 6;
+    private static final int ERROR_IO_PENDING = 997;
+    // The native buffers of the pooled blocking receives, confined to the receiving thread
+    private static final ThreadLocal<RecvBuffers> RECV_BUFFERS = new ThreadLocal<RecvBuffers>() {
+        @Override
+        protected RecvBuffers initialValue() {
+            return new RecvBuffers();
+        }
+    };
+    private WinDivertDLL dll;
     private String filter;
     private Layer layer;
     private int priority;
     private int flags;
-    private HANDLE handle;
+    private volatile HANDLE handle;
+    private volatile CompletionPort completionPort;
+    // Held shared by the calls using the handle, exclusively by close
+    private final ReadWriteLock calls = new ReentrantReadWriteLock();
+    private final Object waiters = new Object();
+    private final List<Abandoned> abandoned = new ArrayList<Abandoned>();
+    // The native buffers of the pooled asynchronous receives no longer outstanding
+    private final List<RecvBuffers> idleBuffers = new ArrayList<RecvBuffers>();
+    private final Completion.Callback<Packet> notifier = new Completion.Callback<Packet>() {
+        @Override
+        public void done(Packet result, Exception error) {
+            synchronized (waiters) {
+                waiters.notifyAll();
+            }
+        }
+    };
+    private int waiting;
+    private long wakeups;
+    private boolean woken;
+    private boolean draining;
 
     /**
      * Create a new WinDivert instance based upon the given filter for
@@ -68,6 +120,20 @@ public class WinDivert {
      * @param flags    Additional {@link Enums.Flag flags}
      */
     public WinDivert(String filter, Layer layer, int priority, Flag... flags) {
+        this(WinDivertDLL.INSTANCE, filter, layer, priority, flags);
+    }
+
+    /**
+     * Create a new WinDivert instance based upon the given parameters, calling a given binding of the DLL.
+     *
+     * @param dll      The {@link WinDivertDLL} to call, e.g. a stand-in where WinDivert is not available
+     * @param filter   The filter string expressed using <a href="https://www.reqrypt.org/windivert-doc.html#filter_language">WinDivert filter language.</a>
+     * @param layer    The {@link Enums.Layer layer}
+     * @param priority The priority of the handle
+     * @param flags    Additional {@link Enums.Flag flags}
+     */
+    public WinDivert(WinDivertDLL dll, String filter, Layer layer, int priority, Flag... flags) {
+        this.dll = dll;
         this.filter = filter;
         this.layer = layer;
         this.priority = priority;
@@ -104,12 +170,24 @@ public class WinDivert {
      * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
      *                            is in progress)
      */
-    public WinDivert open() throws WinDivertException {
+    public synchronized WinDivert open() throws WinDivertException {
         if (isOpen()) {
             throw new IllegalStateException("The instance is already in open state");
         }
-        handle = dll.WinDivertOpen(filter, layer.getValue(), (short) priority, flags);
+        HANDLE h = dll.WinDivertOpen(filter, layer.getValue(), (short) priority, flags);
         throwExceptionOnGetLastError();
+        if (completionPort != null) {
+            boolean associated = false;
+            try {
+                completionPort.associate(h);
+                associated = true;
+            } finally {
+                if (!associated) {
+                    dll.WinDivertClose(h);
+                }
+            }
+        }
+        handle = h;
         //Allow call chaining
         return this;
     }
@@ -137,10 +215,25 @@ public class WinDivert {
      * For more info on the C call visit: <a href="http://reqrypt.org/windivert-doc.html#divert_close">http://reqrypt.org/windivert-doc.html#divert_close</a>
      * """
      */
-    public void close() {
-        if (isOpen()) {
-            dll.WinDivertClose(handle);
+    public synchronized void close() {
+        HANDLE h = handle;
+        if (h != null) {
+            // Mark closed first, so that later calls fail, then wait for the calls still using the handle
             handle = null;
+            calls.writeLock().lock();
+            try {
+                dll.WinDivertClose(h);
+            } finally {
+                calls.writeLock().unlock();
+            }
+            if (completionPort != null) {
+                completionPort.dissociate();
+            }
+            synchronized (waiters) {
+                // Receives left outstanding belong to the closed handle, packets not drained are lost with it
+                abandoned.clear();
+                draining = false;
+            }
         }
     }
 
@@ -197,13 +290,260 @@ public class WinDivert {
         WinDivertAddress address = new WinDivertAddress();
         Memory buffer = new Memory(bufsize);
         IntByReference recvLen = new IntByReference();
-        dll.WinDivertRecv(handle, buffer, bufsize, address.getPointer(), recvLen);
+        dll.WinDivertRecv(handle(), buffer, bufsize, address.getPointer(), recvLen);
         address.read();
         throwExceptionOnGetLastError();
         byte[] raw = buffer.getByteArray(0, recvLen.getValue());
         return new Packet(raw, address);
     }
 
+    /**
+     * Receives a diverted packet that matched the filter into a buffer taken from a {@link BufferPool}.<br>
+     * The {@link com.github.ffalcinelli.jdivert.Packet packet} is backed by the pooled buffer, to be given back with
+     * {@link BufferPool#release(Packet)} once the packet has been sent or dropped.
+     *
+     * @param pool The {@link BufferPool} to take the buffer from, its buffers at least as large as the largest packet.
+     * @return A {@link com.github.ffalcinelli.jdivert.Packet Packet} instance
+     * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
+     *                            is in progress)
+     */
+    public Packet recv(BufferPool pool) throws WinDivertException {
+        int bufsize = pool.getBufferSize();
+        RecvBuffers buffers = RECV_BUFFERS.get();
+        dll.WinDivertRecv(handle(), buffers.buffer(bufsize), bufsize, buffers.address.getPointer(), buffers.recvLen);
+        buffers.address.read();
+        throwExceptionOnGetLastError();
+        return buffers.packet(pool, buffers.recvLen.getValue());
+    }
+
+    /**
+     * Receives a diverted packet, waiting at most the given time.<br>
+     * The receive is issued {@link #recvAsync() asynchronously}. When it is not done by the timeout, or the waiting
+     * thread is {@link #wakeup() woken up} or interrupted, it is left outstanding and the method returns
+     * {@code null}: the packet it later receives is returned by a following call or by {@link #drain(long, TimeUnit)},
+     * so that no packet is lost while the handle is open. Calls of concurrent threads never share a receive, each
+     * packet is returned once.
+     * <p>
+     * Once the handle is closed the receives left outstanding fail, each waiting thread and each following call then
+     * throwing a {@link WinDivertException}.
+     * </p>
+     *
+     * @param timeout The maximum time to wait, 0 to return at once.
+     * @param unit    The {@link TimeUnit} of the timeout.
+     * @return A {@link com.github.ffalcinelli.jdivert.Packet Packet} instance, {@code null} if none was received in
+     * time.
+     * @throws WinDivertException If the receive fails, e.g. because the handle is closed.
+     */
+    public Packet recv(long timeout, TimeUnit unit) throws WinDivertException {
+        return recv(DEFAULT_PACKET_BUFFER_SIZE, timeout, unit);
+    }
+
+    /**
+     * Receives a diverted packet, waiting at most the given time.<br>
+     * The receive is issued as by {@link #recv(long, TimeUnit)}, into a buffer of the given size. Receives left
+     * outstanding are only returned by following calls with the same size.
+     *
+     * @param bufsize The size for the buffer to allocate
+     * @param timeout The maximum time to wait, 0 to return at once.
+     * @param unit    The {@link TimeUnit} of the timeout.
+     * @return A {@link com.github.ffalcinelli.jdivert.Packet Packet} instance, {@code null} if none was received in
+     * time.
+     * @throws WinDivertException If the receive fails, e.g. because the handle is closed.
+     */
+    public Packet recv(int bufsize, long timeout, TimeUnit unit) throws WinDivertException {
+        return recv(null, bufsize, timeout, unit);
+    }
+
+    /**
+     * Receives a diverted packet into a buffer taken from a {@link BufferPool}, waiting at most the given time.<br>
+     * The receive is issued as by {@link #recv(long, TimeUnit)}, the native buffers it is handed to the driver with
+     * being reused once it is done. Receives left outstanding are only returned by following calls with the same pool.
+     *
+     * @param pool    The {@link BufferPool} to take the buffer from, {@code null} to allocate a buffer per packet.
+     * @param timeout The maximum time to wait, 0 to return at once.
+     * @param unit    The {@link TimeUnit} of the timeout.
+     * @return A {@link com.github.ffalcinelli.jdivert.Packet Packet} instance, {@code null} if none was received in
+     * time.
+     * @throws WinDivertException If the receive fails, e.g. because the handle is closed.
+     */
+    public Packet recv(BufferPool pool, long timeout, TimeUnit unit) throws WinDivertException {
+        return recv(pool, pool != null ? pool.getBufferSize() : DEFAULT_PACKET_BUFFER_SIZE, timeout, unit);
+    }
+
+    private Packet recv(BufferPool pool, int bufsize, long timeout, TimeUnit unit) throws WinDivertException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Completion<Packet> completion;
+        synchronized (waiters) {
+            if (draining) {
+                return null;
+            }
+            completion = claim(pool, bufsize);
+        }
+        if (completion == null) {
+            completion = (pool != null ? recvAsync(pool) : recvAsync(bufsize)).whenDone(notifier);
+        }
+        synchronized (waiters) {
+            if (woken) {
+                woken = false;
+            } else {
+                long generation = wakeups;
+                waiting++;
+                try {
+                    long left = deadline - System.nanoTime();
+                    while (!completion.isDone() && generation == wakeups && left > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(waiters, left);
+                        left = deadline - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waiting--;
+                }
+            }
+            if (!completion.isDone()) {
+                abandoned.add(new Abandoned(completion, pool, bufsize));
+                return null;
+            }
+        }
+        return take(completion);
+    }
+
+    /**
+     * Receives a diverted packet if one is already there, without waiting.<br>
+     * A packet the driver still has to hand over is returned by a following call, see {@link #recv(long, TimeUnit)}.
+     *
+     * @return A {@link com.github.ffalcinelli.jdivert.Packet Packet} instance, {@code null} if none was received.
+     * @throws WinDivertException If the receive fails, e.g. because the handle is closed.
+     */
+    public Packet tryRecv() throws WinDivertException {
+        return recv(0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Wakes up the threads waiting in {@link #recv(long, TimeUnit)}, which return {@code null}. If no thread is
+     * waiting, the next call returns at once instead.
+     */
+    public void wakeup() {
+        synchronized (waiters) {
+            if (waiting == 0) {
+                woken = true;
+            }
+            wakeups++;
+            waiters.notifyAll();
+        }
+    }
+
+    /**
+     * Takes the packets of the receives left outstanding by {@link #recv(long, TimeUnit) timed} calls, to be sent or
+     * dropped before closing the handle.<br>
+     * Timed calls issue no more receives and return {@code null} from then on, until the handle is closed. The
+     * method waits at most the given time for the outstanding receives to be done; the ones still outstanding are
+     * returned by a following call, or aborted when the handle is closed. Packets received into pooled buffers are to
+     * be released as usual.
+     *
+     * @param timeout The maximum time to wait, 0 to take the packets already received.
+     * @param unit    The {@link TimeUnit} of the timeout.
+     * @return The {@link com.github.ffalcinelli.jdivert.Packet packets} received, in no particular order.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public List<Packet> drain(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Packet> packets = new ArrayList<Packet>();
+        synchronized (waiters) {
+            draining = true;
+            long left = deadline - System.nanoTime();
+            while (!allDone() && left > 0) {
+                TimeUnit.NANOSECONDS.timedWait(waiters, left);
+                left = deadline - System.nanoTime();
+            }
+            Iterator<Abandoned> it = abandoned.iterator();
+            while (it.hasNext()) {
+                Completion<Packet> completion = it.next().completion;
+                if (completion.isDone()) {
+                    it.remove();
+                    try {
+                        packets.add(take(completion));
+                    } catch (WinDivertException e) {
+                        // Failed receives hold no packet
+                    }
+                }
+            }
+        }
+        return packets;
+    }
+
+    private boolean allDone() {
+        for (Abandoned a : abandoned) {
+            if (!a.completion.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Take a receive left outstanding by an earlier call with the same pool and size, one already done first.
+     */
+    private Completion<Packet> claim(BufferPool pool, int bufsize) {
+        int first = -1;
+        for (int i = 0; i < abandoned.size(); i++) {
+            Abandoned a = abandoned.get(i);
+            if (a.pool == pool && a.bufsize == bufsize) {
+                if (a.completion.isDone()) {
+                    return abandoned.remove(i).completion;
+                }
+                if (first < 0) {
+                    first = i;
+                }
+            }
+        }
+        return first < 0 ? null : abandoned.remove(first).completion;
+    }
+
+    /**
+     * Get the packet of a done receive.
+     */
+    private static Packet take(Completion<Packet> completion) throws WinDivertException {
+        try {
+            return completion.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof WinDivertException) {
+                throw (WinDivertException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            // Done already, get does not wait
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private HANDLE handle() throws WinDivertException {
+        HANDLE h = handle;
+        if (h == null) {
+            // Closed concurrently, fail as the driver does rather than passing a null handle
+            throw new WinDivertException(ERROR_INVALID_HANDLE);
+        }
+        return h;
+    }
+
+    /**
+     * Get the handle for a call that does not block, {@link #close()} waiting for the call to {@link #leave()}.
+     *
+     * @return The handle, {@code null} if closed.
+     */
+    private HANDLE enter() {
+        calls.readLock().lock();
+        HANDLE h = handle;
+        if (h == null) {
+            calls.readLock().unlock();
+        }
+        return h;
+    }
+
+    private void leave() {
+        calls.readLock().unlock();
+    }
+
     /**
      * Injects a packet into the headers stack.<br>
      * Recalculates the checksum before sending.<br>
@@ -273,16 +613,296 @@ public class WinDivert {
         }
         WinDivertAddress address = packet.getWinDivertAddress();
         IntByReference sendLen = new IntByReference();
-        byte[] raw = packet.getRaw();
-        Memory buffer = new Memory(raw.length);
+        ByteBuffer raw = packet.getByteBuffer();
+        int length = raw.capacity();
+        Memory buffer = new Memory(length);
 
-        buffer.write(0, raw, 0, raw.length);
+        buffer.write(0, raw.array(), raw.arrayOffset(), length);
         address.write();
-        dll.WinDivertSend(handle, buffer, raw.length, address.getPointer(), sendLen);
-        throwExceptionOnGetLastError();
+        HANDLE h = enter();
+        if (h == null) {
+            throw new WinDivertException(ERROR_INVALID_HANDLE);
+        }
+        try {
+            dll.WinDivertSend(h, buffer, length, address.getPointer(), sendLen);
+            throwExceptionOnGetLastError();
+        } finally {
+            leave();
+        }
         return sendLen.getValue();
     }
 
+    /**
+     * Have the {@link #recvAsync() asynchronous} operations of this handle complete on a {@link CompletionPort},
+     * instead of the {@link CompletionPort#getDefault() default} one. The handle must be open.
+     * <p>
+     * A handle can be associated with a single port for its whole life: the port is kept when the handle is
+     * reopened.
+     * </p>
+     *
+     * @param completionPort The started {@link CompletionPort}.
+     * @throws WinDivertException If the handle cannot be associated with the port.
+     */
+    public synchronized void setCompletionPort(CompletionPort completionPort) throws WinDivertException {
+        HANDLE h = handle;
+        if (h == null) {
+            throw new IllegalStateException("WinDivert handle not in OPEN state");
+        }
+        if (this.completionPort != null) {
+            throw new IllegalStateException("WinDivert handle already associated with a completion port");
+        }
+        completionPort.associate(h);
+        this.completionPort = completionPort;
+    }
+
+    /**
+     * Get the {@link CompletionPort} the asynchronous operations of this handle complete on.<br>
+     * The port is set by {@link #setCompletionPort(CompletionPort)}, or is the
+     * {@link CompletionPort#getDefault() default} one from the first asynchronous operation on, and is kept when the
+     * handle is reopened. The handle does not own it: a port set by the caller is to be closed by the caller, once
+     * every handle associated with it is closed, while the default one is shared and never closed.
+     *
+     * @return The {@link CompletionPort}, {@code null} if none yet.
+     */
+    public CompletionPort getCompletionPort() {
+        return completionPort;
+    }
+
+    private CompletionPort completionPort() throws WinDivertException {
+        CompletionPort port = completionPort;
+        if (port == null) {
+            synchronized (this) {
+                if (completionPort == null) {
+                    setCompletionPort(CompletionPort.getDefault());
+                }
+                port = completionPort;
+            }
+        }
+        return port;
+    }
+
+    /**
+     * Receives a diverted packet asynchronously.
+     *
+     * @return A {@link Completion} of the received {@link com.github.ffalcinelli.jdivert.Packet Packet}.
+     * @see #recvAsync(int)
+     */
+    public Completion<Packet> recvAsync() {
+        return recvAsync(DEFAULT_PACKET_BUFFER_SIZE);
+    }
+
+    /**
+     * Receives a diverted packet asynchronously.<br>
+     * The receive is handed to the driver and the method returns at once; the returned {@link Completion} is completed
+     * by a {@link CompletionPort} thread once a packet arrives, or failed with a {@link WinDivertException}, e.g.
+     * when the handle is closed. Several receives may be outstanding at once.
+     * <p>
+     * The remapped function is {@code WinDivertRecvEx}:
+     * </p>
+     * <pre>{@code
+     * BOOL WinDivertRecvEx(
+     *      __in HANDLE handle,
+     *      __out PVOID pPacket,
+     *      __in UINT packetLen,
+     *      __in UINT64 flags,
+     *      __out_opt PWINDIVERT_ADDRESS pAddr,
+     *      __out_opt UINT *recvLen,
+     *      __inout_opt LPOVERLAPPED lpOverlapped
+     * );
+     * }</pre>
+     * <p>
+     * For more info on the C call visit: <a href="http://reqrypt.org/windivert-doc.html#divert_recv_ex">http://reqrypt.org/windivert-doc.html#divert_recv_ex</a>
+     *
+     * @param bufsize The size for the buffer to allocate
+     * @return A {@link Completion} of the received {@link com.github.ffalcinelli.jdivert.Packet Packet}.
+     */
+    public Completion<Packet> recvAsync(final int bufsize) {
+        final Completion<Packet> completion = new Completion<Packet>();
+        final WinDivertAddress address = new WinDivertAddress();
+        final Memory buffer = new Memory(bufsize);
+        issue(completion, new CompletionPort.Operation() {
+            @Override
+            void completed(int transferred, int error) {
+                if (error != 0) {
+                    completion.fail(new WinDivertException(error));
+                    return;
+                }
+                Packet packet;
+                try {
+                    address.read();
+                    packet = new Packet(buffer.getByteArray(0, transferred), address);
+                } catch (RuntimeException e) {
+                    // E.g. a protocol the headers cannot be parsed for
+                    completion.fail(e);
+                    return;
+                }
+                completion.complete(packet);
+            }
+
+            @Override
+            boolean start(HANDLE h, Pointer overlapped) {
+                return dll.WinDivertRecvEx(h, buffer, bufsize, 0, address.getPointer(), null, overlapped)
+                        .booleanValue();
+            }
+        });
+        return completion;
+    }
+
+    /**
+     * Receives a diverted packet asynchronously into a buffer taken from a {@link BufferPool}.<br>
+     * The receive is issued as by {@link #recvAsync(int)}, into native buffers reused from one receive to the next;
+     * the pooled buffer is only taken once a packet arrives, and is to be released as usual.
+     *
+     * @param pool The {@link BufferPool} to take the buffer from, its buffers at least as large as the largest packet.
+     * @return A {@link Completion} of the received {@link com.github.ffalcinelli.jdivert.Packet Packet}.
+     */
+    public Completion<Packet> recvAsync(final BufferPool pool) {
+        final Completion<Packet> completion = new Completion<Packet>();
+        final int bufsize = pool.getBufferSize();
+        final RecvBuffers buffers;
+        synchronized (idleBuffers) {
+            buffers = idleBuffers.isEmpty() ? new RecvBuffers() : idleBuffers.remove(idleBuffers.size() - 1);
+        }
+        final Memory buffer = buffers.buffer(bufsize);
+        issue(completion, new CompletionPort.Operation() {
+            @Override
+            void completed(int transferred, int error) {
+                Packet packet = null;
+                Exception failure = null;
+                try {
+                    if (error == 0) {
+                        buffers.address.read();
+                        packet = buffers.packet(pool, transferred);
+                    } else {
+                        failure = new WinDivertException(error);
+                    }
+                } catch (RuntimeException e) {
+                    // E.g. a protocol the headers cannot be parsed for
+                    failure = e;
+                } finally {
+                    // Copied out or failed, the driver is done with the buffers
+                    synchronized (idleBuffers) {
+                        idleBuffers.add(buffers);
+                    }
+                }
+                if (failure == null) {
+                    completion.complete(packet);
+                } else {
+                    completion.fail(failure);
+                }
+            }
+
+            @Override
+            boolean start(HANDLE h, Pointer overlapped) {
+                return dll.WinDivertRecvEx(h, buffer, bufsize, 0, buffers.address.getPointer(), null, overlapped)
+                        .booleanValue();
+            }
+        });
+        return completion;
+    }
+
+    /**
+     * Injects a packet asynchronously, recalculating its checksums first.
+     *
+     * @param packet The {@link com.github.ffalcinelli.jdivert.Packet Packet} to send
+     * @return A {@link Completion} of the number of bytes actually sent.
+     * @see #sendAsync(Packet, boolean, CalcChecksumsOption...)
+     */
+    public Completion<Integer> sendAsync(Packet packet) {
+        return sendAsync(packet, true);
+    }
+
+    /**
+     * Injects a packet asynchronously.<br>
+     * The packet is copied and handed to the driver, so it can be reused as soon as the method returns; the returned
+     * {@link Completion} is completed by a {@link CompletionPort} thread once the packet is injected.
+     * <p>
+     * The remapped function is {@code WinDivertSendEx}:
+     * </p>
+     * <pre>{@code
+     * BOOL WinDivertSendEx(
+     *      __in HANDLE handle,
+     *      __in PVOID pPacket,
+     *      __in UINT packetLen,
+     *      __in UINT64 flags,
+     *      __in PWINDIVERT_ADDRESS pAddr,
+     *      __out_opt UINT *sendLen,
+     *      __inout_opt LPOVERLAPPED lpOverlapped
+     * );
+     * }</pre>
+     * <p>
+     * For more info on the C call visit: <a href="http://reqrypt.org/windivert-doc.html#divert_send_ex">http://reqrypt.org/windivert-doc.html#divert_send_ex</a>
+     *
+     * @param packet              The {@link com.github.ffalcinelli.jdivert.Packet Packet} to send
+     * @param recalculateChecksum Whether to recalculate the checksums or pass the {@link com.github.ffalcinelli.jdivert.Packet packet} as is.
+     * @param options             A set of {@link Enums.CalcChecksumsOption options} to use when recalculating checksums.
+     * @return A {@link Completion} of the number of bytes actually sent.
+     */
+    public Completion<Integer> sendAsync(Packet packet, boolean recalculateChecksum, CalcChecksumsOption... options) {
+        final Completion<Integer> completion = new Completion<Integer>();
+        try {
+            if (recalculateChecksum) {
+                packet.recalculateChecksum(options);
+            }
+        } catch (WinDivertException e) {
+            completion.fail(e);
+            return completion;
+        }
+        final WinDivertAddress address = packet.getWinDivertAddress();
+        ByteBuffer raw = packet.getByteBuffer();
+        final int length = raw.capacity();
+        final Memory buffer = new Memory(length);
+        buffer.write(0, raw.array(), raw.arrayOffset(), length);
+        address.write();
+        issue(completion, new CompletionPort.Operation() {
+            @Override
+            void completed(int transferred, int error) {
+                if (error != 0) {
+                    completion.fail(new WinDivertException(error));
+                } else {
+                    completion.complete(transferred);
+                }
+            }
+
+            @Override
+            boolean start(HANDLE h, Pointer overlapped) {
+                return dll.WinDivertSendEx(h, buffer, length, 0, address.getPointer(), null, overlapped)
+                        .booleanValue();
+            }
+        });
+        return completion;
+    }
+
+    /**
+     * Register an operation on the completion port, then hand it to the driver.
+     */
+    private void issue(Completion<?> completion, CompletionPort.Operation operation) {
+        CompletionPort port;
+        try {
+            port = completionPort();
+        } catch (WinDivertException e) {
+            completion.fail(e);
+            return;
+        }
+        HANDLE h = enter();
+        if (h == null) {
+            completion.fail(new WinDivertException(ERROR_INVALID_HANDLE));
+            return;
+        }
+        try {
+            Pointer overlapped = port.register(operation);
+            if (overlapped != null && !operation.start(h, overlapped)) {
+                int lastError = Native.getLastError();
+                if (lastError != ERROR_IO_PENDING) {
+                    // Refused at once, nothing will reach the port
+                    port.abort(overlapped, lastError);
+                }
+            }
+        } finally {
+            leave();
+        }
+    }
+
     /**
      * Get a WinDivert parameter. See {@link Enums.Param Param} for the list of parameters.
      * <p>
@@ -302,11 +922,16 @@ public class WinDivert {
      * @return The value for the parameter
      */
     public long getParam(Param param) {
-        if (!isOpen()) {
+        LongByReference value = new LongByReference();
+        HANDLE h = enter();
+        if (h == null) {
             throw new IllegalStateException("WinDivert handle not in OPEN state");
         }
-        LongByReference value = new LongByReference();
-        dll.WinDivertGetParam(handle, param.getValue(), value);
+        try {
+            dll.WinDivertGetParam(h, param.getValue(), value);
+        } finally {
+            leave();
+        }
         return value.getValue();
     }
 
@@ -335,7 +960,15 @@ public class WinDivert {
         if (param.getMin() > value || param.getMax() < value) {
             throw new IllegalArgumentException(String.format("%s must be in range %d, %d", param, param.getMin(), param.getMax()));
         }
-        dll.WinDivertSetParam(handle, param.getValue(), value);
+        HANDLE h = enter();
+        if (h == null) {
+            throw new IllegalStateException("WinDivert handle not in OPEN state");
+        }
+        try {
+            dll.WinDivertSetParam(h, param.getValue(), value);
+        } finally {
+            leave();
+        }
     }
 
     /**
@@ -377,4 +1010,47 @@ public class WinDivert {
                 , isOpen() ? "OPEN" : "CLOSED"
         );
     }
+
+    /**
+     * A receive left outstanding by a timed call, with the pool and the buffer size it receives into.
+     */
+    private static class Abandoned {
+        private final Completion<Packet> completion;
+        private final BufferPool pool;
+        private final int bufsize;
+
+        Abandoned(Completion<Packet> completion, BufferPool pool, int bufsize) {
+            this.completion = completion;
+            this.pool = pool;
+            this.bufsize = bufsize;
+        }
+    }
+
+    /**
+     * The native buffers a packet is received into before being copied to a pooled buffer.
+     */
+    private static class RecvBuffers {
+        private final WinDivertAddress address = new WinDivertAddress();
+        private final IntByReference recvLen = new IntByReference();
+        private Memory buffer;
+
+        Memory buffer(int size) {
+            if (buffer == null || buffer.size() < size) {
+                buffer = new Memory(size);
+            }
+            return buffer;
+        }
+
+        Packet packet(BufferPool pool, int length) {
+            byte[] raw = pool.acquire();
+            try {
+                buffer.read(0, raw, 0, length);
+                return new Packet(raw, length, new int[]{address.IfIdx.intValue(), address.SubIfIdx.intValue()},
+                        Direction.fromValue(address.Direction.intValue()));
+            } catch (RuntimeException e) {
+                pool.release(raw);
+                throw e;
+            }
+        }
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.balance;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * A load balancing target: an address, a port and a weight.
+ * <p>
+ * Backends are identified by address and port, the weight is not part of their identity.
+ * </p>
+ */
+public class Backend {
+
+    private final byte[] address;
+    private final int port;
+    private final int weight;
+
+    /**
+     * Create a new {@link Backend}.
+     *
+     * @param address The backend address.
+     * @param port    The backend port.
+     * @param weight  The share of connections, relative to the other backends. 0 excludes the backend.
+     */
+    public Backend(InetAddress address, int port, int weight) {
+        if (weight < 0 || port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException(String.format("Invalid port %d or weight %d", port, weight));
+        }
+        this.address = address.getAddress();
+        this.port = port;
+        this.weight = weight;
+    }
+
+    /**
+     * Create a new {@link Backend} of weight 1.
+     *
+     * @param address The backend address.
+     * @param port    The backend port.
+     */
+    public Backend(InetAddress address, int port) {
+        this(address, port, 1);
+    }
+
+    byte[] address() {
+        return address;
+    }
+
+    public byte[] getAddress() {
+        return address.clone();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Backend backend = (Backend) o;
+        return port == backend.port && Arrays.equals(address, backend.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(address) + port;
+    }
+
+    @Override
+    public String toString() {
+        String host;
+        try {
+            host = InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            host = Arrays.toString(address);
+        }
+        return String.format("Backend {address=%s, port=%d, weight=%d}", host, port, weight);
+    }
+}
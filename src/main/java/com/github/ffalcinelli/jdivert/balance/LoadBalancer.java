@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.balance;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.flow.EndpointTable;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+
+/**
+ * Spreads the connections to a virtual address and port over a set of {@link Backend backends}.
+ * <p>
+ * The first packet of a connection picks a backend from a {@link MaglevTable} indexed by the hash of its 5-tuple,
+ * read straight from the packet buffer; the choice is remembered in a connection table keyed by the client endpoint,
+ * so established connections keep their backend when the backend set changes. Requests have their destination
+ * rewritten to the backend, replies their source rewritten to the virtual address, with incremental checksum updates.
+ * Removed backends keep their connections until those expire, unless the client reconnects.
+ * </p>
+ * The class is thread safe.
+ */
+public class LoadBalancer {
+
+    private final byte[] vip;
+    private final int port;
+    private final int protocol;
+    private final EndpointTable connections = new EndpointTable();
+    private final List<Backend> registry = new ArrayList<Backend>();
+    private volatile State state;
+    private volatile long idleTimeout = 7440000;
+    private volatile long closedTimeout = 10000;
+
+    /**
+     * Create a new {@link LoadBalancer} with no backend.
+     *
+     * @param vip      The virtual address.
+     * @param protocol The {@link Protocol}, either Tcp or Udp.
+     * @param port     The virtual port.
+     */
+    public LoadBalancer(InetAddress vip, Protocol protocol, int port) {
+        if (protocol != Protocol.TCP && protocol != Protocol.UDP) {
+            throw new IllegalArgumentException("Only Tcp and Udp can be balanced, got " + protocol);
+        }
+        this.vip = vip.getAddress();
+        this.port = port;
+        this.protocol = protocol.getValue();
+        this.state = new State(new Backend[0], new ArrayList<Backend>(), new int[0]);
+    }
+
+    private static int get16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static void put16(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static boolean equals(byte[] data, int offset, byte[] address) {
+        for (int i = 0; i < address.length; i++) {
+            if (data[offset + i] != address[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash a 5-tuple, FNV-1a followed by a finalizer.
+     */
+    static int hash(byte[] d, int srcOffset, int dstOffset, int length, int srcPort, int dstPort, int protocol) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ (d[srcOffset + i] & 0xFF)) * 0x01000193;
+        }
+        for (int i = 0; i < length; i++) {
+            h = (h ^ (d[dstOffset + i] & 0xFF)) * 0x01000193;
+        }
+        h = (h ^ ((srcPort << 16) | dstPort)) * 0x01000193;
+        h = (h ^ protocol) * 0x01000193;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    /**
+     * Replace the backends. Backends present both before and after keep their connections.
+     *
+     * @param backends The new backends, of the same address family of the virtual address.
+     */
+    public synchronized void setBackends(Collection<Backend> backends) {
+        List<Backend> active = new ArrayList<Backend>(backends.size());
+        int[] ids = new int[backends.size()];
+        for (Backend backend : backends) {
+            if (backend.address().length != vip.length) {
+                throw new IllegalArgumentException("Address family mismatch with the virtual address: " + backend);
+            }
+            int id = registry.indexOf(backend);
+            if (id < 0) {
+                id = registry.size();
+                registry.add(backend);
+            } else {
+                registry.set(id, backend);
+            }
+            ids[active.size()] = id;
+            active.add(backend);
+        }
+        state = new State(registry.toArray(new Backend[registry.size()]), active, ids);
+    }
+
+    /**
+     * Get the active backends.
+     *
+     * @return The backends currently receiving new connections.
+     */
+    public List<Backend> getBackends() {
+        return new ArrayList<Backend>(state.active);
+    }
+
+    /**
+     * Rewrite a packet in place.
+     *
+     * @param packet The {@link Packet} to balance.
+     * @return {@link Result#FORWARDED} if a request has been sent to a backend, {@link Result#REPLIED} if a reply has
+     * been given the virtual address, {@link Result#NO_BACKEND} if a request found no backend, or
+     * {@link Result#NOT_MATCHED}.
+     */
+    public Result balance(Packet packet) {
+        boolean tcp = packet.isTcp();
+        if (!(tcp ? protocol == Protocol.TCP.getValue() : packet.isUdp() && protocol == Protocol.UDP.getValue())) {
+            return Result.NOT_MATCHED;
+        }
+        boolean ipv4 = packet.isIpv4();
+        int length = ipv4 ? 4 : 16;
+        if (length != vip.length) {
+            return Result.NOT_MATCHED;
+        }
+        byte[] d = packet.getByteBuffer().array();
+        int srcOffset = ipv4 ? 12 : 8;
+        int dstOffset = ipv4 ? 16 : 24;
+        int l4 = packet.getPayloadOffset() - (tcp ? packet.getTcp().getHeaderLength() : packet.getUdp().getHeaderLength());
+        int srcPort = get16(d, l4);
+        int dstPort = get16(d, l4 + 2);
+        boolean closing = tcp && (d[l4 + 13] & 0x05) != 0;
+        boolean syn = tcp && (d[l4 + 13] & 0x12) == 0x02;
+        int checksumOffset = tcp ? l4 + 16 : l4 + 6;
+        long now = currentTimeMillis();
+        State s = state;
+
+        if (dstPort == port && equals(d, dstOffset, vip)) {
+            int tag = (protocol << 16) | srcPort;
+            int id = connections.touch(d, srcOffset, length, tag, now, closing);
+            if (id < 0 || (syn && !s.isActive(id))) {
+                int index = s.table.lookup(hash(d, srcOffset, dstOffset, length, srcPort, dstPort, protocol));
+                if (index < 0) {
+                    return Result.NO_BACKEND;
+                }
+                id = s.ids[index];
+                connections.put(d, srcOffset, length, tag, id, now, syn, closing);
+            }
+            Backend backend = s.registry[id];
+            rewrite(d, ipv4, dstOffset, backend.address(), l4 + 2, backend.getPort(), checksumOffset, !tcp);
+            return Result.FORWARDED;
+        }
+        int id = connections.get(d, dstOffset, length, (protocol << 16) | dstPort);
+        if (id >= 0) {
+            Backend backend = s.registry[id];
+            if (backend.getPort() == srcPort && equals(d, srcOffset, backend.address())) {
+                connections.touch(d, dstOffset, length, (protocol << 16) | dstPort, now, closing);
+                rewrite(d, ipv4, srcOffset, vip, l4, port, checksumOffset, !tcp);
+                return Result.REPLIED;
+            }
+        }
+        return Result.NOT_MATCHED;
+    }
+
+    private static void rewrite(byte[] d, boolean ipv4, int addressOffset, byte[] address, int portOffset, int port,
+                                int checksumOffset, boolean udp) {
+        int checksum = get16(d, checksumOffset);
+        boolean fix = !udp || checksum != 0;
+        if (ipv4) {
+            put16(d, 10, Checksums.update(get16(d, 10), d, addressOffset, address, 0, address.length));
+        }
+        checksum = Checksums.update(checksum, d, addressOffset, address, 0, address.length);
+        System.arraycopy(address, 0, d, addressOffset, address.length);
+        checksum = Checksums.update(checksum, get16(d, portOffset), port);
+        put16(d, portOffset, port);
+        if (fix) {
+            put16(d, checksumOffset, udp && checksum == 0 ? 0xFFFF : checksum);
+        }
+    }
+
+    /**
+     * Remove the connections closed, or idle, for longer than their timeout.
+     *
+     * @return The number of connections removed.
+     */
+    public int expire() {
+        return connections.expire(currentTimeMillis(), idleTimeout, closedTimeout);
+    }
+
+    /**
+     * Get the current time in milliseconds, used to track idle connections.
+     *
+     * @return The current time.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Get the number of tracked connections.
+     *
+     * @return The number of connections.
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setClosedTimeout(long closedTimeout) {
+        this.closedTimeout = closedTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LoadBalancer {port=%d, protocol=%d, backends=%d, connections=%d}",
+                port, protocol, state.active.size(), size());
+    }
+
+    /**
+     * The outcome of {@link #balance(Packet)}.
+     */
+    public enum Result {
+        FORWARDED, REPLIED, NO_BACKEND, NOT_MATCHED
+    }
+
+    /**
+     * An immutable snapshot of the backends and their lookup table.
+     */
+    private static class State {
+        final Backend[] registry;
+        final List<Backend> active;
+        final int[] ids;
+        final boolean[] activeIds;
+        final MaglevTable table;
+
+        State(Backend[] registry, List<Backend> active, int[] ids) {
+            this.registry = registry;
+            this.active = active;
+            this.ids = ids;
+            this.activeIds = new boolean[registry.length];
+            for (int id : ids) {
+                activeIds[id] = true;
+            }
+            this.table = new MaglevTable(active);
+        }
+
+        boolean isActive(int id) {
+            return id < activeIds.length && activeIds[id];
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.balance;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A Maglev consistent hashing lookup table (Eisenbud et al., NSDI 2016).
+ * <p>
+ * Each backend walks the table following its own permutation, derived from its address and port, and the backends
+ * take turns claiming the first free entry of their permutation until the table is full. A backend of weight
+ * {@code w} claims {@code w} entries per turn. Every backend thus owns a share of entries proportional to its weight,
+ * and adding or removing a backend moves few entries besides the ones it gains or loses. Tables are immutable.
+ * </p>
+ */
+public class MaglevTable {
+
+    /**
+     * The default table size, a prime much larger than the expected number of backends.
+     */
+    public static final int DEFAULT_SIZE = 65537;
+
+    private final int[] entries;
+
+    /**
+     * Create a new {@link MaglevTable} of {@link #DEFAULT_SIZE} entries.
+     *
+     * @param backends The backends, whose indexes the table maps to.
+     */
+    public MaglevTable(List<Backend> backends) {
+        this(backends, DEFAULT_SIZE);
+    }
+
+    /**
+     * Create a new {@link MaglevTable}.
+     *
+     * @param backends The backends, whose indexes the table maps to.
+     * @param size     The table size, a prime number.
+     */
+    public MaglevTable(List<Backend> backends, int size) {
+        if (!isPrime(size)) {
+            throw new IllegalArgumentException(String.format("Table size %d is not prime", size));
+        }
+        entries = new int[size];
+        Arrays.fill(entries, -1);
+        int n = backends.size();
+        int[] offsets = new int[n];
+        int[] skips = new int[n];
+        int[] next = new int[n];
+        int totalWeight = 0;
+        for (int i = 0; i < n; i++) {
+            Backend backend = backends.get(i);
+            long h = fingerprint(backend);
+            offsets[i] = (int) ((mix(h) >>> 1) % size);
+            skips[i] = (int) ((mix(h ^ 0x5851F42D4C957F2DL) >>> 1) % (size - 1)) + 1;
+            totalWeight += backend.getWeight();
+        }
+        if (totalWeight == 0) {
+            return;
+        }
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < n; i++) {
+                for (int turn = backends.get(i).getWeight(); turn > 0; turn--) {
+                    int c = (int) ((offsets[i] + (long) next[i] * skips[i]) % size);
+                    while (entries[c] >= 0) {
+                        next[i]++;
+                        c = (int) ((offsets[i] + (long) next[i] * skips[i]) % size);
+                    }
+                    entries[c] = i;
+                    next[i]++;
+                    if (++filled == size) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isPrime(int n) {
+        if (n < 2) {
+            return false;
+        }
+        for (int i = 2; (long) i * i <= n; i++) {
+            if (n % i == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long fingerprint(Backend backend) {
+        // FNV-1a over address and port
+        long h = 0xCBF29CE484222325L;
+        for (byte b : backend.address()) {
+            h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        h = (h ^ (backend.getPort() >>> 8)) * 0x100000001B3L;
+        return (h ^ (backend.getPort() & 0xFF)) * 0x100000001B3L;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Get the backend for a flow hash.
+     *
+     * @param hash The flow hash.
+     * @return The backend index, -1 if no backend has a positive weight.
+     */
+    public int lookup(int hash) {
+        return entries[(hash & Integer.MAX_VALUE) % entries.length];
+    }
+
+    /**
+     * Get the backend owning an entry.
+     *
+     * @param index The entry index.
+     * @return The backend index, -1 if no backend has a positive weight.
+     */
+    public int getEntry(int index) {
+        return entries[index];
+    }
+
+    public int size() {
+        return entries.length;
+    }
+}
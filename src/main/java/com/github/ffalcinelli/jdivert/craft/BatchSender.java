@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.craft;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.traffic.PacedSender;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Sends crafted packets from a dedicated thread, in batches.
+ * <p>
+ * Producers (e.g. the threads receiving from a {@link WinDivert} handle) {@link #offer(Packet) offer} packets to a
+ * bounded queue without blocking. The sender thread drains up to {@code batchSize} packets at a time, sends them with
+ * checksums as they are and gives their buffers back to the {@link BufferPool}. When the queue is full packets are
+ * refused and counted as dropped, so a flood of packets to reply to never stalls the receiving threads.
+ * </p>
+ * The class is thread safe.
+ */
+public class BatchSender extends PacedSender {
+
+    private final ArrayDeque<Packet> queue;
+    private final int capacity;
+
+    /**
+     * Create a new {@link BatchSender}.
+     *
+     * @param divert    The open {@link WinDivert} handle to send with.
+     * @param pool      The {@link BufferPool} where to release buffers of sent packets, may be {@code null}.
+     * @param capacity  The maximum number of queued packets.
+     * @param batchSize The maximum number of packets sent per queue drain.
+     */
+    public BatchSender(WinDivert divert, BufferPool pool, int capacity, int batchSize) {
+        super(divert, pool, 0, batchSize, "jdivert-batch-sender");
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid capacity %d", capacity));
+        }
+        this.queue = new ArrayDeque<Packet>(capacity);
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized BatchSender start() {
+        super.start();
+        return this;
+    }
+
+    /**
+     * Queue a packet to be sent. Ownership of its buffer passes to the sender only when this method returns true.
+     *
+     * @param packet The {@link Packet} to send.
+     * @return True if queued, false if the queue is full or the sender is stopped.
+     */
+    public synchronized boolean offer(Packet packet) {
+        if (isStopped() || queue.size() == capacity) {
+            refused();
+            return false;
+        }
+        queue.add(packet);
+        enqueued();
+        return true;
+    }
+
+    @Override
+    public synchronized Packet dequeue(long now) {
+        return queue.poll();
+    }
+
+    @Override
+    protected void removeAll(List<Packet> out) {
+        out.addAll(queue);
+        queue.clear();
+    }
+
+    /**
+     * Send what was still queued when the sender stopped, rather than dropping it.
+     *
+     * @param packets The packets left.
+     */
+    @Override
+    protected void stopped(List<Packet> packets) {
+        send(packets);
+    }
+
+    @Override
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchSender {queued=%d, sent=%d, dropped=%d, errors=%d}",
+                getQueued(), getSent(), getDropped(), getErrors());
+    }
+}
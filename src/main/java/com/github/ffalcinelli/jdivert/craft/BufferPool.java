@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.craft;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+/**
+ * A bounded pool of equally sized packet buffers.
+ * <p>
+ * Buffers are preallocated. When the pool is exhausted {@link #acquire()} allocates a new buffer (counted as a miss),
+ * while buffers released to a full pool are left to the garbage collector, so that the pool never grows beyond its
+ * capacity. The pool is thread safe.
+ * </p>
+ */
+public class BufferPool {
+
+    private final byte[][] free;
+    private final int bufferSize;
+    private int count;
+    private long misses;
+
+    /**
+     * Create a new {@link BufferPool}.
+     *
+     * @param capacity   The number of buffers to keep.
+     * @param bufferSize The size of each buffer.
+     */
+    public BufferPool(int capacity, int bufferSize) {
+        if (capacity <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid pool size %d x %d bytes", capacity, bufferSize));
+        }
+        this.free = new byte[capacity][];
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < capacity; i++) {
+            free[i] = new byte[bufferSize];
+        }
+        this.count = capacity;
+    }
+
+    /**
+     * Take a buffer from the pool.
+     *
+     * @return A buffer of {@link #getBufferSize()} bytes. Its content is undefined.
+     */
+    public byte[] acquire() {
+        synchronized (this) {
+            if (count > 0) {
+                byte[] buffer = free[--count];
+                free[count] = null;
+                return buffer;
+            }
+            misses++;
+        }
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Give a buffer back to the pool.
+     *
+     * @param buffer The buffer to release. Buffers of a different size are ignored.
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length != bufferSize) {
+            return;
+        }
+        synchronized (this) {
+            if (count < free.length) {
+                free[count++] = buffer;
+            }
+        }
+    }
+
+    /**
+     * Give the buffer backing a {@link Packet} back to the pool. The {@link Packet} must not be used afterwards.
+     *
+     * @param packet The {@link Packet} whose buffer must be released.
+     */
+    public void release(Packet packet) {
+        release(packet.getByteBuffer().array());
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getCapacity() {
+        return free.length;
+    }
+
+    /**
+     * Get the number of buffers currently in the pool.
+     *
+     * @return The available buffers.
+     */
+    public synchronized int available() {
+        return count;
+    }
+
+    /**
+     * Get how many times a buffer has been allocated because the pool was empty.
+     *
+     * @return The number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool {available=%d, capacity=%d, bufferSize=%d, misses=%d}",
+                available(), free.length, bufferSize, getMisses());
+    }
+}
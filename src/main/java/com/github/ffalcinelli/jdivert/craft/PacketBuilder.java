@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.craft;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction;
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+
+/**
+ * Crafts Ipv4/Ipv6 packets carrying Tcp, Udp or Icmp.
+ * <p>
+ * Headers are written straight into the destination buffer, taken from a {@link BufferPool} when one is given, and
+ * lengths and checksums are filled while writing, so the resulting {@link Packet} is ready to be sent with
+ * {@code WinDivert.send(packet, false)}. When many similar packets are needed, {@link #template()} gives a
+ * {@link PacketTemplate} where single fields can be changed with O(1) checksum fix-ups.
+ * </p><p>
+ * The builder keeps its settings after {@link #build()}, so it can be reused changing only some fields. It is not
+ * thread safe.
+ * </p>
+ * <pre>{@code
+ * Packet syn = new PacketBuilder(pool)
+ *      .ip("192.168.1.2", "192.168.1.1")
+ *      .tcp(40000, 80).seq(1).flags(Tcp.Flag.SYN)
+ *      .build();
+ * }</pre>
+ */
+public class PacketBuilder {
+
+    public static final int IPV4_HEADER_LENGTH = 20;
+    public static final int IPV6_HEADER_LENGTH = 40;
+    public static final int TCP_HEADER_LENGTH = 20;
+    public static final int UDP_HEADER_LENGTH = 8;
+    public static final int ICMP_HEADER_LENGTH = 8;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final BufferPool pool;
+    private byte[] srcAddr;
+    private byte[] dstAddr;
+    private int ttl = 64;
+    private int tos;
+    private int id;
+    private boolean dontFragment;
+    private int flowLabel;
+    private Protocol protocol;
+    private int srcPort;
+    private int dstPort;
+    private int seq;
+    private int ack;
+    private int tcpFlags;
+    private int window = 0xFFFF;
+    private int icmpType;
+    private int icmpCode;
+    private int icmpRest;
+    private byte[] payload = EMPTY;
+    private int payloadOffset;
+    private int payloadLength;
+    private Direction direction = Direction.OUTBOUND;
+    private int[] iface = new int[]{0, 0};
+
+    /**
+     * Create a new {@link PacketBuilder} allocating an exactly sized array for each packet.
+     */
+    public PacketBuilder() {
+        this(null);
+    }
+
+    /**
+     * Create a new {@link PacketBuilder} taking buffers from the given pool.
+     *
+     * @param pool The {@link BufferPool} to take buffers from, {@code null} to allocate them.
+     */
+    public PacketBuilder(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Convert a set of {@link Tcp.Flag flags} to the 9 bit mask used by the Tcp header.
+     *
+     * @param flags The flags to set.
+     * @return The flags bitmask.
+     */
+    public static int mask(Tcp.Flag... flags) {
+        int mask = 0;
+        for (Tcp.Flag flag : flags) {
+            mask |= 1 << (8 - flag.ordinal());
+        }
+        return mask;
+    }
+
+    /**
+     * Set source and destination addresses, the Ip version follows their type.
+     *
+     * @param src The source address.
+     * @param dst The destination address.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder ip(InetAddress src, InetAddress dst) {
+        return ip(src.getAddress(), dst.getAddress());
+    }
+
+    /**
+     * Set source and destination addresses given as literals (no name resolution is performed).
+     *
+     * @param src The source address literal.
+     * @param dst The destination address literal.
+     * @return this instance to allow call chaining.
+     * @throws UnknownHostException If a literal is not valid.
+     */
+    public PacketBuilder ip(String src, String dst) throws UnknownHostException {
+        return ip(InetAddress.getByName(src), InetAddress.getByName(dst));
+    }
+
+    /**
+     * Set source and destination addresses as raw bytes: 4 bytes for Ipv4, 16 bytes for Ipv6.
+     *
+     * @param src The source address.
+     * @param dst The destination address.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder ip(byte[] src, byte[] dst) {
+        if (src.length != dst.length || (src.length != 4 && src.length != 16)) {
+            throw new IllegalArgumentException(String.format("Addresses must be both 4 or 16 bytes long, got %d and %d", src.length, dst.length));
+        }
+        this.srcAddr = src.clone();
+        this.dstAddr = dst.clone();
+        return this;
+    }
+
+    /**
+     * Set the Ipv4 TTL or the Ipv6 hop limit.
+     *
+     * @param ttl The time to live.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder ttl(int ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    /**
+     * Set the Ipv4 type of service or the Ipv6 traffic class (DSCP and ECN).
+     *
+     * @param tos The type of service.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder tos(int tos) {
+        this.tos = tos;
+        return this;
+    }
+
+    /**
+     * Set the Ipv4 identification field.
+     *
+     * @param id The identification.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder id(int id) {
+        this.id = id;
+        return this;
+    }
+
+    /**
+     * Set the Ipv4 don't fragment flag.
+     *
+     * @param dontFragment The flag value.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder dontFragment(boolean dontFragment) {
+        this.dontFragment = dontFragment;
+        return this;
+    }
+
+    /**
+     * Set the Ipv6 flow label.
+     *
+     * @param flowLabel The 20 bit flow label.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder flowLabel(int flowLabel) {
+        this.flowLabel = flowLabel & 0xFFFFF;
+        return this;
+    }
+
+    /**
+     * Carry a Tcp header.
+     *
+     * @param srcPort The source port.
+     * @param dstPort The destination port.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder tcp(int srcPort, int dstPort) {
+        this.protocol = Protocol.TCP;
+        this.srcPort = srcPort;
+        this.dstPort = dstPort;
+        return this;
+    }
+
+    public PacketBuilder seq(int seq) {
+        this.seq = seq;
+        return this;
+    }
+
+    public PacketBuilder ack(int ack) {
+        this.ack = ack;
+        return this;
+    }
+
+    public PacketBuilder flags(Tcp.Flag... flags) {
+        this.tcpFlags = mask(flags);
+        return this;
+    }
+
+    /**
+     * Set the Tcp flags as a bitmask, see {@link Tcp#getFlags()}.
+     *
+     * @param flags The flags bitmask.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder flags(int flags) {
+        this.tcpFlags = flags & 0x01FF;
+        return this;
+    }
+
+    public PacketBuilder window(int window) {
+        this.window = window;
+        return this;
+    }
+
+    /**
+     * Carry an Udp header.
+     *
+     * @param srcPort The source port.
+     * @param dstPort The destination port.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder udp(int srcPort, int dstPort) {
+        this.protocol = Protocol.UDP;
+        this.srcPort = srcPort;
+        this.dstPort = dstPort;
+        return this;
+    }
+
+    /**
+     * Carry an Icmp header, Icmpv4 or Icmpv6 following the Ip version.
+     *
+     * @param type         The Icmp type.
+     * @param code         The Icmp code.
+     * @param restOfHeader The 4 bytes following the checksum (e.g. identifier and sequence for echo messages).
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder icmp(int type, int code, int restOfHeader) {
+        this.protocol = Protocol.ICMP;
+        this.icmpType = type;
+        this.icmpCode = code;
+        this.icmpRest = restOfHeader;
+        return this;
+    }
+
+    /**
+     * Set the payload. The array is not copied until the packet is built.
+     *
+     * @param payload The payload bytes.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder payload(byte[] payload) {
+        return payload(payload, 0, payload.length);
+    }
+
+    /**
+     * Set the payload from a range of bytes. The array is not copied until the packet is built.
+     *
+     * @param payload The array holding the payload.
+     * @param offset  The payload offset.
+     * @param length  The payload length.
+     * @return this instance to allow call chaining.
+     */
+    public PacketBuilder payload(byte[] payload, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > payload.length) {
+            throw new IndexOutOfBoundsException(String.format("Range %d, %d out of array bounds %d", offset, length, payload.length));
+        }
+        this.payload = payload;
+        this.payloadOffset = offset;
+        this.payloadLength = length;
+        return this;
+    }
+
+    public PacketBuilder direction(Direction direction) {
+        this.direction = direction;
+        return this;
+    }
+
+    public PacketBuilder iface(int ifIdx, int subIfIdx) {
+        this.iface = new int[]{ifIdx, subIfIdx};
+        return this;
+    }
+
+    private boolean isIpv4() {
+        return srcAddr.length == 4;
+    }
+
+    private int ipHeaderLength() {
+        return isIpv4() ? IPV4_HEADER_LENGTH : IPV6_HEADER_LENGTH;
+    }
+
+    private Protocol transportProtocol() {
+        return protocol == Protocol.ICMP && !isIpv4() ? Protocol.ICMPV6 : protocol;
+    }
+
+    private int transportHeaderLength() {
+        if (protocol == Protocol.TCP) {
+            return TCP_HEADER_LENGTH;
+        }
+        return protocol == Protocol.UDP ? UDP_HEADER_LENGTH : ICMP_HEADER_LENGTH;
+    }
+
+    /**
+     * Get the length of the packet being built.
+     *
+     * @return The packet length.
+     */
+    public int length() {
+        if (srcAddr == null || protocol == null) {
+            throw new IllegalStateException("Both the Ip addresses and the transport header must be set");
+        }
+        return ipHeaderLength() + transportHeaderLength() + payloadLength;
+    }
+
+    /**
+     * Write the packet into the given buffer, from offset 0.
+     *
+     * @param buffer The destination buffer.
+     * @return The packet length.
+     */
+    public int writeTo(byte[] buffer) {
+        int length = length();
+        if (length > buffer.length || length > 0xFFFF) {
+            throw new IllegalArgumentException(String.format("Packet of %d bytes does not fit in %d bytes", length, buffer.length));
+        }
+        ByteBuffer raw = ByteBuffer.wrap(buffer);
+        int ipLen = ipHeaderLength();
+        int l4Len = length - ipLen;
+        int proto = transportProtocol().getValue();
+        if (isIpv4()) {
+            raw.put(0, (byte) 0x45);
+            raw.put(1, (byte) tos);
+            raw.putShort(2, (short) length);
+            raw.putShort(4, (short) id);
+            raw.putShort(6, (short) (dontFragment ? 0x4000 : 0));
+            raw.put(8, (byte) ttl);
+            raw.put(9, (byte) proto);
+            raw.putShort(10, (short) 0);
+            System.arraycopy(srcAddr, 0, buffer, 12, 4);
+            System.arraycopy(dstAddr, 0, buffer, 16, 4);
+            raw.putShort(10, (short) Checksums.checksum(buffer, 0, IPV4_HEADER_LENGTH));
+        } else {
+            raw.putInt(0, (6 << 28) | ((tos & 0xFF) << 20) | flowLabel);
+            raw.putShort(4, (short) l4Len);
+            raw.put(6, (byte) proto);
+            raw.put(7, (byte) ttl);
+            System.arraycopy(srcAddr, 0, buffer, 8, 16);
+            System.arraycopy(dstAddr, 0, buffer, 24, 16);
+        }
+        int cksumOffset;
+        if (protocol == Protocol.TCP) {
+            raw.putShort(ipLen, (short) srcPort);
+            raw.putShort(ipLen + 2, (short) dstPort);
+            raw.putInt(ipLen + 4, seq);
+            raw.putInt(ipLen + 8, ack);
+            raw.putShort(ipLen + 12, (short) ((5 << 12) | tcpFlags));
+            raw.putShort(ipLen + 14, (short) window);
+            raw.putInt(ipLen + 16, 0);
+            cksumOffset = ipLen + 16;
+        } else if (protocol == Protocol.UDP) {
+            raw.putShort(ipLen, (short) srcPort);
+            raw.putShort(ipLen + 2, (short) dstPort);
+            raw.putShort(ipLen + 4, (short) l4Len);
+            raw.putShort(ipLen + 6, (short) 0);
+            cksumOffset = ipLen + 6;
+        } else {
+            raw.put(ipLen, (byte) icmpType);
+            raw.put(ipLen + 1, (byte) icmpCode);
+            raw.putShort(ipLen + 2, (short) 0);
+            raw.putInt(ipLen + 4, icmpRest);
+            cksumOffset = ipLen + 2;
+        }
+        int l4HdrLen = transportHeaderLength();
+        System.arraycopy(payload, payloadOffset, buffer, ipLen + l4HdrLen, payloadLength);
+        long sum = proto == Protocol.ICMP.getValue() ? 0 : Checksums.pseudoHeaderSum(buffer, isIpv4(), proto, l4Len);
+        int cksum = Checksums.fold(Checksums.sum(buffer, ipLen, l4Len, sum));
+        if (protocol == Protocol.UDP && cksum == 0) {
+            cksum = 0xFFFF;
+        }
+        raw.putShort(cksumOffset, (short) cksum);
+        return length;
+    }
+
+    /**
+     * Build the packet into a buffer taken from the pool (or allocated when there is no pool or the packet does not
+     * fit a pooled buffer). Release the buffer with {@link BufferPool#release(Packet)} once the packet has been sent.
+     *
+     * @return The {@link Packet}, with lengths and checksums already set.
+     */
+    public Packet build() {
+        int length = length();
+        byte[] buffer = pool != null && length <= pool.getBufferSize() ? pool.acquire() : new byte[length];
+        return buildInto(buffer);
+    }
+
+    /**
+     * Build the packet into the given buffer.
+     *
+     * @param buffer The buffer to write into, from offset 0.
+     * @return The {@link Packet} backed by {@code buffer}.
+     */
+    public Packet buildInto(byte[] buffer) {
+        int length = writeTo(buffer);
+        // The layout was just written, the headers need no parsing
+        return new Packet(buffer, length, iface.clone(), direction, isIpv4() ? 4 : 6, transportProtocol());
+    }
+
+    /**
+     * Build a {@link PacketTemplate} out of the current settings. The template owns its buffer.
+     *
+     * @return The {@link PacketTemplate}.
+     */
+    public PacketTemplate template() {
+        return new PacketTemplate(buildInto(new byte[length()]));
+    }
+}
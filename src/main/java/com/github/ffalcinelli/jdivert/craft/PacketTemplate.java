@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.craft;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A prebuilt packet where only a few fields change between sends.
+ * <p>
+ * Each setter writes the field in place and fixes the affected checksums incrementally (RFC 1624), so preparing
+ * the next packet costs a handful of operations, with no allocation and no re-parsing. The same {@link Packet}
+ * instance is returned by {@link #packet()} every time: send it before changing the template again, or take a
+ * {@link #copy()}. Instances are obtained through {@link PacketBuilder#template()} and are not thread safe.
+ * </p>
+ */
+public class PacketTemplate {
+
+    private final Packet packet;
+    private final ByteBuffer raw;
+    private final byte[] data;
+    private final boolean ipv4;
+    private final int l4;
+    private final int cksumOffset;
+    private final int payloadOffset;
+    private final boolean pseudoHeader;
+    private final boolean udp;
+
+    PacketTemplate(Packet packet) {
+        this.packet = packet;
+        this.raw = packet.getByteBuffer();
+        this.data = raw.array();
+        this.ipv4 = packet.isIpv4();
+        this.l4 = ipv4 ? PacketBuilder.IPV4_HEADER_LENGTH : PacketBuilder.IPV6_HEADER_LENGTH;
+        this.udp = packet.isUdp();
+        if (packet.isTcp()) {
+            cksumOffset = l4 + 16;
+            payloadOffset = l4 + PacketBuilder.TCP_HEADER_LENGTH;
+        } else if (udp) {
+            cksumOffset = l4 + 6;
+            payloadOffset = l4 + PacketBuilder.UDP_HEADER_LENGTH;
+        } else {
+            cksumOffset = l4 + 2;
+            payloadOffset = l4 + PacketBuilder.ICMP_HEADER_LENGTH;
+        }
+        this.pseudoHeader = !packet.isIcmpv4();
+    }
+
+    /**
+     * Get the packet, ready to be sent. It is backed by the template buffer.
+     *
+     * @return The {@link Packet}.
+     */
+    public Packet packet() {
+        return packet;
+    }
+
+    /**
+     * Get an independent copy of the current packet.
+     *
+     * @return A new {@link Packet}.
+     */
+    public Packet copy() {
+        return new Packet(data.clone(), packet.getIface().clone(), packet.getDirection());
+    }
+
+    public int length() {
+        return data.length;
+    }
+
+    public PacketTemplate setSrcAddress(byte[] address) {
+        return setAddress(ipv4 ? 12 : 8, address);
+    }
+
+    public PacketTemplate setDstAddress(byte[] address) {
+        return setAddress(ipv4 ? 16 : 24, address);
+    }
+
+    private PacketTemplate setAddress(int offset, byte[] address) {
+        if (address.length != (ipv4 ? 4 : 16)) {
+            throw new IllegalArgumentException(String.format("Expected a %d bytes address, got %d", ipv4 ? 4 : 16, address.length));
+        }
+        if (ipv4) {
+            setIpChecksum(Checksums.update(getIpChecksum(), data, offset, address, 0, address.length));
+        }
+        if (pseudoHeader) {
+            setL4Checksum(Checksums.update(getL4Checksum(), data, offset, address, 0, address.length));
+        }
+        System.arraycopy(address, 0, data, offset, address.length);
+        return this;
+    }
+
+    public PacketTemplate setSrcPort(int port) {
+        return setL4Short(l4, port);
+    }
+
+    public PacketTemplate setDstPort(int port) {
+        return setL4Short(l4 + 2, port);
+    }
+
+    public PacketTemplate setSeqNumber(int seq) {
+        return setL4Int(l4 + 4, seq);
+    }
+
+    public PacketTemplate setAckNumber(int ack) {
+        return setL4Int(l4 + 8, ack);
+    }
+
+    /**
+     * Set the Tcp flags bitmask, see {@link PacketBuilder#mask(com.github.ffalcinelli.jdivert.headers.Tcp.Flag...)}.
+     *
+     * @param flags The flags bitmask.
+     * @return this instance to allow call chaining.
+     */
+    public PacketTemplate setTcpFlags(int flags) {
+        int old = raw.getShort(l4 + 12) & 0xFFFF;
+        return setL4Short(l4 + 12, (old & ~0x01FF) | (flags & 0x01FF));
+    }
+
+    public PacketTemplate setWindow(int window) {
+        return setL4Short(l4 + 14, window);
+    }
+
+    /**
+     * Set the 4 bytes following the Icmp checksum (e.g. identifier and sequence of echo messages).
+     *
+     * @param rest The rest of the Icmp header.
+     * @return this instance to allow call chaining.
+     */
+    public PacketTemplate setIcmpRest(int rest) {
+        return setL4Int(l4 + 4, rest);
+    }
+
+    /**
+     * Set the Ipv4 identification. Ignored for Ipv6.
+     *
+     * @param id The identification.
+     * @return this instance to allow call chaining.
+     */
+    public PacketTemplate setIpId(int id) {
+        if (ipv4) {
+            int old = raw.getShort(4) & 0xFFFF;
+            raw.putShort(4, (short) id);
+            setIpChecksum(Checksums.update(getIpChecksum(), old, id & 0xFFFF));
+        }
+        return this;
+    }
+
+    /**
+     * Set the Ipv4 TTL or the Ipv6 hop limit.
+     *
+     * @param ttl The time to live.
+     * @return this instance to allow call chaining.
+     */
+    public PacketTemplate setTtl(int ttl) {
+        if (ipv4) {
+            int old = raw.getShort(8) & 0xFFFF;
+            int updated = ((ttl & 0xFF) << 8) | (old & 0xFF);
+            raw.putShort(8, (short) updated);
+            setIpChecksum(Checksums.update(getIpChecksum(), old, updated));
+        } else {
+            raw.put(7, (byte) ttl);
+        }
+        return this;
+    }
+
+    /**
+     * Replace the payload with one of the same length, recomputing the transport checksum.
+     *
+     * @param payload The array holding the new payload.
+     * @param offset  The offset of the new payload.
+     * @return this instance to allow call chaining.
+     */
+    public PacketTemplate setPayload(byte[] payload, int offset) {
+        System.arraycopy(payload, offset, data, payloadOffset, data.length - payloadOffset);
+        raw.putShort(cksumOffset, (short) 0);
+        int length = data.length - l4;
+        long sum = pseudoHeader ? Checksums.pseudoHeaderSum(data, ipv4, data[ipv4 ? 9 : 6] & 0xFF, length) : 0;
+        setL4Checksum(Checksums.fold(Checksums.sum(data, l4, length, sum)));
+        return this;
+    }
+
+    private PacketTemplate setL4Short(int offset, int value) {
+        int old = raw.getShort(offset) & 0xFFFF;
+        raw.putShort(offset, (short) value);
+        setL4Checksum(Checksums.update(getL4Checksum(), old, value & 0xFFFF));
+        return this;
+    }
+
+    private PacketTemplate setL4Int(int offset, int value) {
+        int old = raw.getInt(offset);
+        raw.putInt(offset, value);
+        setL4Checksum(Checksums.update32(getL4Checksum(), old, value));
+        return this;
+    }
+
+    private int getIpChecksum() {
+        return raw.getShort(10) & 0xFFFF;
+    }
+
+    private void setIpChecksum(int checksum) {
+        raw.putShort(10, (short) checksum);
+    }
+
+    private int getL4Checksum() {
+        return raw.getShort(cksumOffset) & 0xFFFF;
+    }
+
+    private void setL4Checksum(int checksum) {
+        // A zero Udp checksum means "no checksum"
+        raw.putShort(cksumOffset, (short) (udp && checksum == 0 ? 0xFFFF : checksum));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PacketTemplate {length=%d, packet=%s}", data.length, packet);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.craft;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction;
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+import static com.github.ffalcinelli.jdivert.craft.PacketBuilder.*;
+
+/**
+ * Generates the replies used to reject a diverted packet: Tcp resets towards both endpoints or an Icmp destination
+ * unreachable towards the sender.
+ * <p>
+ * Replies are written into buffers taken from a {@link BufferPool}, copying addresses and ports straight from the
+ * offending packet, and carry the {@link Direction} they must be reinjected with. The offending packet itself must
+ * be dropped (i.e. not sent back) by the caller. No reply is generated for Tcp resets, Icmp errors, non first
+ * fragments and multicast or broadcast destinations.
+ * </p>
+ * Instances hold no state besides the pool and are thread safe.
+ */
+public class Rejector {
+
+    public static final int TTL = 64;
+    // RFC 1812, 4.3.2.3: the whole Icmp error must fit in 576 bytes
+    private static final int ICMPV4_MAX_QUOTE = 576 - IPV4_HEADER_LENGTH - ICMP_HEADER_LENGTH;
+    // RFC 4443, 2.4 (c): the whole Icmpv6 error must fit in the minimum Ipv6 MTU
+    private static final int ICMPV6_MAX_QUOTE = 1280 - IPV6_HEADER_LENGTH - ICMP_HEADER_LENGTH;
+
+    private final BufferPool pool;
+
+    /**
+     * Create a new {@link Rejector} allocating an exactly sized array for each reply.
+     */
+    public Rejector() {
+        this(null);
+    }
+
+    /**
+     * Create a new {@link Rejector}.
+     *
+     * @param pool The {@link BufferPool} to take reply buffers from, {@code null} to allocate them.
+     */
+    public Rejector(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    private static void put16(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void put32(byte[] data, int offset, int value) {
+        put16(data, offset, value >>> 16);
+        put16(data, offset + 2, value);
+    }
+
+    private static int get32(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static Direction reverse(Packet packet) {
+        return packet.isLoopback() || packet.isInbound() ? Direction.OUTBOUND : Direction.INBOUND;
+    }
+
+    private static boolean isReplyAllowed(Packet packet) {
+        byte[] data = packet.getByteBuffer().array();
+        if (packet.isIpv4()) {
+            int dst = data[16] & 0xFF;
+            return packet.getIpv4().getFragmentOffset() == 0 && dst < 224 && get32(data, 16) != -1;
+        }
+        return (data[24] & 0xFF) != 0xFF;
+    }
+
+    private byte[] acquire(int length) {
+        return pool != null && length <= pool.getBufferSize() ? pool.acquire() : new byte[length];
+    }
+
+    /**
+     * Write a fresh Ip header copying the addresses of the offending packet.
+     */
+    private static int writeIp(byte[] out, byte[] in, boolean ipv4, boolean swap, int protocol, int length) {
+        if (ipv4) {
+            out[0] = 0x45;
+            out[1] = 0;
+            put16(out, 2, length);
+            put32(out, 4, 0);
+            out[8] = TTL;
+            out[9] = (byte) protocol;
+            put16(out, 10, 0);
+            System.arraycopy(in, swap ? 16 : 12, out, 12, 4);
+            System.arraycopy(in, swap ? 12 : 16, out, 16, 4);
+            put16(out, 10, Checksums.checksum(out, 0, IPV4_HEADER_LENGTH));
+            return IPV4_HEADER_LENGTH;
+        }
+        put32(out, 0, 6 << 28);
+        put16(out, 4, length - IPV6_HEADER_LENGTH);
+        out[6] = (byte) protocol;
+        out[7] = TTL;
+        System.arraycopy(in, swap ? 24 : 8, out, 8, 16);
+        System.arraycopy(in, swap ? 8 : 24, out, 24, 16);
+        return IPV6_HEADER_LENGTH;
+    }
+
+    /**
+     * Build the Tcp reset for the endpoint that sent the offending segment, spoofed from its peer.
+     *
+     * @param offending The diverted Tcp {@link Packet}.
+     * @return The reset {@link Packet}, to be sent with its checksums as they are, or {@code null} if none is due.
+     */
+    public Packet resetToSender(Packet offending) {
+        return reset(offending, true);
+    }
+
+    /**
+     * Build the Tcp reset for the endpoint the offending segment was directed to, spoofed from the sender. Its
+     * sequence number is the one of the offending segment, which the receiver expects as long as that segment is
+     * dropped.
+     *
+     * @param offending The diverted Tcp {@link Packet}.
+     * @return The reset {@link Packet}, to be sent with its checksums as they are, or {@code null} if none is due.
+     */
+    public Packet resetToReceiver(Packet offending) {
+        return reset(offending, false);
+    }
+
+    private Packet reset(Packet offending, boolean toSender) {
+        if (!offending.isTcp() || offending.getTcp().is(Tcp.Flag.RST) || !isReplyAllowed(offending)) {
+            return null;
+        }
+        Tcp tcp = offending.getTcp();
+        byte[] in = offending.getByteBuffer().array();
+        boolean ipv4 = offending.isIpv4();
+        int length = (ipv4 ? IPV4_HEADER_LENGTH : IPV6_HEADER_LENGTH) + TCP_HEADER_LENGTH;
+        byte[] out = acquire(length);
+        int l4 = writeIp(out, in, ipv4, toSender, Protocol.TCP.getValue(), length);
+        int inL4 = offending.getPayloadOffset() - tcp.getHeaderLength();
+
+        int seq = tcp.getSeqNumber();
+        int ack = tcp.getAckNumber();
+        boolean hasAck = tcp.is(Tcp.Flag.ACK);
+        int flags;
+        if (toSender) {
+            if (hasAck) {
+                seq = ack;
+                ack = 0;
+                flags = mask(Tcp.Flag.RST);
+            } else {
+                // RFC 793: reset a segment without ACK acknowledging everything it carried
+                ack = seq + offending.getPayloadLength() + (tcp.is(Tcp.Flag.SYN) ? 1 : 0) + (tcp.is(Tcp.Flag.FIN) ? 1 : 0);
+                seq = 0;
+                flags = mask(Tcp.Flag.RST, Tcp.Flag.ACK);
+            }
+        } else {
+            flags = hasAck ? mask(Tcp.Flag.RST, Tcp.Flag.ACK) : mask(Tcp.Flag.RST);
+            if (!hasAck) {
+                ack = 0;
+            }
+        }
+        System.arraycopy(in, inL4 + (toSender ? 2 : 0), out, l4, 2);
+        System.arraycopy(in, inL4 + (toSender ? 0 : 2), out, l4 + 2, 2);
+        put32(out, l4 + 4, seq);
+        put32(out, l4 + 8, ack);
+        put16(out, l4 + 12, (5 << 12) | flags);
+        put32(out, l4 + 14, 0);
+        put16(out, l4 + 18, 0);
+        int l4Length = length - l4;
+        put16(out, l4 + 16, Checksums.fold(Checksums.sum(out, l4, l4Length,
+                Checksums.pseudoHeaderSum(out, ipv4, Protocol.TCP.getValue(), l4Length))));
+        return new Packet(out, length, offending.getIface().clone(), toSender ? reverse(offending) : offending.getDirection());
+    }
+
+    /**
+     * Build the Icmp destination unreachable for the sender of the offending packet, quoting as much of it as the
+     * Icmp standards allow. Udp packets get a "port unreachable", other protocols an "administratively prohibited".
+     *
+     * @param offending The diverted {@link Packet}.
+     * @return The Icmp {@link Packet}, to be sent with its checksums as they are, or {@code null} if none is due.
+     */
+    public Packet unreachable(Packet offending) {
+        if (!isReplyAllowed(offending)) {
+            return null;
+        }
+        boolean ipv4 = offending.isIpv4();
+        if (ipv4 && offending.isIcmpv4()) {
+            int type = offending.getIcmpv4().getType();
+            if (type == 3 || type == 4 || type == 5 || type == 11 || type == 12) {
+                return null;
+            }
+        } else if (!ipv4 && offending.isIcmpv6() && (offending.getIcmpv6().getType() & 0xFF) < 128) {
+            return null;
+        }
+        byte[] in = offending.getByteBuffer().array();
+        int quote = Math.min(offending.getByteBuffer().capacity(), ipv4 ? ICMPV4_MAX_QUOTE : ICMPV6_MAX_QUOTE);
+        int length = (ipv4 ? IPV4_HEADER_LENGTH : IPV6_HEADER_LENGTH) + ICMP_HEADER_LENGTH + quote;
+        byte[] out = acquire(length);
+        int protocol = ipv4 ? Protocol.ICMP.getValue() : Protocol.ICMPV6.getValue();
+        int l4 = writeIp(out, in, ipv4, true, protocol, length);
+        if (ipv4) {
+            out[l4] = 3;
+            out[l4 + 1] = (byte) (offending.isUdp() ? 3 : 13);
+        } else {
+            out[l4] = 1;
+            out[l4 + 1] = (byte) (offending.isUdp() ? 4 : 1);
+        }
+        put16(out, l4 + 2, 0);
+        put32(out, l4 + 4, 0);
+        System.arraycopy(in, 0, out, l4 + ICMP_HEADER_LENGTH, quote);
+        int l4Length = length - l4;
+        long sum = ipv4 ? 0 : Checksums.pseudoHeaderSum(out, false, protocol, l4Length);
+        put16(out, l4 + 2, Checksums.fold(Checksums.sum(out, l4, l4Length, sum)));
+        return new Packet(out, length, offending.getIface().clone(), reverse(offending));
+    }
+
+    /**
+     * Queue the replies rejecting the offending packet: resets to both endpoints for Tcp, an Icmp unreachable
+     * otherwise.
+     *
+     * @param offending The diverted {@link Packet}, which the caller must drop.
+     * @param sender    The {@link BatchSender} to queue the replies to.
+     * @return The number of replies queued.
+     */
+    public int reject(Packet offending, BatchSender sender) {
+        if (offending.isTcp()) {
+            return queue(resetToSender(offending), sender) + queue(resetToReceiver(offending), sender);
+        }
+        return queue(unreachable(offending), sender);
+    }
+
+    private int queue(Packet reply, BatchSender sender) {
+        if (reply == null) {
+            return 0;
+        }
+        if (sender.offer(reply)) {
+            return 1;
+        }
+        if (pool != null) {
+            pool.release(reply);
+        }
+        return 0;
+    }
+}
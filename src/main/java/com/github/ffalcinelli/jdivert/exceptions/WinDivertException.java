@@ -30,7 +30,7 @@ public class WinDivertException extends Exception {
     protected LastErrorException lee;
 
     public WinDivertException(int code) {
-        this(code, Kernel32Util.formatMessage(code));
+        this(code, formatMessage(code));
     }
 
     public WinDivertException(int code, String message) {
@@ -42,6 +42,15 @@ public class WinDivertException extends Exception {
         this.code = code;
     }
 
+    private static String formatMessage(int code) {
+        try {
+            return Kernel32Util.formatMessage(code);
+        } catch (LinkageError e) {
+            // Kernel32 is only available on Windows, e.g. not when running against a stand-in DLL
+            return String.format("Error %d", code);
+        }
+    }
+
     /**
      * Throw a WinDivertException whenever GetLastError returned a code different from
      * <ul>
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+import com.github.ffalcinelli.jdivert.ManagedHandle;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Offloads flows proven benign to the kernel, so that their packets stop crossing into user space.
+ * <p>
+ * Flows passed to {@link #bypass(Packet)} are gathered in an exclusion clause appended to the base filter of a
+ * {@link ManagedHandle}. When the set changes, {@link #update()} {@link ManagedHandle#reload(String) reloads} the
+ * handle with the regenerated filter: the replacement is opened at the same priority before the old handle is
+ * drained and closed, so receivers are handed over without losing packets.
+ * </p><p>
+ * Swaps happen at most once per {@link #setMinInterval(long) interval} and the exclusion clause holds at most
+ * {@link #setMaxFlows(int) a bounded number of flows}, as the kernel filter has a limited size. A flow leaves the
+ * clause after a {@link #setBypassTimeout(long) timeout}, since its end cannot be observed once bypassed: if still
+ * alive, it is diverted and inspected again.
+ * </p>
+ * The class is thread safe.
+ */
+public class BypassManager {
+
+    private final ManagedHandle handle;
+    private final String filter;
+    private final Map<FlowKey, Long> flows = new LinkedHashMap<FlowKey, Long>();
+    private final Object swapLock = new Object();
+    private boolean changed;
+    private long lastSwap = Long.MIN_VALUE / 2;
+    private long swaps;
+    private int maxFlows = 16;
+    private long minInterval = 1000;
+    private long bypassTimeout = 60000;
+
+    /**
+     * Create a new {@link BypassManager}.
+     *
+     * @param handle The {@link ManagedHandle} to reload, whose filter at this time is the base filter.
+     */
+    public BypassManager(ManagedHandle handle) {
+        this.handle = handle;
+        this.filter = handle.getFilter();
+    }
+
+    public ManagedHandle getHandle() {
+        return handle;
+    }
+
+    /**
+     * Exclude the flow of a packet, in both directions, from the next handle.
+     *
+     * @param packet A Tcp or Udp {@link Packet} of the flow.
+     * @return True if the flow is bypassed or already was, false if it is not Tcp nor Udp or too many flows are.
+     */
+    public boolean bypass(Packet packet) {
+        return bypass(packet, currentTimeMillis());
+    }
+
+    /**
+     * Exclude the flow of a packet, in both directions, from the next handle.
+     *
+     * @param packet A Tcp or Udp {@link Packet} of the flow.
+     * @param now    The current time in milliseconds.
+     * @return True if the flow is bypassed or already was, false if it is not Tcp nor Udp or too many flows are.
+     */
+    public synchronized boolean bypass(Packet packet, long now) {
+        if (!packet.isTcp() && !packet.isUdp()) {
+            return false;
+        }
+        FlowKey key = new FlowKey(packet);
+        if (flows.containsKey(key) || flows.containsKey(new FlowKey(key).reverse())) {
+            return true;
+        }
+        if (flows.size() >= maxFlows) {
+            return false;
+        }
+        flows.put(key, now);
+        changed = true;
+        return true;
+    }
+
+    /**
+     * Expire bypassed flows and reload the handle with a regenerated filter if the bypassed flows changed and the
+     * last swap is old enough. To be called periodically, out of the receive path as reloading waits for draining.
+     *
+     * @return True if the handle has been swapped.
+     * @throws WinDivertException If the replacement cannot be opened, the current handle is then kept.
+     */
+    public boolean update() throws WinDivertException {
+        return update(currentTimeMillis());
+    }
+
+    /**
+     * Expire bypassed flows and reload the handle with a regenerated filter if the bypassed flows changed and the
+     * last swap is old enough. To be called periodically, out of the receive path as reloading waits for draining.
+     *
+     * @param now The current time in milliseconds.
+     * @return True if the handle has been swapped.
+     * @throws WinDivertException If the replacement cannot be opened, the current handle is then kept.
+     */
+    public boolean update(long now) throws WinDivertException {
+        // Swaps are serialized, but bypass() must not wait for one: receivers calling it keep draining the old handle
+        synchronized (swapLock) {
+            String next;
+            synchronized (this) {
+                for (Iterator<Long> i = flows.values().iterator(); i.hasNext(); ) {
+                    if (now - i.next() >= bypassTimeout) {
+                        i.remove();
+                        changed = true;
+                    }
+                }
+                if (!handle.isOpen() || !changed || now - lastSwap < minInterval) {
+                    return false;
+                }
+                next = buildFilter();
+                changed = false;
+            }
+            if (next.equals(handle.getFilter())) {
+                return false;
+            }
+            try {
+                handle.reload(next);
+            } catch (WinDivertException e) {
+                synchronized (this) {
+                    changed = true;
+                }
+                throw e;
+            }
+            synchronized (this) {
+                lastSwap = now;
+                swaps++;
+            }
+            return true;
+        }
+    }
+
+    private String buildFilter() {
+        if (flows.isEmpty()) {
+            return filter;
+        }
+        StringBuilder sb = new StringBuilder("(").append(filter).append(") and not (");
+        boolean first = true;
+        for (FlowKey key : flows.keySet()) {
+            if (!first) {
+                sb.append(" or ");
+            }
+            first = false;
+            clause(sb, key);
+            sb.append(" or ");
+            clause(sb, new FlowKey(key).reverse());
+        }
+        return sb.append(")").toString();
+    }
+
+    private static void clause(StringBuilder sb, FlowKey key) {
+        boolean ipv4 = (key.tag >>> 48) == 4;
+        String ip = ipv4 ? "ip" : "ipv6";
+        String transport = key.getProtocol() == 6 ? "tcp" : "udp";
+        sb.append("(").append(transport).append(".SrcPort == ").append(key.getSrcPort())
+                .append(" and ").append(transport).append(".DstPort == ").append(key.getDstPort())
+                .append(" and ").append(ip).append(".SrcAddr == ").append(address(ipv4, key.srcHi, key.srcLo))
+                .append(" and ").append(ip).append(".DstAddr == ").append(address(ipv4, key.dstHi, key.dstLo))
+                .append(")");
+    }
+
+    private static String address(boolean ipv4, long hi, long lo) {
+        byte[] address = new byte[ipv4 ? 4 : 16];
+        for (int i = address.length - 1; i >= 0; i--) {
+            address[i] = (byte) lo;
+            lo = i == 8 ? hi : lo >>> 8;
+        }
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the current time in milliseconds, used to rate limit swaps and expire flows.
+     *
+     * @return The current time.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public synchronized int getFlows() {
+        return flows.size();
+    }
+
+    public synchronized long getSwaps() {
+        return swaps;
+    }
+
+    /**
+     * Bound the size of the kernel filter.
+     *
+     * @param maxFlows The maximum number of bypassed flows.
+     */
+    public synchronized void setMaxFlows(int maxFlows) {
+        this.maxFlows = maxFlows;
+    }
+
+    /**
+     * Rate limit the handle swaps.
+     *
+     * @param minInterval The minimum time between two swaps in milliseconds.
+     */
+    public synchronized void setMinInterval(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * Set how long a flow is bypassed before being diverted and inspected again.
+     *
+     * @param bypassTimeout The timeout in milliseconds.
+     */
+    public synchronized void setBypassTimeout(long bypassTimeout) {
+        this.bypassTimeout = bypassTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BypassManager {flows=%d, swaps=%d, handle=%s}", getFlows(), getSwaps(), handle);
+    }
+}
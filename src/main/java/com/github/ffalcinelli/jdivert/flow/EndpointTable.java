@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+/**
+ * A concurrent map from an endpoint, an Ipv4 or Ipv6 address plus a 24 bit tag (typically a port, optionally with the
+ * protocol number in the upper bits), to an int value.
+ * <p>
+ * Addresses are read straight from the packet buffer and packed into two longs, entries live in {@link ProbeTable probe
+ * tables} split in segments with their own lock, so neither lookups nor updates allocate. Each entry
+ * records when it was last used and whether its connection is closing, which {@link #expire(long, long, long)} uses
+ * to remove stale entries.
+ * </p>
+ */
+public class EndpointTable {
+
+    private final Segment[] segments;
+
+    /**
+     * Create a new {@link EndpointTable} with a number of segments proportional to the available processors.
+     */
+    public EndpointTable() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * Create a new {@link EndpointTable}.
+     *
+     * @param concurrency The number of segments, rounded up to a power of two.
+     */
+    public EndpointTable(int concurrency) {
+        int n = 1;
+        while (n < concurrency) {
+            n <<= 1;
+        }
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static long get64(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long hi(byte[] data, int offset, int length) {
+        return length == 4 ? 0 : get64(data, offset, 8);
+    }
+
+    private static long lo(byte[] data, int offset, int length) {
+        if (length != 4 && length != 16) {
+            throw new IllegalArgumentException(String.format("Invalid address length %d", length));
+        }
+        return length == 4 ? get64(data, offset, 4) : get64(data, offset + 8, 8);
+    }
+
+    private static int key(int length, int tag) {
+        return (length == 4 ? 0x04000000 : 0x06000000) | (tag & 0xFFFFFF);
+    }
+
+    static int hash(long hi, long lo, int key) {
+        long h = (hi * 0x9E3779B97F4A7C15L + lo) * 0x9E3779B97F4A7C15L + key;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private Segment segment(int hash) {
+        return segments[(hash >>> 24) & (segments.length - 1)];
+    }
+
+    /**
+     * Get the value of an endpoint.
+     *
+     * @param data   The array holding the address.
+     * @param offset The address offset.
+     * @param length The address length, 4 or 16.
+     * @param tag    The tag, e.g. the port.
+     * @return The value, or -1 if absent.
+     */
+    public int get(byte[] data, int offset, int length, int tag) {
+        long hi = hi(data, offset, length);
+        long lo = lo(data, offset, length);
+        int key = key(length, tag);
+        int h = hash(hi, lo, key);
+        return segment(h).get(hi, lo, key, h, 0, false, false);
+    }
+
+    /**
+     * Get the value of an endpoint, marking it as used.
+     *
+     * @param data    The array holding the address.
+     * @param offset  The address offset.
+     * @param length  The address length, 4 or 16.
+     * @param tag     The tag, e.g. the port.
+     * @param now     The current time in milliseconds.
+     * @param closing Whether the connection is closing (e.g. a FIN or RST was seen).
+     * @return The value, or -1 if absent.
+     */
+    public int touch(byte[] data, int offset, int length, int tag, long now, boolean closing) {
+        long hi = hi(data, offset, length);
+        long lo = lo(data, offset, length);
+        int key = key(length, tag);
+        int h = hash(hi, lo, key);
+        return segment(h).get(hi, lo, key, h, now, closing, true);
+    }
+
+    /**
+     * Set the value of an endpoint, marking it as used.
+     *
+     * @param data    The array holding the address.
+     * @param offset  The address offset.
+     * @param length  The address length, 4 or 16.
+     * @param tag     The tag, e.g. the port.
+     * @param value   The value, must not be negative.
+     * @param now     The current time in milliseconds.
+     * @param reopen  Whether a new connection reuses the endpoint, clearing the closing mark.
+     * @param closing Whether the connection is closing (e.g. a FIN or RST was seen).
+     */
+    public void put(byte[] data, int offset, int length, int tag, int value, long now, boolean reopen, boolean closing) {
+        long hi = hi(data, offset, length);
+        long lo = lo(data, offset, length);
+        int key = key(length, tag);
+        int h = hash(hi, lo, key);
+        segment(h).put(hi, lo, key, h, value, now, reopen, closing);
+    }
+
+    /**
+     * Remove an endpoint.
+     *
+     * @param data   The array holding the address.
+     * @param offset The address offset.
+     * @param length The address length, 4 or 16.
+     * @param tag    The tag, e.g. the port.
+     * @return The removed value, or -1 if absent.
+     */
+    public int remove(byte[] data, int offset, int length, int tag) {
+        long hi = hi(data, offset, length);
+        long lo = lo(data, offset, length);
+        int key = key(length, tag);
+        int h = hash(hi, lo, key);
+        return segment(h).remove(hi, lo, key, h);
+    }
+
+    /**
+     * Remove the entries unused for longer than their timeout.
+     *
+     * @param now           The current time in milliseconds.
+     * @param idleTimeout   The timeout of open connections.
+     * @param closedTimeout The timeout of closing connections.
+     * @return The number of entries removed.
+     */
+    public int expire(long now, long idleTimeout, long closedTimeout) {
+        int removed = 0;
+        for (Segment segment : segments) {
+            removed += segment.expire(now, idleTimeout, closedTimeout);
+        }
+        return removed;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private static class Segment {
+        private static final int VALUE = 3;
+        private static final int LAST_SEEN = 4;
+        private static final int CLOSED = 5;
+
+        // Address high and low bits and tag, then the value, the last use and the closing mark
+        private final ProbeTable<Void> table = new ProbeTable<Void>(3, 6, 16);
+        private final long[] key = new long[3];
+
+        private int find(long hi, long lo, int tag, int h) {
+            key[0] = hi;
+            key[1] = lo;
+            key[2] = tag;
+            return table.find(key, h);
+        }
+
+        synchronized int get(long hi, long lo, int tag, int h, long now, boolean closing, boolean touch) {
+            int i = find(hi, lo, tag, h);
+            if (i < 0) {
+                return -1;
+            }
+            if (touch) {
+                table.set(i, LAST_SEEN, now);
+                if (closing) {
+                    table.set(i, CLOSED, 1);
+                }
+            }
+            return (int) table.get(i, VALUE);
+        }
+
+        synchronized void put(long hi, long lo, int tag, int h, int value, long now, boolean reopen, boolean closing) {
+            int i = find(hi, lo, tag, h);
+            if (i < 0) {
+                i = table.add(key, h, null);
+            } else if (reopen) {
+                table.set(i, CLOSED, 0);
+            }
+            table.set(i, VALUE, value);
+            table.set(i, LAST_SEEN, now);
+            if (closing) {
+                table.set(i, CLOSED, 1);
+            }
+        }
+
+        synchronized int remove(long hi, long lo, int tag, int h) {
+            int i = find(hi, lo, tag, h);
+            if (i < 0) {
+                return -1;
+            }
+            int value = (int) table.get(i, VALUE);
+            table.removeAt(i);
+            return value;
+        }
+
+        synchronized int expire(final long now, final long idleTimeout, final long closedTimeout) {
+            return table.removeIf(new ProbeTable.Selector() {
+                @Override
+                public boolean select(int slot) {
+                    long timeout = table.get(slot, CLOSED) != 0 ? closedTimeout : idleTimeout;
+                    return now - table.get(slot, LAST_SEEN) > timeout;
+                }
+            });
+        }
+
+        synchronized int size() {
+            return table.size();
+        }
+    }
+}
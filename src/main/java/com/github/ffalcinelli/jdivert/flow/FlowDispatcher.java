@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.ring.Ring;
+import com.github.ffalcinelli.jdivert.ring.SpscRing;
+import com.github.ffalcinelli.jdivert.ring.WaitStrategy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads diverted packets over worker threads by flow, like receive side scaling does over cores.
+ * <p>
+ * A receiver thread reads the handle and routes every packet, by the {@link FlowHash#symmetricHash(Packet) symmetric
+ * hash} of its 5-tuple, to the {@link SpscRing ring} of a worker; both directions of a flow thus always reach the same
+ * worker. Each worker is the only consumer of its ring and handles, then sends, its packets in arrival order, in
+ * batches: per flow state kept by a worker needs no lock, and packets of a flow leave {@link WinDivert#send(Packet)}
+ * in the order they were received. Packets finding their worker ring full are dropped.
+ * </p><p>
+ * The receiver waits for packets with {@link WinDivert#recv(long, TimeUnit) timed receives}, so that
+ * {@link #stop(boolean)} can wake it up and let the workers send what it dispatched before the handle is closed.
+ * </p>
+ * The class is thread safe.
+ */
+public class FlowDispatcher {
+
+    private static final int BATCH_SIZE = 64;
+    private static final long POLL_MILLIS = 100;
+
+    private final WinDivert divert;
+    private final Handler handler;
+    private final WaitStrategy waitStrategy;
+    private final Ring<Packet>[] rings;
+    private final Thread[] workers;
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private Thread receiver;
+    private volatile boolean running;
+    private volatile boolean stopping;
+
+    /**
+     * Create a new {@link FlowDispatcher} whose idle workers {@link WaitStrategy#PARK park}.
+     *
+     * @param divert   The {@link WinDivert} handle to receive from and send with.
+     * @param workers  The number of workers, typically the number of cores.
+     * @param capacity The capacity of each worker ring.
+     * @param handler  The {@link Handler} of the packets.
+     */
+    public FlowDispatcher(WinDivert divert, int workers, int capacity, Handler handler) {
+        this(divert, workers, capacity, WaitStrategy.PARK, handler);
+    }
+
+    /**
+     * Create a new {@link FlowDispatcher}.
+     *
+     * @param divert       The {@link WinDivert} handle to receive from and send with.
+     * @param workers      The number of workers, typically the number of cores.
+     * @param capacity     The capacity of each worker ring, rounded up to a power of two.
+     * @param waitStrategy How idle workers wait for packets.
+     * @param handler      The {@link Handler} of the packets.
+     */
+    @SuppressWarnings("unchecked")
+    public FlowDispatcher(WinDivert divert, int workers, int capacity, WaitStrategy waitStrategy, Handler handler) {
+        if (workers <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid workers %d or capacity %d", workers, capacity));
+        }
+        this.divert = divert;
+        this.handler = handler;
+        this.waitStrategy = waitStrategy;
+        // Generic arrays cannot be created, the rings only ever hold packets
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Ring<Packet>[] rings = new Ring[workers];
+        this.rings = rings;
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            rings[i] = new SpscRing<Packet>(capacity, waitStrategy);
+        }
+    }
+
+    /**
+     * Get the worker handling the flow of a packet.
+     *
+     * @param packet The {@link Packet}.
+     * @return The worker index.
+     */
+    public int workerOf(Packet packet) {
+        return (FlowHash.symmetricHash(packet) & Integer.MAX_VALUE) % rings.length;
+    }
+
+    /**
+     * Route a packet to the worker of its flow. Used by the receiver thread, or by callers receiving on their own,
+     * always from the same single thread as worker rings have a single producer.
+     *
+     * @param packet The {@link Packet}.
+     * @return True if queued, false if the worker ring is full and the packet dropped.
+     */
+    public boolean dispatch(Packet packet) {
+        if (!rings[workerOf(packet)].offer(packet)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        dispatched.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Start the workers and, if asked, the receiver thread.
+     *
+     * @param receive Whether to receive from the handle, false if packets are {@link #dispatch(Packet) dispatched}
+     *                by the caller.
+     * @return this instance to allow call chaining.
+     */
+    public synchronized FlowDispatcher start(boolean receive) {
+        if (running) {
+            throw new IllegalStateException("Dispatcher already started");
+        }
+        running = true;
+        stopping = false;
+        for (int i = 0; i < workers.length; i++) {
+            final int worker = i;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(worker);
+                }
+            }, "jdivert-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        if (receive) {
+            receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive();
+                }
+            }, "jdivert-dispatcher");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+        return this;
+    }
+
+    private void receive() {
+        while (running) {
+            try {
+                // Null when timed out or woken up to stop
+                Packet packet = divert.recv(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (packet != null) {
+                    dispatch(packet);
+                }
+            } catch (WinDivertException e) {
+                if (!divert.isOpen()) {
+                    break;
+                }
+                errors.incrementAndGet();
+            } catch (RuntimeException e) {
+                // E.g. a packet that cannot be parsed, the receiver goes on
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private void work(final int worker) {
+        Ring<Packet> ring = rings[worker];
+        Ring.Consumer<Packet> consumer = new Ring.Consumer<Packet>() {
+            @Override
+            public void accept(Packet packet, long meta) {
+                try {
+                    if (handler.handle(packet, worker)) {
+                        divert.send(packet, false);
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+            }
+        };
+        int counter = 0;
+        while (true) {
+            if (ring.drain(consumer, BATCH_SIZE) > 0) {
+                counter = 0;
+            } else if (stopping) {
+                break;
+            } else {
+                counter = waitStrategy.idle(counter);
+            }
+        }
+    }
+
+    /**
+     * Stop receiving, let the workers handle the packets already queued, including the ones of the receives the
+     * receiver thread left outstanding, then stop them.
+     *
+     * @param closeHandle Whether to close the handle once the workers are done.
+     * @throws InterruptedException If interrupted while waiting for the threads to stop.
+     */
+    public void stop(boolean closeHandle) throws InterruptedException {
+        Thread r;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            r = receiver;
+            receiver = null;
+        }
+        if (r != null) {
+            divert.wakeup();
+            r.join();
+            // The receiver is done, this thread is now the single producer
+            for (Packet packet : divert.drain(0, TimeUnit.MILLISECONDS)) {
+                dispatch(packet);
+            }
+        }
+        // Nothing is dispatched any more, workers exit once their ring is empty
+        stopping = true;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (closeHandle) {
+            divert.close();
+        }
+    }
+
+    public int getWorkers() {
+        return rings.length;
+    }
+
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FlowDispatcher {workers=%d, dispatched=%d, dropped=%d, errors=%d}",
+                getWorkers(), getDispatched(), getDropped(), getErrors());
+    }
+
+    /**
+     * Handles the packets of the flows assigned to a worker, always from the thread of that worker.
+     */
+    public interface Handler {
+        /**
+         * Handle a packet, possibly modifying it. The packet is sent as is, modifications must keep its checksums
+         * valid, e.g. with {@link com.github.ffalcinelli.jdivert.Checksums}.
+         *
+         * @param packet The {@link Packet}.
+         * @param worker The worker index, e.g. to pick lock free per worker state.
+         * @return True to send the packet, false to drop it.
+         * @throws Exception If handling fails, the error is counted and the packet dropped.
+         */
+        boolean handle(Packet packet, int worker) throws Exception;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+/**
+ * Hashes the 5-tuple of packets straight from their buffer, without allocating.
+ * <p>
+ * {@link #hash(Packet)} tells the two directions of a flow apart, {@link #symmetricHash(Packet)} gives them the same
+ * hash, so that both land on the same worker or queue.
+ * </p>
+ */
+public final class FlowHash {
+
+    private FlowHash() {
+    }
+
+    private static int mix(int h, byte[] data, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            h = (h ^ (data[offset + i] & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    private static int finish(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Get the offset of the transport ports, if the packet is Tcp or Udp.
+     *
+     * @param packet The {@link Packet}.
+     * @return The offset of the source port, -1 for other protocols.
+     */
+    static int portsOffset(Packet packet) {
+        if (packet.isTcp()) {
+            return packet.getPayloadOffset() - packet.getTcp().getHeaderLength();
+        }
+        if (packet.isUdp()) {
+            return packet.getPayloadOffset() - packet.getUdp().getHeaderLength();
+        }
+        return -1;
+    }
+
+    /**
+     * Hash the protocol, addresses and, for Tcp and Udp, ports of a packet (FNV-1a followed by a finalizer).
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     * @return The hash.
+     */
+    public static int hash(Packet packet) {
+        byte[] d = packet.getByteBuffer().array();
+        boolean ipv4 = packet.isIpv4();
+        int h = 0x811C9DC5;
+        h = mix(h, d, ipv4 ? 9 : 6, 1);
+        h = mix(h, d, ipv4 ? 12 : 8, ipv4 ? 8 : 32);
+        int ports = portsOffset(packet);
+        if (ports >= 0) {
+            h = mix(h, d, ports, 4);
+        }
+        return finish(h);
+    }
+
+    /**
+     * Hash the protocol, addresses and, for Tcp and Udp, ports of a packet, giving the same hash to both directions
+     * of a flow: each endpoint is hashed on its own and the two hashes combined with a commutative operation.
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     * @return The hash.
+     */
+    public static int symmetricHash(Packet packet) {
+        byte[] d = packet.getByteBuffer().array();
+        boolean ipv4 = packet.isIpv4();
+        int length = ipv4 ? 4 : 16;
+        int src = mix(0x811C9DC5, d, ipv4 ? 12 : 8, length);
+        int dst = mix(0x811C9DC5, d, ipv4 ? 16 : 24, length);
+        int ports = portsOffset(packet);
+        if (ports >= 0) {
+            src = mix(src, d, ports, 2);
+            dst = mix(dst, d, ports + 2, 2);
+        }
+        int h = mix(finish(src) + finish(dst), d, ipv4 ? 9 : 6, 1);
+        return finish(h);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+/**
+ * The 5-tuple of a packet, packed into primitive fields: the source and destination addresses as two longs each and
+ * a tag holding the address family, the protocol and, for Tcp and Udp, the ports.
+ * <p>
+ * Keys are mutable so that a thread can reuse one for every packet it looks up, reading it straight from the packet
+ * buffer without allocating. Copy a key with {@link #FlowKey(FlowKey)} before keeping it.
+ * </p>
+ */
+public class FlowKey {
+
+    long srcHi;
+    long srcLo;
+    long dstHi;
+    long dstLo;
+    long tag;
+
+    /**
+     * Create an empty {@link FlowKey}.
+     */
+    public FlowKey() {
+    }
+
+    /**
+     * Create the {@link FlowKey} of a packet.
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     */
+    public FlowKey(Packet packet) {
+        set(packet);
+    }
+
+    /**
+     * Create a copy of a {@link FlowKey}.
+     *
+     * @param key The key to copy.
+     */
+    public FlowKey(FlowKey key) {
+        srcHi = key.srcHi;
+        srcLo = key.srcLo;
+        dstHi = key.dstHi;
+        dstLo = key.dstLo;
+        tag = key.tag;
+    }
+
+    private static long get64(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Read the 5-tuple of a packet into this key.
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     * @return this instance to allow call chaining.
+     */
+    public FlowKey set(Packet packet) {
+        byte[] d = packet.getByteBuffer().array();
+        int ports = FlowHash.portsOffset(packet);
+        long tagPorts = ports < 0 ? 0 : get64(d, ports, 4);
+        if (packet.isIpv4()) {
+            srcHi = 0;
+            srcLo = get64(d, 12, 4);
+            dstHi = 0;
+            dstLo = get64(d, 16, 4);
+            tag = (4L << 48) | ((d[9] & 0xFFL) << 32) | tagPorts;
+        } else {
+            srcHi = get64(d, 8, 8);
+            srcLo = get64(d, 16, 8);
+            dstHi = get64(d, 24, 8);
+            dstLo = get64(d, 32, 8);
+            // The next header, extension headers are not skipped
+            int protocol = packet.isTcp() ? 6 : packet.isUdp() ? 17 : d[6] & 0xFF;
+            tag = (6L << 48) | ((long) protocol << 32) | tagPorts;
+        }
+        return this;
+    }
+
+    /**
+     * Turn this key into the one of the opposite direction, swapping addresses and ports.
+     *
+     * @return this instance to allow call chaining.
+     */
+    public FlowKey reverse() {
+        long hi = srcHi;
+        long lo = srcLo;
+        srcHi = dstHi;
+        srcLo = dstLo;
+        dstHi = hi;
+        dstLo = lo;
+        tag = (tag & ~0xFFFFFFFFL) | ((tag & 0xFFFF) << 16) | ((tag >>> 16) & 0xFFFF);
+        return this;
+    }
+
+    public int getProtocol() {
+        return (int) (tag >>> 32) & 0xFF;
+    }
+
+    public int getSrcPort() {
+        return (int) (tag >>> 16) & 0xFFFF;
+    }
+
+    public int getDstPort() {
+        return (int) tag & 0xFFFF;
+    }
+
+    /**
+     * Get the hash of this key.
+     *
+     * @return The hash, well spread over all the bits.
+     */
+    public int hash() {
+        return hash(srcHi, srcLo, dstHi, dstLo, tag);
+    }
+
+    static int hash(long srcHi, long srcLo, long dstHi, long dstLo, long tag) {
+        long h = srcHi;
+        h = h * 0x9E3779B97F4A7C15L + srcLo;
+        h = h * 0x9E3779B97F4A7C15L + dstHi;
+        h = h * 0x9E3779B97F4A7C15L + dstLo;
+        h = h * 0x9E3779B97F4A7C15L + tag;
+        return (int) mix(h);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FlowKey key = (FlowKey) o;
+        return srcHi == key.srcHi && srcLo == key.srcLo && dstHi == key.dstHi && dstLo == key.dstLo && tag == key.tag;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FlowKey {src=%016x%016x, dst=%016x%016x, protocol=%d, srcPort=%d, dstPort=%d}",
+                srcHi, srcLo, dstHi, dstLo, getProtocol(), getSrcPort(), getDstPort());
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+/**
+ * An open addressing (linear probing) hash table of fixed width records of longs, the first of which are the key,
+ * each optionally holding an object.
+ * <p>
+ * It is the building block of the segmented tables of the library (e.g. {@link EndpointTable}, {@link VerdictCache}),
+ * which guard each instance with their own lock: the class is not thread safe. Callers hash their keys themselves,
+ * typically using the upper bits to pick a segment, and the table keeps the hash of every record, so that growing
+ * and deleting never hash again. Records are removed by backward shift, without tombstones, and the table doubles
+ * once half full. Keys are passed in an array the caller may reuse, so neither lookups nor updates allocate.
+ * </p>
+ *
+ * @param <V> The type of the objects held by the records.
+ */
+public class ProbeTable<V> {
+
+    private final int keyWidth;
+    private final int width;
+    private long[] records;
+    private int[] hashes;
+    private boolean[] used;
+    private Object[] values;
+    private int size;
+
+    /**
+     * Create a new {@link ProbeTable}.
+     *
+     * @param keyWidth The number of longs of the keys.
+     * @param width    The number of longs of the records, keys included.
+     * @param capacity The initial number of slots, rounded up to a power of two.
+     */
+    public ProbeTable(int keyWidth, int width, int capacity) {
+        if (keyWidth <= 0 || width < keyWidth) {
+            throw new IllegalArgumentException(String.format("Invalid key width %d or width %d", keyWidth, width));
+        }
+        this.keyWidth = keyWidth;
+        this.width = width;
+        int n = 2;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        allocate(n);
+    }
+
+    private void allocate(int capacity) {
+        records = new long[capacity * width];
+        hashes = new int[capacity];
+        used = new boolean[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * Find the record of a key.
+     *
+     * @param key  The array holding the key from offset 0.
+     * @param hash The hash of the key.
+     * @return The slot of the record, or a negative value if absent.
+     */
+    public int find(long[] key, int hash) {
+        int mask = used.length - 1;
+        for (int i = hash & mask; used[i]; i = (i + 1) & mask) {
+            if (hashes[i] == hash && matches(i, key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int slot, long[] key) {
+        int base = slot * width;
+        for (int k = 0; k < keyWidth; k++) {
+            if (records[base + k] != key[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add the record of a key not in the table, its other fields set to 0.
+     *
+     * @param key   The array holding the key from offset 0.
+     * @param hash  The hash of the key.
+     * @param value The object of the record, may be {@code null}.
+     * @return The slot of the record.
+     */
+    public int add(long[] key, int hash, V value) {
+        if ((size + 1) * 2 > used.length) {
+            grow();
+        }
+        int mask = used.length - 1;
+        int i = hash & mask;
+        while (used[i]) {
+            i = (i + 1) & mask;
+        }
+        int base = i * width;
+        System.arraycopy(key, 0, records, base, keyWidth);
+        for (int k = keyWidth; k < width; k++) {
+            records[base + k] = 0;
+        }
+        hashes[i] = hash;
+        used[i] = true;
+        values[i] = value;
+        size++;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldRecords = records;
+        int[] oldHashes = hashes;
+        boolean[] oldUsed = used;
+        Object[] oldValues = values;
+        allocate(oldUsed.length * 2);
+        int mask = used.length - 1;
+        for (int j = 0; j < oldUsed.length; j++) {
+            if (oldUsed[j]) {
+                int i = oldHashes[j] & mask;
+                while (used[i]) {
+                    i = (i + 1) & mask;
+                }
+                System.arraycopy(oldRecords, j * width, records, i * width, width);
+                hashes[i] = oldHashes[j];
+                used[i] = true;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Remove the record in a slot. Records further in its probe sequence may move back, into this slot.
+     *
+     * @param slot The slot.
+     */
+    public void removeAt(int slot) {
+        int mask = used.length - 1;
+        size--;
+        // Backward shift deletion keeps probe sequences unbroken without tombstones
+        int hole = slot;
+        for (int j = (hole + 1) & mask; used[j]; j = (j + 1) & mask) {
+            int home = hashes[j] & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                System.arraycopy(records, j * width, records, hole * width, width);
+                hashes[hole] = hashes[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        used[hole] = false;
+        values[hole] = null;
+    }
+
+    /**
+     * Remove the records a {@link Selector} picks.
+     *
+     * @param selector The {@link Selector}.
+     * @return The number of records removed.
+     */
+    public int removeIf(Selector selector) {
+        int removed = 0;
+        for (int i = 0; i < used.length; i++) {
+            // Records shifted into this slot are checked again, the ones wrapped around wait for the next sweep
+            while (used[i] && selector.select(i)) {
+                removeAt(i);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Get a field of a record.
+     *
+     * @param slot  The slot of the record.
+     * @param field The index of the field in the record, keys included.
+     * @return The field value.
+     */
+    public long get(int slot, int field) {
+        return records[slot * width + field];
+    }
+
+    /**
+     * Set a field of a record.
+     *
+     * @param slot  The slot of the record.
+     * @param field The index of the field in the record, keys included.
+     * @param value The field value.
+     */
+    public void set(int slot, int field, long value) {
+        records[slot * width + field] = value;
+    }
+
+    /**
+     * Get the object of a record.
+     *
+     * @param slot The slot of the record.
+     * @return The object.
+     */
+    public V value(int slot) {
+        @SuppressWarnings("unchecked")
+        V value = (V) values[slot];
+        return value;
+    }
+
+    /**
+     * Set the object of a record.
+     *
+     * @param slot  The slot of the record.
+     * @param value The object.
+     */
+    public void setValue(int slot, V value) {
+        values[slot] = value;
+    }
+
+    /**
+     * Indicates if a slot holds a record, to scan the table.
+     *
+     * @param slot The slot, from 0 to {@link #capacity()} excluded.
+     * @return True if used.
+     */
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    public int capacity() {
+        return used.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Picks the records to remove in {@link #removeIf(Selector)}.
+     */
+    public interface Selector {
+        /**
+         * Tell whether to remove a record.
+         *
+         * @param slot The slot of the record.
+         * @return True to remove it.
+         */
+        boolean select(int slot);
+    }
+}
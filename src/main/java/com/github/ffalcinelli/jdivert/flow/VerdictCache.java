@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the verdict given to the first packet of a flow, so that the following packets skip rule evaluation.
+ * <p>
+ * Flows are keyed by their {@link FlowKey 5-tuple}, read straight from the packet buffer into a per thread key, and
+ * live in {@link ProbeTable probe tables} split in segments with their own lock: a hit costs a hash and a probe,
+ * without allocating. Directions are cached separately, as rules usually tell them apart.
+ * </p><p>
+ * Every entry records the generation of the rules it was decided by. Reloading the rules calls
+ * {@link #invalidate()}, which bumps the generation in constant time; entries of older generations miss and are
+ * replaced by the next verdict or swept by {@link #expire()}. Tcp entries follow the connection: a FIN or RST moves
+ * them to a short timeout, a SYN reusing the 5-tuple of a known connection misses so that the new connection is
+ * evaluated again.
+ * </p>
+ * The class is thread safe.
+ *
+ * @param <V> The verdict type, e.g. an accept, drop or rewrite action.
+ */
+public class VerdictCache<V> {
+
+    private static final byte TCP = 0;
+    private static final byte TCP_CLOSING = 1;
+    private static final byte UDP = 2;
+    private static final byte OTHER = 3;
+
+    private final Segment[] segments;
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final ThreadLocal<FlowKey> keys = new ThreadLocal<FlowKey>() {
+        @Override
+        protected FlowKey initialValue() {
+            return new FlowKey();
+        }
+    };
+    private volatile long tcpTimeout = 7440000;
+    private volatile long tcpTransitoryTimeout = 240000;
+    private volatile long udpTimeout = 300000;
+    private volatile long icmpTimeout = 60000;
+
+    /**
+     * Create a new {@link VerdictCache} with a number of segments proportional to the available processors.
+     */
+    public VerdictCache() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * Create a new {@link VerdictCache}.
+     *
+     * @param concurrency The number of segments, rounded up to a power of two.
+     */
+    public VerdictCache(int concurrency) {
+        int n = 1;
+        while (n < concurrency) {
+            n <<= 1;
+        }
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static int tcpFlags(Packet packet) {
+        int ports = FlowHash.portsOffset(packet);
+        return packet.getByteBuffer().array()[ports + 13] & 0xFF;
+    }
+
+    private static byte state(Packet packet) {
+        if (packet.isTcp()) {
+            return (tcpFlags(packet) & 0x05) != 0 ? TCP_CLOSING : TCP;
+        }
+        return packet.isUdp() ? UDP : OTHER;
+    }
+
+    private Segment segment(int hash) {
+        return segments[(hash >>> 24) & (segments.length - 1)];
+    }
+
+    /**
+     * Get the cached verdict of the flow of a packet.
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     * @return The verdict, or {@code null} if the rules are to be evaluated.
+     */
+    public V lookup(Packet packet) {
+        return lookup(packet, currentTimeMillis());
+    }
+
+    /**
+     * Get the cached verdict of the flow of a packet, updating the Tcp state of the flow.
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     * @param now    The current time in milliseconds.
+     * @return The verdict, or {@code null} if the rules are to be evaluated.
+     */
+    public V lookup(Packet packet, long now) {
+        FlowKey key = keys.get().set(packet);
+        byte state = state(packet);
+        boolean syn = state == TCP && (tcpFlags(packet) & 0x12) == 0x02;
+        int h = key.hash();
+        Object verdict = segment(h).lookup(key, h, generation.get(), state, syn, now, this);
+        if (verdict == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        @SuppressWarnings("unchecked")
+        V v = (V) verdict;
+        return v;
+    }
+
+    /**
+     * Cache the verdict given to a packet for the rest of its flow.
+     *
+     * @param packet  The Ipv4 or Ipv6 {@link Packet}.
+     * @param verdict The verdict, not {@code null}.
+     */
+    public void put(Packet packet, V verdict) {
+        put(packet, verdict, currentTimeMillis());
+    }
+
+    /**
+     * Cache the verdict given to a packet for the rest of its flow.
+     *
+     * @param packet  The Ipv4 or Ipv6 {@link Packet}.
+     * @param verdict The verdict, not {@code null}.
+     * @param now     The current time in milliseconds.
+     */
+    public void put(Packet packet, V verdict, long now) {
+        if (verdict == null) {
+            throw new IllegalArgumentException("Verdict cannot be null");
+        }
+        FlowKey key = keys.get().set(packet);
+        int h = key.hash();
+        segment(h).put(key, h, verdict, generation.get(), state(packet), now);
+    }
+
+    /**
+     * Forget the verdict of the flow of a packet.
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     * @return True if the flow was cached.
+     */
+    public boolean remove(Packet packet) {
+        FlowKey key = keys.get().set(packet);
+        int h = key.hash();
+        return segment(h).remove(key, h);
+    }
+
+    /**
+     * Make every cached verdict stale, to be called when the rules change.
+     *
+     * @return The new generation.
+     */
+    public int invalidate() {
+        return generation.incrementAndGet();
+    }
+
+    /**
+     * Remove the stale entries and the flows idle for longer than their timeout.
+     *
+     * @return The number of entries removed.
+     */
+    public int expire() {
+        return expire(currentTimeMillis());
+    }
+
+    /**
+     * Remove the stale entries and the flows idle for longer than their timeout.
+     *
+     * @param now The current time in milliseconds.
+     * @return The number of entries removed.
+     */
+    public int expire(long now) {
+        int removed = 0;
+        int current = generation.get();
+        for (Segment segment : segments) {
+            removed += segment.expire(current, now, this);
+        }
+        return removed;
+    }
+
+    private long timeout(byte state) {
+        switch (state) {
+            case TCP:
+                return tcpTimeout;
+            case TCP_CLOSING:
+                return tcpTransitoryTimeout;
+            case UDP:
+                return udpTimeout;
+            default:
+                return icmpTimeout;
+        }
+    }
+
+    /**
+     * Get the current time in milliseconds, used to track idle flows.
+     *
+     * @return The current time.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Get the number of cached flows, including the stale ones not yet removed.
+     *
+     * @return The number of flows.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public int getGeneration() {
+        return generation.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Set the timeout of established Tcp flows.
+     *
+     * @param tcpTimeout The timeout in milliseconds.
+     */
+    public void setTcpTimeout(long tcpTimeout) {
+        this.tcpTimeout = tcpTimeout;
+    }
+
+    /**
+     * Set the timeout of Tcp flows once a FIN or RST has been seen.
+     *
+     * @param tcpTransitoryTimeout The timeout in milliseconds.
+     */
+    public void setTcpTransitoryTimeout(long tcpTransitoryTimeout) {
+        this.tcpTransitoryTimeout = tcpTransitoryTimeout;
+    }
+
+    public void setUdpTimeout(long udpTimeout) {
+        this.udpTimeout = udpTimeout;
+    }
+
+    public void setIcmpTimeout(long icmpTimeout) {
+        this.icmpTimeout = icmpTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VerdictCache {flows=%d, generation=%d, hits=%d, misses=%d}",
+                size(), getGeneration(), getHits(), getMisses());
+    }
+
+    private static class Segment {
+        private static final int GENERATION = 5;
+        private static final int LAST_SEEN = 6;
+        private static final int STATE = 7;
+
+        // The 5-tuple, then the generation, the last use and the Tcp state
+        private final ProbeTable<Object> table = new ProbeTable<Object>(5, 8, 16);
+        private final long[] probe = new long[5];
+
+        private int find(FlowKey key, int h) {
+            probe[0] = key.srcHi;
+            probe[1] = key.srcLo;
+            probe[2] = key.dstHi;
+            probe[3] = key.dstLo;
+            probe[4] = key.tag;
+            return table.find(probe, h);
+        }
+
+        private boolean isStale(int i, int generation, long now, VerdictCache<?> cache) {
+            return table.get(i, GENERATION) != generation
+                    || now - table.get(i, LAST_SEEN) > cache.timeout((byte) table.get(i, STATE));
+        }
+
+        synchronized Object lookup(FlowKey key, int h, int generation, byte state, boolean syn, long now,
+                                   VerdictCache<?> cache) {
+            int i = find(key, h);
+            if (i < 0) {
+                return null;
+            }
+            if (syn || isStale(i, generation, now, cache)) {
+                table.removeAt(i);
+                return null;
+            }
+            table.set(i, LAST_SEEN, now);
+            if (state == TCP_CLOSING) {
+                table.set(i, STATE, TCP_CLOSING);
+            }
+            return table.value(i);
+        }
+
+        synchronized void put(FlowKey key, int h, Object verdict, int generation, byte state, long now) {
+            int i = find(key, h);
+            if (i < 0) {
+                i = table.add(probe, h, verdict);
+            } else {
+                table.setValue(i, verdict);
+            }
+            table.set(i, GENERATION, generation);
+            table.set(i, LAST_SEEN, now);
+            table.set(i, STATE, state);
+        }
+
+        synchronized boolean remove(FlowKey key, int h) {
+            int i = find(key, h);
+            if (i < 0) {
+                return false;
+            }
+            table.removeAt(i);
+            return true;
+        }
+
+        synchronized int expire(final int generation, final long now, final VerdictCache<?> cache) {
+            return table.removeIf(new ProbeTable.Selector() {
+                @Override
+                public boolean select(int slot) {
+                    return isStale(slot, generation, now, cache);
+                }
+            });
+        }
+
+        synchronized int size() {
+            return table.size();
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.github.ffalcinelli.jdivert.Util;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
 import static java.nio.ByteOrder.BIG_ENDIAN;
 
 /**
@@ -54,17 +55,40 @@ public abstract class Header {
      * is either a {@link com.github.ffalcinelli.jdivert.headers.Transport} or {@link com.github.ffalcinelli.jdivert.headers.Icmp} header
      */
     public static Header[] buildHeaders(byte[] data) {
-        ByteBuffer raw = ByteBuffer.wrap(data);
+        return buildHeaders(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Build headers from a {@link java.nio.ByteBuffer} holding the packet from index 0. Headers share the buffer content.
+     *
+     * @param raw The buffer holding the packet
+     * @return A pair of headers, first of which is a {@link com.github.ffalcinelli.jdivert.headers.Ip} header while the second
+     * is either a {@link com.github.ffalcinelli.jdivert.headers.Transport} or {@link com.github.ffalcinelli.jdivert.headers.Icmp} header
+     */
+    public static Header[] buildHeaders(ByteBuffer raw) {
+        return buildHeaders(raw, Ip.getVersion(raw), null);
+    }
+
+    /**
+     * Build the headers of a packet whose layout is already known, e.g. because it has just been written, without
+     * reading it from the buffer.
+     *
+     * @param raw      The buffer holding the packet
+     * @param version  The Ip version, 4 or 6
+     * @param protocol The transport {@link Protocol}, {@code null} to read it from the Ip header
+     * @return A pair of headers, as {@link #buildHeaders(ByteBuffer)} does
+     */
+    public static Header[] buildHeaders(ByteBuffer raw, int version, Protocol protocol) {
         raw.order(BIG_ENDIAN);
         Ip ipHdr;
         Header[] headers = new Header[2];
-        if (Ip.getVersion(raw) == 4) {
+        if (version == 4) {
             ipHdr = new Ipv4(raw);
         } else {
             ipHdr = new Ipv6(raw);
         }
         headers[0] = ipHdr;
-        switch (ipHdr.getNextHeaderProtocol()) {
+        switch (protocol != null ? protocol : ipHdr.getNextHeaderProtocol()) {
             case TCP:
                 headers[1] = new Tcp(raw, ipHdr.getHeaderLength());
                 break;
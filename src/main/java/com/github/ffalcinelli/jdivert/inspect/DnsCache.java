@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import java.util.Arrays;
+
+/**
+ * A TTL aware cache of DNS answers, keyed by question name (case insensitive), type and class.
+ * <p>
+ * Answers are stored as uncompressed resource records, ready to be appended to a response by
+ * {@link #writeAnswers(Entry, byte[], int, long)} which also rewrites the TTLs with the remaining lifetime. Only
+ * records whose data can be relocated are cached: A, AAAA, TXT and the name carrying NS, CNAME, PTR and MX, whose
+ * names are decompressed.
+ * </p><p>
+ * Lookups do not allocate. The cache is thread safe: buckets are guarded by striped locks.
+ * </p>
+ */
+public class DnsCache {
+
+    private static final int STRIPES = 64;
+
+    private final Entry[] table;
+    private final Object[] locks = new Object[STRIPES];
+    private final int maxEntries;
+    private final long minTtl;
+    private final long maxTtl;
+    private int size;
+
+    /**
+     * Create a new {@link DnsCache} holding up to 4096 entries, with TTLs clamped between 0 and 86400 seconds.
+     */
+    public DnsCache() {
+        this(4096, 0, 86400);
+    }
+
+    /**
+     * Create a new {@link DnsCache}.
+     *
+     * @param maxEntries The maximum number of cached questions.
+     * @param minTtl     The minimum lifetime of an entry, in seconds.
+     * @param maxTtl     The maximum lifetime of an entry, in seconds.
+     */
+    public DnsCache(int maxEntries, long minTtl, long maxTtl) {
+        if (maxEntries <= 0 || minTtl < 0 || maxTtl < minTtl) {
+            throw new IllegalArgumentException(String.format("Invalid cache parameters maxEntries=%d, minTtl=%d, maxTtl=%d",
+                    maxEntries, minTtl, maxTtl));
+        }
+        int buckets = Integer.highestOneBit(Math.max(STRIPES, maxEntries) - 1) << 1;
+        this.table = new Entry[buckets];
+        this.maxEntries = maxEntries;
+        this.minTtl = minTtl;
+        this.maxTtl = maxTtl;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private static int lower(int b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private static int hash(byte[] name, int length, int type, int dnsClass) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ lower(name[i] & 0xFF)) * 0x01000193;
+        }
+        h = (h ^ type) * 0x01000193;
+        h = (h ^ dnsClass) * 0x01000193;
+        return h ^ (h >>> 16);
+    }
+
+    private static int u16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static void put16(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void put32(byte[] data, int offset, long value) {
+        put16(data, offset, (int) (value >>> 16));
+        put16(data, offset + 2, (int) value);
+    }
+
+    /**
+     * Encode a dotted name into labels.
+     *
+     * @return The offset following the encoded name.
+     */
+    private static int encodeName(byte[] dotted, int length, byte[] out, int pos) {
+        int labelStart = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || dotted[i] == '.') {
+                int len = i - labelStart;
+                if (len > 0) {
+                    out[pos++] = (byte) len;
+                    System.arraycopy(dotted, labelStart, out, pos, len);
+                    pos += len;
+                }
+                labelStart = i + 1;
+            }
+        }
+        out[pos++] = 0;
+        return pos;
+    }
+
+    /**
+     * Get the current time in milliseconds. Tests can override it to control expiration.
+     *
+     * @return The current time in milliseconds.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Store the answers of a DNS response.
+     * <p>
+     * The response must be successful, carry a single question and at least a cacheable answer. The entry lifetime is
+     * the lowest TTL among the cached records, clamped between the configured bounds.
+     * </p>
+     *
+     * @param response The response to cache.
+     * @return True if the response has been cached.
+     */
+    public boolean put(DnsMessage response) {
+        if (!response.isResponse() || response.getRcode() != 0 || response.getQuestionCount() != 1
+                || response.getAnswerCount() == 0) {
+            return false;
+        }
+        byte[] scratch = new byte[DnsMessage.MAX_NAME_LENGTH];
+        byte[] records = new byte[512];
+        int[] ttlOffsets = new int[response.getAnswerCount()];
+        int count = 0;
+        int pos = 0;
+        long ttl = Long.MAX_VALUE;
+        byte[] name = null;
+        int type = 0, dnsClass = 0;
+        DnsMessage.Record record = new DnsMessage.Record();
+        response.rewind();
+        // Only the answers are cached, the authority and additional records that follow are not
+        while (response.next(record) && (record.getSection() == DnsMessage.Section.QUESTION
+                || record.getSection() == DnsMessage.Section.ANSWER)) {
+            int nameLength = response.readName(record.getNameOffset(), scratch);
+            if (nameLength < 0) {
+                return false;
+            }
+            if (record.getSection() == DnsMessage.Section.QUESTION) {
+                name = Arrays.copyOf(scratch, nameLength);
+                type = record.getType();
+                dnsClass = record.getDnsClass();
+                continue;
+            }
+            int rtype = record.getType();
+            boolean hasName = rtype == DnsMessage.TYPE_NS || rtype == DnsMessage.TYPE_CNAME
+                    || rtype == DnsMessage.TYPE_PTR || rtype == DnsMessage.TYPE_MX;
+            if (!hasName && rtype != DnsMessage.TYPE_A && rtype != DnsMessage.TYPE_AAAA && rtype != DnsMessage.TYPE_TXT) {
+                continue;
+            }
+            if (rtype == DnsMessage.TYPE_MX && record.getRdataLength() < 3) {
+                return false;
+            }
+            // Worst case: two uncompressed names plus fixed fields
+            int needed = pos + 2 * (DnsMessage.MAX_NAME_LENGTH + 2) + 12 + record.getRdataLength();
+            if (needed > records.length) {
+                records = Arrays.copyOf(records, Math.max(needed, records.length * 2));
+            }
+            pos = encodeName(scratch, nameLength, records, pos);
+            put16(records, pos, rtype);
+            put16(records, pos + 2, record.getDnsClass());
+            ttlOffsets[count++] = pos + 4;
+            put32(records, pos + 4, record.getTtl());
+            int rdlengthOffset = pos + 8;
+            int rdata = pos + 10;
+            byte[] src = response.getBuffer();
+            if (hasName) {
+                int nameOffset = record.getRdataOffset();
+                if (rtype == DnsMessage.TYPE_MX) {
+                    System.arraycopy(src, nameOffset, records, rdata, 2);
+                    nameOffset += 2;
+                    rdata += 2;
+                }
+                int targetLength = response.readName(nameOffset, scratch);
+                if (targetLength < 0) {
+                    return false;
+                }
+                pos = encodeName(scratch, targetLength, records, rdata);
+            } else {
+                System.arraycopy(src, record.getRdataOffset(), records, rdata, record.getRdataLength());
+                pos = rdata + record.getRdataLength();
+            }
+            put16(records, rdlengthOffset, pos - rdlengthOffset - 2);
+            ttl = Math.min(ttl, record.getTtl());
+        }
+        if (name == null || count == 0 || response.isMalformed()) {
+            return false;
+        }
+        ttl = Math.max(minTtl, Math.min(maxTtl, ttl));
+        long now = currentTimeMillis();
+        int hash = hash(name, name.length, type, dnsClass);
+        Entry entry = new Entry(hash, name, type, dnsClass, Arrays.copyOf(records, pos),
+                Arrays.copyOf(ttlOffsets, count), now, now + ttl * 1000);
+        if (insert(entry, now)) {
+            return true;
+        }
+        // Full and nothing to evict from the bucket: expired entries of other buckets may be taking the room
+        purge(now);
+        return insert(entry, now);
+    }
+
+    /**
+     * Link an entry in its bucket, evicting the expired entries and the previous answers of the bucket, then the
+     * bucket entry closest to expiration if the cache is full.
+     *
+     * @return False if the cache is full and the bucket holds no other entry.
+     */
+    private boolean insert(Entry entry, long now) {
+        int hash = entry.hash;
+        byte[] name = entry.name;
+        int type = entry.type;
+        int dnsClass = entry.dnsClass;
+        int idx = hash & (table.length - 1);
+        synchronized (locks[idx & (STRIPES - 1)]) {
+            Entry prev = null;
+            Entry oldest = null;
+            Entry oldestPrev = null;
+            for (Entry e = table[idx]; e != null; e = e.next) {
+                if (e.matches(hash, name, name.length, type, dnsClass) || e.expiresAt <= now) {
+                    unlink(idx, prev, e);
+                    continue;
+                }
+                if (oldest == null || e.expiresAt < oldest.expiresAt) {
+                    oldest = e;
+                    oldestPrev = prev;
+                }
+                prev = e;
+            }
+            if (!reserve()) {
+                if (oldest == null) {
+                    return false;
+                }
+                unlink(idx, oldestPrev, oldest);
+                reserve();
+            }
+            entry.next = table[idx];
+            table[idx] = entry;
+        }
+        return true;
+    }
+
+    /**
+     * Evict the expired entries of every bucket.
+     */
+    private void purge(long now) {
+        for (int i = 0; i < table.length; i++) {
+            synchronized (locks[i & (STRIPES - 1)]) {
+                Entry prev = null;
+                for (Entry e = table[i]; e != null; e = e.next) {
+                    if (e.expiresAt <= now) {
+                        unlink(i, prev, e);
+                    } else {
+                        prev = e;
+                    }
+                }
+            }
+        }
+    }
+
+    private void unlink(int idx, Entry prev, Entry e) {
+        if (prev == null) {
+            table[idx] = e.next;
+        } else {
+            prev.next = e.next;
+        }
+        synchronized (this) {
+            size--;
+        }
+    }
+
+    private synchronized boolean reserve() {
+        if (size >= maxEntries) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Look up a question.
+     *
+     * @param name     The array holding the question name in dotted form.
+     * @param length   The name length.
+     * @param type     The question type.
+     * @param dnsClass The question class.
+     * @return The live {@link Entry}, {@code null} if missing or expired.
+     */
+    public Entry lookup(byte[] name, int length, int type, int dnsClass) {
+        long now = currentTimeMillis();
+        int hash = hash(name, length, type, dnsClass);
+        int idx = hash & (table.length - 1);
+        synchronized (locks[idx & (STRIPES - 1)]) {
+            for (Entry e = table[idx]; e != null; e = e.next) {
+                if (e.matches(hash, name, length, type, dnsClass)) {
+                    return e.expiresAt > now ? e : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy the answers of an entry, rewriting each TTL with its remaining lifetime.
+     *
+     * @param entry The {@link Entry} returned by {@link #lookup(byte[], int, int, int)}.
+     * @param dest  The destination array.
+     * @param pos   The offset where to write the records.
+     * @param now   The current time in milliseconds.
+     * @return The offset following the written records.
+     */
+    public int writeAnswers(Entry entry, byte[] dest, int pos, long now) {
+        System.arraycopy(entry.records, 0, dest, pos, entry.records.length);
+        long elapsed = Math.max(0, (now - entry.storedAt) / 1000);
+        long lifetime = (entry.expiresAt - entry.storedAt) / 1000;
+        for (int ttlOffset : entry.ttlOffsets) {
+            long ttl = ((long) u16(entry.records, ttlOffset) << 16) | u16(entry.records, ttlOffset + 2);
+            put32(dest, pos + ttlOffset, Math.max(0, Math.min(ttl, lifetime) - elapsed));
+        }
+        return pos + entry.records.length;
+    }
+
+    /**
+     * Copy the answers of an entry using the current time.
+     *
+     * @param entry The {@link Entry} returned by {@link #lookup(byte[], int, int, int)}.
+     * @param dest  The destination array.
+     * @param pos   The offset where to write the records.
+     * @return The offset following the written records.
+     */
+    public int writeAnswers(Entry entry, byte[] dest, int pos) {
+        return writeAnswers(entry, dest, pos, currentTimeMillis());
+    }
+
+    /**
+     * Drop all the entries.
+     */
+    public void clear() {
+        for (int i = 0; i < table.length; i++) {
+            synchronized (locks[i & (STRIPES - 1)]) {
+                for (Entry e = table[i]; e != null; e = e.next) {
+                    unlink(i, null, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of entries, expired ones not yet evicted included.
+     *
+     * @return The number of entries.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DnsCache {size=%d, maxEntries=%d, minTtl=%d, maxTtl=%d}", size(), maxEntries, minTtl, maxTtl);
+    }
+
+    /**
+     * The cached answers for a question. Entries are immutable.
+     */
+    public static class Entry {
+        private final byte[] name;
+        private final int type;
+        private final int dnsClass;
+        private final byte[] records;
+        private final int[] ttlOffsets;
+        private final long storedAt;
+        private final long expiresAt;
+        private final int hash;
+        private Entry next;
+
+        private Entry(int hash, byte[] name, int type, int dnsClass, byte[] records, int[] ttlOffsets, long storedAt, long expiresAt) {
+            this.hash = hash;
+            this.name = name;
+            this.type = type;
+            this.dnsClass = dnsClass;
+            this.records = records;
+            this.ttlOffsets = ttlOffsets;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean matches(int hash, byte[] other, int length, int type, int dnsClass) {
+            if (this.hash != hash || this.type != type || this.dnsClass != dnsClass || name.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (lower(name[i] & 0xFF) != lower(other[i] & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Get the number of cached records.
+         *
+         * @return The number of answers.
+         */
+        public int getAnswerCount() {
+            return ttlOffsets.length;
+        }
+
+        /**
+         * Get the size of the cached records once written.
+         *
+         * @return The records length.
+         */
+        public int getLength() {
+            return records.length;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view over a DNS message (RFC 1035), typically the payload of a Udp {@link Packet}.
+ * <p>
+ * The view does not copy nor allocate: records are walked with {@link #next(Record)}, which fills a caller provided
+ * {@link Record} with offsets into {@link #getBuffer()}, while names are decompressed into a caller provided scratch
+ * array by {@link #readName(int, byte[])}.
+ * </p>
+ * An instance can be rewrapped around other messages and it is not thread safe.
+ */
+public class DnsMessage {
+
+    public static final int HEADER_LENGTH = 12;
+    /**
+     * Maximum length of a name in dotted form.
+     */
+    public static final int MAX_NAME_LENGTH = 255;
+    public static final int TYPE_A = 1;
+    public static final int TYPE_NS = 2;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_PTR = 12;
+    public static final int TYPE_MX = 15;
+    public static final int TYPE_TXT = 16;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_OPT = 41;
+    public static final int CLASS_IN = 1;
+
+    private static final int MAX_POINTERS = 32;
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+    private int cursor;
+    private int index;
+
+    private static int u16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Wrap the payload of a Udp {@link Packet}.
+     *
+     * @param packet The {@link Packet} carrying the DNS message.
+     * @return True if the payload is long enough to hold a DNS header, false otherwise.
+     */
+    public boolean wrap(Packet packet) {
+        ByteBuffer raw = packet.getByteBuffer();
+        return wrap(raw.array(), raw.arrayOffset() + packet.getPayloadOffset(), packet.getPayloadLength());
+    }
+
+    /**
+     * Wrap a DNS message.
+     *
+     * @param data   The array holding the message.
+     * @param offset The offset of the message.
+     * @param length The message length.
+     * @return True if the message is long enough to hold a DNS header, false otherwise.
+     */
+    public boolean wrap(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException(String.format("Range %d, %d out of array bounds %d", offset, length, data.length));
+        }
+        this.buffer = data;
+        this.offset = offset;
+        this.length = length;
+        rewind();
+        return length >= HEADER_LENGTH;
+    }
+
+    /**
+     * Move the record cursor back to the first question.
+     */
+    public void rewind() {
+        cursor = offset + HEADER_LENGTH;
+        index = 0;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getId() {
+        return u16(buffer, offset);
+    }
+
+    public int getFlags() {
+        return u16(buffer, offset + 2);
+    }
+
+    public boolean isResponse() {
+        return (buffer[offset + 2] & 0x80) != 0;
+    }
+
+    public int getOpcode() {
+        return (buffer[offset + 2] >> 3) & 0x0F;
+    }
+
+    public int getRcode() {
+        return buffer[offset + 3] & 0x0F;
+    }
+
+    public int getQuestionCount() {
+        return u16(buffer, offset + 4);
+    }
+
+    public int getAnswerCount() {
+        return u16(buffer, offset + 6);
+    }
+
+    public int getAuthorityCount() {
+        return u16(buffer, offset + 8);
+    }
+
+    public int getAdditionalCount() {
+        return u16(buffer, offset + 10);
+    }
+
+    private int recordCount() {
+        return getQuestionCount() + getAnswerCount() + getAuthorityCount() + getAdditionalCount();
+    }
+
+    /**
+     * Move to the next record, going through questions, answers, authorities and additional records in order.
+     *
+     * @param record The {@link Record} to fill.
+     * @return True if a record has been read, false at the end of the message or if it is malformed (see
+     * {@link #isMalformed()}).
+     */
+    public boolean next(Record record) {
+        if (length < HEADER_LENGTH || index >= recordCount() || cursor < 0) {
+            return false;
+        }
+        int end = offset + length;
+        int nameEnd = skipName(cursor);
+        if (nameEnd < 0 || nameEnd + 4 > end) {
+            cursor = -1;
+            return false;
+        }
+        int questions = getQuestionCount();
+        record.nameOffset = cursor;
+        record.type = u16(buffer, nameEnd);
+        record.dnsClass = u16(buffer, nameEnd + 2);
+        if (index < questions) {
+            record.section = Section.QUESTION;
+            record.ttlOffset = -1;
+            record.ttl = 0;
+            record.rdataOffset = -1;
+            record.rdataLength = 0;
+            cursor = nameEnd + 4;
+        } else {
+            if (nameEnd + 10 > end || nameEnd + 10 + u16(buffer, nameEnd + 8) > end) {
+                cursor = -1;
+                return false;
+            }
+            int answers = questions + getAnswerCount();
+            record.section = index < answers ? Section.ANSWER
+                    : index < answers + getAuthorityCount() ? Section.AUTHORITY : Section.ADDITIONAL;
+            record.ttlOffset = nameEnd + 4;
+            record.ttl = ((long) u16(buffer, nameEnd + 4) << 16) | u16(buffer, nameEnd + 6);
+            record.rdataLength = u16(buffer, nameEnd + 8);
+            record.rdataOffset = nameEnd + 10;
+            cursor = record.rdataOffset + record.rdataLength;
+        }
+        record.endOffset = cursor;
+        index++;
+        return true;
+    }
+
+    /**
+     * Check if the last call to {@link #next(Record)} stopped on inconsistent data.
+     *
+     * @return True if the message is malformed.
+     */
+    public boolean isMalformed() {
+        return length < HEADER_LENGTH || cursor < 0;
+    }
+
+    /**
+     * Skip a (possibly compressed) name.
+     *
+     * @param pos The offset of the name.
+     * @return The offset following the name, -1 if it is malformed.
+     */
+    public int skipName(int pos) {
+        int end = offset + length;
+        while (pos < end) {
+            int len = buffer[pos] & 0xFF;
+            if (len == 0) {
+                return pos + 1;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                return pos + 2 <= end ? pos + 2 : -1;
+            }
+            if ((len & 0xC0) != 0) {
+                return -1;
+            }
+            pos += 1 + len;
+        }
+        return -1;
+    }
+
+    /**
+     * Decompress a name into the given array in dotted form (e.g. {@code www.example.com}, the root being an empty
+     * name).
+     *
+     * @param pos     The offset of the name.
+     * @param scratch The array receiving the name, at least {@link #MAX_NAME_LENGTH} bytes long.
+     * @return The name length, -1 if it is malformed.
+     */
+    public int readName(int pos, byte[] scratch) {
+        int end = offset + length;
+        int written = 0;
+        int jumps = 0;
+        while (pos < end) {
+            int len = buffer[pos] & 0xFF;
+            if (len == 0) {
+                return written;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                if (pos + 2 > end || ++jumps > MAX_POINTERS) {
+                    return -1;
+                }
+                pos = offset + (((len & 0x3F) << 8) | (buffer[pos + 1] & 0xFF));
+                continue;
+            }
+            if ((len & 0xC0) != 0 || pos + 1 + len > end) {
+                return -1;
+            }
+            if (written > 0) {
+                if (written >= scratch.length) {
+                    return -1;
+                }
+                scratch[written++] = '.';
+            }
+            if (written + len > scratch.length || written + len > MAX_NAME_LENGTH) {
+                return -1;
+            }
+            System.arraycopy(buffer, pos + 1, scratch, written, len);
+            written += len;
+            pos += 1 + len;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DNS {id=%d, response=%s, opcode=%d, rcode=%d, qd=%d, an=%d, ns=%d, ar=%d}"
+                , getId()
+                , isResponse()
+                , getOpcode()
+                , getRcode()
+                , getQuestionCount()
+                , getAnswerCount()
+                , getAuthorityCount()
+                , getAdditionalCount()
+        );
+    }
+
+    public enum Section {
+        QUESTION, ANSWER, AUTHORITY, ADDITIONAL
+    }
+
+    /**
+     * A question or a resource record, as offsets into the message buffer. Reusable across messages.
+     */
+    public static class Record {
+        private Section section;
+        private int nameOffset;
+        private int type;
+        private int dnsClass;
+        private int ttlOffset;
+        private long ttl;
+        private int rdataOffset;
+        private int rdataLength;
+        private int endOffset;
+
+        public Section getSection() {
+            return section;
+        }
+
+        public int getNameOffset() {
+            return nameOffset;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public int getDnsClass() {
+            return dnsClass;
+        }
+
+        /**
+         * Get the offset of the TTL field, so that it can be rewritten in place.
+         *
+         * @return The TTL offset, -1 for questions.
+         */
+        public int getTtlOffset() {
+            return ttlOffset;
+        }
+
+        public long getTtl() {
+            return ttl;
+        }
+
+        public int getRdataOffset() {
+            return rdataOffset;
+        }
+
+        public int getRdataLength() {
+            return rdataLength;
+        }
+
+        /**
+         * Get the offset following the record.
+         *
+         * @return The end offset.
+         */
+        public int getEndOffset() {
+            return endOffset;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Record {section=%s, type=%d, class=%d, ttl=%d, rdataLength=%d}"
+                    , section
+                    , type
+                    , dnsClass
+                    , ttl
+                    , rdataLength
+            );
+        }
+    }
+}
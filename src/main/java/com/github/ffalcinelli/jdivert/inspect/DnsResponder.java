@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.headers.Udp;
+
+import java.nio.ByteBuffer;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction;
+
+/**
+ * Answers diverted DNS queries from a {@link DnsCache}.
+ * <p>
+ * The response is synthesised by rewriting the query: it is copied into a caller provided buffer where addresses and
+ * ports are swapped, the header is turned into a response, the cached records are appended after the question and
+ * lengths and checksums are fixed. Additional records of the query (e.g. EDNS0 OPT) are dropped.
+ * </p>
+ * A {@link DnsResponder} keeps scratch space and it is not thread safe, use one per thread sharing the same
+ * {@link DnsCache}.
+ */
+public class DnsResponder {
+
+    private final DnsCache cache;
+    private final DnsMessage message = new DnsMessage();
+    private final DnsMessage.Record record = new DnsMessage.Record();
+    private final byte[] name = new byte[DnsMessage.MAX_NAME_LENGTH];
+
+    /**
+     * Create a new {@link DnsResponder}.
+     *
+     * @param cache The {@link DnsCache} to answer from.
+     */
+    public DnsResponder(DnsCache cache) {
+        this.cache = cache;
+    }
+
+    private static void put16(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void swap(byte[] data, int first, int second, int length) {
+        for (int i = 0; i < length; i++) {
+            byte tmp = data[first + i];
+            data[first + i] = data[second + i];
+            data[second + i] = tmp;
+        }
+    }
+
+    /**
+     * Build the response to a query, if its answer is cached.
+     *
+     * @param query  A Udp {@link Packet} carrying a standard DNS query with a single question.
+     * @param buffer The buffer where to build the response. It must start at offset 0 and should be reused.
+     * @return The response {@link Packet}, backed by {@code buffer}, or {@code null} if the answer is not cached, the
+     * query is not supported or the response does not fit in the buffer.
+     */
+    public Packet answer(Packet query, byte[] buffer) {
+        if (!query.isUdp() || !message.wrap(query) || message.isResponse() || message.getOpcode() != 0
+                || message.getQuestionCount() != 1 || !message.next(record)) {
+            return null;
+        }
+        int nameLength = message.readName(record.getNameOffset(), name);
+        if (nameLength < 0) {
+            return null;
+        }
+        DnsCache.Entry entry = cache.lookup(name, nameLength, record.getType(), record.getDnsClass());
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer raw = query.getByteBuffer();
+        int questionEnd = record.getEndOffset() - raw.arrayOffset();
+        int length = questionEnd + entry.getLength();
+        if (length > buffer.length || length > 0xFFFF) {
+            return null;
+        }
+        System.arraycopy(raw.array(), raw.arrayOffset(), buffer, 0, questionEnd);
+
+        // Reflect addresses and ports
+        if (query.isIpv4()) {
+            swap(buffer, 12, 16, 4);
+        } else {
+            swap(buffer, 8, 24, 16);
+        }
+        int udp = query.getPayloadOffset() - query.getUdp().getHeaderLength();
+        swap(buffer, udp, udp + 2, 2);
+
+        // Header: QR and RA set, RD kept, no authority nor additional records
+        int dns = query.getPayloadOffset();
+        buffer[dns + 2] = (byte) (0x80 | (buffer[dns + 2] & 0x79));
+        buffer[dns + 3] = (byte) 0x80;
+        put16(buffer, dns + 6, entry.getAnswerCount());
+        put16(buffer, dns + 8, 0);
+        put16(buffer, dns + 10, 0);
+        cache.writeAnswers(entry, buffer, questionEnd);
+
+        Direction direction = query.isLoopback() || query.isInbound() ? Direction.OUTBOUND : Direction.INBOUND;
+        Packet response = new Packet(buffer, length, query.getIface(), direction);
+        if (response.isIpv4()) {
+            response.getIpv4().setTotalLength(length);
+        } else {
+            response.getIpv6().setPayloadLength((short) (length - response.getIpv6().getHeaderLength()));
+        }
+        Udp udpHdr = response.getUdp();
+        udpHdr.setLength(length - udp);
+        Checksums.calculate(response);
+        return response;
+    }
+
+    /**
+     * Answer a query from the cache and inject the response, with checksums already computed.
+     *
+     * @param windivert The {@link WinDivert} handle to send the response with.
+     * @param query     The diverted query.
+     * @param buffer    The buffer where to build the response.
+     * @return True if the query has been answered, false if it should be handled otherwise (e.g. reinjected).
+     * @throws WinDivertException Whenever the DLL call sets a LastError different by 0 (Success) or 997 (Overlapped I/O
+     *                            is in progress)
+     */
+    public boolean reply(WinDivert windivert, Packet query, byte[] buffer) throws WinDivertException {
+        Packet response = answer(query, buffer);
+        if (response == null) {
+            return false;
+        }
+        windivert.send(response, false);
+        return true;
+    }
+}
@@ -0,0 +1,566 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view over the head (request line and header fields) of an HTTP/1.x request.
+ * <p>
+ * The scanner works on the Tcp payload bytes and reports method, request target, version, Host and a set of selected
+ * header fields as offset/length slices into {@link #getBuffer()}, which is either the {@link Packet} own buffer or,
+ * when the head spans more Tcp segments, the array of the {@link StreamBuffer} collecting them. Strings are built
+ * only when explicitly asked.
+ * </p><p>
+ * Requests with more than one Host field or with obsolete line folding are reported as malformed, since different
+ * parsers disagree on them. An instance can be reused for subsequent parses and it is not thread safe.
+ * </p>
+ */
+public class HttpRequestHead {
+
+    private static final int MAX_METHOD_LENGTH = 24;
+    private static final String HOST = "host";
+
+    private final String[] headerNames;
+    private final int[] headerOffsets;
+    private final int[] headerLengths;
+    private byte[] buffer;
+    private int offset;
+    private int length;
+    private int methodOffset;
+    private int methodLength;
+    private int targetOffset;
+    private int targetLength;
+    private int versionOffset;
+    private int versionLength;
+    private int hostOffset;
+    private int hostLength;
+
+    /**
+     * Create a new {@link HttpRequestHead}.
+     *
+     * @param headerNames The names of the header fields to capture besides Host (case insensitive).
+     */
+    public HttpRequestHead(String... headerNames) {
+        this.headerNames = headerNames.clone();
+        this.headerOffsets = new int[headerNames.length];
+        this.headerLengths = new int[headerNames.length];
+        reset();
+    }
+
+    private static boolean isTokenChar(int b) {
+        return b > 0x20 && b < 0x7F && "\"(),/:;<=>?@[\\]{}".indexOf(b) < 0;
+    }
+
+    private static int lower(int b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private void reset() {
+        buffer = null;
+        offset = 0;
+        length = 0;
+        methodOffset = targetOffset = versionOffset = hostOffset = -1;
+        methodLength = targetLength = versionLength = hostLength = 0;
+        for (int i = 0; i < headerNames.length; i++) {
+            headerOffsets[i] = -1;
+            headerLengths[i] = 0;
+        }
+    }
+
+    /**
+     * Parse the request head from the payload of a Tcp {@link Packet}.
+     * <p>
+     * The first segment of a flow is parsed in place. If it does not hold the whole head, the payload is copied into
+     * the given {@link StreamBuffer} and the following segments are appended to it until the head is complete.
+     * </p>
+     *
+     * @param packet The {@link Packet} carrying the client to server bytes of the flow.
+     * @param stream The {@link StreamBuffer} of the flow.
+     * @return The parse {@link Status}.
+     */
+    public Status parse(Packet packet, StreamBuffer stream) {
+        int len = packet.getPayloadLength();
+        if (stream.isEmpty()) {
+            if (len == 0) {
+                reset();
+                return Status.NEED_MORE;
+            }
+            ByteBuffer raw = packet.getByteBuffer();
+            Status status = parse(raw.array(), raw.arrayOffset() + packet.getPayloadOffset(), len);
+            if (status != Status.NEED_MORE) {
+                return status;
+            }
+        }
+        if (!stream.append(packet)) {
+            reset();
+            return Status.BUFFER_FULL;
+        }
+        return parse(stream.array(), 0, stream.length());
+    }
+
+    /**
+     * Parse a request head starting at the given offset.
+     *
+     * @param data   The array holding the Tcp stream bytes.
+     * @param offset The offset of the first byte of the request.
+     * @param length How many bytes are available.
+     * @return The parse {@link Status}.
+     */
+    public Status parse(byte[] data, int offset, int length) {
+        reset();
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException(String.format("Range %d, %d out of array bounds %d", offset, length, data.length));
+        }
+        Status status = scan(data, offset, length);
+        if (status != Status.DONE) {
+            reset();
+        }
+        return status;
+    }
+
+    private Status scan(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+
+        // Method: an upper case token followed by a single space
+        while (pos < end && data[pos] != ' ') {
+            int b = data[pos] & 0xFF;
+            if (!(b >= 'A' && b <= 'Z') && !(pos > offset && (b == '-' || b == '_'))) {
+                return Status.NOT_HTTP;
+            }
+            if (pos - offset >= MAX_METHOD_LENGTH) {
+                return Status.NOT_HTTP;
+            }
+            pos++;
+        }
+        if (pos >= end) {
+            return Status.NEED_MORE;
+        }
+        if (pos == offset) {
+            return Status.NOT_HTTP;
+        }
+        int mOff = offset, mLen = pos - offset;
+        // Request target
+        int tOff = ++pos;
+        while (pos < end && data[pos] != ' ') {
+            int b = data[pos] & 0xFF;
+            if (b <= 0x20 || b == 0x7F) {
+                return Status.MALFORMED;
+            }
+            pos++;
+        }
+        if (pos >= end) {
+            return Status.NEED_MORE;
+        }
+        int tLen = pos - tOff;
+        if (tLen == 0) {
+            return Status.MALFORMED;
+        }
+        // Version
+        int vOff = ++pos;
+        String prefix = "HTTP/1.";
+        for (int i = 0; i < prefix.length(); i++, pos++) {
+            if (pos >= end) {
+                return Status.NEED_MORE;
+            }
+            if (data[pos] != prefix.charAt(i)) {
+                return Status.NOT_HTTP;
+            }
+        }
+        if (pos >= end) {
+            return Status.NEED_MORE;
+        }
+        if (data[pos] < '0' || data[pos] > '9') {
+            return Status.NOT_HTTP;
+        }
+        pos++;
+        int vLen = pos - vOff;
+        pos = endOfLine(data, pos, end);
+        if (pos == -1) {
+            return Status.NEED_MORE;
+        }
+        if (pos == -2) {
+            return Status.MALFORMED;
+        }
+
+        // Header fields
+        int hOff = -1, hLen = 0;
+        while (true) {
+            if (pos >= end) {
+                return Status.NEED_MORE;
+            }
+            if (data[pos] == '\r' || data[pos] == '\n') {
+                pos = endOfLine(data, pos, end);
+                if (pos == -1) {
+                    return Status.NEED_MORE;
+                }
+                if (pos == -2) {
+                    return Status.MALFORMED;
+                }
+                break;
+            }
+            if (data[pos] == ' ' || data[pos] == '\t') {
+                return Status.MALFORMED;
+            }
+            int nameOff = pos;
+            while (pos < end && data[pos] != ':') {
+                if (!isTokenChar(data[pos] & 0xFF)) {
+                    return Status.MALFORMED;
+                }
+                pos++;
+            }
+            if (pos >= end) {
+                return Status.NEED_MORE;
+            }
+            int nameLen = pos - nameOff;
+            if (nameLen == 0) {
+                return Status.MALFORMED;
+            }
+            pos++;
+            while (pos < end && (data[pos] == ' ' || data[pos] == '\t')) {
+                pos++;
+            }
+            int valueOff = pos;
+            while (pos < end && data[pos] != '\r' && data[pos] != '\n') {
+                pos++;
+            }
+            if (pos >= end) {
+                return Status.NEED_MORE;
+            }
+            int valueEnd = pos;
+            while (valueEnd > valueOff && (data[valueEnd - 1] == ' ' || data[valueEnd - 1] == '\t')) {
+                valueEnd--;
+            }
+            pos = endOfLine(data, pos, end);
+            if (pos == -1) {
+                return Status.NEED_MORE;
+            }
+            if (pos == -2) {
+                return Status.MALFORMED;
+            }
+            if (nameEquals(data, nameOff, nameLen, HOST)) {
+                if (hOff >= 0) {
+                    return Status.MALFORMED;
+                }
+                hOff = valueOff;
+                hLen = valueEnd - valueOff;
+            }
+            for (int i = 0; i < headerNames.length; i++) {
+                if (headerOffsets[i] < 0 && nameEquals(data, nameOff, nameLen, headerNames[i])) {
+                    headerOffsets[i] = valueOff;
+                    headerLengths[i] = valueEnd - valueOff;
+                }
+            }
+        }
+        this.buffer = data;
+        this.offset = offset;
+        this.length = pos - offset;
+        this.methodOffset = mOff;
+        this.methodLength = mLen;
+        this.targetOffset = tOff;
+        this.targetLength = tLen;
+        this.versionOffset = vOff;
+        this.versionLength = vLen;
+        this.hostOffset = hOff;
+        this.hostLength = hLen;
+        return Status.DONE;
+    }
+
+    /**
+     * Skip a line terminator (CRLF or a bare LF).
+     *
+     * @return The offset following the terminator, -1 if more bytes are needed, -2 if the line goes on.
+     */
+    private static int endOfLine(byte[] data, int pos, int end) {
+        if (pos >= end) {
+            return -1;
+        }
+        if (data[pos] == '\n') {
+            return pos + 1;
+        }
+        if (data[pos] != '\r') {
+            return -2;
+        }
+        if (pos + 1 >= end) {
+            return -1;
+        }
+        return data[pos + 1] == '\n' ? pos + 2 : -2;
+    }
+
+    private static boolean nameEquals(byte[] data, int off, int len, String name) {
+        if (len != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (lower(data[off + i] & 0xFF) != lower(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the array the offsets refer to.
+     *
+     * @return The array holding the request head, {@code null} if the last parse did not succeed.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the offset of the request line.
+     *
+     * @return The request offset.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the length of the request head, terminating empty line included. Any body follows.
+     *
+     * @return The head length.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int getMethodOffset() {
+        return methodOffset;
+    }
+
+    public int getMethodLength() {
+        return methodLength;
+    }
+
+    public int getTargetOffset() {
+        return targetOffset;
+    }
+
+    public int getTargetLength() {
+        return targetLength;
+    }
+
+    public int getVersionOffset() {
+        return versionOffset;
+    }
+
+    public int getVersionLength() {
+        return versionLength;
+    }
+
+    /**
+     * Check if the request carries a Host field.
+     *
+     * @return True if Host has been found.
+     */
+    public boolean hasHost() {
+        return hostOffset >= 0;
+    }
+
+    public int getHostOffset() {
+        return hostOffset;
+    }
+
+    /**
+     * Get the length of the Host value, port included.
+     *
+     * @return The Host value length.
+     */
+    public int getHostLength() {
+        return hostLength;
+    }
+
+    /**
+     * Get the length of the host name, i.e. the Host value without the optional port.
+     *
+     * @return The host name length.
+     */
+    public int getHostNameLength() {
+        if (!hasHost()) {
+            return 0;
+        }
+        int end = hostOffset + hostLength;
+        if (hostLength > 0 && buffer[hostOffset] == '[') {
+            for (int i = hostOffset; i < end; i++) {
+                if (buffer[i] == ']') {
+                    return i + 1 - hostOffset;
+                }
+            }
+            return hostLength;
+        }
+        for (int i = hostOffset; i < end; i++) {
+            if (buffer[i] == ':') {
+                return i - hostOffset;
+            }
+        }
+        return hostLength;
+    }
+
+    /**
+     * Get the offset of the i-th selected header field value.
+     *
+     * @param index The index of the name given at construction time.
+     * @return The value offset, -1 if the field is missing.
+     */
+    public int getHeaderOffset(int index) {
+        return headerOffsets[index];
+    }
+
+    /**
+     * Get the length of the i-th selected header field value.
+     *
+     * @param index The index of the name given at construction time.
+     * @return The value length.
+     */
+    public int getHeaderLength(int index) {
+        return headerLengths[index];
+    }
+
+    public String getMethod() {
+        return methodOffset >= 0 ? ascii(methodOffset, methodLength) : null;
+    }
+
+    public String getTarget() {
+        return targetOffset >= 0 ? ascii(targetOffset, targetLength) : null;
+    }
+
+    public String getVersion() {
+        return versionOffset >= 0 ? ascii(versionOffset, versionLength) : null;
+    }
+
+    public String getHost() {
+        return hasHost() ? ascii(hostOffset, hostLength) : null;
+    }
+
+    /**
+     * Build the i-th selected header field value as a String.
+     *
+     * @param index The index of the name given at construction time.
+     * @return The value, {@code null} if the field is missing.
+     */
+    public String getHeader(int index) {
+        return headerOffsets[index] >= 0 ? ascii(headerOffsets[index], headerLengths[index]) : null;
+    }
+
+    /**
+     * Compare the method with the given one (case sensitive, as per RFC 7230) without allocating.
+     *
+     * @param method The method to compare with.
+     * @return True if equal.
+     */
+    public boolean methodEquals(String method) {
+        if (methodOffset < 0 || methodLength != method.length()) {
+            return false;
+        }
+        for (int i = 0; i < methodLength; i++) {
+            if (buffer[methodOffset + i] != method.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the request target starts with the given prefix without allocating.
+     *
+     * @param prefix The prefix to look for.
+     * @return True if the target starts with {@code prefix}.
+     */
+    public boolean targetStartsWith(String prefix) {
+        if (targetOffset < 0 || targetLength < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer[targetOffset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare the host name (port excluded) with the given one, ignoring case and without allocating.
+     *
+     * @param name The name to compare with.
+     * @return True if equal.
+     */
+    public boolean hostEquals(String name) {
+        return hasHost() && getHostNameLength() == name.length() && nameEquals(buffer, hostOffset, name.length(), name);
+    }
+
+    /**
+     * Check if the host name (port excluded) ends with the given suffix, ignoring case and without allocating.
+     *
+     * @param suffix The suffix to look for, e.g. {@code ".example.com"}.
+     * @return True if the host name ends with {@code suffix}.
+     */
+    public boolean hostEndsWith(String suffix) {
+        int len = getHostNameLength();
+        return hasHost() && len >= suffix.length()
+                && nameEquals(buffer, hostOffset + len - suffix.length(), suffix.length(), suffix);
+    }
+
+    private String ascii(int start, int len) {
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (buffer[start + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HttpRequestHead {method=%s, target=%s, version=%s, host=%s}"
+                , getMethod()
+                , getTarget()
+                , getVersion()
+                , getHost()
+        );
+    }
+
+    /**
+     * The outcome of a parse.
+     */
+    public enum Status {
+        /**
+         * The request head has been parsed.
+         */
+        DONE,
+        /**
+         * More bytes are needed to complete the request head.
+         */
+        NEED_MORE,
+        /**
+         * The stream does not start with an HTTP/1.x request.
+         */
+        NOT_HTTP,
+        /**
+         * The request head is not well formed.
+         */
+        MALFORMED,
+        /**
+         * The request head does not fit in the {@link StreamBuffer}.
+         */
+        BUFFER_FULL
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A multi-pattern matcher able to search thousands of byte signatures in a single pass.
+ * <p>
+ * The matcher is an Aho-Corasick automaton compiled into a deterministic transition table: bytes are first mapped to
+ * equivalence classes (all the bytes not appearing in any pattern share a single class) and every state has a
+ * complete row of transitions, so each input byte costs exactly one table lookup, whatever the number of patterns.
+ * States are renumbered so that the ones reporting matches come first, making the "is there a match?" check a single
+ * comparison.
+ * </p><p>
+ * The matcher is immutable and can be shared among threads. The scan position is kept into a {@link State}, one per
+ * stream: passing the same {@link State} to subsequent scans (e.g. the Tcp segments of a flow) finds patterns spanning
+ * segment boundaries too.
+ * </p>
+ */
+public class PatternMatcher {
+
+    private final int[] classOf;
+    private final int classes;
+    private final int[] delta;
+    private final int start;
+    private final int matchLimit;
+    private final int[] outStart;
+    private final int[] outPattern;
+    private final int[] patternRule;
+    private final int[] patternLength;
+
+    private PatternMatcher(int[] classOf, int classes, int[] delta, int start, int matchLimit,
+                           int[] outStart, int[] outPattern, int[] patternRule, int[] patternLength) {
+        this.classOf = classOf;
+        this.classes = classes;
+        this.delta = delta;
+        this.start = start;
+        this.matchLimit = matchLimit;
+        this.outStart = outStart;
+        this.outPattern = outPattern;
+        this.patternRule = patternRule;
+        this.patternLength = patternLength;
+    }
+
+    /**
+     * Create a new {@link Builder} for a case sensitive matcher.
+     *
+     * @return A new {@link Builder}.
+     */
+    public static Builder builder() {
+        return new Builder(false);
+    }
+
+    /**
+     * Create a new {@link Builder} for a matcher ignoring the case of ASCII letters.
+     *
+     * @return A new {@link Builder}.
+     */
+    public static Builder caseInsensitiveBuilder() {
+        return new Builder(true);
+    }
+
+    /**
+     * Create a new {@link State} positioned at the beginning of a stream.
+     *
+     * @return A new {@link State}.
+     */
+    public State newState() {
+        return new State(start);
+    }
+
+    /**
+     * Scan the payload of the given {@link Packet} in place.
+     *
+     * @param packet   The {@link Packet} whose payload must be scanned.
+     * @param state    The {@link State} of the stream the packet belongs to.
+     * @param listener The {@link MatchListener} notified for each match.
+     * @return The number of matches reported.
+     */
+    public int scan(Packet packet, State state, MatchListener listener) {
+        ByteBuffer buffer = packet.getByteBuffer();
+        return scan(buffer.array(), buffer.arrayOffset() + packet.getPayloadOffset(), packet.getPayloadLength(),
+                state, listener);
+    }
+
+    /**
+     * Scan a range of bytes.
+     * <p>
+     * Matches are reported with {@code start} and {@code end} offsets relative to {@code data}: when a pattern started
+     * in a previously scanned segment of the same stream, {@code start} is lower than {@code offset} (and possibly
+     * negative). If the listener asks to stop, the {@link State} is left right after the byte which completed the
+     * match, so that the stream position keeps being consistent.
+     * </p>
+     *
+     * @param data     The array holding the bytes to scan.
+     * @param offset   The offset of the first byte to scan.
+     * @param length   How many bytes to scan.
+     * @param state    The {@link State} of the stream the bytes belong to.
+     * @param listener The {@link MatchListener} notified for each match.
+     * @return The number of matches reported.
+     */
+    public int scan(byte[] data, int offset, int length, State state, MatchListener listener) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException(String.format("Range %d, %d out of array bounds %d", offset, length, data.length));
+        }
+        final int[] delta = this.delta;
+        final int[] classOf = this.classOf;
+        final int matchLimit = this.matchLimit;
+        int s = state.current;
+        int count = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            s = delta[s + classOf[data[i] & 0xFF]];
+            if (s < matchLimit) {
+                int idx = s / classes;
+                for (int o = outStart[idx]; o < outStart[idx + 1]; o++) {
+                    int pattern = outPattern[o];
+                    count++;
+                    if (!listener.onMatch(patternRule[pattern], i + 1 - patternLength[pattern], i + 1)) {
+                        state.current = s;
+                        state.position += i + 1 - offset;
+                        return count;
+                    }
+                }
+            }
+        }
+        state.current = s;
+        state.position += length;
+        return count;
+    }
+
+    /**
+     * Check if any pattern occurs in the given range, without keeping any stream state.
+     *
+     * @param data   The array holding the bytes to scan.
+     * @param offset The offset of the first byte to scan.
+     * @param length How many bytes to scan.
+     * @return True if at least one pattern occurs in the range, false otherwise.
+     */
+    public boolean matches(byte[] data, int offset, int length) {
+        final int[] delta = this.delta;
+        final int[] classOf = this.classOf;
+        int s = start;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            s = delta[s + classOf[data[i] & 0xFF]];
+            if (s < matchLimit) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of automaton states.
+     *
+     * @return The number of states.
+     */
+    public int getStateCount() {
+        return delta.length / classes;
+    }
+
+    /**
+     * Get the number of byte equivalence classes, i.e. the width of a transition table row.
+     *
+     * @return The number of byte classes.
+     */
+    public int getClassCount() {
+        return classes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PatternMatcher {patterns=%d, states=%d, classes=%d, tableSize=%d}"
+                , patternRule.length
+                , getStateCount()
+                , classes
+                , delta.length
+        );
+    }
+
+    /**
+     * Receives the matches found by a {@link PatternMatcher}.
+     */
+    public interface MatchListener {
+
+        /**
+         * Called for each pattern occurrence.
+         *
+         * @param ruleId The rule id the pattern was registered with.
+         * @param start  The offset of the first byte of the occurrence.
+         * @param end    The offset following the last byte of the occurrence.
+         * @return True to keep on scanning, false to stop.
+         */
+        boolean onMatch(int ruleId, int start, int end);
+    }
+
+    /**
+     * The scan position of a stream. A {@link State} is not thread safe and must be used with the
+     * {@link PatternMatcher} which created it.
+     */
+    public static class State {
+        private final int initial;
+        private int current;
+        private long position;
+
+        private State(int initial) {
+            this.initial = initial;
+            this.current = initial;
+        }
+
+        /**
+         * Move the state back to the beginning of a stream.
+         */
+        public void reset() {
+            current = initial;
+            position = 0;
+        }
+
+        /**
+         * Get how many bytes of the stream have been scanned so far.
+         *
+         * @return The stream position.
+         */
+        public long getPosition() {
+            return position;
+        }
+    }
+
+    /**
+     * Collects patterns and compiles them into a {@link PatternMatcher}.
+     */
+    public static class Builder {
+        private final boolean ignoreCase;
+        private final List<byte[]> patterns = new ArrayList<byte[]>();
+        private final List<Integer> rules = new ArrayList<Integer>();
+
+        private Builder(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+        }
+
+        /**
+         * Add a pattern.
+         *
+         * @param pattern The bytes to search for. Must not be empty.
+         * @param ruleId  The id reported when the pattern is found. Many patterns can share the same id.
+         * @return this instance to allow call chaining.
+         */
+        public Builder add(byte[] pattern, int ruleId) {
+            if (pattern.length == 0) {
+                throw new IllegalArgumentException("Empty patterns are not allowed");
+            }
+            patterns.add(pattern.clone());
+            rules.add(ruleId);
+            return this;
+        }
+
+        /**
+         * Add a pattern given as a String of single byte characters (ISO-8859-1).
+         *
+         * @param pattern The String to search for. Must not be empty.
+         * @param ruleId  The id reported when the pattern is found.
+         * @return this instance to allow call chaining.
+         */
+        public Builder add(String pattern, int ruleId) {
+            byte[] bytes = new byte[pattern.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                char ch = pattern.charAt(i);
+                if (ch > 0xFF) {
+                    throw new IllegalArgumentException("Pattern contains a multi byte character: " + pattern);
+                }
+                bytes[i] = (byte) ch;
+            }
+            return add(bytes, ruleId);
+        }
+
+        /**
+         * Compile the collected patterns.
+         *
+         * @return The {@link PatternMatcher}.
+         */
+        public PatternMatcher build() {
+            if (patterns.isEmpty()) {
+                throw new IllegalStateException("At least a pattern is needed");
+            }
+            // Byte classes: each byte used by a pattern gets its own class (letters are folded when ignoring case),
+            // while all the others share class 0.
+            int[] classOf = new int[256];
+            int classes = 1;
+            for (byte[] pattern : patterns) {
+                for (byte b : pattern) {
+                    int value = fold(b & 0xFF);
+                    if (classOf[value] == 0) {
+                        classOf[value] = classes++;
+                    }
+                }
+            }
+            if (ignoreCase) {
+                for (int c = 'A'; c <= 'Z'; c++) {
+                    classOf[c] = classOf[c + ('a' - 'A')];
+                }
+            }
+
+            // Trie, rows of "classes" transitions (-1 means no child)
+            int[] trie = new int[classes * 64];
+            Arrays.fill(trie, -1);
+            int states = 1;
+            List<int[]> outputs = new ArrayList<int[]>();
+            outputs.add(null);
+            for (int p = 0; p < patterns.size(); p++) {
+                int s = 0;
+                for (byte b : patterns.get(p)) {
+                    int idx = s * classes + classOf[b & 0xFF];
+                    if (trie[idx] < 0) {
+                        if ((long) (states + 1) * classes > Integer.MAX_VALUE - 8) {
+                            throw new IllegalStateException("Too many patterns, the transition table exceeds its maximum size");
+                        }
+                        if ((states + 1) * classes > trie.length) {
+                            int size = trie.length;
+                            trie = Arrays.copyOf(trie, (int) Math.min(Integer.MAX_VALUE - 8, (long) size * 2));
+                            Arrays.fill(trie, size, trie.length, -1);
+                        }
+                        trie[idx] = states++;
+                        outputs.add(null);
+                    }
+                    s = trie[idx];
+                }
+                outputs.set(s, append(outputs.get(s), p));
+            }
+
+            // Breadth first visit to compute failure links and turn the trie into a complete transition table
+            int[] delta = Arrays.copyOf(trie, states * classes);
+            int[] fail = new int[states];
+            int[] queue = new int[states];
+            int head = 0;
+            int tail = 0;
+            for (int c = 0; c < classes; c++) {
+                int t = delta[c];
+                if (t < 0) {
+                    delta[c] = 0;
+                } else {
+                    fail[t] = 0;
+                    queue[tail++] = t;
+                }
+            }
+            while (head < tail) {
+                int s = queue[head++];
+                for (int c = 0; c < classes; c++) {
+                    int idx = s * classes + c;
+                    int t = delta[idx];
+                    if (t < 0) {
+                        delta[idx] = delta[fail[s] * classes + c];
+                    } else {
+                        fail[t] = delta[fail[s] * classes + c];
+                        int[] inherited = outputs.get(fail[t]);
+                        if (inherited != null) {
+                            int[] own = outputs.get(t);
+                            outputs.set(t, own == null ? inherited : concat(own, inherited));
+                        }
+                        queue[tail++] = t;
+                    }
+                }
+            }
+
+            // Renumber states putting the matching ones first, then premultiply ids by the row width
+            int[] newId = new int[states];
+            int next = 0;
+            for (int s = 0; s < states; s++) {
+                if (outputs.get(s) != null) {
+                    newId[s] = next++;
+                }
+            }
+            int matching = next;
+            for (int s = 0; s < states; s++) {
+                if (outputs.get(s) == null) {
+                    newId[s] = next++;
+                }
+            }
+            int[] table = new int[states * classes];
+            int[] outStart = new int[states + 1];
+            int total = 0;
+            for (int s = 0; s < states; s++) {
+                int[] out = outputs.get(s);
+                if (out != null) {
+                    outStart[newId[s] + 1] = out.length;
+                    total += out.length;
+                }
+                int row = newId[s] * classes;
+                for (int c = 0; c < classes; c++) {
+                    table[row + c] = newId[delta[s * classes + c]] * classes;
+                }
+            }
+            for (int s = 0; s < states; s++) {
+                outStart[s + 1] += outStart[s];
+            }
+            int[] outPattern = new int[total];
+            for (int s = 0; s < states; s++) {
+                int[] out = outputs.get(s);
+                if (out != null) {
+                    System.arraycopy(out, 0, outPattern, outStart[newId[s]], out.length);
+                }
+            }
+            int[] patternRule = new int[patterns.size()];
+            int[] patternLength = new int[patterns.size()];
+            for (int p = 0; p < patternRule.length; p++) {
+                patternRule[p] = rules.get(p);
+                patternLength[p] = patterns.get(p).length;
+            }
+            return new PatternMatcher(classOf, classes, table, newId[0] * classes, matching * classes,
+                    outStart, outPattern, patternRule, patternLength);
+        }
+
+        private int fold(int value) {
+            if (ignoreCase && value >= 'A' && value <= 'Z') {
+                return value + ('a' - 'A');
+            }
+            return value;
+        }
+
+        private static int[] append(int[] array, int value) {
+            if (array == null) {
+                return new int[]{value};
+            }
+            int[] result = Arrays.copyOf(array, array.length + 1);
+            result[array.length] = value;
+            return result;
+        }
+
+        private static int[] concat(int[] first, int[] second) {
+            int[] result = Arrays.copyOf(first, first.length + second.length);
+            System.arraycopy(second, 0, result, first.length, second.length);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A small, fixed capacity buffer collecting the first bytes of a Tcp stream when a message (e.g. a TLS ClientHello or
+ * an HTTP request head) does not fit in a single segment.
+ * <p>
+ * Segments are expected in order: when fed with {@link Packet packets}, the next expected sequence number is tracked
+ * and retransmitted or out of order segments are ignored.
+ * </p>
+ * A {@link StreamBuffer} is meant to be kept per flow and it is not thread safe.
+ */
+public class StreamBuffer {
+
+    private final byte[] data;
+    private int length;
+    private int nextSeq;
+
+    /**
+     * Create a new {@link StreamBuffer}.
+     *
+     * @param capacity The maximum amount of bytes the buffer can hold.
+     */
+    public StreamBuffer(int capacity) {
+        this.data = new byte[capacity];
+    }
+
+    /**
+     * Append bytes to the buffer.
+     *
+     * @param src    The source array.
+     * @param offset The offset of the first byte to append.
+     * @param len    How many bytes to append.
+     * @return True if the bytes have been appended, false if there is not enough room left.
+     */
+    public boolean append(byte[] src, int offset, int len) {
+        if (len > data.length - length) {
+            return false;
+        }
+        System.arraycopy(src, offset, data, length, len);
+        length += len;
+        return true;
+    }
+
+    /**
+     * Append the payload of a Tcp {@link Packet} to the buffer.
+     *
+     * @param packet The {@link Packet} whose payload must be appended.
+     * @return True if the payload has been appended or the segment has been ignored, being a retransmission or out of
+     * order, false if there is not enough room left.
+     */
+    public boolean append(Packet packet) {
+        Tcp tcp = packet.getTcp();
+        int len = packet.getPayloadLength();
+        if (tcp != null && length > 0 && tcp.getSeqNumber() != nextSeq) {
+            return true;
+        }
+        ByteBuffer buffer = packet.getByteBuffer();
+        if (!append(buffer.array(), buffer.arrayOffset() + packet.getPayloadOffset(), len)) {
+            return false;
+        }
+        if (tcp != null) {
+            nextSeq = tcp.getSeqNumber() + len;
+        }
+        return true;
+    }
+
+    /**
+     * Get the array backing the buffer. Valid data goes from 0 to {@link #length()}.
+     *
+     * @return The backing array.
+     */
+    public byte[] array() {
+        return data;
+    }
+
+    /**
+     * Get how many bytes the buffer holds.
+     *
+     * @return The amount of valid bytes.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Get the maximum amount of bytes the buffer can hold.
+     *
+     * @return The buffer capacity.
+     */
+    public int capacity() {
+        return data.length;
+    }
+
+    /**
+     * Check if the buffer holds any data.
+     *
+     * @return True if the buffer is empty.
+     */
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * Discard the buffered data, so that the buffer can be reused for another stream.
+     */
+    public void clear() {
+        length = 0;
+        nextSeq = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StreamBuffer {length=%d, capacity=%d}", length, data.length);
+    }
+}
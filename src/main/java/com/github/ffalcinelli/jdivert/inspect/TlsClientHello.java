@@ -0,0 +1,522 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view over a TLS ClientHello message, extracting the server name (SNI), the ALPN protocols and the TLS version.
+ * <p>
+ * Parsing is bounds checked and does not allocate: results are offsets into the array returned by
+ * {@link #getBuffer()}, which is either the {@link Packet} own buffer or, when the ClientHello spans more than a Tcp
+ * segment, the array of the {@link StreamBuffer} used to reassemble it. Strings are built only when explicitly asked
+ * through {@link #getServerName()} and {@link #getAlpnProtocol(int)}.
+ * </p><p>
+ * An instance can be reused for subsequent parses and it is not thread safe.
+ * </p>
+ */
+public class TlsClientHello {
+
+    public static final int CONTENT_TYPE_HANDSHAKE = 0x16;
+    public static final int HANDSHAKE_CLIENT_HELLO = 0x01;
+    public static final int EXTENSION_SERVER_NAME = 0x0000;
+    public static final int EXTENSION_ALPN = 0x0010;
+    public static final int EXTENSION_SUPPORTED_VERSIONS = 0x002B;
+    /**
+     * Maximum length of a TLS plaintext record fragment (2^14) plus its 5 bytes header.
+     */
+    public static final int MAX_RECORD_LENGTH = 16384 + 5;
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+    private int recordVersion;
+    private int clientVersion;
+    private int supportedVersion;
+    private int sniOffset;
+    private int sniLength;
+    private int alpnOffset;
+    private int alpnLength;
+
+    /**
+     * Create a new, empty {@link TlsClientHello}.
+     */
+    public TlsClientHello() {
+        reset();
+    }
+
+    private static int u8(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    private static int u16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int u24(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 16) | ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+    }
+
+    /**
+     * GREASE values (RFC 8701) are reserved and must be ignored.
+     */
+    private static boolean isGrease(int value) {
+        return (value & 0x0F0F) == 0x0A0A && (value >> 8) == (value & 0xFF);
+    }
+
+    private void reset() {
+        buffer = null;
+        offset = 0;
+        length = 0;
+        recordVersion = 0;
+        clientVersion = 0;
+        supportedVersion = 0;
+        sniOffset = -1;
+        sniLength = 0;
+        alpnOffset = -1;
+        alpnLength = 0;
+    }
+
+    /**
+     * Parse the ClientHello from the payload of a Tcp {@link Packet}.
+     * <p>
+     * The first segment of a flow is parsed in place. If it does not hold the whole ClientHello, the payload is copied
+     * into the given {@link StreamBuffer} and the following segments are appended to it until the message is complete.
+     * </p>
+     *
+     * @param packet The {@link Packet} carrying the client to server bytes of the flow.
+     * @param stream The {@link StreamBuffer} of the flow.
+     * @return The parse {@link Status}.
+     */
+    public Status parse(Packet packet, StreamBuffer stream) {
+        int len = packet.getPayloadLength();
+        if (stream.isEmpty()) {
+            if (len == 0) {
+                reset();
+                return Status.NEED_MORE;
+            }
+            ByteBuffer raw = packet.getByteBuffer();
+            Status status = parse(raw.array(), raw.arrayOffset() + packet.getPayloadOffset(), len);
+            if (status != Status.NEED_MORE) {
+                return status;
+            }
+        }
+        if (!stream.append(packet)) {
+            reset();
+            return Status.BUFFER_FULL;
+        }
+        return parse(stream.array(), 0, stream.length());
+    }
+
+    /**
+     * Parse a ClientHello starting at the given offset.
+     *
+     * @param data   The array holding the Tcp stream bytes.
+     * @param offset The offset of the first byte of the TLS record.
+     * @param length How many bytes are available.
+     * @return The parse {@link Status}.
+     */
+    public Status parse(byte[] data, int offset, int length) {
+        reset();
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException(String.format("Range %d, %d out of array bounds %d", offset, length, data.length));
+        }
+        // Fail fast on the bytes we already have
+        if (length >= 1 && u8(data, offset) != CONTENT_TYPE_HANDSHAKE) {
+            return Status.NOT_CLIENT_HELLO;
+        }
+        if (length >= 2 && u8(data, offset + 1) != 3) {
+            return Status.NOT_CLIENT_HELLO;
+        }
+        if (length >= 6 && u8(data, offset + 5) != HANDSHAKE_CLIENT_HELLO) {
+            return Status.NOT_CLIENT_HELLO;
+        }
+        if (length < 5) {
+            return Status.NEED_MORE;
+        }
+        int recordLength = u16(data, offset + 3);
+        if (recordLength + 5 > MAX_RECORD_LENGTH || recordLength < 4) {
+            return Status.MALFORMED;
+        }
+        if (length < recordLength + 5) {
+            return Status.NEED_MORE;
+        }
+        int handshakeLength = u24(data, offset + 6);
+        if (handshakeLength + 4 > recordLength) {
+            // The message is fragmented over more records
+            return Status.UNSUPPORTED;
+        }
+        int pos = offset + 9;
+        int end = pos + handshakeLength;
+
+        // client_version + random
+        if (pos + 2 + 32 + 1 > end) {
+            return Status.MALFORMED;
+        }
+        int legacyVersion = u16(data, pos);
+        pos += 34;
+        // session_id
+        pos += 1 + u8(data, pos);
+        // cipher_suites
+        if (pos + 2 > end) {
+            return Status.MALFORMED;
+        }
+        pos += 2 + u16(data, pos);
+        // compression_methods
+        if (pos + 1 > end) {
+            return Status.MALFORMED;
+        }
+        pos += 1 + u8(data, pos);
+        if (pos > end) {
+            return Status.MALFORMED;
+        }
+        int sniOff = -1, sniLen = 0, alpnOff = -1, alpnLen = 0, supported = 0;
+        // extensions are optional
+        if (pos < end) {
+            if (pos + 2 > end) {
+                return Status.MALFORMED;
+            }
+            int extensionsEnd = pos + 2 + u16(data, pos);
+            if (extensionsEnd > end) {
+                return Status.MALFORMED;
+            }
+            pos += 2;
+            while (pos < extensionsEnd) {
+                if (pos + 4 > extensionsEnd) {
+                    return Status.MALFORMED;
+                }
+                int type = u16(data, pos);
+                int extEnd = pos + 4 + u16(data, pos + 2);
+                if (extEnd > extensionsEnd) {
+                    return Status.MALFORMED;
+                }
+                int body = pos + 4;
+                if (type == EXTENSION_SERVER_NAME && sniOff < 0) {
+                    if (body + 2 > extEnd || body + 2 + u16(data, body) > extEnd) {
+                        return Status.MALFORMED;
+                    }
+                    int p = body + 2;
+                    int listEnd = p + u16(data, body);
+                    while (p < listEnd) {
+                        if (p + 3 > listEnd) {
+                            return Status.MALFORMED;
+                        }
+                        int nameType = u8(data, p);
+                        int nameLength = u16(data, p + 1);
+                        if (p + 3 + nameLength > listEnd) {
+                            return Status.MALFORMED;
+                        }
+                        if (nameType == 0) {
+                            sniOff = p + 3;
+                            sniLen = nameLength;
+                            break;
+                        }
+                        p += 3 + nameLength;
+                    }
+                } else if (type == EXTENSION_ALPN) {
+                    if (body + 2 > extEnd || body + 2 + u16(data, body) > extEnd) {
+                        return Status.MALFORMED;
+                    }
+                    int p = body + 2;
+                    int listEnd = p + u16(data, body);
+                    while (p < listEnd) {
+                        p += 1 + u8(data, p);
+                    }
+                    if (p != listEnd) {
+                        return Status.MALFORMED;
+                    }
+                    alpnOff = body + 2;
+                    alpnLen = listEnd - alpnOff;
+                } else if (type == EXTENSION_SUPPORTED_VERSIONS) {
+                    if (body + 1 > extEnd || body + 1 + u8(data, body) > extEnd) {
+                        return Status.MALFORMED;
+                    }
+                    int listEnd = body + 1 + u8(data, body);
+                    for (int p = body + 1; p + 2 <= listEnd; p += 2) {
+                        int version = u16(data, p);
+                        if (!isGrease(version) && version > supported) {
+                            supported = version;
+                        }
+                    }
+                }
+                pos = extEnd;
+            }
+        }
+        this.buffer = data;
+        this.offset = offset;
+        this.length = recordLength + 5;
+        this.recordVersion = u16(data, offset + 1);
+        this.clientVersion = legacyVersion;
+        this.supportedVersion = supported;
+        this.sniOffset = sniOff;
+        this.sniLength = sniLen;
+        this.alpnOffset = alpnOff;
+        this.alpnLength = alpnLen;
+        return Status.DONE;
+    }
+
+    /**
+     * Get the array the offsets refer to.
+     *
+     * @return The array holding the ClientHello, {@code null} if the last parse did not succeed.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the offset of the TLS record holding the ClientHello.
+     *
+     * @return The record offset.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the length of the TLS record holding the ClientHello, header included.
+     *
+     * @return The record length.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Get the version of the TLS record layer.
+     *
+     * @return The record version (e.g. {@code 0x0301} for TLS 1.0).
+     */
+    public int getRecordVersion() {
+        return recordVersion;
+    }
+
+    /**
+     * Get the legacy {@code client_version} field.
+     *
+     * @return The client version (e.g. {@code 0x0303} for TLS 1.2).
+     */
+    public int getClientVersion() {
+        return clientVersion;
+    }
+
+    /**
+     * Get the highest version found in the {@code supported_versions} extension, GREASE values excluded.
+     *
+     * @return The highest supported version, 0 if the extension is missing.
+     */
+    public int getSupportedVersion() {
+        return supportedVersion;
+    }
+
+    /**
+     * Get the highest TLS version offered by the client, taking {@code supported_versions} into account.
+     *
+     * @return The offered version (e.g. {@code 0x0304} for TLS 1.3).
+     */
+    public int getVersion() {
+        return supportedVersion != 0 ? supportedVersion : clientVersion;
+    }
+
+    /**
+     * Check if the ClientHello carries a server name.
+     *
+     * @return True if a host name has been found.
+     */
+    public boolean hasServerName() {
+        return sniOffset >= 0;
+    }
+
+    /**
+     * Get the offset of the host name inside {@link #getBuffer()}.
+     *
+     * @return The host name offset, -1 if missing.
+     */
+    public int getServerNameOffset() {
+        return sniOffset;
+    }
+
+    /**
+     * Get the length of the host name.
+     *
+     * @return The host name length.
+     */
+    public int getServerNameLength() {
+        return sniLength;
+    }
+
+    /**
+     * Build the host name as a String.
+     *
+     * @return The host name, {@code null} if missing.
+     */
+    public String getServerName() {
+        return hasServerName() ? ascii(sniOffset, sniLength) : null;
+    }
+
+    /**
+     * Compare the host name with the given one, ignoring case and without allocating.
+     *
+     * @param name The name to compare with.
+     * @return True if the host name is equal to {@code name}.
+     */
+    public boolean serverNameEquals(String name) {
+        return hasServerName() && sniLength == name.length() && regionMatches(sniOffset, name);
+    }
+
+    /**
+     * Check if the host name ends with the given suffix, ignoring case and without allocating. Useful to match whole
+     * domains, e.g. {@code ".example.com"}.
+     *
+     * @param suffix The suffix to look for.
+     * @return True if the host name ends with {@code suffix}.
+     */
+    public boolean serverNameEndsWith(String suffix) {
+        return hasServerName() && sniLength >= suffix.length()
+                && regionMatches(sniOffset + sniLength - suffix.length(), suffix);
+    }
+
+    /**
+     * Check if the ClientHello carries the ALPN extension.
+     *
+     * @return True if the ALPN extension has been found.
+     */
+    public boolean hasAlpn() {
+        return alpnOffset >= 0;
+    }
+
+    /**
+     * Get the offset of the ALPN protocol name list inside {@link #getBuffer()}. Each entry is a length byte
+     * followed by the protocol name.
+     *
+     * @return The protocol name list offset, -1 if missing.
+     */
+    public int getAlpnOffset() {
+        return alpnOffset;
+    }
+
+    /**
+     * Get the length of the ALPN protocol name list.
+     *
+     * @return The protocol name list length.
+     */
+    public int getAlpnLength() {
+        return alpnLength;
+    }
+
+    /**
+     * Get the number of protocols offered through ALPN.
+     *
+     * @return The number of protocols.
+     */
+    public int getAlpnProtocolCount() {
+        int count = 0;
+        for (int p = alpnOffset; p >= 0 && p < alpnOffset + alpnLength; p += 1 + u8(buffer, p)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the offset of the i-th ALPN protocol name.
+     *
+     * @param index The protocol index.
+     * @return The offset of the name, whose length is the preceding byte.
+     */
+    public int getAlpnProtocolOffset(int index) {
+        int p = alpnOffset;
+        for (int i = 0; i < index; i++) {
+            p += 1 + u8(buffer, p);
+        }
+        if (p < 0 || p >= alpnOffset + alpnLength) {
+            throw new IndexOutOfBoundsException("No ALPN protocol at index " + index);
+        }
+        return p + 1;
+    }
+
+    /**
+     * Build the i-th ALPN protocol name as a String.
+     *
+     * @param index The protocol index.
+     * @return The protocol name (e.g. {@code "h2"}).
+     */
+    public String getAlpnProtocol(int index) {
+        int p = getAlpnProtocolOffset(index);
+        return ascii(p, u8(buffer, p - 1));
+    }
+
+    private boolean regionMatches(int start, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            int a = buffer[start + i] & 0xFF;
+            int b = text.charAt(i);
+            if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String ascii(int start, int len) {
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (buffer[start + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TlsClientHello {version=%s, serverName=%s, alpnProtocols=%d}"
+                , Integer.toHexString(getVersion())
+                , getServerName()
+                , getAlpnProtocolCount()
+        );
+    }
+
+    /**
+     * The outcome of a parse.
+     */
+    public enum Status {
+        /**
+         * The ClientHello has been parsed.
+         */
+        DONE,
+        /**
+         * More bytes are needed to complete the ClientHello.
+         */
+        NEED_MORE,
+        /**
+         * The stream does not start with a TLS ClientHello.
+         */
+        NOT_CLIENT_HELLO,
+        /**
+         * The ClientHello has inconsistent lengths.
+         */
+        MALFORMED,
+        /**
+         * The ClientHello is fragmented over more TLS records.
+         */
+        UNSUPPORTED,
+        /**
+         * The ClientHello does not fit in the {@link StreamBuffer}.
+         */
+        BUFFER_FULL
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+import static com.github.ffalcinelli.jdivert.nat.NatTable.Mapping;
+
+/**
+ * A userspace Ipv4 NAT: source NAT (masquerading), destination NAT and port forwarding for Tcp, Udp and Icmp echo.
+ * <p>
+ * The first packet of a flow matching a rule creates a {@link Mapping}, then {@link #translate(Packet)} rewrites
+ * every packet of the flow, in both directions, in place. Addresses, ports and identifiers are patched with
+ * incremental checksum updates, so the cost per packet does not depend on its length. Icmp errors quoting a
+ * translated packet are translated too, inner header included.
+ * </p><p>
+ * Source NAT ports are taken from a {@link PortAllocator} per external address and protocol, therefore each external
+ * address supports up to {@value #PORT_HIGH} - {@value #PORT_LOW} + 1 concurrent mappings per protocol. Idle
+ * mappings are removed by {@link #expire()}, which should be called periodically. Ipv6 packets are not translated.
+ * </p>
+ * The class is thread safe.
+ */
+public class Nat {
+
+    public static final int PORT_LOW = 1024;
+    public static final int PORT_HIGH = 65535;
+    private static final int ICMP = Protocol.ICMP.getValue();
+    private static final int TCP = Protocol.TCP.getValue();
+    private static final int UDP = Protocol.UDP.getValue();
+    private static final Mapping EXHAUSTED = new Mapping(0, 0, 0, 0, 0, 0, 0, 0, 0, null, 0);
+
+    private final NatTable table;
+    private final int maxMappings;
+    private final AtomicInteger mappings = new AtomicInteger();
+    private final List<SourceRule> sourceRules = new CopyOnWriteArrayList<SourceRule>();
+    private final List<DestinationRule> destinationRules = new CopyOnWriteArrayList<DestinationRule>();
+    private volatile long tcpTimeout = 7440000;
+    private volatile long tcpTransitoryTimeout = 240000;
+    private volatile long udpTimeout = 300000;
+    private volatile long icmpTimeout = 60000;
+
+    /**
+     * Create a new {@link Nat}.
+     *
+     * @param maxMappings The maximum number of concurrent mappings.
+     */
+    public Nat(int maxMappings) {
+        this.maxMappings = maxMappings;
+        this.table = new NatTable(Runtime.getRuntime().availableProcessors() * 4, Math.min(maxMappings, 65536));
+    }
+
+    private static int get16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int get32(byte[] data, int offset) {
+        return (get16(data, offset) << 16) | get16(data, offset + 2);
+    }
+
+    private static void put16(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void put32(byte[] data, int offset, int value) {
+        put16(data, offset, value >>> 16);
+        put16(data, offset + 2, value);
+    }
+
+    /**
+     * Ones' complement difference of a 16 bit word, to be added to an unfolded sum.
+     */
+    private static long delta16(int oldValue, int newValue) {
+        return (~oldValue & 0xFFFF) + (newValue & 0xFFFF);
+    }
+
+    private static long delta32(int oldValue, int newValue) {
+        return delta16(oldValue >>> 16, newValue >>> 16) + delta16(oldValue, newValue);
+    }
+
+    private static int apply(int checksum, long delta) {
+        return Checksums.fold((~checksum & 0xFFFF) + delta);
+    }
+
+    private static int address(byte[] address) {
+        if (address.length != 4) {
+            throw new IllegalArgumentException(String.format("Expected an Ipv4 address, got %d bytes", address.length));
+        }
+        return ((address[0] & 0xFF) << 24) | ((address[1] & 0xFF) << 16) | ((address[2] & 0xFF) << 8) | (address[3] & 0xFF);
+    }
+
+    /**
+     * Translate the source of packets coming from a network to one of the given external addresses. The external
+     * address is picked by hashing the internal one, so that all flows of a host share the same external address.
+     *
+     * @param network      The internal network address.
+     * @param prefixLength The internal network prefix length.
+     * @param external     The external addresses.
+     */
+    public void addSourceNat(byte[] network, int prefixLength, byte[]... external) {
+        if (prefixLength < 0 || prefixLength > 32 || external.length == 0) {
+            throw new IllegalArgumentException(String.format("Invalid prefix length %d or no external address", prefixLength));
+        }
+        int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+        int[] addresses = new int[external.length];
+        for (int i = 0; i < external.length; i++) {
+            addresses[i] = address(external[i]);
+        }
+        sourceRules.add(new SourceRule(address(network) & mask, mask, addresses));
+    }
+
+    /**
+     * Translate the destination of Tcp or Udp packets directed to an external address and port (port forwarding).
+     * Destination rules take precedence over source ones.
+     *
+     * @param protocol     The {@link Protocol}, either Tcp or Udp.
+     * @param external     The external address.
+     * @param externalPort The external port.
+     * @param internal     The internal address.
+     * @param internalPort The internal port.
+     */
+    public void addDestinationNat(Protocol protocol, byte[] external, int externalPort, byte[] internal, int internalPort) {
+        if (protocol != Protocol.TCP && protocol != Protocol.UDP) {
+            throw new IllegalArgumentException("Only Tcp and Udp can be port forwarded, got " + protocol);
+        }
+        destinationRules.add(new DestinationRule(protocol.getValue(), address(external), externalPort,
+                address(internal), internalPort));
+    }
+
+    /**
+     * Translate a packet in place.
+     *
+     * @param packet The {@link Packet} to translate.
+     * @return {@link Result#TRANSLATED} if rewritten, {@link Result#NOT_MATCHED} if it belongs to no mapping nor rule,
+     * {@link Result#EXHAUSTED} if a mapping was needed but no port or table room was left.
+     */
+    public Result translate(Packet packet) {
+        if (!packet.isIpv4()) {
+            return Result.NOT_MATCHED;
+        }
+        byte[] d = packet.getByteBuffer().array();
+        int length = packet.getByteBuffer().capacity();
+        int l4 = (d[0] & 0x0F) << 2;
+        if ((get16(d, 6) & 0x1FFF) != 0) {
+            // Non first fragments carry no ports
+            return Result.NOT_MATCHED;
+        }
+        int protocol = d[9] & 0xFF;
+        int src = get32(d, 12);
+        int dst = get32(d, 16);
+        int srcPort;
+        int dstPort;
+        if ((protocol == TCP && length >= l4 + 20) || (protocol == UDP && length >= l4 + 8)) {
+            srcPort = get16(d, l4);
+            dstPort = get16(d, l4 + 2);
+        } else if (protocol == ICMP && length >= l4 + 8) {
+            int type = d[l4] & 0xFF;
+            if (type == 8) {
+                srcPort = get16(d, l4 + 4);
+                dstPort = 0;
+            } else if (type == 0) {
+                srcPort = 0;
+                dstPort = get16(d, l4 + 4);
+            } else if (type == 3 || type == 4 || type == 5 || type == 11 || type == 12) {
+                return translateIcmpError(d, l4, length);
+            } else {
+                return Result.NOT_MATCHED;
+            }
+        } else {
+            return Result.NOT_MATCHED;
+        }
+
+        long now = currentTimeMillis();
+        Mapping mapping = table.get(src, dst, protocol, srcPort, dstPort);
+        if (mapping == null) {
+            mapping = create(protocol, src, srcPort, dst, dstPort, now);
+            if (mapping == null) {
+                return Result.NOT_MATCHED;
+            } else if (mapping == EXHAUSTED) {
+                return Result.EXHAUSTED;
+            }
+        }
+        if (now - mapping.lastSeen >= 1000) {
+            mapping.lastSeen = now;
+        }
+        if (protocol == TCP && (d[l4 + 13] & 0x05) != 0) {
+            // FIN or RST
+            mapping.closing = true;
+        }
+        if (mapping.isOriginal(protocol, src, dst, srcPort, dstPort)) {
+            rewrite(d, 0, length, mapping.transSrc, mapping.transSrcPort, mapping.transDst, mapping.transDstPort);
+        } else {
+            if (!mapping.established) {
+                mapping.established = true;
+            }
+            rewrite(d, 0, length, mapping.origDst, mapping.origDstPort, mapping.origSrc, mapping.origSrcPort);
+        }
+        return Result.TRANSLATED;
+    }
+
+    private Mapping create(int protocol, int src, int srcPort, int dst, int dstPort, long now) {
+        Mapping mapping = null;
+        for (DestinationRule rule : destinationRules) {
+            if (rule.protocol == protocol && rule.external == dst && rule.externalPort == dstPort) {
+                mapping = new Mapping(protocol, src, srcPort, dst, dstPort, src, srcPort, rule.internal, rule.internalPort, null, now);
+                break;
+            }
+        }
+        if (mapping == null) {
+            for (SourceRule rule : sourceRules) {
+                if ((src & rule.mask) == rule.network) {
+                    int index = (NatTable.hash(src, 0) & Integer.MAX_VALUE) % rule.external.length;
+                    PortAllocator allocator = rule.allocators[index][protocol == TCP ? 0 : protocol == UDP ? 1 : 2];
+                    int port = allocator.allocate();
+                    if (port < 0) {
+                        return EXHAUSTED;
+                    }
+                    mapping = new Mapping(protocol, src, srcPort, dst, dstPort, rule.external[index], port, dst, dstPort, allocator, now);
+                    break;
+                }
+            }
+        }
+        if (mapping == null) {
+            return null;
+        }
+        if (mappings.incrementAndGet() > maxMappings) {
+            release(mapping);
+            return EXHAUSTED;
+        }
+        Mapping existing = table.putIfAbsent(mapping);
+        if (existing != null) {
+            // Lost a race with another thread creating the same mapping, or the reply tuple is taken
+            release(mapping);
+            return existing.isOriginal(protocol, src, dst, srcPort, dstPort) ? existing : EXHAUSTED;
+        }
+        return mapping;
+    }
+
+    private void release(Mapping mapping) {
+        mappings.decrementAndGet();
+        if (mapping.allocator != null) {
+            mapping.allocator.release(mapping.transSrcPort);
+        }
+    }
+
+    /**
+     * Translate an Icmp error whose quoted packet belongs to a mapping.
+     */
+    private Result translateIcmpError(byte[] d, int l4, int length) {
+        int inner = l4 + 8;
+        if (length < inner + 20 || (d[inner] & 0xF0) != 0x40) {
+            return Result.NOT_MATCHED;
+        }
+        int innerL4 = inner + ((d[inner] & 0x0F) << 2);
+        int protocol = d[inner + 9] & 0xFF;
+        int src = get32(d, inner + 12);
+        int dst = get32(d, inner + 16);
+        int srcPort;
+        int dstPort;
+        if ((protocol == TCP || protocol == UDP) && length >= innerL4 + 4) {
+            srcPort = get16(d, innerL4);
+            dstPort = get16(d, innerL4 + 2);
+        } else if (protocol == ICMP && length >= innerL4 + 8 && (d[innerL4] == 8 || d[innerL4] == 0)) {
+            int id = get16(d, innerL4 + 4);
+            srcPort = d[innerL4] == 8 ? id : 0;
+            dstPort = d[innerL4] == 8 ? 0 : id;
+        } else {
+            return Result.NOT_MATCHED;
+        }
+        // The quoted packet travelled the other way round
+        Mapping mapping = table.get(dst, src, protocol, dstPort, srcPort);
+        if (mapping == null) {
+            return Result.NOT_MATCHED;
+        }
+        int outerSrc = get32(d, 12);
+        int outerDst = get32(d, 16);
+        long delta;
+        if (mapping.isOriginal(protocol, dst, src, dstPort, srcPort)) {
+            // Error about a reply, sent by the original source
+            delta = rewrite(d, inner, length, mapping.transDst, mapping.transDstPort, mapping.transSrc, mapping.transSrcPort);
+            if (outerSrc == mapping.origSrc) {
+                outerSrc = mapping.transSrc;
+            }
+        } else {
+            // Error about a translated packet, directed to the translated source
+            delta = rewrite(d, inner, length, mapping.origSrc, mapping.origSrcPort, mapping.origDst, mapping.origDstPort);
+            if (outerDst == mapping.transSrc) {
+                outerDst = mapping.origSrc;
+            }
+        }
+        put16(d, l4 + 2, apply(get16(d, l4 + 2), delta));
+        rewrite(d, 0, length, outerSrc, 0, outerDst, 0);
+        return Result.TRANSLATED;
+    }
+
+    /**
+     * Rewrite the addresses and ports of the Ipv4 packet starting at {@code ip}, fixing its checksums incrementally.
+     * Fields past {@code end} (i.e. truncated in an Icmp quote) are left alone.
+     *
+     * @return The ones' complement sum of the changes to every rewritten 16 bit word, to fix an enclosing checksum.
+     */
+    private static long rewrite(byte[] d, int ip, int end, int src, int srcPort, int dst, int dstPort) {
+        int protocol = d[ip + 9] & 0xFF;
+        int l4 = ip + ((d[ip] & 0x0F) << 2);
+        long addresses = 0;
+        long ports = 0;
+        int old = get32(d, ip + 12);
+        if (old != src) {
+            addresses += delta32(old, src);
+            put32(d, ip + 12, src);
+        }
+        old = get32(d, ip + 16);
+        if (old != dst) {
+            addresses += delta32(old, dst);
+            put32(d, ip + 16, dst);
+        }
+        int checksumOffset;
+        if (protocol == ICMP) {
+            int type = d[l4] & 0xFF;
+            if ((type == 8 || type == 0) && l4 + 6 <= end) {
+                int id = type == 8 ? srcPort : dstPort;
+                old = get16(d, l4 + 4);
+                if (old != id) {
+                    ports += delta16(old, id);
+                    put16(d, l4 + 4, id);
+                }
+            }
+            checksumOffset = l4 + 2;
+        } else {
+            if (l4 + 2 <= end && (old = get16(d, l4)) != srcPort) {
+                ports += delta16(old, srcPort);
+                put16(d, l4, srcPort);
+            }
+            if (l4 + 4 <= end && (old = get16(d, l4 + 2)) != dstPort) {
+                ports += delta16(old, dstPort);
+                put16(d, l4 + 2, dstPort);
+            }
+            checksumOffset = protocol == TCP ? l4 + 16 : l4 + 6;
+        }
+        long delta = addresses + ports;
+        old = get16(d, ip + 10);
+        int checksum = apply(old, addresses);
+        put16(d, ip + 10, checksum);
+        delta += delta16(old, checksum);
+        if (checksumOffset + 2 <= end && (protocol == TCP || protocol == ICMP || get16(d, checksumOffset) != 0)) {
+            old = get16(d, checksumOffset);
+            checksum = apply(old, protocol == ICMP ? ports : addresses + ports);
+            if (protocol == UDP && checksum == 0) {
+                checksum = 0xFFFF;
+            }
+            put16(d, checksumOffset, checksum);
+            delta += delta16(old, checksum);
+        }
+        return delta;
+    }
+
+    /**
+     * Remove the mappings idle for longer than their timeout.
+     *
+     * @return The number of mappings removed.
+     */
+    public int expire() {
+        return expire(currentTimeMillis());
+    }
+
+    /**
+     * Remove the mappings idle for longer than their timeout.
+     *
+     * @param now The current time in milliseconds.
+     * @return The number of mappings removed.
+     */
+    public int expire(final long now) {
+        List<Mapping> removed = table.removeIf(new NatTable.Filter() {
+            @Override
+            public boolean accept(Mapping mapping) {
+                long timeout;
+                if (mapping.protocol == TCP) {
+                    timeout = mapping.established && !mapping.closing ? tcpTimeout : tcpTransitoryTimeout;
+                } else {
+                    timeout = mapping.protocol == UDP ? udpTimeout : icmpTimeout;
+                }
+                return now - mapping.lastSeen > timeout;
+            }
+        });
+        for (Mapping mapping : removed) {
+            release(mapping);
+        }
+        return removed.size();
+    }
+
+    /**
+     * Get the current time in milliseconds, used to track idle mappings.
+     *
+     * @return The current time.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Get the number of mappings.
+     *
+     * @return The number of active mappings.
+     */
+    public int size() {
+        return mappings.get();
+    }
+
+    public NatTable getTable() {
+        return table;
+    }
+
+    public void setTcpTimeout(long tcpTimeout) {
+        this.tcpTimeout = tcpTimeout;
+    }
+
+    /**
+     * Set the idle timeout of Tcp mappings not yet established or closing.
+     *
+     * @param tcpTransitoryTimeout The timeout in milliseconds.
+     */
+    public void setTcpTransitoryTimeout(long tcpTransitoryTimeout) {
+        this.tcpTransitoryTimeout = tcpTransitoryTimeout;
+    }
+
+    public void setUdpTimeout(long udpTimeout) {
+        this.udpTimeout = udpTimeout;
+    }
+
+    public void setIcmpTimeout(long icmpTimeout) {
+        this.icmpTimeout = icmpTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Nat {mappings=%d, sourceRules=%d, destinationRules=%d}",
+                size(), sourceRules.size(), destinationRules.size());
+    }
+
+    /**
+     * The outcome of {@link #translate(Packet)}.
+     */
+    public enum Result {
+        TRANSLATED, NOT_MATCHED, EXHAUSTED
+    }
+
+    private static class SourceRule {
+        final int network;
+        final int mask;
+        final int[] external;
+        final PortAllocator[][] allocators;
+
+        SourceRule(int network, int mask, int[] external) {
+            this.network = network;
+            this.mask = mask;
+            this.external = external;
+            this.allocators = new PortAllocator[external.length][3];
+            for (PortAllocator[] perAddress : allocators) {
+                for (int i = 0; i < perAddress.length; i++) {
+                    perAddress[i] = new PortAllocator(PORT_LOW, PORT_HIGH);
+                }
+            }
+        }
+    }
+
+    private static class DestinationRule {
+        final int protocol;
+        final int external;
+        final int externalPort;
+        final int internal;
+        final int internalPort;
+
+        DestinationRule(int protocol, int external, int externalPort, int internal, int internalPort) {
+            this.protocol = protocol;
+            this.external = external;
+            this.externalPort = externalPort;
+            this.internal = internal;
+            this.internalPort = internalPort;
+        }
+    }
+}
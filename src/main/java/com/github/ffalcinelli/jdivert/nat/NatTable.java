@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import com.github.ffalcinelli.jdivert.flow.ProbeTable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The table of NAT {@link Mapping mappings}, indexed both by their original and by their reply tuple.
+ * <p>
+ * Tuples are packed into two longs and stored in {@link ProbeTable probe tables}, so lookups neither allocate nor
+ * box. The table is split in segments, each guarded by its own lock, and grows as needed.
+ * </p>
+ */
+public class NatTable {
+
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    /**
+     * Create a new {@link NatTable}.
+     *
+     * @param concurrency     The number of segments, rounded up to a power of two.
+     * @param initialCapacity The expected number of mappings.
+     */
+    public NatTable(int concurrency, int initialCapacity) {
+        int n = 1;
+        while (n < concurrency) {
+            n <<= 1;
+        }
+        segments = new Segment[n];
+        segmentMask = n - 1;
+        // Two keys per mapping, kept at most half full
+        int perSegment = Math.max(16, Integer.highestOneBit(Math.max(1, initialCapacity * 4 / n) - 1) << 1);
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    static long key1(int src, int dst) {
+        return ((long) src << 32) | (dst & 0xFFFFFFFFL);
+    }
+
+    static long key2(int protocol, int srcPort, int dstPort) {
+        return ((long) protocol << 32) | ((long) (srcPort & 0xFFFF) << 16) | (dstPort & 0xFFFF);
+    }
+
+    static int hash(long k1, long k2) {
+        long h = k1 * 0x9E3779B97F4A7C15L ^ k2;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private Segment segment(int hash) {
+        return segments[(hash >>> 24) & segmentMask];
+    }
+
+    /**
+     * Find the mapping whose original or reply tuple is the given one.
+     *
+     * @param src      The source address.
+     * @param dst      The destination address.
+     * @param protocol The protocol number.
+     * @param srcPort  The source port.
+     * @param dstPort  The destination port.
+     * @return The {@link Mapping} or {@code null}.
+     */
+    public Mapping get(int src, int dst, int protocol, int srcPort, int dstPort) {
+        long k1 = key1(src, dst);
+        long k2 = key2(protocol, srcPort, dstPort);
+        int h = hash(k1, k2);
+        return segment(h).get(k1, k2, h);
+    }
+
+    /**
+     * Add a mapping under both its tuples.
+     *
+     * @param mapping The {@link Mapping} to add.
+     * @return The mapping already holding one of the tuples, {@code null} if the mapping has been added.
+     */
+    public Mapping putIfAbsent(Mapping mapping) {
+        long k1 = key1(mapping.origSrc, mapping.origDst);
+        long k2 = key2(mapping.protocol, mapping.origSrcPort, mapping.origDstPort);
+        int h = hash(k1, k2);
+        Mapping existing = segment(h).putIfAbsent(k1, k2, h, mapping, false);
+        if (existing != null) {
+            return existing;
+        }
+        long r1 = key1(mapping.transDst, mapping.transSrc);
+        long r2 = key2(mapping.protocol, mapping.transDstPort, mapping.transSrcPort);
+        int rh = hash(r1, r2);
+        existing = segment(rh).putIfAbsent(r1, r2, rh, mapping, true);
+        if (existing != null) {
+            segment(h).remove(k1, k2, h, mapping);
+        }
+        return existing;
+    }
+
+    /**
+     * Remove a mapping from both its tuples.
+     *
+     * @param mapping The {@link Mapping} to remove.
+     */
+    public void remove(Mapping mapping) {
+        long k1 = key1(mapping.origSrc, mapping.origDst);
+        long k2 = key2(mapping.protocol, mapping.origSrcPort, mapping.origDstPort);
+        int h = hash(k1, k2);
+        segment(h).remove(k1, k2, h, mapping);
+        long r1 = key1(mapping.transDst, mapping.transSrc);
+        long r2 = key2(mapping.protocol, mapping.transDstPort, mapping.transSrcPort);
+        int rh = hash(r1, r2);
+        segment(rh).remove(r1, r2, rh, mapping);
+    }
+
+    /**
+     * Remove every mapping accepted by the filter.
+     *
+     * @param filter The {@link Filter} selecting the mappings to remove.
+     * @return The removed mappings.
+     */
+    public List<Mapping> removeIf(Filter filter) {
+        List<Mapping> removed = new ArrayList<Mapping>();
+        for (Segment segment : segments) {
+            segment.collect(filter, removed);
+        }
+        for (Mapping mapping : removed) {
+            remove(mapping);
+        }
+        return removed;
+    }
+
+    /**
+     * Get the number of mappings.
+     *
+     * @return The number of mappings in the table.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.originals();
+        }
+        return size;
+    }
+
+    /**
+     * Selects mappings in {@link #removeIf(Filter)}.
+     */
+    public interface Filter {
+        boolean accept(Mapping mapping);
+    }
+
+    /**
+     * A translation between an original tuple and a translated one. Packets matching the original tuple are rewritten
+     * to the translated one, while packets matching the reversed translated tuple (replies) are rewritten to the
+     * reversed original one.
+     */
+    public static class Mapping {
+        final int protocol;
+        final int origSrc;
+        final int origSrcPort;
+        final int origDst;
+        final int origDstPort;
+        final int transSrc;
+        final int transSrcPort;
+        final int transDst;
+        final int transDstPort;
+        final PortAllocator allocator;
+        volatile long lastSeen;
+        volatile boolean established;
+        volatile boolean closing;
+
+        Mapping(int protocol, int origSrc, int origSrcPort, int origDst, int origDstPort,
+                int transSrc, int transSrcPort, int transDst, int transDstPort, PortAllocator allocator, long now) {
+            this.protocol = protocol;
+            this.origSrc = origSrc;
+            this.origSrcPort = origSrcPort;
+            this.origDst = origDst;
+            this.origDstPort = origDstPort;
+            this.transSrc = transSrc;
+            this.transSrcPort = transSrcPort;
+            this.transDst = transDst;
+            this.transDstPort = transDstPort;
+            this.allocator = allocator;
+            this.lastSeen = now;
+        }
+
+        boolean isOriginal(int protocol, int src, int dst, int srcPort, int dstPort) {
+            return protocol == this.protocol && src == origSrc && dst == origDst
+                    && srcPort == origSrcPort && dstPort == origDstPort;
+        }
+
+        public int getProtocol() {
+            return protocol;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public boolean isEstablished() {
+            return established;
+        }
+
+        private static String address(int address) {
+            return String.format("%d.%d.%d.%d", address >>> 24, (address >>> 16) & 0xFF, (address >>> 8) & 0xFF, address & 0xFF);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Mapping {protocol=%d, original=%s:%d->%s:%d, translated=%s:%d->%s:%d}", protocol,
+                    address(origSrc), origSrcPort, address(origDst), origDstPort,
+                    address(transSrc), transSrcPort, address(transDst), transDstPort);
+        }
+    }
+
+    private static class Segment {
+        private static final int REPLY = 2;
+
+        // Both halves of the tuple, then whether the record holds the reply tuple of its mapping
+        private final ProbeTable<Mapping> table;
+        private final long[] key = new long[2];
+        private int originals;
+
+        Segment(int capacity) {
+            table = new ProbeTable<Mapping>(2, 3, capacity);
+        }
+
+        private int find(long k1, long k2, int h) {
+            key[0] = k1;
+            key[1] = k2;
+            return table.find(key, h);
+        }
+
+        synchronized Mapping get(long k1, long k2, int h) {
+            int i = find(k1, k2, h);
+            return i < 0 ? null : table.value(i);
+        }
+
+        synchronized Mapping putIfAbsent(long k1, long k2, int h, Mapping mapping, boolean reply) {
+            int i = find(k1, k2, h);
+            if (i >= 0) {
+                return table.value(i);
+            }
+            i = table.add(key, h, mapping);
+            if (reply) {
+                table.set(i, REPLY, 1);
+            } else {
+                originals++;
+            }
+            return null;
+        }
+
+        synchronized void remove(long k1, long k2, int h, Mapping mapping) {
+            int i = find(k1, k2, h);
+            if (i < 0 || table.value(i) != mapping) {
+                return;
+            }
+            if (table.get(i, REPLY) == 0) {
+                originals--;
+            }
+            table.removeAt(i);
+        }
+
+        synchronized void collect(Filter filter, List<Mapping> out) {
+            for (int i = 0; i < table.capacity(); i++) {
+                if (table.isUsed(i) && table.get(i, REPLY) == 0 && filter.accept(table.value(i))) {
+                    out.add(table.value(i));
+                }
+            }
+        }
+
+        synchronized int originals() {
+            return originals;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free allocator of ports (or Icmp identifiers) in a range.
+ * <p>
+ * Ports are tracked in a bitmap of 64 bit words updated with compare-and-set. Each allocation starts scanning from a
+ * different word, so concurrent threads seldom contend on the same word and consecutive allocations are spread over
+ * the range.
+ * </p>
+ */
+public class PortAllocator {
+
+    private final int low;
+    private final int size;
+    private final AtomicLongArray bits;
+    private final AtomicInteger hint = new AtomicInteger();
+    private final AtomicInteger used = new AtomicInteger();
+
+    /**
+     * Create a new {@link PortAllocator}.
+     *
+     * @param low  The lowest port to give out.
+     * @param high The highest port to give out.
+     */
+    public PortAllocator(int low, int high) {
+        if (low < 0 || high > 0xFFFF || low > high) {
+            throw new IllegalArgumentException(String.format("Invalid port range %d-%d", low, high));
+        }
+        this.low = low;
+        this.size = high - low + 1;
+        this.bits = new AtomicLongArray((size + 63) >>> 6);
+        // Mark the bits past the end of the range as taken
+        int tail = size & 63;
+        if (tail != 0) {
+            bits.set(bits.length() - 1, -1L << tail);
+        }
+    }
+
+    /**
+     * Take a free port.
+     *
+     * @return The port, or -1 if the range is exhausted.
+     */
+    public int allocate() {
+        int words = bits.length();
+        int start = (hint.getAndIncrement() & Integer.MAX_VALUE) % words;
+        for (int i = 0; i < words; i++) {
+            int w = start + i < words ? start + i : start + i - words;
+            long v = bits.get(w);
+            while (v != -1L) {
+                int bit = Long.numberOfTrailingZeros(~v);
+                if (bits.compareAndSet(w, v, v | (1L << bit))) {
+                    used.incrementAndGet();
+                    return low + (w << 6) + bit;
+                }
+                v = bits.get(w);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Take a specific port.
+     *
+     * @param port The port to take.
+     * @return True if taken, false if out of range or already in use.
+     */
+    public boolean reserve(int port) {
+        int index = port - low;
+        if (index < 0 || index >= size) {
+            return false;
+        }
+        long mask = 1L << (index & 63);
+        while (true) {
+            long v = bits.get(index >>> 6);
+            if ((v & mask) != 0) {
+                return false;
+            }
+            if (bits.compareAndSet(index >>> 6, v, v | mask)) {
+                used.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give a port back.
+     *
+     * @param port The port to release. Ports out of range or not in use are ignored.
+     */
+    public void release(int port) {
+        int index = port - low;
+        if (index < 0 || index >= size) {
+            return;
+        }
+        long mask = 1L << (index & 63);
+        while (true) {
+            long v = bits.get(index >>> 6);
+            if ((v & mask) == 0) {
+                return;
+            }
+            if (bits.compareAndSet(index >>> 6, v, v & ~mask)) {
+                used.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the number of free ports.
+     *
+     * @return The number of ports available.
+     */
+    public int available() {
+        return size - used.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PortAllocator {range=%d-%d, available=%d}", low, low + size - 1, available());
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.flow.EndpointTable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction;
+
+/**
+ * Transparently redirects outbound Tcp connections to a local proxy.
+ * <p>
+ * Open a {@link com.github.ffalcinelli.jdivert.WinDivert WinDivert} handle with {@link #getFilter()} and pass every
+ * received packet to {@link #redirect(Packet)} before sending it back. A client packet directed to {@code R:80} from
+ * {@code L:p} is turned into {@code R:p -> L:proxyPort} and reinjected inbound, so the proxy accepts a connection
+ * whose remote address is the original destination address and whose remote port is the client port. The proxy
+ * replies are turned back into {@code R:80 -> L:p}. Swapping the addresses leaves every checksum unchanged, so only
+ * the port is patched, incrementally.
+ * </p><p>
+ * The original destination port is kept in a table keyed by original destination address and client port, which the
+ * proxy queries with {@link #getOriginalDestination(InetSocketAddress)} on accept. The outgoing connections the proxy
+ * itself makes to redirected ports must be excluded with {@link #bypass(int)} on their local port. Closed and idle
+ * entries are removed by {@link #expire()}, which should be called periodically.
+ * </p>
+ * The class is thread safe.
+ */
+public class Redirector {
+
+    private final int proxyPort;
+    private final int[] ports;
+    private final boolean[] redirected = new boolean[65536];
+    private final AtomicLongArray bypassed = new AtomicLongArray(65536 / 64);
+    private final EndpointTable table = new EndpointTable();
+    private volatile long idleTimeout = 7440000;
+    private volatile long closedTimeout = 60000;
+
+    /**
+     * Create a new {@link Redirector}.
+     *
+     * @param proxyPort The port the local proxy listens on.
+     * @param ports     The destination ports to redirect.
+     */
+    public Redirector(int proxyPort, int... ports) {
+        if (ports.length == 0) {
+            throw new IllegalArgumentException("No port to redirect");
+        }
+        this.proxyPort = proxyPort;
+        this.ports = ports.clone();
+        for (int port : ports) {
+            if (port == proxyPort) {
+                throw new IllegalArgumentException("Cannot redirect the proxy port " + port);
+            }
+            redirected[port & 0xFFFF] = true;
+        }
+    }
+
+    private static int get16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static void swap(byte[] data, int first, int second, int length) {
+        for (int i = 0; i < length; i++) {
+            byte tmp = data[first + i];
+            data[first + i] = data[second + i];
+            data[second + i] = tmp;
+        }
+    }
+
+    /**
+     * Get the filter matching the packets this {@link Redirector} handles.
+     *
+     * @return The WinDivert filter.
+     */
+    public String getFilter() {
+        StringBuilder filter = new StringBuilder("outbound and tcp and (");
+        for (int port : ports) {
+            filter.append("tcp.DstPort == ").append(port).append(" or ");
+        }
+        return filter.append("tcp.SrcPort == ").append(proxyPort).append(")").toString();
+    }
+
+    /**
+     * Rewrite a diverted outbound packet in place.
+     *
+     * @param packet The {@link Packet} to rewrite.
+     * @return {@link Result#REDIRECTED} for client packets turned towards the proxy, {@link Result#RESTORED} for proxy
+     * replies turned back towards the client, {@link Result#NOT_MATCHED} if the packet was left alone.
+     */
+    public Result redirect(Packet packet) {
+        if (!packet.isTcp() || !packet.isOutbound()) {
+            return Result.NOT_MATCHED;
+        }
+        byte[] d = packet.getByteBuffer().array();
+        boolean ipv4 = packet.isIpv4();
+        int l4 = packet.getPayloadOffset() - packet.getTcp().getHeaderLength();
+        int srcPort = get16(d, l4);
+        int dstPort = get16(d, l4 + 2);
+        int flags = d[l4 + 13];
+        boolean closing = (flags & 0x05) != 0;
+        boolean syn = (flags & 0x12) == 0x02;
+        long now = currentTimeMillis();
+        if (srcPort == proxyPort) {
+            // Proxy reply, keyed by destination address and port
+            int originalPort = table.touch(d, ipv4 ? 16 : 24, ipv4 ? 4 : 16, dstPort, now, closing);
+            if (originalPort < 0) {
+                return Result.NOT_MATCHED;
+            }
+            setSrcPort(d, l4, originalPort);
+        } else if (redirected[dstPort] && !isBypassed(srcPort)) {
+            // Client packet, keyed by destination address and source port
+            table.put(d, ipv4 ? 16 : 24, ipv4 ? 4 : 16, srcPort, dstPort, now, syn, closing);
+            setDstPort(d, l4, proxyPort);
+        } else {
+            return Result.NOT_MATCHED;
+        }
+        if (ipv4) {
+            swap(d, 12, 16, 4);
+        } else {
+            swap(d, 8, 24, 16);
+        }
+        packet.setDirection(Direction.INBOUND);
+        return srcPort == proxyPort ? Result.RESTORED : Result.REDIRECTED;
+    }
+
+    private static void setSrcPort(byte[] d, int l4, int port) {
+        setPort(d, l4, l4, port);
+    }
+
+    private static void setDstPort(byte[] d, int l4, int port) {
+        setPort(d, l4, l4 + 2, port);
+    }
+
+    private static void setPort(byte[] d, int l4, int offset, int port) {
+        int checksum = Checksums.update(get16(d, l4 + 16), get16(d, offset), port);
+        d[offset] = (byte) (port >> 8);
+        d[offset + 1] = (byte) port;
+        d[l4 + 16] = (byte) (checksum >> 8);
+        d[l4 + 17] = (byte) checksum;
+    }
+
+    /**
+     * Get the original destination port of a connection accepted by the proxy.
+     *
+     * @param remote     The remote address of the accepted connection (i.e. the original destination address).
+     * @param remotePort The remote port of the accepted connection (i.e. the client port).
+     * @return The original destination port, or -1 if unknown.
+     */
+    public int getOriginalPort(InetAddress remote, int remotePort) {
+        byte[] address = remote.getAddress();
+        return table.get(address, 0, address.length, remotePort & 0xFFFF);
+    }
+
+    /**
+     * Get the original destination of a connection accepted by the proxy.
+     *
+     * @param remote The remote address of the accepted connection, e.g. {@code socket.getRemoteSocketAddress()}.
+     * @return The original destination, or {@code null} if unknown.
+     */
+    public InetSocketAddress getOriginalDestination(InetSocketAddress remote) {
+        int port = getOriginalPort(remote.getAddress(), remote.getPort());
+        return port < 0 ? null : new InetSocketAddress(remote.getAddress(), port);
+    }
+
+    /**
+     * Exclude a local port from redirection, e.g. the one of an outgoing connection of the proxy.
+     *
+     * @param localPort The local port.
+     */
+    public void bypass(int localPort) {
+        long mask = 1L << (localPort & 63);
+        int word = (localPort & 0xFFFF) >>> 6;
+        long v;
+        do {
+            v = bypassed.get(word);
+        } while (!bypassed.compareAndSet(word, v, v | mask));
+    }
+
+    /**
+     * Stop excluding a local port from redirection.
+     *
+     * @param localPort The local port.
+     */
+    public void unbypass(int localPort) {
+        long mask = 1L << (localPort & 63);
+        int word = (localPort & 0xFFFF) >>> 6;
+        long v;
+        do {
+            v = bypassed.get(word);
+        } while (!bypassed.compareAndSet(word, v, v & ~mask));
+    }
+
+    public boolean isBypassed(int localPort) {
+        return (bypassed.get((localPort & 0xFFFF) >>> 6) & (1L << (localPort & 63))) != 0;
+    }
+
+    /**
+     * Remove the entries of connections closed, or idle, for longer than their timeout.
+     *
+     * @return The number of entries removed.
+     */
+    public int expire() {
+        return expire(currentTimeMillis());
+    }
+
+    /**
+     * Remove the entries of connections closed, or idle, for longer than their timeout.
+     *
+     * @param now The current time in milliseconds.
+     * @return The number of entries removed.
+     */
+    public int expire(long now) {
+        return table.expire(now, idleTimeout, closedTimeout);
+    }
+
+    /**
+     * Get the current time in milliseconds, used to track idle connections.
+     *
+     * @return The current time.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Get the number of tracked connections.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return table.size();
+    }
+
+    public int getProxyPort() {
+        return proxyPort;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Set how long entries of connections which saw a FIN or RST are kept, so that the proxy can still query them.
+     *
+     * @param closedTimeout The timeout in milliseconds.
+     */
+    public void setClosedTimeout(long closedTimeout) {
+        this.closedTimeout = closedTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Redirector {proxyPort=%d, connections=%d}", proxyPort, size());
+    }
+
+    /**
+     * The outcome of {@link #redirect(Packet)}.
+     */
+    public enum Result {
+        REDIRECTED, RESTORED, NOT_MATCHED
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.pipeline;
+
+import com.github.ffalcinelli.jdivert.DivertEngine;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.flow.FlowDispatcher;
+import com.github.ffalcinelli.jdivert.ring.WaitStrategy;
+import com.github.ffalcinelli.jdivert.traffic.SojournHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs diverted packets through a chain of {@link Stage stages}, then sends them.
+ * <p>
+ * Stages are {@link #addStage(String, Stage) added} in order before the pipeline starts; each returns a
+ * {@link Stage.Verdict} telling whether the packet goes on, is sent or dropped at once, or was taken over. Packets
+ * reaching the end of the chain are sent, with checksums recalculated only if a stage asked so. Packets are received
+ * into buffers of the {@link BufferPool}, when one is given, passed by reference from stage to stage and released
+ * once sent or dropped.
+ * </p><p>
+ * The {@link Threading} model picks how packets are spread over threads: {@link Threading#SHARED} runs the whole chain
+ * on a {@link DivertEngine} receiver thread, {@link Threading#FLOW_AFFINE} on the {@link FlowDispatcher} worker of the
+ * flow, keeping the packets of a flow in order. Callers receiving on their own may also {@link #process(Packet)}
+ * packets directly.
+ * </p><p>
+ * Every thread counts the packets, verdicts and processing time of each stage on its own, with no contention;
+ * {@link #getStats()} sums them up. Stopping folds the counters of the threads into the totals and drops their
+ * contexts, so that threads of a restarted pipeline start afresh.
+ * </p>
+ * The class is thread safe.
+ */
+public class Pipeline {
+
+    // Bounds the wait of the flow receiver should a wakeup be missed
+    private static final long POLL_MILLIS = 100;
+    private final WinDivert divert;
+    private final BufferPool pool;
+    private final Threading threading;
+    private final int threads;
+    private final List<String> names = new ArrayList<String>();
+    private final List<Stage> chain = new ArrayList<Stage>();
+    private final List<Context> contexts = new CopyOnWriteArrayList<Context>();
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final ThreadLocal<Context> local = new ThreadLocal<Context>();
+    private volatile int generation;
+    private long[] retired;
+    private volatile Stage[] stages;
+    private volatile boolean running;
+    private volatile int ringCapacity = 4096;
+    private volatile WaitStrategy waitStrategy = WaitStrategy.PARK;
+    private DivertEngine engine;
+    private FlowDispatcher dispatcher;
+    private Thread receiver;
+
+    /**
+     * Create a new {@link Pipeline} with no stage.
+     *
+     * @param divert    The {@link WinDivert} handle to receive from and send with, open by the time the pipeline
+     *                  starts.
+     * @param pool      The {@link BufferPool} to receive into, {@code null} to allocate a buffer per packet.
+     * @param threading The {@link Threading} model.
+     * @param threads   The number of threads running the stages.
+     */
+    public Pipeline(WinDivert divert, BufferPool pool, Threading threading, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid number of threads %d", threads));
+        }
+        this.divert = divert;
+        this.pool = pool;
+        this.threading = threading;
+        this.threads = threads;
+        nextWorker.set(firstWorker());
+    }
+
+    /**
+     * Flow workers keep the indexes of the dispatcher, other threads come after them.
+     */
+    private int firstWorker() {
+        return threading == Threading.FLOW_AFFINE ? threads : 0;
+    }
+
+    /**
+     * Append a stage to the chain.
+     *
+     * @param name  The name of the stage, for its {@link StageStats}.
+     * @param stage The {@link Stage}.
+     * @return this instance to allow call chaining.
+     */
+    public synchronized Pipeline addStage(String name, Stage stage) {
+        if (stages != null) {
+            throw new IllegalStateException("Stages cannot be added once packets are processed");
+        }
+        names.add(name);
+        chain.add(stage);
+        return this;
+    }
+
+    private Stage[] stages() {
+        Stage[] s = stages;
+        if (s == null) {
+            synchronized (this) {
+                if (stages == null) {
+                    stages = chain.toArray(new Stage[chain.size()]);
+                }
+                s = stages;
+            }
+        }
+        return s;
+    }
+
+    private Context newContext(int worker) {
+        Context context = new Context(worker, stages().length, generation);
+        contexts.add(context);
+        return context;
+    }
+
+    /**
+     * Get the context of the calling thread, a new one if the pipeline stopped since the thread last used it.
+     */
+    private Context context() {
+        Context context = local.get();
+        if (context == null || context.generation != generation) {
+            context = newContext(nextWorker.getAndIncrement());
+            local.set(context);
+        }
+        return context;
+    }
+
+    /**
+     * Start the threads of the {@link Threading} model.
+     *
+     * @return this instance to allow call chaining.
+     */
+    public synchronized Pipeline start() {
+        if (running) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        stages();
+        running = true;
+        if (threading == Threading.SHARED) {
+            engine = new DivertEngine(divert, threads, new DivertEngine.Handler() {
+                @Override
+                public void handle(WinDivert divert, Packet packet) {
+                    process(packet);
+                }
+            });
+            engine.setBufferPool(pool);
+            engine.start();
+            return this;
+        }
+        final Context[] workers = new Context[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = newContext(i);
+        }
+        dispatcher = new FlowDispatcher(divert, threads, ringCapacity, waitStrategy, new FlowDispatcher.Handler() {
+            @Override
+            public boolean handle(Packet packet, int worker) {
+                process(packet, workers[worker]);
+                return false;
+            }
+        }).start(false);
+        final FlowDispatcher d = dispatcher;
+        receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive(d);
+            }
+        }, "jdivert-pipeline");
+        receiver.setDaemon(true);
+        receiver.start();
+        return this;
+    }
+
+    private void receive(FlowDispatcher dispatcher) {
+        Context context = context();
+        while (running) {
+            Packet packet;
+            try {
+                packet = divert.recv(pool, POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (WinDivertException e) {
+                if (!running || !divert.isOpen()) {
+                    break;
+                }
+                context.add(context.total + StageStats.ERRORS, 1);
+                continue;
+            } catch (RuntimeException e) {
+                // E.g. a packet that cannot be parsed, the receiver goes on
+                context.add(context.total + StageStats.ERRORS, 1);
+                continue;
+            }
+            if (packet == null) {
+                // Timed out or woken up by stop
+                continue;
+            }
+            dispatch(dispatcher, packet, context);
+        }
+    }
+
+    private void dispatch(FlowDispatcher dispatcher, Packet packet, Context context) {
+        if (!dispatcher.dispatch(packet)) {
+            // The worker of the flow is behind
+            context.add(context.total + StageStats.PACKETS, 1);
+            context.add(context.total + StageStats.DROPPED, 1);
+            release(packet);
+        }
+    }
+
+    /**
+     * Run a packet through the stages on the calling thread, then send or drop it.
+     *
+     * @param packet The {@link Packet}, whose buffer belongs to the pipeline from now on.
+     * @return The {@link Stage.Verdict} the packet ended with: {@link Stage.Verdict#SEND} if sent,
+     * {@link Stage.Verdict#DROP} if dropped, failed or not sent, {@link Stage.Verdict#STOLEN} if taken over.
+     */
+    public Stage.Verdict process(Packet packet) {
+        return process(packet, context());
+    }
+
+    private Stage.Verdict process(Packet packet, Context context) {
+        Stage[] stages = stages();
+        context.mark = 0;
+        context.recalculate = false;
+        long start = System.nanoTime();
+        long last = start;
+        Stage.Verdict verdict = Stage.Verdict.NEXT;
+        for (int i = 0; i < stages.length && verdict == Stage.Verdict.NEXT; i++) {
+            int field;
+            try {
+                verdict = stages[i].process(packet, context);
+                field = verdict == Stage.Verdict.NEXT ? StageStats.PASSED : verdict == Stage.Verdict.SEND
+                        ? StageStats.SENT : verdict == Stage.Verdict.DROP ? StageStats.DROPPED : StageStats.STOLEN;
+            } catch (Exception e) {
+                verdict = Stage.Verdict.DROP;
+                field = StageStats.ERRORS;
+            }
+            long now = System.nanoTime();
+            context.record(i * StageStats.FIELDS, field, now - last);
+            last = now;
+        }
+        int field;
+        if (verdict == Stage.Verdict.STOLEN) {
+            field = StageStats.STOLEN;
+        } else if (verdict == Stage.Verdict.DROP) {
+            field = StageStats.DROPPED;
+            release(packet);
+        } else {
+            try {
+                divert.send(packet, context.recalculate);
+                verdict = Stage.Verdict.SEND;
+                field = StageStats.SENT;
+            } catch (WinDivertException e) {
+                verdict = Stage.Verdict.DROP;
+                field = StageStats.ERRORS;
+            }
+            release(packet);
+        }
+        context.record(context.total, field, System.nanoTime() - start);
+        return verdict;
+    }
+
+    private void release(Packet packet) {
+        if (pool != null) {
+            pool.release(packet);
+        }
+    }
+
+    /**
+     * Stop the threads and close the handle. The flow receiver is stopped first, the packets its outstanding receive
+     * got {@link WinDivert#drain(long, TimeUnit) drained} to the flow workers, then packets queued to flow workers
+     * are processed and sent, before the handle is closed.
+     *
+     * @throws InterruptedException If interrupted while waiting for the threads to stop.
+     */
+    public void stop() throws InterruptedException {
+        DivertEngine e;
+        FlowDispatcher d;
+        Thread r;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            e = engine;
+            d = dispatcher;
+            r = receiver;
+            engine = null;
+            dispatcher = null;
+            receiver = null;
+        }
+        if (e != null) {
+            e.stop();
+        }
+        if (r != null) {
+            divert.wakeup();
+            r.join();
+            // The receiver is gone, this thread is now the single producer of the worker rings
+            Context context = context();
+            for (Packet packet : divert.drain(0, TimeUnit.MILLISECONDS)) {
+                dispatch(d, packet, context);
+            }
+            d.stop(false);
+            divert.close();
+        }
+        retire();
+    }
+
+    /**
+     * Fold the counters of the contexts into the totals and drop the contexts.
+     */
+    private synchronized void retire() {
+        if (retired == null) {
+            retired = new long[(names.size() + 1) * StageStats.FIELDS];
+        }
+        for (Context context : contexts) {
+            for (int i = 0; i < retired.length; i++) {
+                retired[i] += context.counters.get(i);
+            }
+        }
+        contexts.clear();
+        generation++;
+        nextWorker.set(firstWorker());
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Set the capacity of the ring of each {@link Threading#FLOW_AFFINE flow} worker, before starting.
+     *
+     * @param ringCapacity The number of packets, rounded up to a power of two.
+     */
+    public void setRingCapacity(int ringCapacity) {
+        this.ringCapacity = ringCapacity;
+    }
+
+    /**
+     * Set how idle {@link Threading#FLOW_AFFINE flow} workers wait for packets, before starting.
+     *
+     * @param waitStrategy The {@link WaitStrategy}.
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Get the counters of every stage.
+     *
+     * @return The {@link StageStats} of the stages, in chain order.
+     */
+    public synchronized List<StageStats> getStats() {
+        List<StageStats> stats = new ArrayList<StageStats>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            stats.add(new StageStats(names.get(i), sum(i * StageStats.FIELDS)));
+        }
+        return stats;
+    }
+
+    /**
+     * Get the counters of the whole pipeline, from the end of receiving to the end of sending.
+     *
+     * @return The {@link StageStats} of the pipeline.
+     */
+    public synchronized StageStats getTotals() {
+        return new StageStats("pipeline", sum(names.size() * StageStats.FIELDS));
+    }
+
+    private long[] sum(int offset) {
+        long[] values = new long[StageStats.FIELDS];
+        if (retired != null) {
+            System.arraycopy(retired, offset, values, 0, values.length);
+        }
+        for (Context context : contexts) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] += context.counters.get(offset + i);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Pipeline {stages=%s, threading=%s, threads=%d, running=%s}",
+                names, threading, threads, running);
+    }
+
+    /**
+     * How a {@link Pipeline} spreads packets over its threads.
+     */
+    public enum Threading {
+        /**
+         * Every thread receives from the handle and runs the whole chain: the most throughput, but packets of a flow
+         * may be reordered and stages must be thread safe.
+         */
+        SHARED,
+        /**
+         * One thread receives and dispatches packets by flow to workers running the chain: packets of a flow stay in
+         * order and per flow state kept per worker needs no lock. The receiving thread waits with
+         * {@link WinDivert#recv(BufferPool, long, TimeUnit) timed receives}, completed through the
+         * {@link com.github.ffalcinelli.jdivert.CompletionPort CompletionPort} of the handle.
+         */
+        FLOW_AFFINE
+    }
+
+    /**
+     * The state of the packet being processed by a thread, reused from packet to packet.
+     */
+    public static class Context {
+        private final int worker;
+        private final int total;
+        private final int generation;
+        // Written by the owning thread only, read by getStats()
+        private final AtomicLongArray counters;
+        private int mark;
+        private boolean recalculate;
+
+        Context(int worker, int stages, int generation) {
+            this.worker = worker;
+            this.total = stages * StageStats.FIELDS;
+            this.generation = generation;
+            this.counters = new AtomicLongArray(total + StageStats.FIELDS);
+        }
+
+        void add(int index, long delta) {
+            counters.lazySet(index, counters.get(index) + delta);
+        }
+
+        void record(int offset, int field, long nanos) {
+            add(offset + StageStats.PACKETS, 1);
+            add(offset + field, 1);
+            add(offset + StageStats.BUSY, nanos);
+            add(offset + StageStats.LATENCY + SojournHistogram.bucket(nanos), 1);
+        }
+
+        /**
+         * Get the index of the thread processing the packet, from 0: the worker of its flow with
+         * {@link Threading#FLOW_AFFINE}, otherwise a per thread sequence.
+         *
+         * @return The worker index.
+         */
+        public int getWorker() {
+            return worker;
+        }
+
+        /**
+         * Get the mark set by a previous stage, e.g. a traffic class.
+         *
+         * @return The mark, 0 if none was set.
+         */
+        public int getMark() {
+            return mark;
+        }
+
+        public void setMark(int mark) {
+            this.mark = mark;
+        }
+
+        public boolean isRecalculate() {
+            return recalculate;
+        }
+
+        /**
+         * Ask for the checksums to be recalculated when sending the packet.
+         *
+         * @param recalculate Whether to recalculate the checksums.
+         */
+        public void setRecalculate(boolean recalculate) {
+            this.recalculate = recalculate;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.pipeline;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+/**
+ * A step of a {@link Pipeline}, e.g. classifying, filtering, rewriting or shaping packets. See {@link Stages} for the
+ * common ones.
+ * <p>
+ * Stages are called concurrently by the threads of the pipeline, each with its own {@link Pipeline.Context}: state
+ * kept per {@link Pipeline.Context#getWorker() worker} needs no lock.
+ * </p>
+ */
+public interface Stage {
+
+    /**
+     * Process a packet, possibly modifying it in place.
+     *
+     * @param packet  The {@link Packet}, whose buffer belongs to the pipeline unless {@link Verdict#STOLEN} is
+     *                returned.
+     * @param context The {@link Pipeline.Context} of the packet.
+     * @return What to do with the packet next.
+     * @throws Exception If processing fails, the error is counted and the packet dropped.
+     */
+    Verdict process(Packet packet, Pipeline.Context context) throws Exception;
+
+    /**
+     * The outcome of a {@link Stage}.
+     */
+    enum Verdict {
+        /**
+         * Hand the packet to the next stage, or send it after the last one.
+         */
+        NEXT,
+        /**
+         * Send the packet now, skipping the next stages.
+         */
+        SEND,
+        /**
+         * Drop the packet and give its buffer back to the pool.
+         */
+        DROP,
+        /**
+         * The stage took the packet over, e.g. to send it later, and releases its buffer itself.
+         */
+        STOLEN
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.pipeline;
+
+import com.github.ffalcinelli.jdivert.traffic.SojournHistogram;
+
+/**
+ * A snapshot of the counters of a {@link Stage}, or of a whole {@link Pipeline}, summed over its threads.
+ * <p>
+ * The latency of a stage is the time spent in it by each packet; the one of a pipeline covers every stage and sending.
+ * The throughput a stage sustains on one thread is {@link #getPackets()} over {@link #getBusyNanos()}.
+ * </p>
+ */
+public class StageStats {
+
+    static final int PACKETS = 0;
+    static final int PASSED = 1;
+    static final int SENT = 2;
+    static final int DROPPED = 3;
+    static final int STOLEN = 4;
+    static final int ERRORS = 5;
+    static final int BUSY = 6;
+    static final int LATENCY = 7;
+    static final int FIELDS = LATENCY + SojournHistogram.BUCKETS;
+
+    private final String name;
+    private final long[] values;
+    private final SojournHistogram latency = new SojournHistogram();
+
+    StageStats(String name, long[] values) {
+        this.name = name;
+        this.values = values;
+        for (int i = 0; i < SojournHistogram.BUCKETS; i++) {
+            latency.add(i, values[LATENCY + i]);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getPackets() {
+        return values[PACKETS];
+    }
+
+    /**
+     * Get the number of packets handed to the next stage, always 0 for a whole pipeline.
+     *
+     * @return The number of packets.
+     */
+    public long getPassed() {
+        return values[PASSED];
+    }
+
+    /**
+     * Get the number of packets sent: by a stage, the ones sent before the next stages; by a pipeline, every one.
+     *
+     * @return The number of packets.
+     */
+    public long getSent() {
+        return values[SENT];
+    }
+
+    public long getDropped() {
+        return values[DROPPED];
+    }
+
+    public long getStolen() {
+        return values[STOLEN];
+    }
+
+    /**
+     * Get the number of errors, which dropped their packet.
+     *
+     * @return The number of errors.
+     */
+    public long getErrors() {
+        return values[ERRORS];
+    }
+
+    /**
+     * Get the total time spent processing packets.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getBusyNanos() {
+        return values[BUSY];
+    }
+
+    /**
+     * Get the mean time spent processing a packet.
+     *
+     * @return The time in nanoseconds, 0 if no packet was processed.
+     */
+    public long getMeanNanos() {
+        return values[PACKETS] == 0 ? 0 : values[BUSY] / values[PACKETS];
+    }
+
+    /**
+     * Get the distribution of the time spent processing a packet.
+     *
+     * @return The {@link SojournHistogram} of the processing times.
+     */
+    public SojournHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StageStats {name=%s, packets=%d, dropped=%d, errors=%d, mean=%d, p99=%d}",
+                name, getPackets(), getDropped(), getErrors(), getMeanNanos(), latency.getPercentile(99));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.pipeline;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.traffic.QosScheduler;
+import com.github.ffalcinelli.jdivert.traffic.Shaper;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Factories of the common {@link Stage stages}.
+ */
+public class Stages {
+
+    private Stages() {
+    }
+
+    /**
+     * Classify packets, setting the {@link Pipeline.Context#getMark() mark} of their context for the next stages.
+     *
+     * @param classifier The {@link QosScheduler.Classifier}, e.g. the one of a scheduler.
+     * @return A {@link Stage} dropping the packets classified with a negative mark.
+     */
+    public static Stage classify(final QosScheduler.Classifier classifier) {
+        return new Stage() {
+            @Override
+            public Verdict process(Packet packet, Pipeline.Context context) {
+                int mark = classifier.classify(packet);
+                context.setMark(mark);
+                return mark < 0 ? Verdict.DROP : Verdict.NEXT;
+            }
+        };
+    }
+
+    /**
+     * Drop the packets not matching a condition.
+     *
+     * @param matcher The {@link Matcher} of the packets to keep.
+     * @return A {@link Stage}.
+     */
+    public static Stage filter(final Matcher matcher) {
+        return new Stage() {
+            @Override
+            public Verdict process(Packet packet, Pipeline.Context context) throws Exception {
+                return matcher.matches(packet, context) ? Verdict.NEXT : Verdict.DROP;
+            }
+        };
+    }
+
+    /**
+     * Modify packets in place.
+     *
+     * @param rewriter The {@link Rewriter}.
+     * @return A {@link Stage}.
+     */
+    public static Stage rewrite(final Rewriter rewriter) {
+        return new Stage() {
+            @Override
+            public Verdict process(Packet packet, Pipeline.Context context) throws Exception {
+                if (rewriter.rewrite(packet)) {
+                    context.setRecalculate(true);
+                }
+                return Verdict.NEXT;
+            }
+        };
+    }
+
+    /**
+     * Delay packets to the rate of the {@link Shaper} class given by the {@link Pipeline.Context#getMark() mark} of
+     * their context. The shaper must release buffers to the pool of the pipeline.
+     *
+     * @param shaper The started {@link Shaper}.
+     * @return A {@link Stage} handing packets over to the shaper, or dropping them when their class queue is full.
+     */
+    public static Stage shape(final Shaper shaper) {
+        return new Stage() {
+            @Override
+            public Verdict process(Packet packet, Pipeline.Context context) {
+                return shaper.shape(packet, context.getMark()) ? Verdict.STOLEN : Verdict.DROP;
+            }
+        };
+    }
+
+    /**
+     * Hand every packet to a {@link Sink} too, e.g. a capture writer, then to the next stage.
+     *
+     * @param sink The {@link Sink}, which must copy what it keeps of the packet.
+     * @return A {@link Stage}.
+     */
+    public static Stage mirror(final Sink sink) {
+        return new Stage() {
+            @Override
+            public Verdict process(Packet packet, Pipeline.Context context) throws Exception {
+                sink.accept(packet);
+                return Verdict.NEXT;
+            }
+        };
+    }
+
+    /**
+     * Log every packet, formatting it only if the level is enabled.
+     *
+     * @param logger The {@link Logger}.
+     * @param level  The {@link Level} to log at.
+     * @return A {@link Stage}.
+     */
+    public static Stage log(final Logger logger, final Level level) {
+        return new Stage() {
+            @Override
+            public Verdict process(Packet packet, Pipeline.Context context) {
+                if (logger.isLoggable(level)) {
+                    logger.log(level, "{0} (worker {1}, mark {2})",
+                            new Object[]{packet, context.getWorker(), context.getMark()});
+                }
+                return Verdict.NEXT;
+            }
+        };
+    }
+
+    /**
+     * Tells the packets to keep.
+     */
+    public interface Matcher {
+        /**
+         * Match a packet.
+         *
+         * @param packet  The {@link Packet}.
+         * @param context The {@link Pipeline.Context} of the packet, e.g. to match on its mark.
+         * @return True to keep the packet.
+         * @throws Exception If matching fails, the error is counted and the packet dropped.
+         */
+        boolean matches(Packet packet, Pipeline.Context context) throws Exception;
+    }
+
+    /**
+     * Modifies packets in place.
+     */
+    public interface Rewriter {
+        /**
+         * Rewrite a packet.
+         *
+         * @param packet The {@link Packet}.
+         * @return True if the checksums must be recalculated on sending, false if unchanged or updated incrementally,
+         * e.g. with {@link com.github.ffalcinelli.jdivert.Checksums}.
+         * @throws Exception If rewriting fails, the error is counted and the packet dropped.
+         */
+        boolean rewrite(Packet packet) throws Exception;
+    }
+
+    /**
+     * Receives a copy of the traffic.
+     */
+    public interface Sink {
+        /**
+         * Accept a packet, whose buffer may be reused as soon as this method returns.
+         *
+         * @param packet The {@link Packet}.
+         * @throws Exception If accepting fails, the error is counted and the packet dropped.
+         */
+        void accept(Packet packet) throws Exception;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reactive;
+
+/**
+ * The Reactive Streams interfaces, shaped as {@code java.util.concurrent.Flow} of Java 9 so that adapting them to it,
+ * or to any Reactive Streams library, takes a one line wrapper per interface.
+ */
+public final class Flow {
+
+    private Flow() {
+    }
+
+    /**
+     * A producer of items, possibly unbounded, delivering them as its subscribers request them.
+     *
+     * @param <T> The item type.
+     */
+    public interface Publisher<T> {
+        /**
+         * Add a subscriber, which is then given its {@link Subscription} through
+         * {@link Subscriber#onSubscribe(Subscription)}, or an error if it cannot subscribe.
+         *
+         * @param subscriber The {@link Subscriber}.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items, signalled one at a time and never more than requested.
+     *
+     * @param <T> The item type.
+     */
+    public interface Subscriber<T> {
+        /**
+         * Start the subscription, called before any other method.
+         *
+         * @param subscription The {@link Subscription}, to request items with.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Receive the next item.
+         *
+         * @param item The item.
+         */
+        void onNext(T item);
+
+        /**
+         * Receive the failure ending the subscription.
+         *
+         * @param throwable The cause.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Learn that no item will follow.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a {@link Publisher} and one of its {@link Subscriber subscribers}.
+     */
+    public interface Subscription {
+        /**
+         * Ask for up to {@code n} more items.
+         *
+         * @param n The number of items, positive.
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving items, possibly after a few more already in flight.
+         */
+        void cancel();
+    }
+
+    /**
+     * A stage both subscribing to items and publishing the transformed ones.
+     *
+     * @param <T> The received item type.
+     * @param <R> The published item type.
+     */
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reactive;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the packets diverted to a {@link WinDivert} handle to a single {@link Flow.Subscriber}.
+ * <p>
+ * A receiver thread keeps reading the handle, so that the driver queue never stalls: packets go straight to the
+ * subscriber while it has demand, and wait in a bounded buffer otherwise. Once the buffer is full the
+ * {@link OverflowPolicy} decides which packet is lost, or lets the new one through unmodified; each outcome is
+ * counted.
+ * </p><p>
+ * Cancelling the subscription, or a signalled error, stops publishing: buffered packets, and the ones the receiver
+ * gets until {@link #close()}, are sent on unmodified, so no traffic is lost. The receiver waits with
+ * {@link WinDivert#recv(long, TimeUnit) timed receives}: {@link #close()} wakes it up, handles the packets of the
+ * receive it left outstanding, then closes the handle and completes the subscriber once its buffered packets are
+ * delivered.
+ * </p>
+ * The class is thread safe.
+ */
+public class PacketPublisher implements Flow.Publisher<Packet> {
+
+    private static final long POLL_MILLIS = 100;
+
+    private final WinDivert divert;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Queue<Packet> buffer = new ArrayDeque<Packet>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private Flow.Subscriber<? super Packet> subscriber;
+    private Thread receiver;
+    private volatile boolean cancelled;
+    private volatile boolean closing;
+    private volatile boolean completed;
+    private volatile Throwable failure;
+
+    /**
+     * Create a new {@link PacketPublisher}.
+     *
+     * @param divert   The open {@link WinDivert} handle to receive from, and to send passed packets with.
+     * @param capacity The maximum number of packets waiting for demand.
+     * @param policy   The {@link OverflowPolicy} once the buffer is full.
+     */
+    public PacketPublisher(WinDivert divert, int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid capacity %d", capacity));
+        }
+        this.divert = divert;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Packet> s) {
+        boolean first;
+        synchronized (this) {
+            first = subscriber == null;
+            if (first) {
+                subscriber = s;
+            }
+        }
+        if (!first) {
+            s.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            s.onError(new IllegalStateException("PacketPublisher supports a single subscriber"));
+            return;
+        }
+        s.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("Non positive request " + n));
+                    return;
+                }
+                long current;
+                do {
+                    current = demand.get();
+                } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                PacketPublisher.this.cancel();
+            }
+        });
+        synchronized (this) {
+            if (closing) {
+                return;
+            }
+            receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive();
+                }
+            }, "jdivert-publisher");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+    }
+
+    private void receive() {
+        while (!closing) {
+            Packet packet;
+            try {
+                packet = divert.recv(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (WinDivertException e) {
+                if (!divert.isOpen()) {
+                    // Closed under the publisher, the subscriber gets what is buffered then completes
+                    completed = true;
+                    drain();
+                    break;
+                }
+                errors.incrementAndGet();
+                continue;
+            } catch (RuntimeException e) {
+                // E.g. a packet that cannot be parsed: the subscriber is told, later packets are passed on
+                errors.incrementAndGet();
+                fail(e);
+                continue;
+            }
+            // Null when timed out or woken up by close
+            if (packet != null) {
+                publish(packet);
+            }
+        }
+    }
+
+    private void publish(Packet packet) {
+        received.incrementAndGet();
+        if (cancelled) {
+            pass(packet);
+        } else {
+            offer(packet);
+            drain();
+        }
+    }
+
+    private void fail(Throwable error) {
+        if (!cancelled && failure == null) {
+            failure = error;
+            completed = true;
+            drain();
+        }
+    }
+
+    private void offer(Packet packet) {
+        Packet overflow = null;
+        synchronized (buffer) {
+            if (cancelled) {
+                // Cancelled since the receiver checked, cancel may be done draining: pass it on here
+                overflow = packet;
+            } else if (buffer.size() < capacity) {
+                buffer.add(packet);
+                return;
+            } else {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        break;
+                    case DROP_OLDEST:
+                        buffer.poll();
+                        buffer.add(packet);
+                        break;
+                    default:
+                        overflow = packet;
+                }
+            }
+        }
+        if (overflow != null) {
+            pass(overflow);
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void pass(Packet packet) {
+        try {
+            divert.send(packet, false);
+            passed.incrementAndGet();
+        } catch (WinDivertException e) {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Deliver buffered packets while there is demand, then the terminal signal, from one thread at a time.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super Packet> s = subscriber;
+            while (!cancelled && failure == null && demand.get() > 0) {
+                Packet packet;
+                synchronized (buffer) {
+                    packet = buffer.poll();
+                }
+                if (packet == null) {
+                    break;
+                }
+                if (demand.get() != Long.MAX_VALUE) {
+                    demand.decrementAndGet();
+                }
+                delivered.incrementAndGet();
+                s.onNext(packet);
+            }
+            if (!cancelled && completed) {
+                boolean empty;
+                synchronized (buffer) {
+                    empty = buffer.isEmpty();
+                }
+                if (failure != null || empty) {
+                    // Packets still buffered after an error are passed on, as on cancel
+                    cancelled = true;
+                    passBuffered();
+                    if (failure != null) {
+                        s.onError(failure);
+                    } else {
+                        s.onComplete();
+                    }
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void cancel() {
+        // Set before draining, offer checks it under the buffer lock and passes the packet on itself once set
+        cancelled = true;
+        passBuffered();
+    }
+
+    private void passBuffered() {
+        while (true) {
+            Packet packet;
+            synchronized (buffer) {
+                packet = buffer.poll();
+            }
+            if (packet == null) {
+                break;
+            }
+            pass(packet);
+        }
+    }
+
+    /**
+     * Stop the receiver thread, publish or pass the packets of the receive it left outstanding, then close the
+     * handle. The subscriber completes once the buffered packets are delivered, which can no longer be sent.
+     *
+     * @throws InterruptedException If interrupted while waiting for the receiver thread to stop.
+     */
+    public void close() throws InterruptedException {
+        Thread r;
+        synchronized (this) {
+            closing = true;
+            r = receiver;
+        }
+        if (r != null) {
+            divert.wakeup();
+            r.join();
+            for (Packet packet : divert.drain(0, TimeUnit.MILLISECONDS)) {
+                publish(packet);
+            }
+        }
+        divert.close();
+        completed = true;
+        drain();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Get the number of packets lost because the buffer was full, with {@link OverflowPolicy#DROP_NEWEST} or
+     * {@link OverflowPolicy#DROP_OLDEST}.
+     *
+     * @return The number of packets.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Get the number of packets sent on unmodified: with {@link OverflowPolicy#PASS} because the buffer was full,
+     * or because the subscription was cancelled.
+     *
+     * @return The number of packets.
+     */
+    public long getPassed() {
+        return passed.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Get the number of packets waiting for demand.
+     *
+     * @return The number of packets.
+     */
+    public int getBuffered() {
+        synchronized (buffer) {
+            return buffer.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PacketPublisher {policy=%s, buffered=%d, received=%d, delivered=%d, dropped=%d, " +
+                "passed=%d}", policy, getBuffered(), getReceived(), getDelivered(), getDropped(), getPassed());
+    }
+
+    /**
+     * What to do with a packet received while the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Lose the received packet.
+         */
+        DROP_NEWEST,
+        /**
+         * Lose the oldest buffered packet, buffering the received one.
+         */
+        DROP_OLDEST,
+        /**
+         * Send the received packet on unmodified, without publishing it.
+         */
+        PASS
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reactive;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Flow.Subscriber} sending every packet it receives with a {@link WinDivert} handle, e.g. at the end of a
+ * chain of processors fed by a {@link PacketPublisher}.
+ * <p>
+ * Packets are requested in batches: a new batch is requested once three quarters of the previous one have been sent,
+ * so that the publisher always has demand and seldom buffers. Packets are sent as they are, modifications must keep
+ * their checksums valid.
+ * </p>
+ */
+public class PacketSink implements Flow.Subscriber<Packet> {
+
+    private final WinDivert divert;
+    private final int batchSize;
+    private final int limit;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Flow.Subscription subscription;
+    private volatile Throwable failure;
+    private int consumed;
+
+    /**
+     * Create a new {@link PacketSink}.
+     *
+     * @param divert    The open {@link WinDivert} handle to send with.
+     * @param batchSize The number of packets requested at once.
+     */
+    public PacketSink(WinDivert divert, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid batch size %d", batchSize));
+        }
+        this.divert = divert;
+        this.batchSize = batchSize;
+        this.limit = batchSize - batchSize / 4;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription s) {
+        if (subscription != null) {
+            s.cancel();
+            return;
+        }
+        subscription = s;
+        s.request(batchSize);
+    }
+
+    @Override
+    public void onNext(Packet packet) {
+        try {
+            send(packet);
+            sent.incrementAndGet();
+        } catch (WinDivertException e) {
+            errors.incrementAndGet();
+        }
+        if (++consumed == limit) {
+            consumed = 0;
+            subscription.request(limit);
+        }
+    }
+
+    /**
+     * Send a packet.
+     *
+     * @param packet The {@link Packet}.
+     * @throws WinDivertException If sending fails, the error is counted.
+     */
+    protected void send(Packet packet) throws WinDivertException {
+        divert.send(packet, false);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        failure = throwable;
+        done.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+        done.countDown();
+    }
+
+    /**
+     * Stop receiving packets.
+     */
+    public void cancel() {
+        Flow.Subscription s = subscription;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    /**
+     * Wait for the publisher to complete or fail.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit    The {@link TimeUnit} of the timeout.
+     * @return True if done, false if the timeout elapsed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Get the failure the publisher ended with.
+     *
+     * @return The cause, {@code null} if not failed.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PacketSink {sent=%d, errors=%d, done=%s}", getSent(), getErrors(), isDone());
+    }
+}
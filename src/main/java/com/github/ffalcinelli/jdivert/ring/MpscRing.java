@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.ring;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link Ring} for any number of producer threads and one consumer thread.
+ * <p>
+ * Producers claim a batch of slots by moving the shared producer index with a compare and set, fill the slots, then
+ * mark each one published with its sequence number. The consumer takes the published slots following its index, so a
+ * producer slow to publish holds back the later slots but never exposes an unfilled one.
+ * </p>
+ *
+ * @param <E> The element type.
+ */
+public class MpscRing<E> extends Ring<E> {
+
+    private final AtomicLongArray published;
+    private final Sequence headCache = new Sequence();
+
+    /**
+     * Create a new {@link MpscRing}.
+     *
+     * @param capacity     The capacity, rounded up to a power of two.
+     * @param waitStrategy The {@link WaitStrategy} of blocking calls.
+     */
+    public MpscRing(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+        published = new AtomicLongArray(elements.length);
+        for (int i = 0; i < elements.length; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    @Override
+    public boolean offer(E element, long meta) {
+        int capacity = elements.length;
+        long t;
+        do {
+            t = tail.get();
+            long h = headCache.get();
+            if (t - h >= capacity) {
+                h = head.get();
+                headCache.lazySet(h);
+                if (t - h >= capacity) {
+                    return false;
+                }
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        int index = (int) t & mask;
+        elements[index] = element;
+        metas[index] = meta;
+        published.lazySet(index, t);
+        return true;
+    }
+
+    @Override
+    public int offer(Object[] batch, long[] metas, int offset, int count) {
+        int capacity = elements.length;
+        long t;
+        int n;
+        do {
+            t = tail.get();
+            long h = headCache.get();
+            if (t - h + count > capacity) {
+                h = head.get();
+                headCache.lazySet(h);
+            }
+            n = (int) Math.min(count, capacity - (t - h));
+            if (n <= 0) {
+                return 0;
+            }
+        } while (!tail.compareAndSet(t, t + n));
+        for (int i = 0; i < n; i++) {
+            int index = (int) (t + i) & mask;
+            elements[index] = batch[offset + i];
+            this.metas[index] = metas == null ? 0 : metas[offset + i];
+        }
+        // Publish in order, the consumer stops at the first unpublished slot anyway
+        for (int i = 0; i < n; i++) {
+            published.lazySet((int) (t + i) & mask, t + i);
+        }
+        return n;
+    }
+
+    @Override
+    int available(long h, int max) {
+        int n = 0;
+        while (n < max && published.get((int) (h + n) & mask) == h + n) {
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.ring;
+
+/**
+ * A bounded, preallocated, lock free ring handing elements with a long of metadata each (e.g. a buffer index, a flow
+ * hash or a timestamp) from producer to consumer threads, without allocating.
+ * <p>
+ * Producers and consumers work in batches: a batch is claimed at once and published at once, so the indexes shared
+ * between threads are touched once per batch rather than once per element. Indexes sit on their own cache lines.
+ * Offering and draining never block; {@link #put(Object, long)} and {@link #take(Consumer, int)} wait with the
+ * {@link WaitStrategy} of the ring.
+ * </p>
+ *
+ * @param <E> The element type.
+ */
+public abstract class Ring<E> {
+
+    final Object[] elements;
+    final long[] metas;
+    final int mask;
+    final Sequence head = new Sequence();
+    final Sequence tail = new Sequence();
+    private final WaitStrategy waitStrategy;
+
+    Ring(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException(String.format("Invalid capacity %d", capacity));
+        }
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        this.elements = new Object[n];
+        this.metas = new long[n];
+        this.mask = n - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Add an element if there is room.
+     *
+     * @param element The element, not {@code null}.
+     * @param meta    The metadata of the element.
+     * @return True if added, false if the ring is full.
+     */
+    public abstract boolean offer(E element, long meta);
+
+    /**
+     * Add an element if there is room, with no metadata.
+     *
+     * @param element The element, not {@code null}.
+     * @return True if added, false if the ring is full.
+     */
+    public boolean offer(E element) {
+        return offer(element, 0);
+    }
+
+    /**
+     * Add as many elements of a batch as there is room for, claiming and publishing them at once.
+     *
+     * @param batch  The elements, none {@code null}.
+     * @param metas  The metadata of the elements, or {@code null}.
+     * @param offset The offset of the first element to add.
+     * @param count  The number of elements to add.
+     * @return The number of elements added, the first ones of the batch.
+     */
+    public abstract int offer(Object[] batch, long[] metas, int offset, int count);
+
+    /**
+     * Add an element, waiting for room.
+     *
+     * @param element The element, not {@code null}.
+     * @param meta    The metadata of the element.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void put(E element, long meta) throws InterruptedException {
+        int counter = 0;
+        while (!offer(element, meta)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            counter = waitStrategy.idle(counter);
+        }
+    }
+
+    /**
+     * Remove the available elements, up to a maximum, publishing the freed room at once. Only one thread may drain.
+     * If the consumer throws, the elements it was given stay removed, the failing one included, and the exception is
+     * rethrown.
+     *
+     * @param consumer The {@link Consumer} of the elements, in ring order.
+     * @param max      The maximum number of elements to remove.
+     * @return The number of elements removed.
+     */
+    public int drain(Consumer<? super E> consumer, int max) {
+        long h = head.get();
+        int n = available(h, max);
+        int removed = 0;
+        try {
+            while (removed < n) {
+                int index = (int) (h + removed) & mask;
+                @SuppressWarnings("unchecked")
+                E element = (E) elements[index];
+                elements[index] = null;
+                removed++;
+                consumer.accept(element, metas[index]);
+            }
+        } finally {
+            if (removed > 0) {
+                head.lazySet(h + removed);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Remove the available elements, up to a maximum, waiting for at least one. Only one thread may take.
+     *
+     * @param consumer The {@link Consumer} of the elements, in ring order.
+     * @param max      The maximum number of elements to remove.
+     * @return The number of elements removed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public int take(Consumer<? super E> consumer, int max) throws InterruptedException {
+        int counter = 0;
+        int n;
+        while ((n = drain(consumer, max)) == 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            counter = waitStrategy.idle(counter);
+        }
+        return n;
+    }
+
+    /**
+     * Remove the next element.
+     *
+     * @return The element, {@code null} if the ring is empty.
+     */
+    public E poll() {
+        long h = head.get();
+        if (available(h, 1) == 0) {
+            return null;
+        }
+        int index = (int) h & mask;
+        @SuppressWarnings("unchecked")
+        E element = (E) elements[index];
+        elements[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * Count the published elements from the consumer index, up to a maximum.
+     */
+    abstract int available(long head, int max);
+
+    public int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * Get the number of elements, an estimate while producers and consumers are running.
+     *
+     * @return The number of elements.
+     */
+    public int size() {
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(t - h, elements.length));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s {capacity=%d, size=%d, waitStrategy=%s}",
+                getClass().getSimpleName(), capacity(), size(), waitStrategy);
+    }
+
+    /**
+     * Receives the elements removed from a {@link Ring}.
+     *
+     * @param <E> The element type.
+     */
+    public interface Consumer<E> {
+        /**
+         * Accept an element.
+         *
+         * @param element The element.
+         * @param meta    The metadata it was added with.
+         */
+        void accept(E element, long meta);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.ring;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Left padding of {@link Sequence}.
+ */
+class SequencePad {
+    long p0, p1, p2, p3, p4, p5, p6;
+}
+
+/**
+ * The value of {@link Sequence}, between its paddings.
+ */
+class SequenceValue extends SequencePad {
+    volatile long value;
+    /**
+     * The index of the other side as last read by the owner of this one, sharing its cache line.
+     */
+    long cache;
+}
+
+/**
+ * A counter alone on its cache line, so that the producer and consumer indexes of a ring do not falsely share one.
+ * Superclass fields are laid out first, which keeps the value between the two paddings.
+ */
+class Sequence extends SequenceValue {
+
+    private static final AtomicLongFieldUpdater<SequenceValue> UPDATER =
+            AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+    long p9, p10, p11, p12, p13, p14, p15;
+
+    long get() {
+        return value;
+    }
+
+    /**
+     * Store with release semantics only, cheaper than a volatile store: enough to publish what was written before.
+     */
+    void lazySet(long v) {
+        UPDATER.lazySet(this, v);
+    }
+
+    boolean compareAndSet(long expected, long v) {
+        return UPDATER.compareAndSet(this, expected, v);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.ring;
+
+/**
+ * A {@link Ring} for exactly one producer thread and one consumer thread.
+ * <p>
+ * Each side owns its index and keeps a cached copy of the other one, read again only when the cache says the ring
+ * is full, or empty: in steady state neither side reads the cache line the other writes. Publishing is an ordered
+ * store, without the full fence of a volatile write.
+ * </p>
+ *
+ * @param <E> The element type.
+ */
+public class SpscRing<E> extends Ring<E> {
+
+    /**
+     * Create a new {@link SpscRing}.
+     *
+     * @param capacity     The capacity, rounded up to a power of two.
+     * @param waitStrategy The {@link WaitStrategy} of blocking calls.
+     */
+    public SpscRing(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+    }
+
+    private int room(long t, int count) {
+        int capacity = elements.length;
+        if (t - tail.cache + count > capacity) {
+            tail.cache = head.get();
+        }
+        return (int) Math.min(count, capacity - (t - tail.cache));
+    }
+
+    @Override
+    public boolean offer(E element, long meta) {
+        long t = tail.get();
+        if (room(t, 1) < 1) {
+            return false;
+        }
+        int index = (int) t & mask;
+        elements[index] = element;
+        metas[index] = meta;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    @Override
+    public int offer(Object[] batch, long[] metas, int offset, int count) {
+        long t = tail.get();
+        int n = room(t, count);
+        for (int i = 0; i < n; i++) {
+            int index = (int) (t + i) & mask;
+            elements[index] = batch[offset + i];
+            this.metas[index] = metas == null ? 0 : metas[offset + i];
+        }
+        if (n > 0) {
+            tail.lazySet(t + n);
+        }
+        return n;
+    }
+
+    @Override
+    int available(long h, int max) {
+        if (head.cache - h < max) {
+            head.cache = tail.get();
+        }
+        return (int) Math.min(max, head.cache - h);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.ring;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits for a {@link Ring} to have room or elements, trading latency for CPU.
+ */
+public enum WaitStrategy {
+    /**
+     * Retry at once: lowest latency, burns a core per waiting thread.
+     */
+    BUSY_SPIN {
+        @Override
+        public int idle(int counter) {
+            return counter + 1;
+        }
+    },
+    /**
+     * Give the processor to other threads between retries.
+     */
+    YIELD {
+        @Override
+        public int idle(int counter) {
+            Thread.yield();
+            return counter + 1;
+        }
+    },
+    /**
+     * Spin, then yield, then sleep a little between retries: close to idle when there is no traffic, at the cost of
+     * up to {@link #PARK_NANOS} of latency on the first packet of a burst.
+     */
+    PARK {
+        @Override
+        public int idle(int counter) {
+            if (counter >= 200) {
+                LockSupport.parkNanos(PARK_NANOS);
+            } else if (counter >= 100) {
+                Thread.yield();
+            }
+            return counter + 1;
+        }
+    };
+
+    /**
+     * The time {@link #PARK} sleeps once spinning and yielding did not help.
+     */
+    public static final long PARK_NANOS = 50000;
+
+    /**
+     * Wait before retrying.
+     *
+     * @param counter The number of retries so far, 0 on the first one.
+     * @return The counter to pass to the next call.
+     */
+    public abstract int idle(int counter);
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.flow.ProbeTable;
+
+/**
+ * A concurrent map from a key of four longs plus a tag to a {@link TokenBucket}, created full on first use.
+ * <p>
+ * Entries live in {@link ProbeTable probe tables} split in segments with their own lock, held only for the
+ * lookup: buckets are updated outside of it, lock-free. Lookups of existing keys do not allocate.
+ * </p>
+ */
+class BucketTable {
+
+    private final long rate;
+    private final long burst;
+    private final Segment[] segments;
+
+    BucketTable(long rate, long burst, int concurrency) {
+        this.rate = rate;
+        this.burst = burst;
+        int n = 1;
+        while (n < concurrency) {
+            n <<= 1;
+        }
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    static int hash(long k0, long k1, long k2, long k3, long tag) {
+        long h = k0;
+        h = h * 0x9E3779B97F4A7C15L + k1;
+        h = h * 0x9E3779B97F4A7C15L + k2;
+        h = h * 0x9E3779B97F4A7C15L + k3;
+        h = h * 0x9E3779B97F4A7C15L + tag;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    TokenBucket get(long k0, long k1, long k2, long k3, long tag) {
+        int h = hash(k0, k1, k2, k3, tag);
+        return segments[(h >>> 24) & (segments.length - 1)].get(k0, k1, k2, k3, tag, h);
+    }
+
+    int expire(long now) {
+        int removed = 0;
+        for (Segment segment : segments) {
+            removed += segment.expire(now);
+        }
+        return removed;
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private class Segment {
+        private final ProbeTable<TokenBucket> table = new ProbeTable<TokenBucket>(5, 5, 16);
+        private final long[] key = new long[5];
+
+        synchronized TokenBucket get(long k0, long k1, long k2, long k3, long tag, int h) {
+            key[0] = k0;
+            key[1] = k1;
+            key[2] = k2;
+            key[3] = k3;
+            key[4] = tag;
+            int i = table.find(key, h);
+            if (i >= 0) {
+                return table.value(i);
+            }
+            TokenBucket bucket = new TokenBucket(rate, burst);
+            table.add(key, h, bucket);
+            return bucket;
+        }
+
+        synchronized int expire(final long now) {
+            return table.removeIf(new ProbeTable.Selector() {
+                @Override
+                public boolean select(int slot) {
+                    // Full buckets carry no state; a thread that just looked one up may charge the discarded copy once
+                    return table.value(slot).isFull(now);
+                }
+            });
+        }
+
+        synchronized int size() {
+            return table.size();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+/**
+ * The CoDel (Controlled Delay) active queue management control law, RFC 8289.
+ * <p>
+ * CoDel looks at the sojourn time of the packets leaving a queue. Once it has stayed above {@code target} for a whole
+ * {@code interval}, the queue is deemed to be a standing queue and CoDel enters the dropping state: it drops (or marks)
+ * one packet, then the next ones at intervals shrinking with the inverse square root of the number of drops, until
+ * the sojourn time falls below target again. Each queue needs its own {@link Codel}.
+ * </p>
+ * The class is not thread safe.
+ */
+public class Codel {
+
+    /**
+     * The default target sojourn time, 5 milliseconds.
+     */
+    public static final long DEFAULT_TARGET = 5000000L;
+    /**
+     * The default interval, 100 milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL = 100000000L;
+
+    private final long target;
+    private final long interval;
+    private final int mtu;
+    private long firstAboveTime;
+    private long dropNext;
+    private int count;
+    private int lastCount;
+    private boolean dropping;
+
+    /**
+     * Create a new {@link Codel} with the default target and interval.
+     */
+    public Codel() {
+        this(DEFAULT_TARGET, DEFAULT_INTERVAL, 1500);
+    }
+
+    /**
+     * Create a new {@link Codel}.
+     *
+     * @param target   The acceptable standing queue delay in nanoseconds.
+     * @param interval The time in nanoseconds a queue may stay above target, in the order of a worst case round trip.
+     * @param mtu      The maximum packet size, a queue holding no more than that is never dropped from.
+     */
+    public Codel(long target, long interval, int mtu) {
+        if (target <= 0 || interval <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid target %d or interval %d", target, interval));
+        }
+        this.target = target;
+        this.interval = interval;
+        this.mtu = mtu;
+    }
+
+    private long controlLaw(long t, int count) {
+        return t + (long) (interval / Math.sqrt(count));
+    }
+
+    private boolean okToDrop(long sojourn, long now, long backlog) {
+        if (sojourn < target || backlog <= mtu) {
+            firstAboveTime = 0;
+            return false;
+        }
+        if (firstAboveTime == 0) {
+            firstAboveTime = now + interval;
+            return false;
+        }
+        return now - firstAboveTime >= 0;
+    }
+
+    /**
+     * Decide the fate of a packet just taken from the queue. When the packet is dropped the caller takes the next one
+     * and asks again; when it is marked instead the caller sends it and stops.
+     *
+     * @param sojourn The time the packet spent in the queue, in nanoseconds.
+     * @param now     The current time in nanoseconds.
+     * @param backlog The bytes left in the queue after the packet.
+     * @return True if the packet must be dropped, or marked as having experienced congestion.
+     */
+    public boolean shouldDrop(long sojourn, long now, long backlog) {
+        boolean ok = okToDrop(sojourn, now, backlog);
+        if (dropping) {
+            if (!ok) {
+                dropping = false;
+                return false;
+            }
+            if (now - dropNext >= 0) {
+                count++;
+                dropNext = controlLaw(dropNext, count);
+                return true;
+            }
+            return false;
+        }
+        if (ok) {
+            dropping = true;
+            // Resume near the previous drop rate if the last dropping state ended recently
+            int delta = count - lastCount;
+            count = delta > 1 && now - dropNext < 16 * interval ? delta : 1;
+            dropNext = controlLaw(now, count);
+            lastCount = count;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Notify the queue has been found empty.
+     */
+    public void empty() {
+        firstAboveTime = 0;
+        dropping = false;
+    }
+
+    public boolean isDropping() {
+        return dropping;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Codel {target=%d, interval=%d, dropping=%b, count=%d}", target, interval, dropping, count);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+
+/**
+ * Reads and rewrites the Differentiated Services field of Ipv4 and Ipv6 packets in place: the 6 bit DSCP and the 2 bit
+ * ECN code point. Rewrites keep the Ipv4 header checksum valid, updating it incrementally.
+ */
+public final class DiffServ {
+
+    /**
+     * The ECN code point of packets whose transport does not support ECN.
+     */
+    public static final int NOT_ECT = 0;
+    /**
+     * The ECN code point of packets whose transport supports ECN, ECT(1).
+     */
+    public static final int ECT_1 = 1;
+    /**
+     * The ECN code point of packets whose transport supports ECN, ECT(0).
+     */
+    public static final int ECT_0 = 2;
+    /**
+     * The ECN code point of packets which experienced congestion.
+     */
+    public static final int CE = 3;
+
+    private DiffServ() {
+    }
+
+    private static int get(Packet packet) {
+        byte[] d = packet.getByteBuffer().array();
+        // Ipv6 carries the traffic class across the version and the flow label
+        return packet.isIpv4() ? d[1] & 0xFF : ((d[0] & 0x0F) << 4) | ((d[1] & 0xF0) >> 4);
+    }
+
+    private static void set(Packet packet, int value) {
+        byte[] d = packet.getByteBuffer().array();
+        if (packet.isIpv4()) {
+            int old = ((d[0] & 0xFF) << 8) | (d[1] & 0xFF);
+            int checksum = Checksums.update(((d[10] & 0xFF) << 8) | (d[11] & 0xFF), old, (old & 0xFF00) | value);
+            d[1] = (byte) value;
+            d[10] = (byte) (checksum >> 8);
+            d[11] = (byte) checksum;
+        } else {
+            d[0] = (byte) ((d[0] & 0xF0) | (value >> 4));
+            d[1] = (byte) ((d[1] & 0x0F) | ((value & 0x0F) << 4));
+        }
+    }
+
+    /**
+     * Get the DSCP of a packet.
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     * @return The DSCP, from 0 to 63.
+     */
+    public static int getDscp(Packet packet) {
+        return get(packet) >> 2;
+    }
+
+    /**
+     * Set the DSCP of a packet, keeping its ECN code point.
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     * @param dscp   The DSCP, from 0 to 63.
+     */
+    public static void setDscp(Packet packet, int dscp) {
+        if (dscp < 0 || dscp > 63) {
+            throw new IllegalArgumentException(String.format("Invalid DSCP %d", dscp));
+        }
+        set(packet, (dscp << 2) | (get(packet) & 0x03));
+    }
+
+    /**
+     * Get the ECN code point of a packet.
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     * @return The ECN code point, one of {@link #NOT_ECT}, {@link #ECT_1}, {@link #ECT_0} or {@link #CE}.
+     */
+    public static int getEcn(Packet packet) {
+        return get(packet) & 0x03;
+    }
+
+    /**
+     * Set the ECN code point of a packet, keeping its DSCP.
+     *
+     * @param packet The Ipv4 or Ipv6 {@link Packet}.
+     * @param ecn    The ECN code point, one of {@link #NOT_ECT}, {@link #ECT_1}, {@link #ECT_0} or {@link #CE}.
+     */
+    public static void setEcn(Packet packet, int ecn) {
+        if (ecn < 0 || ecn > 3) {
+            throw new IllegalArgumentException(String.format("Invalid ECN code point %d", ecn));
+        }
+        set(packet, (get(packet) & 0xFC) | ecn);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+import com.github.ffalcinelli.jdivert.flow.FlowHash;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The FQ-CoDel queue discipline, RFC 8290: flow queuing with CoDel on every queue.
+ * <p>
+ * Packets are hashed by 5-tuple into a fixed number of queues, each managed by its own {@link Codel}, served by
+ * deficit round robin. Queues becoming active join a list of new flows served before the old ones, so sparse flows
+ * (DNS, interactive sessions, TCP handshakes) jump ahead of the bulk ones. When the discipline is full the head of
+ * the fattest queue is dropped. Packets and queues live in preallocated arrays linked by index, so queuing does not
+ * allocate.
+ * </p>
+ * The class is thread safe.
+ */
+public class FqCodel extends PacedSender {
+
+    private static final int NONE = 0;
+    private static final int NEW = 1;
+    private static final int OLD = 2;
+
+    private final int quantum;
+    private final SojournHistogram histogram = new SojournHistogram();
+    private final Packet[] packets;
+    private final long[] times;
+    private final int[] next;
+    private final int[] heads;
+    private final int[] tails;
+    private final long[] bytes;
+    private final int[] deficits;
+    private final int[] lists;
+    private final int[] links;
+    private final Codel[] codels;
+    private final int[] newFlows = {-1, -1};
+    private final int[] oldFlows = {-1, -1};
+    private int free;
+    private int queued;
+
+    /**
+     * Create a new {@link FqCodel}.
+     *
+     * @param divert    The open {@link WinDivert} handle to send with.
+     * @param pool      The {@link BufferPool} where to release buffers of sent and dropped packets, may be
+     *                  {@code null}.
+     * @param linkRate  The link rate in bytes per second to pace sending to, 0 to send as fast as possible.
+     * @param batchSize The maximum number of packets sent at once.
+     * @param flows     The number of flow queues, e.g. 1024.
+     * @param limit     The maximum number of queued packets over all the flows.
+     * @param target    The CoDel target in nanoseconds, e.g. {@link Codel#DEFAULT_TARGET}.
+     * @param interval  The CoDel interval in nanoseconds, e.g. {@link Codel#DEFAULT_INTERVAL}.
+     */
+    public FqCodel(WinDivert divert, BufferPool pool, long linkRate, int batchSize, int flows, int limit,
+                   long target, long interval) {
+        super(divert, pool, linkRate, batchSize, "jdivert-fq-codel");
+        if (flows <= 0 || limit <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid flows %d or limit %d", flows, limit));
+        }
+        this.quantum = 1514;
+        this.packets = new Packet[limit];
+        this.times = new long[limit];
+        this.next = new int[limit];
+        for (int i = 0; i < limit; i++) {
+            next[i] = i + 1;
+        }
+        next[limit - 1] = -1;
+        this.heads = new int[flows];
+        this.tails = new int[flows];
+        Arrays.fill(heads, -1);
+        Arrays.fill(tails, -1);
+        this.bytes = new long[flows];
+        this.deficits = new int[flows];
+        this.lists = new int[flows];
+        this.links = new int[flows];
+        this.codels = new Codel[flows];
+        for (int i = 0; i < flows; i++) {
+            codels[i] = new Codel(target, interval, quantum);
+        }
+    }
+
+    /**
+     * Queue a packet. Ownership of its buffer passes to the discipline, which may drop it later, or at once if
+     * stopped.
+     *
+     * @param packet The {@link Packet} to queue.
+     */
+    public void enqueue(Packet packet) {
+        enqueue(packet, FlowHash.hash(packet));
+    }
+
+    /**
+     * Queue a packet in the queue of a given flow hash. Ownership of its buffer passes to the discipline, which may
+     * drop it later, or at once if stopped.
+     *
+     * @param packet The {@link Packet} to queue.
+     * @param hash   The flow hash.
+     */
+    public synchronized void enqueue(Packet packet, int hash) {
+        if (isStopped()) {
+            drop(packet);
+            return;
+        }
+        if (free < 0) {
+            dropFattest();
+        }
+        int flow = (hash & Integer.MAX_VALUE) % heads.length;
+        int node = free;
+        free = next[node];
+        packets[node] = packet;
+        times[node] = nanoTime();
+        next[node] = -1;
+        if (tails[flow] < 0) {
+            heads[flow] = node;
+        } else {
+            next[tails[flow]] = node;
+        }
+        tails[flow] = node;
+        bytes[flow] += packet.getByteBuffer().capacity();
+        if (lists[flow] == NONE) {
+            append(newFlows, flow);
+            lists[flow] = NEW;
+            deficits[flow] = quantum;
+        }
+        queued++;
+        enqueued();
+    }
+
+    private void dropFattest() {
+        int fattest = 0;
+        for (int i = 1; i < bytes.length; i++) {
+            if (bytes[i] > bytes[fattest]) {
+                fattest = i;
+            }
+        }
+        drop(pop(fattest));
+    }
+
+    private Packet pop(int flow) {
+        int node = heads[flow];
+        if (node < 0) {
+            return null;
+        }
+        Packet packet = packets[node];
+        packets[node] = null;
+        heads[flow] = next[node];
+        if (heads[flow] < 0) {
+            tails[flow] = -1;
+        }
+        next[node] = free;
+        free = node;
+        bytes[flow] -= packet.getByteBuffer().capacity();
+        queued--;
+        return packet;
+    }
+
+    private void append(int[] list, int flow) {
+        links[flow] = -1;
+        if (list[1] < 0) {
+            list[0] = flow;
+        } else {
+            links[list[1]] = flow;
+        }
+        list[1] = flow;
+    }
+
+    private int removeHead(int[] list) {
+        int flow = list[0];
+        list[0] = links[flow];
+        if (list[0] < 0) {
+            list[1] = -1;
+        }
+        return flow;
+    }
+
+    @Override
+    public synchronized Packet dequeue(long now) {
+        while (true) {
+            int[] list = newFlows[0] >= 0 ? newFlows : oldFlows[0] >= 0 ? oldFlows : null;
+            if (list == null) {
+                return null;
+            }
+            int flow = list[0];
+            if (deficits[flow] <= 0) {
+                deficits[flow] += quantum;
+                removeHead(list);
+                append(oldFlows, flow);
+                lists[flow] = OLD;
+                continue;
+            }
+            Packet packet = poll(flow, now);
+            if (packet == null) {
+                removeHead(list);
+                // An emptied new flow goes through the old list once, so that it cannot starve the old flows
+                if (list == newFlows) {
+                    append(oldFlows, flow);
+                    lists[flow] = OLD;
+                } else {
+                    lists[flow] = NONE;
+                }
+                continue;
+            }
+            deficits[flow] -= packet.getByteBuffer().capacity();
+            return packet;
+        }
+    }
+
+    /**
+     * Take the head of a flow queue, dropping it and the following ones while CoDel says so.
+     */
+    private Packet poll(int flow, long now) {
+        Codel codel = codels[flow];
+        while (heads[flow] >= 0) {
+            long sojourn = now - times[heads[flow]];
+            Packet packet = pop(flow);
+            histogram.record(sojourn);
+            if (!codel.shouldDrop(sojourn, now, bytes[flow])) {
+                return packet;
+            }
+            if (DiffServ.getEcn(packet) != DiffServ.NOT_ECT) {
+                DiffServ.setEcn(packet, DiffServ.CE);
+                return packet;
+            }
+            drop(packet);
+        }
+        codel.empty();
+        return null;
+    }
+
+    /**
+     * Get the sojourn times of the packets which left the queues.
+     *
+     * @return The {@link SojournHistogram}.
+     */
+    public SojournHistogram getSojournHistogram() {
+        return histogram;
+    }
+
+    @Override
+    protected void removeAll(List<Packet> out) {
+        for (int flow = 0; flow < heads.length; flow++) {
+            while (heads[flow] >= 0) {
+                out.add(pop(flow));
+            }
+            lists[flow] = NONE;
+        }
+        newFlows[0] = newFlows[1] = -1;
+        oldFlows[0] = oldFlows[1] = -1;
+    }
+
+    @Override
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FqCodel {flows=%d, queued=%d, sent=%d, dropped=%d, errors=%d}",
+                heads.length, getQueued(), getSent(), getDropped(), getErrors());
+    }
+}
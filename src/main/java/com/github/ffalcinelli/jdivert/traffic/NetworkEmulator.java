@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+
+import java.util.Random;
+
+/**
+ * Emulates a bad network in the manner of Linux netem: delay with jitter, loss, reordering, duplication and a
+ * bandwidth cap.
+ * <p>
+ * Packets {@link #emulate(Packet) emulated} are parked in a {@link Shaper}, whose sender thread reinjects them in
+ * batches when their delay has elapsed. Create one emulator per flow or per diverting filter to impair each
+ * differently; emulators can share the same {@link Shaper}. Correlated loss repeats the previous outcome with a
+ * probability equal to the correlation and draws a new one otherwise, which lengthens loss bursts while keeping the
+ * loss rate. Correlated jitter is {@code correlation * previous + sqrt(1 - correlation^2) * random}, which keeps its
+ * variance.
+ * </p><p>
+ * All the random choices come from a generator seeded at construction, so the same sequence of packets, at the same
+ * times, is impaired the same way on every run.
+ * </p>
+ * The class is thread safe.
+ */
+public class NetworkEmulator {
+
+    private static final long NANOS = 1000000000L;
+
+    private final Shaper shaper;
+    private final BufferPool pool;
+    private final Random random;
+    private long delay;
+    private long jitter;
+    private Distribution distribution = Distribution.UNIFORM;
+    private double jitterCorrelation;
+    private double loss;
+    private double lossCorrelation;
+    private double duplicate;
+    private double reorder;
+    private long rate;
+    private double lastJitter;
+    private boolean lastLost;
+    private long busyUntil = Long.MIN_VALUE;
+    private long lost;
+    private long duplicated;
+    private long reordered;
+
+    /**
+     * Create a new {@link NetworkEmulator} letting packets through unchanged until configured.
+     *
+     * @param shaper The {@link Shaper} holding the delayed packets.
+     * @param pool   The {@link BufferPool} where to take the buffers of duplicates, may be {@code null}.
+     * @param seed   The seed of the random choices.
+     */
+    public NetworkEmulator(Shaper shaper, BufferPool pool, long seed) {
+        this.shaper = shaper;
+        this.pool = pool;
+        this.random = new Random(seed);
+    }
+
+    private static void checkProbability(double probability, String name) {
+        if (probability < 0 || probability > 1) {
+            throw new IllegalArgumentException(String.format("Invalid %s %f", name, probability));
+        }
+    }
+
+    /**
+     * Delay every packet.
+     *
+     * @param delayNanos The fixed delay in nanoseconds.
+     * @return this instance to allow call chaining.
+     */
+    public synchronized NetworkEmulator delay(long delayNanos) {
+        if (delayNanos < 0) {
+            throw new IllegalArgumentException(String.format("Invalid delay %d", delayNanos));
+        }
+        this.delay = delayNanos;
+        return this;
+    }
+
+    /**
+     * Vary the delay of every packet. Delays never go below zero.
+     *
+     * @param jitterNanos  The jitter in nanoseconds: the bound of the {@link Distribution#UNIFORM uniform} variation,
+     *                     or the standard deviation of the {@link Distribution#NORMAL normal} one.
+     * @param distribution The {@link Distribution} of the variation.
+     * @param correlation  The correlation with the previous variation, between 0 and 1.
+     * @return this instance to allow call chaining.
+     */
+    public synchronized NetworkEmulator jitter(long jitterNanos, Distribution distribution, double correlation) {
+        if (jitterNanos < 0) {
+            throw new IllegalArgumentException(String.format("Invalid jitter %d", jitterNanos));
+        }
+        checkProbability(correlation, "correlation");
+        this.jitter = jitterNanos;
+        this.distribution = distribution;
+        this.jitterCorrelation = correlation;
+        return this;
+    }
+
+    /**
+     * Drop packets.
+     *
+     * @param probability The probability a packet is lost.
+     * @param correlation The probability the previous outcome repeats, to lose packets in bursts.
+     * @return this instance to allow call chaining.
+     */
+    public synchronized NetworkEmulator loss(double probability, double correlation) {
+        checkProbability(probability, "loss probability");
+        checkProbability(correlation, "correlation");
+        this.loss = probability;
+        this.lossCorrelation = correlation;
+        return this;
+    }
+
+    /**
+     * Send packets twice.
+     *
+     * @param probability The probability a packet is duplicated.
+     * @return this instance to allow call chaining.
+     */
+    public synchronized NetworkEmulator duplicate(double probability) {
+        checkProbability(probability, "duplicate probability");
+        this.duplicate = probability;
+        return this;
+    }
+
+    /**
+     * Send packets out of order, by sending some at once while the others are delayed.
+     *
+     * @param probability The probability a packet skips the delay.
+     * @return this instance to allow call chaining.
+     */
+    public synchronized NetworkEmulator reorder(double probability) {
+        checkProbability(probability, "reorder probability");
+        this.reorder = probability;
+        return this;
+    }
+
+    /**
+     * Cap the bandwidth, queuing the packets behind each other once delayed.
+     *
+     * @param bytesPerSecond The bandwidth in bytes per second, 0 for no cap.
+     * @return this instance to allow call chaining.
+     */
+    public synchronized NetworkEmulator rate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException(String.format("Invalid rate %d", bytesPerSecond));
+        }
+        this.rate = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Impair a packet. Ownership of its buffer passes to the emulator only when this method returns true.
+     *
+     * @param packet The {@link Packet} to impair.
+     * @return True if the packet will be sent, false if it is lost or the {@link Shaper} is full.
+     */
+    public boolean emulate(Packet packet) {
+        return emulate(packet, shaper.nanoTime());
+    }
+
+    /**
+     * Impair a packet. Ownership of its buffer passes to the emulator only when this method returns true.
+     *
+     * @param packet The {@link Packet} to impair.
+     * @param now    The current time in nanoseconds.
+     * @return True if the packet will be sent, false if it is lost or the {@link Shaper} is full.
+     */
+    public synchronized boolean emulate(Packet packet, long now) {
+        if (loss > 0) {
+            if (lossCorrelation == 0 || random.nextDouble() >= lossCorrelation) {
+                lastLost = random.nextDouble() < loss;
+            }
+            if (lastLost) {
+                lost++;
+                return false;
+            }
+        }
+        long deadline = now;
+        if (reorder > 0 && random.nextDouble() < reorder) {
+            reordered++;
+        } else {
+            deadline += delay;
+            if (jitter > 0) {
+                double variation = distribution == Distribution.NORMAL ? random.nextGaussian()
+                        : 2 * random.nextDouble() - 1;
+                lastJitter = jitterCorrelation * lastJitter
+                        + Math.sqrt(1 - jitterCorrelation * jitterCorrelation) * variation;
+                deadline = Math.max(deadline + (long) (lastJitter * jitter), now);
+            }
+        }
+        if (rate > 0) {
+            deadline = Math.max(deadline, busyUntil);
+            busyUntil = deadline + packet.getByteBuffer().capacity() * NANOS / rate;
+        }
+        Packet copy = duplicate > 0 && random.nextDouble() < duplicate ? copy(packet) : null;
+        boolean scheduled = shaper.schedule(packet, deadline);
+        if (copy != null) {
+            if (scheduled && shaper.schedule(copy, deadline)) {
+                duplicated++;
+            } else if (pool != null) {
+                pool.release(copy);
+            }
+        }
+        return scheduled;
+    }
+
+    private Packet copy(Packet packet) {
+        int length = packet.getByteBuffer().capacity();
+        byte[] buffer = pool != null && length <= pool.getBufferSize() ? pool.acquire() : new byte[length];
+        System.arraycopy(packet.getByteBuffer().array(), 0, buffer, 0, length);
+        return new Packet(buffer, length, packet.getIface().clone(), packet.getDirection());
+    }
+
+    public synchronized long getLost() {
+        return lost;
+    }
+
+    public synchronized long getDuplicated() {
+        return duplicated;
+    }
+
+    public synchronized long getReordered() {
+        return reordered;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("NetworkEmulator {delay=%d, jitter=%d, loss=%f, duplicate=%f, reorder=%f, rate=%d}",
+                delay, jitter, loss, duplicate, reorder, rate);
+    }
+
+    /**
+     * The distribution of the delay variation.
+     */
+    public enum Distribution {
+        UNIFORM, NORMAL
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base of the queue disciplines sending from a dedicated thread, in batches, paced to a link rate.
+ * <p>
+ * Subclasses hold the queues and pick the next packet in {@link #dequeue(long)}, both guarded by the instance lock,
+ * call {@link #enqueued()} after queuing a packet and refuse packets once {@link #isStopped() stopped}. When a link
+ * rate is given the sender thread never takes packets further ahead than the link can carry, so that the backlog
+ * stays in the discipline, where it can be ordered or managed, rather than downstream.
+ * </p>
+ * The class is thread safe.
+ */
+public abstract class PacedSender {
+
+    private static final long NANOS = 1000000000L;
+    private static final long WINDOW = 1000000L;
+
+    private final WinDivert divert;
+    private final BufferPool pool;
+    private final long linkRate;
+    private final int batchSize;
+    private final String name;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private long next = Long.MIN_VALUE;
+    private Thread thread;
+    private boolean stopped;
+
+    /**
+     * Create a new {@link PacedSender}.
+     *
+     * @param divert    The open {@link WinDivert} handle to send with.
+     * @param pool      The {@link BufferPool} where to release buffers of sent and dropped packets, may be
+     *                  {@code null}.
+     * @param linkRate  The link rate in bytes per second to pace sending to, 0 to send as fast as possible.
+     * @param batchSize The maximum number of packets sent at once.
+     * @param name      The name of the sender thread.
+     */
+    protected PacedSender(WinDivert divert, BufferPool pool, long linkRate, int batchSize, String name) {
+        if (linkRate < 0 || batchSize <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid link rate %d or batch size %d", linkRate, batchSize));
+        }
+        this.divert = divert;
+        this.pool = pool;
+        this.linkRate = linkRate;
+        this.batchSize = batchSize;
+        this.name = name;
+    }
+
+    /**
+     * Take the next packet to send. Called holding the instance lock.
+     *
+     * @param now The current time in nanoseconds.
+     * @return The {@link Packet}, or {@code null} if none is queued.
+     */
+    public abstract Packet dequeue(long now);
+
+    /**
+     * Take the next packet to send.
+     *
+     * @return The {@link Packet}, or {@code null} if none is queued.
+     */
+    public synchronized Packet dequeue() {
+        return dequeue(nanoTime());
+    }
+
+    /**
+     * Get the number of queued packets. Called holding the instance lock.
+     *
+     * @return The number of packets.
+     */
+    public abstract int getQueued();
+
+    /**
+     * Remove every queued packet, due or not. Called holding the instance lock when the sender stops.
+     *
+     * @param out The list where to add the packets.
+     */
+    protected abstract void removeAll(List<Packet> out);
+
+    /**
+     * Get how long the sender thread waits when packets are queued but none is due yet. Called holding the instance
+     * lock.
+     *
+     * @return The time in nanoseconds, 0 if every queued packet is due at once.
+     */
+    protected long idleNanos() {
+        return 0;
+    }
+
+    /**
+     * Tell whether the sender was stopped, packets queued from then on are to be refused. Called holding the instance
+     * lock.
+     *
+     * @return True if stopped.
+     */
+    protected boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Wake the sender thread up if it waits for packets. Called holding the instance lock after queuing a packet.
+     */
+    protected void enqueued() {
+        if (getQueued() == 1) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Discard a queued packet, releasing its buffer.
+     *
+     * @param packet The {@link Packet} dropped.
+     */
+    protected void drop(Packet packet) {
+        dropped.incrementAndGet();
+        if (pool != null) {
+            pool.release(packet);
+        }
+    }
+
+    /**
+     * Count a packet refused on enqueue, whose buffer stays with the caller.
+     */
+    protected void refused() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Start the sender thread.
+     *
+     * @return this instance to allow call chaining.
+     */
+    public synchronized PacedSender start() {
+        if (thread != null || stopped) {
+            throw new IllegalStateException("Sender already started");
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    private void loop() {
+        List<Packet> batch = new ArrayList<Packet>(batchSize);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long wait = take(batch);
+                try {
+                    send(batch);
+                } catch (RuntimeException e) {
+                    // Thrown by an overriding send, the thread goes on
+                    errors.incrementAndGet();
+                }
+                batch.clear();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Dequeue the packets to send now, waiting for one if none is queued.
+     *
+     * @return How long to wait before sending more, for pacing.
+     */
+    private synchronized long take(List<Packet> batch) throws InterruptedException {
+        while (getQueued() == 0) {
+            wait();
+        }
+        long now = nanoTime();
+        next = Math.max(next, now);
+        while (batch.size() < batchSize && (linkRate == 0 || next - now < WINDOW)) {
+            Packet packet = dequeue(now);
+            if (packet == null) {
+                break;
+            }
+            batch.add(packet);
+            if (linkRate > 0) {
+                next += packet.getByteBuffer().capacity() * NANOS / linkRate;
+            }
+        }
+        if (batch.isEmpty()) {
+            return idleNanos();
+        }
+        return linkRate == 0 ? 0 : next - now - WINDOW;
+    }
+
+    /**
+     * Send a batch of packets, then release their buffers.
+     *
+     * @param batch The packets to send.
+     */
+    protected void send(List<Packet> batch) {
+        for (Packet packet : batch) {
+            try {
+                try {
+                    divert.send(packet, false);
+                    sent.incrementAndGet();
+                } finally {
+                    if (pool != null) {
+                        pool.release(packet);
+                    }
+                }
+            } catch (WinDivertException e) {
+                errors.incrementAndGet();
+            } catch (RuntimeException e) {
+                // Counted as well, so that a bad packet does not end the sender thread
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Handle the packets still queued when the sender stopped. By default they are dropped, releasing their buffers.
+     *
+     * @param packets The packets left.
+     */
+    protected void stopped(List<Packet> packets) {
+        for (Packet packet : packets) {
+            drop(packet);
+        }
+    }
+
+    /**
+     * Stop the sender thread. Packets still queued are handed to {@link #stopped(List)}, packets queued afterwards
+     * are refused.
+     *
+     * @throws InterruptedException If interrupted while waiting for the thread to stop.
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            stopped = true;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            t.interrupt();
+            t.join();
+        }
+        List<Packet> left = new ArrayList<Packet>();
+        synchronized (this) {
+            removeAll(left);
+        }
+        stopped(left);
+    }
+
+    /**
+     * Get the current time in nanoseconds, used to pace sending and to measure sojourn times.
+     *
+     * @return The current time.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+}
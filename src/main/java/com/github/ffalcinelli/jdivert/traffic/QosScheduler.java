@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * An egress packet scheduler combining strict priority and deficit round robin (Shreedhar and Varghese).
+ * <p>
+ * Packets are {@link #enqueue(Packet) enqueued} in the class a {@link Classifier} picks, by default from their DSCP,
+ * optionally remarking their DSCP, and wait in the bounded ring of the class. Classes of a lower priority level are
+ * served only when every class of the higher levels is empty; classes of the same level share what is left in
+ * proportion to their quantum, in bytes. A dedicated thread dequeues packets in batches and sends them, paced to the
+ * link rate when one is given so that queues build up here, where the scheduler orders them, rather than downstream.
+ * </p><p>
+ * The sojourn time of every packet leaving a class is recorded in the {@link SojournHistogram} of the class, and a
+ * class may be given a {@link Codel} to keep its standing queue short: ECN capable packets are then marked as having
+ * experienced congestion, the others dropped.
+ * </p>
+ * The class is thread safe.
+ */
+public class QosScheduler extends PacedSender {
+
+    private final List<Level> levels = new ArrayList<Level>();
+    private final List<QueueClass> classes = new ArrayList<QueueClass>();
+    private final int[] dscpMap = new int[64];
+    private volatile Classifier classifier;
+    private int queued;
+
+    /**
+     * Create a new {@link QosScheduler}.
+     *
+     * @param divert    The open {@link WinDivert} handle to send with.
+     * @param pool      The {@link BufferPool} where to release buffers of sent packets, may be {@code null}.
+     * @param linkRate  The link rate in bytes per second to pace sending to, 0 to send as fast as possible.
+     * @param batchSize The maximum number of packets sent at once.
+     */
+    public QosScheduler(WinDivert divert, BufferPool pool, long linkRate, int batchSize) {
+        super(divert, pool, linkRate, batchSize, "jdivert-qos-scheduler");
+        this.classifier = new Classifier() {
+            @Override
+            public int classify(Packet packet) {
+                return dscpMap[DiffServ.getDscp(packet)];
+            }
+        };
+    }
+
+    /**
+     * Add a traffic class. Packets of every DSCP go to the first class until {@link #mapDscp(int, int)} says otherwise.
+     *
+     * @param priority The priority level, lower levels are served first.
+     * @param quantum  The bytes the class may send per round among the classes of its level, at least the largest
+     *                 packet size for the round robin to be accurate.
+     * @param capacity The maximum number of queued packets.
+     * @return The class identifier.
+     */
+    public synchronized int addClass(int priority, int quantum, int capacity) {
+        if (quantum <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid quantum %d or capacity %d", quantum, capacity));
+        }
+        QueueClass c = new QueueClass(classes.size(), quantum, capacity);
+        classes.add(c);
+        int i = 0;
+        while (i < levels.size() && levels.get(i).priority < priority) {
+            i++;
+        }
+        if (i == levels.size() || levels.get(i).priority != priority) {
+            levels.add(i, new Level(priority));
+        }
+        levels.get(i).classes.add(c);
+        return c.id;
+    }
+
+    /**
+     * Send the packets of a DSCP to a class, when using the default classifier.
+     *
+     * @param dscp    The DSCP, from 0 to 63.
+     * @param classId The class identifier.
+     */
+    public synchronized void mapDscp(int dscp, int classId) {
+        if (dscp < 0 || dscp > 63) {
+            throw new IllegalArgumentException(String.format("Invalid DSCP %d", dscp));
+        }
+        if (classId < 0 || classId >= classes.size()) {
+            throw new IllegalArgumentException(String.format("Unknown class %d", classId));
+        }
+        dscpMap[dscp] = classId;
+    }
+
+    /**
+     * Rewrite the DSCP of the packets enqueued in a class.
+     *
+     * @param classId The class identifier.
+     * @param dscp    The DSCP to set, -1 to leave packets unchanged.
+     */
+    public synchronized void setRemark(int classId, int dscp) {
+        if (dscp < -1 || dscp > 63) {
+            throw new IllegalArgumentException(String.format("Invalid DSCP %d", dscp));
+        }
+        classes.get(classId).remark = dscp;
+    }
+
+    /**
+     * Manage the queue of a class with CoDel.
+     *
+     * @param classId The class identifier.
+     * @param codel   The {@link Codel} of the class, {@code null} to let the queue grow up to its capacity.
+     */
+    public synchronized void setCodel(int classId, Codel codel) {
+        classes.get(classId).codel = codel;
+    }
+
+    /**
+     * Get the sojourn times of the packets which left a class.
+     *
+     * @param classId The class identifier.
+     * @return The {@link SojournHistogram} of the class.
+     */
+    public synchronized SojournHistogram getSojournHistogram(int classId) {
+        return classes.get(classId).histogram;
+    }
+
+    /**
+     * Replace the default DSCP based classifier.
+     *
+     * @param classifier The {@link Classifier}.
+     */
+    public void setClassifier(Classifier classifier) {
+        this.classifier = classifier;
+    }
+
+    /**
+     * Classify and queue a packet. Ownership of its buffer passes to the scheduler only when this method returns true.
+     *
+     * @param packet The {@link Packet} to queue.
+     * @return True if queued, false if the class queue is full, the packet unclassified or the scheduler stopped.
+     */
+    public boolean enqueue(Packet packet) {
+        return enqueue(packet, classifier.classify(packet));
+    }
+
+    /**
+     * Queue a packet in a class. Ownership of its buffer passes to the scheduler only when this method returns true.
+     *
+     * @param packet  The {@link Packet} to queue.
+     * @param classId The class identifier, negative to refuse the packet.
+     * @return True if queued, false if the class queue is full, the class does not exist or the scheduler is stopped.
+     */
+    public synchronized boolean enqueue(Packet packet, int classId) {
+        QueueClass c = classId < 0 || classId >= classes.size() ? null : classes.get(classId);
+        if (c == null || c.count == c.ring.length || isStopped()) {
+            refused();
+            return false;
+        }
+        if (c.remark >= 0) {
+            DiffServ.setDscp(packet, c.remark);
+        }
+        int tail = (c.head + c.count++) % c.ring.length;
+        c.ring[tail] = packet;
+        c.times[tail] = nanoTime();
+        c.bytes += packet.getByteBuffer().capacity();
+        queued++;
+        enqueued();
+        return true;
+    }
+
+    @Override
+    public synchronized Packet dequeue(long now) {
+        for (Level level : levels) {
+            while (level.backlog() > 0) {
+                QueueClass c = level.classes.get(level.current);
+                if (c.count == 0) {
+                    c.deficit = 0;
+                    level.advance();
+                    continue;
+                }
+                if (!level.granted) {
+                    c.deficit += c.quantum;
+                    level.granted = true;
+                }
+                int size = c.ring[c.head].getByteBuffer().capacity();
+                if (size > c.deficit) {
+                    level.advance();
+                    continue;
+                }
+                Packet packet = poll(c, now);
+                if (packet != null) {
+                    c.deficit -= packet.getByteBuffer().capacity();
+                }
+                if (c.count == 0) {
+                    c.deficit = 0;
+                    level.advance();
+                }
+                if (packet != null) {
+                    return packet;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take the head of a class queue, dropping it and the following ones while CoDel says so.
+     */
+    private Packet poll(QueueClass c, long now) {
+        while (c.count > 0) {
+            Packet packet = c.ring[c.head];
+            long sojourn = now - c.times[c.head];
+            c.ring[c.head] = null;
+            c.head = (c.head + 1) % c.ring.length;
+            c.count--;
+            c.bytes -= packet.getByteBuffer().capacity();
+            queued--;
+            c.histogram.record(sojourn);
+            if (c.codel == null || !c.codel.shouldDrop(sojourn, now, c.bytes)) {
+                return packet;
+            }
+            if (DiffServ.getEcn(packet) != DiffServ.NOT_ECT) {
+                DiffServ.setEcn(packet, DiffServ.CE);
+                return packet;
+            }
+            drop(packet);
+        }
+        if (c.codel != null) {
+            c.codel.empty();
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of packets queued in a class.
+     *
+     * @param classId The class identifier.
+     * @return The number of packets.
+     */
+    public synchronized int getQueued(int classId) {
+        return classes.get(classId).count;
+    }
+
+    @Override
+    protected void removeAll(List<Packet> out) {
+        for (QueueClass c : classes) {
+            while (c.count > 0) {
+                out.add(c.ring[c.head]);
+                c.ring[c.head] = null;
+                c.head = (c.head + 1) % c.ring.length;
+                c.count--;
+            }
+            c.bytes = 0;
+            c.deficit = 0;
+        }
+        queued = 0;
+    }
+
+    @Override
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QosScheduler {classes=%d, queued=%d, sent=%d, dropped=%d, errors=%d}",
+                classes.size(), getQueued(), getSent(), getDropped(), getErrors());
+    }
+
+    /**
+     * Picks the class of a packet.
+     */
+    public interface Classifier {
+        /**
+         * Classify a packet.
+         *
+         * @param packet The {@link Packet}.
+         * @return The class identifier, negative to refuse the packet.
+         */
+        int classify(Packet packet);
+    }
+
+    private static class QueueClass {
+        final int id;
+        final int quantum;
+        final Packet[] ring;
+        final long[] times;
+        final SojournHistogram histogram = new SojournHistogram();
+        int head;
+        int count;
+        long bytes;
+        int deficit;
+        int remark = -1;
+        Codel codel;
+
+        QueueClass(int id, int quantum, int capacity) {
+            this.id = id;
+            this.quantum = quantum;
+            this.ring = new Packet[capacity];
+            this.times = new long[capacity];
+        }
+    }
+
+    private static class Level {
+        final int priority;
+        final List<QueueClass> classes = new ArrayList<QueueClass>();
+        int current;
+        boolean granted;
+
+        Level(int priority) {
+            this.priority = priority;
+        }
+
+        int backlog() {
+            int backlog = 0;
+            for (QueueClass c : classes) {
+                backlog += c.count;
+            }
+            return backlog;
+        }
+
+        void advance() {
+            current = (current + 1) % classes.size();
+            granted = false;
+        }
+    }
+}
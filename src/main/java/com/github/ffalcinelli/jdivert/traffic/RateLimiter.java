@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+
+/**
+ * Polices diverted packets with {@link TokenBucket token buckets}, one per flow, source prefix, interface, or a single
+ * one for all the traffic.
+ * <p>
+ * Limiters can be stacked by giving them a parent, e.g. a per-flow limiter under a per-source limiter under an
+ * aggregate one: a packet is allowed only if every level has enough tokens, and the levels which had are refunded
+ * otherwise. Keys are read straight from the packet buffer and existing buckets are found without allocating; the
+ * bucket update itself is a single compare and set, so workers policing packets concurrently do not serialize.
+ * </p><p>
+ * Pass the same time to {@link #allow(Packet, long)} for a whole batch of packets to pay for one clock read per batch.
+ * Buckets that have refilled are removed by {@link #expire()}, which should be called periodically.
+ * </p>
+ * The class is thread safe.
+ */
+public class RateLimiter {
+
+    private final Key key;
+    private final Unit unit;
+    private final RateLimiter parent;
+    private final BucketTable buckets;
+    private final TokenBucket aggregate;
+    private volatile long ipv4Mask = 0xFFFFFFFFL;
+    private volatile long ipv6Mask = -1L;
+
+    /**
+     * Create a new {@link RateLimiter}.
+     *
+     * @param key   What the packets are grouped by.
+     * @param unit  What the tokens count.
+     * @param rate  The tokens added per second to each bucket.
+     * @param burst The capacity of each bucket, in tokens.
+     */
+    public RateLimiter(Key key, Unit unit, long rate, long burst) {
+        this(key, unit, rate, burst, null);
+    }
+
+    /**
+     * Create a new {@link RateLimiter} nested in another one.
+     *
+     * @param key    What the packets are grouped by.
+     * @param unit   What the tokens count.
+     * @param rate   The tokens added per second to each bucket.
+     * @param burst  The capacity of each bucket, in tokens.
+     * @param parent The {@link RateLimiter} the packets must pass as well, or {@code null}.
+     */
+    public RateLimiter(Key key, Unit unit, long rate, long burst, RateLimiter parent) {
+        this.key = key;
+        this.unit = unit;
+        this.parent = parent;
+        this.aggregate = new TokenBucket(rate, burst);
+        this.buckets = key == Key.ALL ? null
+                : new BucketTable(rate, burst, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    private static long get64(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long prefixMask(int bits, int length) {
+        if (bits < 0 || bits > length) {
+            throw new IllegalArgumentException(String.format("Invalid prefix length %d", bits));
+        }
+        return bits == 0 ? 0 : -1L << (length - bits);
+    }
+
+    /**
+     * Set the prefix lengths source addresses are grouped by with {@link Key#SOURCE}, by default whole addresses.
+     *
+     * @param ipv4 The Ipv4 prefix length, up to 32.
+     * @param ipv6 The Ipv6 prefix length, up to 64.
+     */
+    public void setPrefixLength(int ipv4, int ipv6) {
+        ipv4Mask = prefixMask(ipv4, 32) & 0xFFFFFFFFL;
+        ipv6Mask = prefixMask(ipv6, 64);
+    }
+
+    /**
+     * Check whether a packet is within the limits, taking its tokens if so.
+     *
+     * @param packet The {@link Packet} to police.
+     * @return True if the packet may be sent on, false if it should be dropped.
+     */
+    public boolean allow(Packet packet) {
+        return allow(packet, nanoTime());
+    }
+
+    /**
+     * Check whether a packet is within the limits, taking its tokens if so.
+     *
+     * @param packet The {@link Packet} to police.
+     * @param now    The current time in nanoseconds, as returned by {@link System#nanoTime()}.
+     * @return True if the packet may be sent on, false if it should be dropped.
+     */
+    public boolean allow(Packet packet, long now) {
+        TokenBucket bucket = bucket(packet);
+        long cost = bucket.consume(unit == Unit.PACKETS ? 1 : packet.getByteBuffer().capacity(), now);
+        if (cost < 0) {
+            return false;
+        }
+        if (parent != null && !parent.allow(packet, now)) {
+            // Give back the tokens taken at this level, the packet is dropped anyway
+            bucket.refund(cost);
+            return false;
+        }
+        return true;
+    }
+
+    private TokenBucket bucket(Packet packet) {
+        if (key == Key.ALL) {
+            return aggregate;
+        }
+        if (key == Key.INTERFACE) {
+            int[] iface = packet.getIface();
+            return buckets.get(0, 0, 0, 0, ((long) iface[0] << 32) | (iface[1] & 0xFFFFFFFFL));
+        }
+        byte[] d = packet.getByteBuffer().array();
+        boolean ipv4 = packet.isIpv4();
+        if (key == Key.SOURCE) {
+            return ipv4 ? buckets.get(0, get64(d, 12, 4) & ipv4Mask, 0, 0, 4)
+                    : buckets.get(get64(d, 8, 8) & ipv6Mask, 0, 0, 0, 6);
+        }
+        long ports = 0;
+        if (packet.isTcp() || packet.isUdp()) {
+            int l4 = packet.getPayloadOffset()
+                    - (packet.isTcp() ? packet.getTcp().getHeaderLength() : packet.getUdp().getHeaderLength());
+            ports = get64(d, l4, 4);
+        }
+        if (ipv4) {
+            return buckets.get(0, get64(d, 12, 4), 0, get64(d, 16, 4), (4L << 48) | ((d[9] & 0xFFL) << 32) | ports);
+        }
+        return buckets.get(get64(d, 8, 8), get64(d, 16, 8), get64(d, 24, 8), get64(d, 32, 8),
+                (6L << 48) | ((d[6] & 0xFFL) << 32) | ports);
+    }
+
+    /**
+     * Remove the buckets which have refilled, from this limiter and its parents.
+     *
+     * @return The number of buckets removed.
+     */
+    public int expire() {
+        return expire(nanoTime());
+    }
+
+    /**
+     * Remove the buckets which have refilled, from this limiter and its parents.
+     *
+     * @param now The current time in nanoseconds.
+     * @return The number of buckets removed.
+     */
+    public int expire(long now) {
+        int removed = buckets == null ? 0 : buckets.expire(now);
+        return parent == null ? removed : removed + parent.expire(now);
+    }
+
+    /**
+     * Get the current time in nanoseconds, used to refill the buckets.
+     *
+     * @return The current time.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Get the number of buckets, not counting the parents' ones.
+     *
+     * @return The number of buckets.
+     */
+    public int size() {
+        return buckets == null ? 1 : buckets.size();
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    public Unit getUnit() {
+        return unit;
+    }
+
+    public RateLimiter getParent() {
+        return parent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RateLimiter {key=%s, unit=%s, rate=%d, burst=%d, buckets=%d}",
+                key, unit, aggregate.getRate(), aggregate.getBurst(), size());
+    }
+
+    /**
+     * What packets are grouped by, each group having its own bucket.
+     */
+    public enum Key {
+        /**
+         * A single bucket for all the packets.
+         */
+        ALL,
+        /**
+         * The interface index and sub index.
+         */
+        INTERFACE,
+        /**
+         * The source address prefix.
+         */
+        SOURCE,
+        /**
+         * The protocol, addresses and ports.
+         */
+        FLOW
+    }
+
+    /**
+     * What tokens count.
+     */
+    public enum Unit {
+        PACKETS, BYTES
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delays diverted packets to shape traffic classes to their rate, instead of dropping the excess.
+ * <p>
+ * Each class has a rate in bytes per second and a maximum queuing delay. A packet {@link #shape(Packet, int) shaped}
+ * in a class is given the time its class has finished sending the packets before it, and parked in a
+ * {@link TimerWheel} until then; packets which would wait longer than the maximum delay are refused. The sender
+ * thread advances the wheel every tick and sends the released packets in batches, giving their buffers back to the
+ * {@link BufferPool}.
+ * </p>
+ * The class is thread safe.
+ */
+public class Shaper extends PacedSender {
+
+    private static final long NANOS = 1000000000L;
+    private static final int BATCH_SIZE = 64;
+
+    private final TimerWheel<Packet> wheel;
+    private final List<long[]> classes = new ArrayList<long[]>();
+    private final List<Packet> released = new ArrayList<Packet>();
+    private final ArrayDeque<Packet> due = new ArrayDeque<Packet>();
+
+    /**
+     * Create a new {@link Shaper}.
+     *
+     * @param divert    The open {@link WinDivert} handle to send with.
+     * @param pool      The {@link BufferPool} where to release buffers of sent and dropped packets, may be
+     *                  {@code null}.
+     * @param capacity  The maximum number of parked packets.
+     * @param tickNanos The resolution of the release times in nanoseconds, e.g. one millisecond.
+     */
+    public Shaper(WinDivert divert, BufferPool pool, int capacity, long tickNanos) {
+        super(divert, pool, 0, BATCH_SIZE, "jdivert-shaper");
+        this.wheel = new TimerWheel<Packet>(capacity, tickNanos, nanoTime());
+    }
+
+    /**
+     * Add a traffic class.
+     *
+     * @param rate          The class rate in bytes per second.
+     * @param maxDelayNanos The longest a packet of the class may wait, in nanoseconds.
+     * @return The class identifier, to be passed to {@link #shape(Packet, int)}.
+     */
+    public synchronized int addClass(long rate, long maxDelayNanos) {
+        if (rate <= 0 || maxDelayNanos < 0) {
+            throw new IllegalArgumentException(String.format("Invalid rate %d or maximum delay %d", rate, maxDelayNanos));
+        }
+        // Rate, maximum delay and the time the class is done with its queued packets
+        classes.add(new long[]{rate, maxDelayNanos, Long.MIN_VALUE});
+        return classes.size() - 1;
+    }
+
+    /**
+     * Park a packet until its class is allowed to send it. Ownership of its buffer passes to the shaper only when this
+     * method returns true.
+     *
+     * @param packet  The {@link Packet} to shape.
+     * @param classId The class identifier returned by {@link #addClass(long, long)}.
+     * @return True if parked, false if the class queue or the wheel is full, or the shaper is stopped.
+     */
+    public boolean shape(Packet packet, int classId) {
+        return shape(packet, classId, nanoTime());
+    }
+
+    /**
+     * Park a packet until its class is allowed to send it. Ownership of its buffer passes to the shaper only when this
+     * method returns true.
+     *
+     * @param packet  The {@link Packet} to shape.
+     * @param classId The class identifier returned by {@link #addClass(long, long)}.
+     * @param now     The current time in nanoseconds.
+     * @return True if parked, false if the class queue or the wheel is full, or the shaper is stopped.
+     */
+    public synchronized boolean shape(Packet packet, int classId, long now) {
+        long[] c = classes.get(classId);
+        long start = Math.max(c[2], now);
+        if (isStopped() || start - now > c[1] || !wheel.add(packet, start)) {
+            refused();
+            return false;
+        }
+        c[2] = start + packet.getByteBuffer().capacity() * NANOS / c[0];
+        enqueued();
+        return true;
+    }
+
+    /**
+     * Park a packet until a given time, bypassing the classes. Ownership of its buffer passes to the shaper only when
+     * this method returns true.
+     *
+     * @param packet   The {@link Packet} to park.
+     * @param deadline The time in nanoseconds when the packet is to be sent.
+     * @return True if parked, false if the wheel is full or the shaper is stopped.
+     */
+    public synchronized boolean schedule(Packet packet, long deadline) {
+        if (isStopped() || !wheel.add(packet, deadline)) {
+            refused();
+            return false;
+        }
+        enqueued();
+        return true;
+    }
+
+    /**
+     * Collect the packets due.
+     *
+     * @param now The current time in nanoseconds.
+     * @param out The list where to add the packets, in release order.
+     * @return The number of packets collected.
+     */
+    public synchronized int poll(long now, List<Packet> out) {
+        int collected = due.size();
+        out.addAll(due);
+        due.clear();
+        return collected + wheel.advance(now, out);
+    }
+
+    @Override
+    public synchronized Packet dequeue(long now) {
+        if (due.isEmpty()) {
+            wheel.advance(now, released);
+            due.addAll(released);
+            released.clear();
+        }
+        return due.poll();
+    }
+
+    @Override
+    protected long idleNanos() {
+        long tick = wheel.getTickNanos();
+        return tick - (nanoTime() - wheel.getTime()) % tick;
+    }
+
+    @Override
+    protected void removeAll(List<Packet> out) {
+        out.addAll(due);
+        due.clear();
+        wheel.clear(out);
+    }
+
+    @Override
+    public synchronized Shaper start() {
+        super.start();
+        return this;
+    }
+
+    @Override
+    public synchronized int getQueued() {
+        return wheel.size() + due.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Shaper {queued=%d, sent=%d, dropped=%d, errors=%d}",
+                getQueued(), getSent(), getDropped(), getErrors());
+    }
+}
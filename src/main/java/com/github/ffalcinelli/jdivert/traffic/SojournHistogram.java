@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of queue sojourn times, with power of two buckets in microseconds: bucket 0 counts times
+ * below 1us, bucket {@code i} times from 2<sup>i-1</sup>us up to 2<sup>i</sup>us, the last bucket everything longer.
+ */
+public class SojournHistogram {
+
+    /**
+     * The number of buckets, the last one starting at about 17 minutes.
+     */
+    public static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Get the bucket of a sojourn time.
+     *
+     * @param nanos The sojourn time in nanoseconds.
+     * @return The bucket index.
+     */
+    public static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return micros <= 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+    /**
+     * Get the upper bound of a bucket.
+     *
+     * @param bucket The bucket index.
+     * @return The exclusive upper bound in nanoseconds, {@link Long#MAX_VALUE} for the last bucket.
+     */
+    public static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) * 1000;
+    }
+
+    /**
+     * Count a sojourn time.
+     *
+     * @param nanos The sojourn time in nanoseconds.
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+    }
+
+    /**
+     * Count several times in a bucket, e.g. to merge histograms.
+     *
+     * @param bucket The bucket index.
+     * @param count  The number of times to add.
+     */
+    public void add(int bucket, long count) {
+        counts.addAndGet(bucket, count);
+    }
+
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * Get the total of the recorded times.
+     *
+     * @return The number of times recorded.
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Get an upper bound of a percentile.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound in nanoseconds of the bucket holding the percentile, 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Reset every bucket to zero.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SojournHistogram {total=%d, p50=%d, p99=%d}",
+                getTotal(), getPercentile(50), getPercentile(99));
+    }
+}
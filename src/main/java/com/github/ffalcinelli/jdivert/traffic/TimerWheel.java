@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hashed hierarchical timer wheel (Varghese and Lauck), holding elements until their deadline.
+ * <p>
+ * Time is divided in ticks. The wheel has four levels of 256 slots, each slot of a level spanning a whole turn of the
+ * level below, so deadlines up to 2<sup>32</sup> ticks ahead are scheduled and expired in constant time; when the
+ * lowest level completes a turn, the next slot of the level above is cascaded down. Elements are kept in preallocated
+ * arrays linked by index, in insertion order within a slot, so neither scheduling nor expiry allocates.
+ * </p>
+ * The class is not thread safe.
+ *
+ * @param <T> The type of the elements.
+ */
+public class TimerWheel<T> {
+
+    private static final int LEVELS = 4;
+    private static final int BITS = 8;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final long HORIZON = (1L << (LEVELS * BITS)) - 1;
+
+    private final long tickNanos;
+    private final long origin;
+    private final Object[] elements;
+    private final long[] deadlines;
+    private final int[] next;
+    private final int[] heads = new int[LEVELS * SLOTS];
+    private final int[] tails = new int[LEVELS * SLOTS];
+    private int free;
+    private int size;
+    private long current;
+
+    /**
+     * Create a new {@link TimerWheel}.
+     *
+     * @param capacity  The maximum number of elements held.
+     * @param tickNanos The tick duration in nanoseconds, the resolution of deadlines.
+     * @param now       The current time in nanoseconds, the origin of ticks.
+     */
+    public TimerWheel(int capacity, long tickNanos, long now) {
+        if (capacity <= 0 || tickNanos <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid capacity %d or tick %d", capacity, tickNanos));
+        }
+        this.tickNanos = tickNanos;
+        this.elements = new Object[capacity];
+        this.deadlines = new long[capacity];
+        this.next = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            next[i] = i + 1;
+        }
+        next[capacity - 1] = -1;
+        Arrays.fill(heads, -1);
+        Arrays.fill(tails, -1);
+        this.origin = now;
+    }
+
+    /**
+     * Schedule an element.
+     *
+     * @param element  The element.
+     * @param deadline The time in nanoseconds when the element expires. Deadlines in the past expire on the next tick.
+     * @return True if scheduled, false if the wheel is full.
+     */
+    public boolean add(T element, long deadline) {
+        if (free < 0) {
+            return false;
+        }
+        int node = free;
+        free = next[node];
+        elements[node] = element;
+        // Round up, so that elements never expire before their deadline
+        long elapsed = deadline - origin;
+        long ticks = elapsed / tickNanos + (elapsed % tickNanos > 0 ? 1 : 0);
+        deadlines[node] = Math.max(ticks, current + 1);
+        link(node);
+        size++;
+        return true;
+    }
+
+    private void link(int node) {
+        long delta = Math.min(deadlines[node] - current, HORIZON);
+        long deadline = current + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << ((level + 1) * BITS)) {
+            level++;
+        }
+        int slot = level * SLOTS + (int) ((deadline >>> (level * BITS)) & MASK);
+        next[node] = -1;
+        if (tails[slot] < 0) {
+            heads[slot] = node;
+        } else {
+            next[tails[slot]] = node;
+        }
+        tails[slot] = node;
+    }
+
+    /**
+     * Advance the wheel, collecting the expired elements.
+     *
+     * @param now The current time in nanoseconds.
+     * @param out The list where to add the expired elements, ordered by tick and by insertion within a tick.
+     * @return The number of elements collected.
+     */
+    @SuppressWarnings("unchecked")
+    public int advance(long now, List<? super T> out) {
+        long target = (now - origin) / tickNanos;
+        int collected = 0;
+        while (current < target && size > 0) {
+            current++;
+            // Cascade the levels above on each turn of the level below
+            for (int level = 1; level < LEVELS && (current & ((1L << (level * BITS)) - 1)) == 0; level++) {
+                int slot = level * SLOTS + (int) ((current >>> (level * BITS)) & MASK);
+                int node = heads[slot];
+                heads[slot] = tails[slot] = -1;
+                while (node >= 0) {
+                    int following = next[node];
+                    link(node);
+                    node = following;
+                }
+            }
+            int slot = (int) (current & MASK);
+            int node = heads[slot];
+            heads[slot] = tails[slot] = -1;
+            while (node >= 0) {
+                int following = next[node];
+                if (deadlines[node] > current) {
+                    // Clamped beyond the horizon, not due yet
+                    link(node);
+                } else {
+                    out.add((T) elements[node]);
+                    elements[node] = null;
+                    next[node] = free;
+                    free = node;
+                    size--;
+                    collected++;
+                }
+                node = following;
+            }
+        }
+        if (size == 0 && current < target) {
+            current = target;
+        }
+        return collected;
+    }
+
+    /**
+     * Remove every element, whatever its deadline.
+     *
+     * @param out The list where to add the removed elements.
+     * @return The number of elements removed.
+     */
+    @SuppressWarnings("unchecked")
+    public int clear(List<? super T> out) {
+        int removed = size;
+        for (int slot = 0; slot < heads.length; slot++) {
+            for (int node = heads[slot]; node >= 0; node = next[node]) {
+                out.add((T) elements[node]);
+                elements[node] = null;
+            }
+            heads[slot] = tails[slot] = -1;
+        }
+        for (int i = 0; i < next.length; i++) {
+            next[i] = i + 1;
+        }
+        next[next.length - 1] = -1;
+        free = 0;
+        size = 0;
+        return removed;
+    }
+
+    /**
+     * Get the time of the current tick, up to which elements have been expired.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getTime() {
+        return origin + current * tickNanos;
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return elements.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TimerWheel {tick=%d, size=%d, capacity=%d}", tickNanos, size, elements.length);
+    }
+}
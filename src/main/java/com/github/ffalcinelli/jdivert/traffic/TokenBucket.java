@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket.
+ * <p>
+ * The bucket is implemented as the Generic Cell Rate Algorithm: its whole state is the theoretical arrival time of the
+ * next unit, in nanoseconds, so taking tokens is a single compare and set with no refill arithmetic and the bucket
+ * never needs a timer. A bucket whose theoretical arrival time is in the past is full.
+ * </p>
+ * Time is given by the caller, as returned by {@link System#nanoTime()}, so that a batch of packets can share a
+ * single clock read.
+ */
+public class TokenBucket {
+
+    private static final long NANOS = 1000000000L;
+
+    private final long rate;
+    private final long burst;
+    private final long tolerance;
+    private final AtomicLong tat;
+
+    /**
+     * Create a new, full, {@link TokenBucket}.
+     *
+     * @param rate  The tokens added per second.
+     * @param burst The bucket capacity, in tokens.
+     */
+    public TokenBucket(long rate, long burst) {
+        if (rate <= 0 || burst <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid rate %d or burst %d", rate, burst));
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.tolerance = cost(burst);
+        this.tat = new AtomicLong(Long.MIN_VALUE / 2);
+    }
+
+    private long cost(long amount) {
+        return amount <= Long.MAX_VALUE / NANOS ? amount * NANOS / rate : (long) ((double) amount * NANOS / rate);
+    }
+
+    /**
+     * Take tokens from the bucket if enough are available.
+     *
+     * @param amount The tokens to take.
+     * @param now    The current time in nanoseconds.
+     * @return True if the tokens have been taken, false if the bucket does not hold enough.
+     */
+    public boolean tryConsume(long amount, long now) {
+        return consume(amount, now) >= 0;
+    }
+
+    /**
+     * Take tokens from the bucket if enough are available.
+     *
+     * @return The cost of the tokens taken, to be given back to {@link #refund(long)}, or -1 if the bucket did not
+     * hold enough.
+     */
+    long consume(long amount, long now) {
+        long cost = cost(amount);
+        long limit = now + tolerance;
+        while (true) {
+            long current = tat.get();
+            long next = Math.max(current, now) + cost;
+            if (next > limit) {
+                return -1;
+            }
+            if (tat.compareAndSet(current, next)) {
+                return cost;
+            }
+        }
+    }
+
+    /**
+     * Give back tokens taken by {@link #consume(long, long)}, e.g. when a parent bucket refused them.
+     */
+    void refund(long cost) {
+        tat.addAndGet(-cost);
+    }
+
+    /**
+     * Check whether the bucket is full, in which case it can be discarded and recreated without any difference.
+     *
+     * @param now The current time in nanoseconds.
+     * @return True if the bucket is full.
+     */
+    public boolean isFull(long now) {
+        return tat.get() <= now;
+    }
+
+    /**
+     * Get the tokens currently available.
+     *
+     * @param now The current time in nanoseconds.
+     * @return The available tokens.
+     */
+    public long getAvailable(long now) {
+        long backlog = Math.max(tat.get() - now, 0);
+        return Math.max(burst - (backlog * rate + NANOS - 1) / NANOS, 0);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TokenBucket {rate=%d, burst=%d}", rate, burst);
+    }
+}
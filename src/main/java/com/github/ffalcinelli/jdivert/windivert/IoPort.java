@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
+
+/**
+ * An I/O completion port, where the overlapped operations of the associated handles report their completion.
+ * <p>
+ * {@link Kernel32IoPort} is the Windows one, for the handles of the driver.
+ * </p>
+ */
+public interface IoPort {
+
+    /**
+     * Have the overlapped operations of a handle complete on this port.
+     *
+     * @param handle The open handle.
+     * @throws WinDivertException If the handle cannot be associated.
+     */
+    void associate(HANDLE handle) throws WinDivertException;
+
+    /**
+     * Wait for the next completed operation.
+     *
+     * @param transferred Where to store the number of bytes transferred.
+     * @param error       Where to store the error code of the operation, 0 on success.
+     * @return The {@code OVERLAPPED} structure of the operation, {@code null} once the port is closed.
+     */
+    Pointer take(IntByReference transferred, IntByReference error);
+
+    /**
+     * Close the port, waking up every thread waiting in {@link #take(IntByReference, IntByReference)}.
+     */
+    void close();
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.BaseTSD;
+import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.WinBase;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
+
+/**
+ * An {@link IoPort} backed by a Windows I/O completion port.
+ * <p>
+ * The remapped functions are {@code CreateIoCompletionPort}, {@code GetQueuedCompletionStatus} and
+ * {@code PostQueuedCompletionStatus}.
+ * </p>
+ */
+public class Kernel32IoPort implements IoPort {
+
+    private final HANDLE port;
+    private volatile boolean closed;
+
+    /**
+     * Create a new completion port.
+     *
+     * @throws WinDivertException If the port cannot be created.
+     */
+    public Kernel32IoPort() throws WinDivertException {
+        port = Kernel32.INSTANCE.CreateIoCompletionPort(WinBase.INVALID_HANDLE_VALUE, null, null, 0);
+        if (port == null) {
+            throw new WinDivertException(Native.getLastError());
+        }
+    }
+
+    @Override
+    public void associate(HANDLE handle) throws WinDivertException {
+        if (Kernel32.INSTANCE.CreateIoCompletionPort(handle, port, null, 0) == null) {
+            throw new WinDivertException(Native.getLastError());
+        }
+    }
+
+    @Override
+    public Pointer take(IntByReference transferred, IntByReference error) {
+        BaseTSD.ULONG_PTRByReference key = new BaseTSD.ULONG_PTRByReference();
+        PointerByReference overlapped = new PointerByReference();
+        while (!closed) {
+            boolean success = Kernel32.INSTANCE.GetQueuedCompletionStatus(port, transferred, key, overlapped,
+                    WinBase.INFINITE);
+            int lastError = success ? 0 : Native.getLastError();
+            if (overlapped.getValue() != null) {
+                // A completed operation, possibly a failed one
+                error.setValue(lastError);
+                return overlapped.getValue();
+            }
+            if (!success) {
+                // The port itself failed, e.g. closed while waiting
+                break;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // Waiters return once the port is closed, the empty completion wakes up the ones about to wait
+        Kernel32.INSTANCE.PostQueuedCompletionStatus(port, 0, null, null);
+        Kernel32.INSTANCE.CloseHandle(port);
+    }
+}
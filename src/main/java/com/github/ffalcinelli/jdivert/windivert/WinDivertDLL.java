@@ -58,6 +58,26 @@ public interface WinDivertDLL extends Library {
             IntByReference sendLen
     );
 
+    BOOL WinDivertRecvEx(
+            HANDLE handle,
+            Pointer pPacket,
+            int packetLen,
+            long flags,
+            Pointer pAddr,
+            IntByReference recvLen,
+            Pointer lpOverlapped
+    );
+
+    BOOL WinDivertSendEx(
+            HANDLE handle,
+            Pointer pPacket,
+            int packetLen,
+            long flags,
+            Pointer pAddr,
+            IntByReference sendLen,
+            Pointer lpOverlapped
+    );
+
     BOOL WinDivertSetParam(
             HANDLE handle,
             int param,
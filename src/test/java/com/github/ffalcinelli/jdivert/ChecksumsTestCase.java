@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import org.junit.Test;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction.OUTBOUND;
+import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
+import static org.junit.Assert.assertEquals;
+
+public class ChecksumsTestCase {
+
+    static final int[] IFACE = new int[]{0, 0};
+
+    @Test
+    public void udpIpv4() {
+        Packet packet = new Packet(parseHexBinary("4500004281bf000040112191c0a82b09c0a82b01c9dd0035002ef268528e01000001000000000000013801380138013807696e2d61646472046172706100000c0001"), IFACE, OUTBOUND);
+        packet.getIpv4().setChecksum(0);
+        packet.getUdp().setChecksum(0);
+        Checksums.calculate(packet);
+        assertEquals(0x2191, packet.getIpv4().getChecksum());
+        assertEquals(62056, packet.getUdp().getChecksum());
+    }
+
+    @Test
+    public void tcpIpv4() {
+        Packet packet = new Packet(parseHexBinary("45000051476040008006f005c0a856a936f274fdd84201bb0876cfd0c19f9320501800ff8dba0000170303" +
+                "00240000000000000c2f53831a37ed3c3a632f47440594cab95283b558bf82cb7784344c3314"), IFACE, OUTBOUND);
+        packet.getTcp().setChecksum(0);
+        Checksums.calculate(packet);
+        assertEquals(0x8dba, packet.getTcp().getChecksum());
+    }
+
+    @Test
+    public void incremental() {
+        Packet packet = new Packet(parseHexBinary("4500004281bf000040112191c0a82b09c0a82b01c9dd0035002ef268528e01000001000000000000013801380138013807696e2d61646472046172706100000c0001"), IFACE, OUTBOUND);
+        int ipCksum = packet.getIpv4().getChecksum();
+        int udpCksum = packet.getUdp().getChecksum();
+        byte[] raw = packet.getByteBuffer().array();
+        int oldAddr = packet.getByteBuffer().getInt(12);
+        int newAddr = 0x0A000001;
+        int oldPort = packet.getUdp().getSrcPort();
+
+        packet.getByteBuffer().putInt(12, newAddr);
+        packet.getUdp().setSrcPort(40000);
+        int expectedIp = Checksums.update32(ipCksum, oldAddr, newAddr);
+        int expectedUdp = Checksums.update(Checksums.update32(udpCksum, oldAddr, newAddr), oldPort, 40000);
+
+        Checksums.calculate(packet);
+        assertEquals(packet.getIpv4().getChecksum(), expectedIp);
+        assertEquals(packet.getUdp().getChecksum(), expectedUdp);
+        assertEquals(0, Checksums.checksum(raw, 0, 20));
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.windivert.StandInDLL;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.github.ffalcinelli.jdivert.Enums.Layer;
+import static org.junit.Assert.*;
+
+public class CompletionPortTestCase {
+
+    private final StandInDLL dll = new StandInDLL();
+
+    private static byte[] packet(int port) throws Exception {
+        return new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(port, 53).build().getByteBuffer().array();
+    }
+
+    @Test
+    public void outstandingReceives() throws Exception {
+        // Eight handles with four receives outstanding each, all completed by a single thread
+        CompletionPort port = new CompletionPort(dll, 1).start();
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        final Set<Integer> ports = Collections.synchronizedSet(new HashSet<Integer>());
+        final CountDownLatch done = new CountDownLatch(32);
+        List<WinDivert> handles = new ArrayList<WinDivert>();
+        for (int i = 0; i < 8; i++) {
+            WinDivert divert = new WinDivert(dll, "udp", Layer.NETWORK, 0).open();
+            divert.setCompletionPort(port);
+            handles.add(divert);
+            for (int j = 0; j < 4; j++) {
+                divert.recvAsync().whenDone(new Completion.Callback<Packet>() {
+                    @Override
+                    public void done(Packet packet, Exception error) {
+                        threads.add(Thread.currentThread().getName());
+                        ports.add(packet.getSrcPort());
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertEquals(32, port.getPending());
+        for (int i = 0; i < 32; i++) {
+            dll.inject(1 + i % 8, packet(1000 + i));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(32, ports.size());
+        assertEquals(Collections.singleton("jdivert-completion-0"), threads);
+        assertEquals(0, port.getPending());
+        assertEquals(32, port.getCompleted());
+
+        // Packets already queued complete at once, through the port as well
+        dll.inject(1, packet(2000));
+        assertEquals(2000, handles.get(0).recvAsync().get(5, TimeUnit.SECONDS).getSrcPort().intValue());
+        Packet packet = new Packet(packet(3000), new int[]{1, 0}, Enums.Direction.OUTBOUND);
+        assertEquals(packet.getByteBuffer().capacity(), handles.get(1).sendAsync(packet, false).get().intValue());
+        assertEquals(1, dll.getSent());
+        for (WinDivert divert : handles) {
+            divert.close();
+        }
+        port.close();
+    }
+
+    @Test
+    public void failures() throws Exception {
+        CompletionPort port = new CompletionPort(dll, 2).start();
+        WinDivert divert = new WinDivert(dll, "udp", Layer.NETWORK, 0).open();
+        divert.setCompletionPort(port);
+        Completion<Packet> pending = divert.recvAsync();
+        assertFalse(pending.isDone());
+        try {
+            pending.get(10, TimeUnit.MILLISECONDS);
+            fail("Nothing was received yet");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+
+        // Closing the handle aborts the pending receive, later calls fail at once
+        divert.close();
+        assertEquals(StandInDLL.ERROR_OPERATION_ABORTED, code(pending));
+        assertEquals(StandInDLL.ERROR_INVALID_HANDLE, code(divert.recvAsync()));
+
+        // Reopened handles stay on their port, which cannot be closed under them: their operations are pending
+        divert.open();
+        pending = divert.recvAsync();
+        try {
+            port.close();
+            fail("The handle is still open");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertFalse(port.isClosed());
+        assertEquals(1, port.getPending());
+        divert.close();
+        assertEquals(StandInDLL.ERROR_OPERATION_ABORTED, code(pending));
+        port.close();
+        assertEquals(0, port.getPending());
+        assertEquals(2, port.getFailed());
+        try {
+            divert.open();
+            fail("The port is closed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertFalse(divert.isOpen());
+        assertFalse(dll.isOpen(3));
+    }
+
+    @Test
+    public void timedReceives() throws Exception {
+        CompletionPort port = new CompletionPort(dll, 1).start();
+        final WinDivert divert = new WinDivert(dll, "udp", Layer.NETWORK, 0).open();
+        divert.setCompletionPort(port);
+        assertNull(divert.recv(10, TimeUnit.MILLISECONDS));
+        assertNull(divert.tryRecv());
+
+        // The packet completes a receive left outstanding by the calls above, and is returned once
+        dll.inject(1, packet(1000));
+        assertEquals(1000, divert.recv(5, TimeUnit.SECONDS).getSrcPort().intValue());
+        assertNull(divert.tryRecv());
+        dll.inject(1, packet(1001));
+        Packet packet = null;
+        for (int i = 0; i < 5000 && packet == null; i++) {
+            packet = divert.tryRecv();
+            Thread.sleep(1);
+        }
+        assertEquals(1001, packet.getSrcPort().intValue());
+
+        // Waiting threads return at once on wakeup, a wakeup with none waiting is kept for the next call
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        Thread receiver = receiver(divert, results);
+        while (receiver.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        long start = System.nanoTime();
+        divert.wakeup();
+        receiver.join(5000);
+        assertTrue(System.nanoTime() - start < 5000000000L);
+        assertEquals(Collections.<Object>singletonList(null), results);
+        divert.wakeup();
+        assertNull(divert.recv(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < 5000000000L);
+
+        // Closing fails the waiting thread, synchronous calls fail rather than passing a null handle
+        results.clear();
+        receiver = receiver(divert, results);
+        while (receiver.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        divert.close();
+        receiver.join(5000);
+        assertEquals(StandInDLL.ERROR_OPERATION_ABORTED, ((WinDivertException) results.get(0)).getCode());
+        try {
+            divert.recv();
+            fail("The handle is closed");
+        } catch (WinDivertException e) {
+            assertEquals(StandInDLL.ERROR_INVALID_HANDLE, e.getCode());
+        }
+        port.close();
+    }
+
+    @Test
+    public void unparsablePackets() throws Exception {
+        CompletionPort port = new CompletionPort(dll, 1).start();
+        WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0).open();
+        divert.setCompletionPort(port);
+        BufferPool pool = new BufferPool(2, 1500);
+        // GRE, which has no header class
+        byte[] gre = packet(1000);
+        gre[9] = 47;
+        List<Completion<Packet>> receives = new ArrayList<Completion<Packet>>();
+        receives.add(divert.recvAsync(pool));
+        receives.add(divert.recvAsync());
+        dll.inject(1, gre);
+        dll.inject(1, gre);
+        for (Completion<Packet> receive : receives) {
+            try {
+                receive.get(5, TimeUnit.SECONDS);
+                fail("The packet cannot be parsed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+        }
+        assertEquals(2, pool.available());
+
+        // The native buffers are reused by the next receive
+        dll.inject(1, packet(1001));
+        Packet packet = divert.recvAsync(pool).get(5, TimeUnit.SECONDS);
+        assertEquals(1001, packet.getSrcPort().intValue());
+        pool.release(packet);
+        assertEquals(2, pool.available());
+        divert.close();
+        port.close();
+    }
+
+    @Test
+    public void pooledTimedReceives() throws Exception {
+        CompletionPort port = new CompletionPort(dll, 1).start();
+        WinDivert divert = new WinDivert(dll, "udp", Layer.NETWORK, 0).open();
+        divert.setCompletionPort(port);
+        BufferPool pool = new BufferPool(2, 1500);
+        assertNull(divert.recv(pool, 0, TimeUnit.NANOSECONDS));
+        assertNull(divert.tryRecv());
+
+        // Each packet completes the receive left outstanding with its own pool, and lands in a pooled buffer
+        dll.inject(1, packet(1000));
+        dll.inject(1, packet(1001));
+        Packet pooled = divert.recv(pool, 5, TimeUnit.SECONDS);
+        assertEquals(1500, pooled.getByteBuffer().array().length);
+        assertEquals(1, pool.available());
+        Packet allocated = divert.recv(5, TimeUnit.SECONDS);
+        assertEquals(allocated.getByteBuffer().capacity(), allocated.getByteBuffer().array().length);
+        assertEquals(2001, pooled.getSrcPort() + allocated.getSrcPort());
+        pool.release(pooled);
+        for (int i = 0; i < 10; i++) {
+            dll.inject(1, packet(2000 + i));
+            Packet packet = divert.recv(pool, 5, TimeUnit.SECONDS);
+            assertEquals(2000 + i, packet.getSrcPort().intValue());
+            pool.release(packet);
+        }
+        assertEquals(2, pool.available());
+        divert.close();
+        port.close();
+    }
+
+    @Test
+    public void drain() throws Exception {
+        CompletionPort port = new CompletionPort(dll, 1).start();
+        WinDivert divert = new WinDivert(dll, "udp", Layer.NETWORK, 0).open();
+        divert.setCompletionPort(port);
+        BufferPool pool = new BufferPool(2, 1500);
+        assertNull(divert.recv(pool, 0, TimeUnit.NANOSECONDS));
+        assertNull(divert.tryRecv());
+        assertEquals(2, port.getPending());
+
+        // Draining hands back the packets of the receives done in time, the others are taken by a following call
+        dll.inject(1, packet(1000));
+        List<Packet> packets = divert.drain(20, TimeUnit.MILLISECONDS);
+        assertEquals(1, packets.size());
+        assertEquals(1000, packets.get(0).getSrcPort().intValue());
+        dll.inject(1, packet(1001));
+        packets = divert.drain(5, TimeUnit.SECONDS);
+        assertEquals(1, packets.size());
+        assertEquals(1001, packets.get(0).getSrcPort().intValue());
+
+        // No receive is issued once draining
+        assertNull(divert.tryRecv());
+        assertEquals(0, port.getPending());
+
+        // A receive done but not drained is lost with the handle, not returned once reopened
+        divert.close();
+        divert.open();
+        assertNull(divert.tryRecv());
+        dll.inject(2, packet(1002));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (port.getPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        divert.close();
+        divert.open();
+        assertNull(divert.tryRecv());
+        dll.inject(3, packet(1003));
+        assertEquals(1003, divert.recv(5, TimeUnit.SECONDS).getSrcPort().intValue());
+        divert.close();
+        port.close();
+    }
+
+    private static Thread receiver(final WinDivert divert, final List<Object> results) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    results.add(divert.recv(10, TimeUnit.SECONDS));
+                } catch (WinDivertException e) {
+                    results.add(e);
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static int code(Completion<?> completion) throws InterruptedException {
+        try {
+            completion.get(5, TimeUnit.SECONDS);
+            fail("The operation must fail");
+            return 0;
+        } catch (ExecutionException e) {
+            return ((WinDivertException) e.getCause()).getCode();
+        } catch (TimeoutException e) {
+            throw new AssertionError("The operation did not complete");
+        }
+    }
+}
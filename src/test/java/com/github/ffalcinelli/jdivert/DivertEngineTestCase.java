@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.windivert.StandInDLL;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.ffalcinelli.jdivert.Enums.Layer;
+import static org.junit.Assert.*;
+
+public class DivertEngineTestCase {
+
+    private final StandInDLL dll = new StandInDLL();
+    // Receivers wait with timed receives, completed by the stand-in
+    private final CompletionPort port = new CompletionPort(dll, 1).start();
+
+    static WinDivert open(StandInDLL dll, CompletionPort port, String filter) throws WinDivertException {
+        WinDivert divert = new WinDivert(dll, filter, Layer.NETWORK, 0).open();
+        divert.setCompletionPort(port);
+        return divert;
+    }
+
+    @Test
+    public void everyPacketOnce() throws Exception {
+        WinDivert divert = open(dll, port, "true");
+        final Set<Integer> seen = Collections.synchronizedSet(new HashSet<Integer>());
+        final CountDownLatch done = new CountDownLatch(20000);
+        DivertEngine engine = new DivertEngine(divert, 4, new DivertEngine.Handler() {
+            @Override
+            public void handle(WinDivert divert, Packet packet) throws Exception {
+                int id = (packet.getSrcPort() << 16) | packet.getDstPort();
+                assertTrue(seen.add(id));
+                divert.send(packet, false);
+                done.countDown();
+            }
+        }).start();
+        for (int i = 0; i < 20000; i++) {
+            dll.inject(1, new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1024 + i / 100, i % 100)
+                    .build().getByteBuffer().array());
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        engine.stop();
+        assertEquals(20000, engine.getReceived());
+        assertEquals(20000, dll.getSent());
+        assertEquals(0, engine.getErrors());
+        assertFalse(divert.isOpen());
+    }
+
+    @Test
+    public void raceFreeStop() throws Exception {
+        // Stopping while receivers are blocked, handling or about to receive never raises nor counts an error
+        for (int run = 0; run < 50; run++) {
+            StandInDLL dll = new StandInDLL();
+            WinDivert divert = open(dll, new CompletionPort(dll, 1).start(), "true");
+            DivertEngine engine = new DivertEngine(divert, 8, new DivertEngine.Handler() {
+                @Override
+                public void handle(WinDivert divert, Packet packet) throws Exception {
+                    divert.send(packet, false);
+                }
+            }).start();
+            byte[] packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).build().getByteBuffer().array();
+            for (int i = 0; i < run * 10; i++) {
+                dll.inject(1, packet);
+            }
+            engine.stop();
+            assertFalse(engine.isRunning());
+            assertEquals(0, engine.getErrors());
+            assertFalse(dll.isOpen(1));
+            engine.stop();
+        }
+    }
+
+    @Test
+    public void handlerErrors() throws Exception {
+        WinDivert divert = open(dll, port, "true");
+        DivertEngine engine = new DivertEngine(divert, 2, new DivertEngine.Handler() {
+            @Override
+            public void handle(WinDivert divert, Packet packet) throws Exception {
+                throw new IllegalStateException("Rejected");
+            }
+        }).start();
+        byte[] packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).build().getByteBuffer().array();
+        for (int i = 0; i < 3; i++) {
+            dll.inject(1, packet);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (engine.getErrors() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        engine.stop();
+        assertEquals(3, engine.getReceived());
+        assertEquals(3, engine.getErrors());
+    }
+
+    @Test
+    public void receiveErrors() throws Exception {
+        // A receive throwing at runtime is counted, it does not end the receiver
+        final AtomicInteger calls = new AtomicInteger();
+        WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0) {
+            @Override
+            public Packet recv(int bufsize, long timeout, TimeUnit unit) throws WinDivertException {
+                Packet packet = super.recv(bufsize, timeout, unit);
+                if (packet != null && calls.incrementAndGet() == 1) {
+                    throw new IllegalArgumentException("Unparsable");
+                }
+                return packet;
+            }
+        }.open();
+        divert.setCompletionPort(port);
+        final CountDownLatch handled = new CountDownLatch(2);
+        DivertEngine engine = new DivertEngine(divert, 1, new DivertEngine.Handler() {
+            @Override
+            public void handle(WinDivert divert, Packet packet) {
+                handled.countDown();
+            }
+        }).start();
+        byte[] packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).build().getByteBuffer().array();
+        for (int i = 0; i < 3; i++) {
+            dll.inject(1, packet);
+        }
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        engine.stop();
+        assertEquals(2, engine.getReceived());
+        assertEquals(1, engine.getErrors());
+    }
+
+    @Test
+    public void stopHandlesOutstanding() throws Exception {
+        final byte[] packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).build().getByteBuffer().array();
+        WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0) {
+            @Override
+            public void wakeup() {
+                // A packet arriving as the engine stops, received by the outstanding receive
+                dll.inject(1, packet);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.wakeup();
+            }
+        }.open();
+        divert.setCompletionPort(port);
+        DivertEngine engine = new DivertEngine(divert, 1, new DivertEngine.Handler() {
+            @Override
+            public void handle(WinDivert divert, Packet packet) throws Exception {
+                divert.send(packet, false);
+            }
+        }).start();
+        Thread.sleep(150);
+        engine.stop();
+        // Handled and sent before the handle is closed
+        assertEquals(1, engine.getReceived());
+        assertEquals(1, dll.getSent());
+        assertEquals(0, engine.getErrors());
+        assertFalse(divert.isOpen());
+    }
+
+    @Test
+    public void externalClose() throws Exception {
+        WinDivert divert = open(dll, port, "true");
+        DivertEngine engine = new DivertEngine(divert, 2, new DivertEngine.Handler() {
+            @Override
+            public void handle(WinDivert divert, Packet packet) {
+            }
+        }).start();
+        divert.close();
+        engine.stop();
+        assertEquals(0, engine.getErrors());
+    }
+
+    @Test
+    public void virtualMode() throws Exception {
+        // Many quiet handles, each with its own engine
+        final AtomicInteger virtual = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(32 * 10);
+        DivertEngine[] engines = new DivertEngine[32];
+        byte[] packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).build().getByteBuffer().array();
+        for (int i = 0; i < engines.length; i++) {
+            WinDivert divert = open(dll, port, "udp.DstPort == " + i);
+            engines[i] = new DivertEngine(divert, 1, new DivertEngine.Handler() {
+                @Override
+                public void handle(WinDivert divert, Packet packet) throws Exception {
+                    if (VirtualThreads.isVirtual(Thread.currentThread())) {
+                        virtual.incrementAndGet();
+                    }
+                    divert.send(packet, false);
+                    done.countDown();
+                }
+            });
+            engines[i].setMode(DivertEngine.Mode.VIRTUAL);
+            engines[i].start();
+        }
+        for (int i = 0; i < 10; i++) {
+            for (int handle = 1; handle <= engines.length; handle++) {
+                dll.inject(handle, packet);
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (DivertEngine engine : engines) {
+            engine.stop();
+            assertEquals(10, engine.getReceived());
+            assertEquals(0, engine.getErrors());
+        }
+        assertEquals(32 * 10, dll.getSent());
+        assertEquals(VirtualThreads.isSupported() ? 32 * 10 : 0, virtual.get());
+    }
+
+    @Test
+    public void awaitCompletion() throws Exception {
+        final Completion<String> completion = VirtualThreads.unparkWhenDone(new Completion<String>());
+        assertNull(VirtualThreads.await(completion, 10, TimeUnit.MILLISECONDS));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignore) {
+                }
+                completion.complete("done");
+            }
+        }).start();
+        // Unparked by the completion, long before the timeout
+        long start = System.nanoTime();
+        String result = null;
+        while (result == null) {
+            result = VirtualThreads.await(completion, 5, TimeUnit.SECONDS);
+        }
+        assertEquals("done", result);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+        Completion<String> failed = new Completion<String>();
+        failed.fail(new WinDivertException(6));
+        try {
+            VirtualThreads.await(failed, 0, TimeUnit.MILLISECONDS);
+            fail("The cause of the failure must be rethrown");
+        } catch (WinDivertException e) {
+            assertEquals(6, e.getCode());
+        }
+        Thread thread = VirtualThreads.newThread("jdivert-test", new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertEquals("jdivert-test", thread.getName());
+        assertEquals(VirtualThreads.isSupported(), VirtualThreads.isVirtual(thread));
+    }
+}
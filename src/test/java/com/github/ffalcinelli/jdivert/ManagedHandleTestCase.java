@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert;
+
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.windivert.StandInDLL;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.ffalcinelli.jdivert.Enums.Layer;
+import static com.github.ffalcinelli.jdivert.Enums.Param;
+import static org.junit.Assert.*;
+
+public class ManagedHandleTestCase {
+
+    private final StandInDLL dll = new StandInDLL();
+
+    private ManagedHandle handle(String filter) {
+        return new ManagedHandle(filter, Layer.NETWORK, 0) {
+            @Override
+            protected WinDivert newHandle(String filter) {
+                return new WinDivert(dll, filter, Layer.NETWORK, 0);
+            }
+        };
+    }
+
+    private static byte[] packet(int port) throws Exception {
+        return new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(port, 53).build().getByteBuffer().array();
+    }
+
+    private static Thread receiver(final ManagedHandle handle, final List<Integer> ports, final List<Exception> errors) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Packet packet = handle.recv();
+                        synchronized (ports) {
+                            ports.add(packet.getSrcPort());
+                            ports.notifyAll();
+                        }
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void await(List<Integer> ports, int count) throws InterruptedException {
+        synchronized (ports) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (ports.size() < count && System.currentTimeMillis() < deadline) {
+                ports.wait(100);
+            }
+        }
+        assertEquals(count, ports.size());
+    }
+
+    @Test
+    public void hitlessReload() throws Exception {
+        ManagedHandle handle = handle("udp").open();
+        handle.setIdleTime(20);
+        handle.getHandle().setParam(Param.QUEUE_LEN, 4096);
+        List<Integer> ports = new ArrayList<Integer>();
+        List<Exception> errors = new ArrayList<Exception>();
+        Thread[] receivers = {receiver(handle, ports, errors), receiver(handle, ports, errors)};
+        for (int i = 0; i < 100; i++) {
+            dll.inject(1, packet(1000 + i));
+        }
+        handle.reload("udp and udp.DstPort == 53");
+        // The old queue was drained before closing, both receivers moved to the replacement
+        assertEquals(100, ports.size());
+        assertFalse(dll.isOpen(1));
+        assertEquals("udp and udp.DstPort == 53", dll.getFilter(2));
+        assertEquals(4096, handle.getHandle().getParam(Param.QUEUE_LEN));
+        for (int i = 0; i < 10; i++) {
+            dll.inject(2, packet(2000 + i));
+        }
+        await(ports, 110);
+        assertTrue(errors.isEmpty());
+        assertEquals(1, handle.getReloads());
+        assertTrue(handle.getLastDrained() <= 100);
+        assertTrue(handle.getLastSwitchNanos() >= 20000000L);
+        assertTrue(handle.getLastGapNanos() >= 0);
+
+        // Receivers fail with either the closed handle or the closed instance
+        handle.close();
+        for (Thread receiver : receivers) {
+            receiver.join(5000);
+            assertFalse(receiver.isAlive());
+        }
+        assertEquals(2, errors.size());
+    }
+
+    @Test
+    public void drainBound() throws Exception {
+        ManagedHandle handle = handle("tcp").open();
+        handle.setIdleTime(10000);
+        handle.getHandle().setParam(Param.QUEUE_TIME, 128);
+        long start = System.nanoTime();
+        handle.reload("udp");
+        // Whatever the old handle still held after QUEUE_TIME would be dropped by the driver anyway
+        assertTrue(System.nanoTime() - start < 5000000000L);
+        assertTrue(handle.getLastSwitchNanos() >= 128000000L);
+        assertEquals(-1, handle.getLastGapNanos());
+        assertEquals("udp", handle.getFilter());
+        handle.close();
+        assertFalse(handle.isOpen());
+    }
+}
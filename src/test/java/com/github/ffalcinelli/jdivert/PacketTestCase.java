@@ -96,6 +96,15 @@ public class PacketTestCase {
         assertTrue(packet.toString().contains(printHexBinary(raw)));
     }
 
+    @Test
+    public void payloadInPlace() {
+        assertEquals(40, packet.getPayloadOffset());
+        assertEquals(payload.length, packet.getPayloadLength());
+        assertSame(raw, packet.getByteBuffer().array());
+        packet.getByteBuffer().put(packet.getPayloadOffset(), (byte) 0x16);
+        assertEquals(0x16, packet.getPayload()[0]);
+    }
+
     @Test
     public void convenienceMethods() throws UnknownHostException {
         packet.setSrcAddr(localhost);
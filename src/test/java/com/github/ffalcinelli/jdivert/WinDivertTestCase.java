@@ -18,13 +18,20 @@
 package com.github.ffalcinelli.jdivert;
 
 import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.windivert.StandInDLL;
+import com.sun.jna.ptr.LongByReference;
 import org.junit.After;
 import org.junit.Test;
 
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static com.github.ffalcinelli.jdivert.Enums.Flag.*;
 import static com.github.ffalcinelli.jdivert.Enums.Layer.NETWORK;
+import static com.github.ffalcinelli.jdivert.Enums.Param;
+import static com.sun.jna.platform.win32.WinDef.BOOL;
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
 import static org.junit.Assert.*;
 
 /**
@@ -134,4 +141,54 @@ public class WinDivertTestCase {
         assertTrue(w.toString().contains("mode=DEFAULT"));
     }
 
+    @Test
+    public void closeWaitsForCalls() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final StandInDLL dll = new StandInDLL() {
+            @Override
+            public BOOL WinDivertGetParam(HANDLE handle, int param, LongByReference pValue) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.WinDivertGetParam(handle, param, pValue);
+            }
+        };
+        w = new WinDivert(dll, "true", NETWORK, 0).open();
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                w.getParam(Param.QUEUE_LEN);
+            }
+        });
+        caller.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                w.close();
+            }
+        });
+        closer.start();
+
+        // The handle is marked closed at once, but only handed back to the driver once the call left it
+        closer.join(50);
+        assertFalse(w.isOpen());
+        assertTrue(closer.isAlive());
+        assertTrue(dll.isOpen(1));
+        release.countDown();
+        closer.join(5000);
+        caller.join(5000);
+        assertFalse(dll.isOpen(1));
+        try {
+            w.getParam(Param.QUEUE_LEN);
+            fail("The handle is closed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.balance;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+import static com.github.ffalcinelli.jdivert.craft.PacketBuilderTestCase.assertChecksums;
+import static org.junit.Assert.*;
+
+public class LoadBalancerTestCase {
+
+    long now;
+    LoadBalancer balancer;
+    List<Backend> backends;
+
+    static Backend backend(String address, int weight) throws Exception {
+        return new Backend(InetAddress.getByName(address), 8080, weight);
+    }
+
+    static int[] shares(MaglevTable table, int n) {
+        int[] shares = new int[n];
+        for (int i = 0; i < table.size(); i++) {
+            shares[table.getEntry(i)]++;
+        }
+        return shares;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        now = 1000;
+        balancer = new LoadBalancer(InetAddress.getByName("10.0.0.100"), Protocol.TCP, 80) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        backends = new ArrayList<Backend>();
+        for (int i = 1; i <= 5; i++) {
+            backends.add(backend("10.0.1." + i, 1));
+        }
+        balancer.setBackends(backends);
+    }
+
+    @Test
+    public void weights() throws Exception {
+        List<Backend> weighted = Arrays.asList(backend("10.0.1.1", 1), backend("10.0.1.2", 2), backend("10.0.1.3", 1));
+        int[] shares = shares(new MaglevTable(weighted), 3);
+        int unit = MaglevTable.DEFAULT_SIZE / 4;
+        assertEquals(unit, shares[0], unit / 20);
+        assertEquals(2 * unit, shares[1], unit / 20);
+        assertEquals(unit, shares[2], unit / 20);
+        assertEquals(-1, new MaglevTable(Arrays.asList(backend("10.0.1.1", 0))).lookup(42));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notPrime() throws Exception {
+        new MaglevTable(backends, 65536);
+    }
+
+    @Test
+    public void minimalDisruption() throws Exception {
+        List<Backend> all = new ArrayList<Backend>();
+        for (int i = 1; i <= 10; i++) {
+            all.add(backend("10.0.1." + i, 1));
+        }
+        MaglevTable before = new MaglevTable(all);
+        List<Backend> fewer = new ArrayList<Backend>(all);
+        fewer.remove(3);
+        MaglevTable after = new MaglevTable(fewer);
+        int moved = 0;
+        for (int i = 0; i < before.size(); i++) {
+            int was = before.getEntry(i);
+            Backend owner = all.get(was);
+            if (was != 3 && fewer.get(after.getEntry(i)) != owner) {
+                moved++;
+            }
+        }
+        // Besides the entries of the removed backend, only a small fraction is reassigned
+        assertTrue("Moved " + moved, moved < before.size() / 50);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Packet syn = new PacketBuilder().ip("192.168.1.2", "10.0.0.100").tcp(50000, 80).flags(Tcp.Flag.SYN).build();
+        assertEquals(LoadBalancer.Result.FORWARDED, balancer.balance(syn));
+        assertEquals(8080, (int) syn.getDstPort());
+        assertTrue(syn.getDstAddr().startsWith("10.0.1."));
+        assertChecksums(syn);
+        String chosen = syn.getDstAddr();
+
+        Packet synAck = new PacketBuilder().ip(chosen, "192.168.1.2").tcp(8080, 50000)
+                .flags(Tcp.Flag.SYN, Tcp.Flag.ACK).payload(new byte[5]).build();
+        assertEquals(LoadBalancer.Result.REPLIED, balancer.balance(synAck));
+        assertEquals("10.0.0.100", synAck.getSrcAddr());
+        assertEquals(80, (int) synAck.getSrcPort());
+        assertChecksums(synAck);
+
+        Packet stranger = new PacketBuilder().ip("10.0.9.9", "192.168.1.2").tcp(8080, 50000).build();
+        assertEquals(LoadBalancer.Result.NOT_MATCHED, balancer.balance(stranger));
+    }
+
+    @Test
+    public void udp() throws Exception {
+        LoadBalancer dns = new LoadBalancer(InetAddress.getByName("2001:db8::53"), Protocol.UDP, 53);
+        dns.setBackends(Arrays.asList(new Backend(InetAddress.getByName("2001:db8::1"), 5353)));
+        Packet query = new PacketBuilder().ip("2001:db8::2", "2001:db8::53").udp(40000, 53).payload(new byte[12]).build();
+        assertEquals(LoadBalancer.Result.FORWARDED, dns.balance(query));
+        assertEquals(5353, (int) query.getDstPort());
+        assertChecksums(query);
+        Packet tcp = new PacketBuilder().ip("2001:db8::2", "2001:db8::53").tcp(40000, 53).build();
+        assertEquals(LoadBalancer.Result.NOT_MATCHED, dns.balance(tcp));
+    }
+
+    @Test
+    public void affinity() throws Exception {
+        String[] chosen = new String[1000];
+        for (int i = 0; i < chosen.length; i++) {
+            Packet syn = new PacketBuilder().ip("192.168.1.2", "10.0.0.100").tcp(10000 + i, 80).flags(Tcp.Flag.SYN).build();
+            balancer.balance(syn);
+            chosen[i] = syn.getDstAddr();
+        }
+        assertEquals(1000, balancer.size());
+        List<Backend> more = new ArrayList<Backend>(backends);
+        more.add(backend("10.0.1.6", 1));
+        more.add(backend("10.0.1.7", 1));
+        balancer.setBackends(more);
+        for (int i = 0; i < chosen.length; i++) {
+            Packet ack = new PacketBuilder().ip("192.168.1.2", "10.0.0.100").tcp(10000 + i, 80).flags(Tcp.Flag.ACK).build();
+            balancer.balance(ack);
+            assertEquals(chosen[i], ack.getDstAddr());
+        }
+    }
+
+    @Test
+    public void removal() throws Exception {
+        Packet syn = new PacketBuilder().ip("192.168.1.2", "10.0.0.100").tcp(50000, 80).flags(Tcp.Flag.SYN).build();
+        balancer.balance(syn);
+        String chosen = syn.getDstAddr();
+        List<Backend> remaining = new ArrayList<Backend>(backends);
+        remaining.remove(new Backend(InetAddress.getByName(chosen), 8080));
+        balancer.setBackends(remaining);
+
+        // Established connections drain on the removed backend, new ones move away
+        Packet ack = new PacketBuilder().ip("192.168.1.2", "10.0.0.100").tcp(50000, 80).flags(Tcp.Flag.ACK).build();
+        balancer.balance(ack);
+        assertEquals(chosen, ack.getDstAddr());
+        Packet again = new PacketBuilder().ip("192.168.1.2", "10.0.0.100").tcp(50000, 80).flags(Tcp.Flag.SYN).build();
+        balancer.balance(again);
+        assertFalse(chosen.equals(again.getDstAddr()));
+
+        balancer.setBackends(new ArrayList<Backend>());
+        Packet orphan = new PacketBuilder().ip("192.168.1.3", "10.0.0.100").tcp(50000, 80).flags(Tcp.Flag.SYN).build();
+        assertEquals(LoadBalancer.Result.NO_BACKEND, balancer.balance(orphan));
+    }
+
+    @Test
+    public void expiry() throws Exception {
+        balancer.setIdleTimeout(1000);
+        balancer.setClosedTimeout(10);
+        for (int i = 0; i < 10; i++) {
+            balancer.balance(new PacketBuilder().ip("192.168.1.2", "10.0.0.100").tcp(10000 + i, 80).flags(Tcp.Flag.SYN).build());
+        }
+        balancer.balance(new PacketBuilder().ip("192.168.1.2", "10.0.0.100").tcp(10000, 80).flags(Tcp.Flag.RST).build());
+        now += 11;
+        assertEquals(1, balancer.expire());
+        now += 1000;
+        assertEquals(9, balancer.expire());
+        assertEquals(0, balancer.size());
+    }
+}
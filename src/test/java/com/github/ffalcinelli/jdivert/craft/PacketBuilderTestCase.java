@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.craft;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.headers.Ipv4;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction.INBOUND;
+import static org.junit.Assert.*;
+
+public class PacketBuilderTestCase {
+
+    /**
+     * Assert the checksums of the packet are the ones a full recalculation gives.
+     */
+    public static void assertChecksums(Packet packet) {
+        byte[] raw = packet.getRaw();
+        Packet copy = new Packet(raw.clone(), packet.getIface(), packet.getDirection());
+        Checksums.calculate(copy);
+        assertArrayEquals(copy.getRaw(), raw);
+    }
+
+    @Test
+    public void tcpIpv4() throws Exception {
+        BufferPool pool = new BufferPool(2, 1500);
+        Packet packet = new PacketBuilder(pool)
+                .ip("192.168.1.2", "10.0.0.1")
+                .ttl(128).id(0x1234).dontFragment(true)
+                .tcp(40000, 443).seq(1000).ack(2000).flags(Tcp.Flag.SYN, Tcp.Flag.ACK).window(8192)
+                .payload("hello".getBytes())
+                .direction(INBOUND).iface(3, 1)
+                .build();
+        assertEquals(1, pool.available());
+        assertEquals(1500, packet.getByteBuffer().array().length);
+        assertEquals(45, packet.getRaw().length);
+        assertTrue(packet.isIpv4() && packet.isTcp() && packet.isInbound());
+        assertEquals("192.168.1.2", packet.getSrcAddr());
+        assertEquals("10.0.0.1", packet.getDstAddr());
+        assertEquals(45, packet.getIpv4().getTotalLength());
+        assertEquals(128, packet.getIpv4().getTTL());
+        assertEquals(0x1234, packet.getIpv4().getID());
+        assertTrue(packet.getIpv4().is(Ipv4.Flag.DF));
+        assertEquals(443, (int) packet.getDstPort());
+        assertEquals(1000, packet.getTcp().getSeqNumber());
+        assertEquals(2000, packet.getTcp().getAckNumber());
+        assertTrue(packet.getTcp().is(Tcp.Flag.SYN) && packet.getTcp().is(Tcp.Flag.ACK));
+        assertFalse(packet.getTcp().is(Tcp.Flag.FIN));
+        assertEquals(8192, packet.getTcp().getWindowSize());
+        assertArrayEquals("hello".getBytes(), packet.getPayload());
+        assertArrayEquals(new int[]{3, 1}, packet.getIface());
+        assertChecksums(packet);
+
+        pool.release(packet);
+        assertEquals(2, pool.available());
+    }
+
+    @Test
+    public void udpAndIcmpIpv6() throws Exception {
+        PacketBuilder builder = new PacketBuilder().ip("::1", "2001:db8::1").tos(0xB8).flowLabel(0xABCDE)
+                .udp(5353, 53).payload(new byte[]{1, 2, 3});
+        Packet udp = builder.build();
+        assertTrue(udp.isIpv6() && udp.isUdp());
+        assertEquals(11, udp.getIpv6().getPayloadLength());
+        assertEquals(11, udp.getUdp().getLength());
+        assertEquals(0x6B8ABCDE, udp.getByteBuffer().getInt(0));
+        assertChecksums(udp);
+
+        Packet echo = builder.icmp(128, 0, 0x00010002).build();
+        assertTrue(echo.isIcmpv6());
+        assertEquals(128, echo.getIcmpv6().getType() & 0xFF);
+        assertChecksums(echo);
+
+        Packet echo4 = builder.ip("10.0.0.1", "10.0.0.2").build();
+        assertTrue(echo4.isIcmpv4());
+        // Icmp headers expose the rest of header as part of the payload
+        assertArrayEquals(new byte[]{0, 1, 0, 2, 1, 2, 3}, echo4.getPayload());
+        assertChecksums(echo4);
+    }
+
+    @Test
+    public void templateIncrementalChecksums() throws Exception {
+        PacketTemplate template = new PacketBuilder()
+                .ip("192.168.1.2", "10.0.0.1")
+                .tcp(40000, 80).seq(1).flags(Tcp.Flag.SYN)
+                .payload("GET / HTTP/1.1\r\n".getBytes())
+                .template();
+        Packet packet = template.packet();
+        for (int i = 0; i < 100; i++) {
+            template.setSrcPort(1024 + i * 311)
+                    .setSeqNumber(i * 0x01F01234)
+                    .setAckNumber(~i)
+                    .setTcpFlags(PacketBuilder.mask(Tcp.Flag.ACK, Tcp.Flag.PSH))
+                    .setWindow(i * 97)
+                    .setIpId(i)
+                    .setTtl(i + 1)
+                    .setDstAddress(new byte[]{10, 0, (byte) i, (byte) (255 - i)});
+            assertSame(packet, template.packet());
+            assertChecksums(packet);
+        }
+        assertEquals(1024 + 99 * 311, (int) packet.getSrcPort());
+        assertEquals("10.0.99.156", packet.getDstAddr());
+        assertEquals(5, packet.getTcp().getDataOffset());
+
+        template.setPayload("PUT / HTTP/1.1\r\n".getBytes(), 0);
+        assertChecksums(packet);
+        Packet copy = template.copy();
+        assertNotSame(packet.getByteBuffer().array(), copy.getByteBuffer().array());
+        assertArrayEquals(packet.getRaw(), copy.getRaw());
+    }
+
+    @Test
+    public void templateIpv6Udp() throws Exception {
+        PacketTemplate template = new PacketBuilder().ip("fe80::1", "fe80::2").udp(1, 2).payload(new byte[5]).template();
+        byte[] address = new byte[16];
+        for (int i = 0; i < 50; i++) {
+            Arrays.fill(address, (byte) (i * 5));
+            template.setSrcAddress(address).setDstPort(i).setTtl(i);
+            assertChecksums(template.packet());
+        }
+        assertEquals(49, template.packet().getIpv6().getHopLimit());
+    }
+
+    @Test
+    public void poolMisses() {
+        BufferPool pool = new BufferPool(1, 64);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        assertEquals(0, pool.available());
+        assertEquals(1, pool.getMisses());
+        pool.release(first);
+        pool.release(second);
+        pool.release(new byte[32]);
+        assertEquals(1, pool.available());
+        assertSame(first, pool.acquire());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void incomplete() {
+        new PacketBuilder().udp(1, 2).build();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.craft;
+
+import com.github.ffalcinelli.jdivert.Enums;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+import com.github.ffalcinelli.jdivert.windivert.StandInDLL;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction.INBOUND;
+import static com.github.ffalcinelli.jdivert.Enums.Direction.OUTBOUND;
+import static com.github.ffalcinelli.jdivert.craft.PacketBuilderTestCase.assertChecksums;
+import static org.junit.Assert.*;
+
+public class RejectorTestCase {
+
+    BufferPool pool;
+    Rejector rejector;
+
+    @Before
+    public void setUp() {
+        pool = new BufferPool(4, 1500);
+        rejector = new Rejector(pool);
+    }
+
+    @Test
+    public void resetEstablished() throws Exception {
+        Packet offending = new PacketBuilder().ip("192.168.1.2", "10.0.0.1").tcp(40000, 443)
+                .seq(1000).ack(5000).flags(Tcp.Flag.ACK, Tcp.Flag.PSH).payload(new byte[10])
+                .direction(OUTBOUND).iface(7, 0).build();
+
+        Packet toSender = rejector.resetToSender(offending);
+        assertEquals("10.0.0.1", toSender.getSrcAddr());
+        assertEquals("192.168.1.2", toSender.getDstAddr());
+        assertEquals(443, (int) toSender.getSrcPort());
+        assertEquals(40000, (int) toSender.getDstPort());
+        assertEquals(5000, toSender.getTcp().getSeqNumber());
+        assertEquals(PacketBuilder.mask(Tcp.Flag.RST), toSender.getTcp().getFlags());
+        assertEquals(INBOUND, toSender.getDirection());
+        assertArrayEquals(new int[]{7, 0}, toSender.getIface());
+        assertEquals(40, toSender.getRaw().length);
+        assertChecksums(toSender);
+
+        Packet toReceiver = rejector.resetToReceiver(offending);
+        assertEquals("192.168.1.2", toReceiver.getSrcAddr());
+        assertEquals(443, (int) toReceiver.getDstPort());
+        assertEquals(1000, toReceiver.getTcp().getSeqNumber());
+        assertEquals(5000, toReceiver.getTcp().getAckNumber());
+        assertEquals(PacketBuilder.mask(Tcp.Flag.RST, Tcp.Flag.ACK), toReceiver.getTcp().getFlags());
+        assertEquals(OUTBOUND, toReceiver.getDirection());
+        assertChecksums(toReceiver);
+        assertEquals(2, pool.available());
+    }
+
+    @Test
+    public void resetSynIpv6() throws Exception {
+        Packet syn = new PacketBuilder().ip("2001:db8::2", "2001:db8::1").tcp(50000, 22)
+                .seq(-1).flags(Tcp.Flag.SYN).direction(INBOUND).build();
+        Packet reset = rejector.resetToSender(syn);
+        assertTrue(reset.isIpv6());
+        assertEquals(0, reset.getTcp().getSeqNumber());
+        assertEquals(0, reset.getTcp().getAckNumber());
+        assertEquals(PacketBuilder.mask(Tcp.Flag.RST, Tcp.Flag.ACK), reset.getTcp().getFlags());
+        assertEquals(OUTBOUND, reset.getDirection());
+        assertChecksums(reset);
+        assertNull(rejector.resetToSender(reset));
+    }
+
+    @Test
+    public void unreachable() throws Exception {
+        Packet query = new PacketBuilder().ip("192.168.1.2", "8.8.8.8").udp(5000, 53).payload(new byte[600])
+                .direction(OUTBOUND).build();
+        Packet icmp = rejector.unreachable(query);
+        assertTrue(icmp.isIcmpv4());
+        assertEquals(3, icmp.getIcmpv4().getType());
+        assertEquals(3, icmp.getIcmpv4().getCode());
+        assertEquals("8.8.8.8", icmp.getSrcAddr());
+        assertEquals(576, icmp.getRaw().length);
+        assertEquals(INBOUND, icmp.getDirection());
+        byte[] quoted = Arrays.copyOfRange(icmp.getRaw(), 28, 576);
+        assertArrayEquals(Arrays.copyOf(query.getRaw(), 548), quoted);
+        assertChecksums(icmp);
+        // Never answer an Icmp error
+        assertNull(rejector.unreachable(icmp));
+
+        Packet v6 = new PacketBuilder().ip("::1", "::2").tcp(1, 2).direction(INBOUND).iface(1, 0).build();
+        Packet icmpv6 = rejector.unreachable(v6);
+        assertTrue(icmpv6.isIcmpv6());
+        assertEquals(1, icmpv6.getIcmpv6().getType());
+        assertEquals(1, icmpv6.getIcmpv6().getCode());
+        assertEquals(40 + 8 + 60, icmpv6.getRaw().length);
+        // Loopback packets are always reinjected outbound
+        assertEquals(OUTBOUND, icmpv6.getDirection());
+        assertChecksums(icmpv6);
+        assertNull(rejector.unreachable(icmpv6));
+    }
+
+    @Test
+    public void noReplyToMulticast() throws Exception {
+        Packet mdns = new PacketBuilder().ip("192.168.1.2", "224.0.0.251").udp(5353, 5353).build();
+        assertNull(rejector.unreachable(mdns));
+        Packet broadcast = new PacketBuilder().ip("192.168.1.2", "255.255.255.255").udp(68, 67).build();
+        assertNull(rejector.unreachable(broadcast));
+        Packet v6 = new PacketBuilder().ip("fe80::1", "ff02::1").tcp(1, 2).build();
+        assertNull(rejector.resetToSender(v6));
+    }
+
+    @Test
+    public void senderSurvivesErrors() throws Exception {
+        StandInDLL dll = new StandInDLL();
+        WinDivert divert = new WinDivert(dll, "tcp", Enums.Layer.NETWORK, 0) {
+            @Override
+            public int send(Packet packet, boolean recalculateChecksum, Enums.CalcChecksumsOption... options)
+                    throws WinDivertException {
+                if (packet.getDstPort() == 1) {
+                    throw new IllegalStateException("Malformed");
+                }
+                return super.send(packet, recalculateChecksum, options);
+            }
+        }.open();
+        BatchSender sender = new BatchSender(divert, pool, 16, 4).start();
+        for (int port = 1; port <= 3; port++) {
+            assertTrue(sender.offer(new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(1000, port).build()));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getSent() + sender.getErrors() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // The failing packet is counted and its buffer released, the others are sent
+        assertEquals(1, sender.getErrors());
+        assertEquals(2, sender.getSent());
+        assertEquals(2, dll.getSent());
+        sender.stop();
+        assertEquals(pool.getCapacity(), pool.available());
+    }
+
+    @Test
+    public void senderStop() throws Exception {
+        StandInDLL dll = new StandInDLL();
+        WinDivert divert = new WinDivert(dll, "tcp", Enums.Layer.NETWORK, 0).open();
+        BatchSender sender = new BatchSender(divert, pool, 16, 4);
+        for (int port = 1; port <= 3; port++) {
+            assertTrue(sender.offer(new PacketBuilder(pool).ip("10.0.0.1", "10.0.0.2").tcp(1000, port).build()));
+        }
+        // Never started, what is queued is sent on stop and later packets are refused
+        sender.stop();
+        assertEquals(3, sender.getSent());
+        assertEquals(3, dll.getSent());
+        assertEquals(pool.getCapacity(), pool.available());
+        assertFalse(sender.offer(new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(1000, 4).build()));
+        assertEquals(1, sender.getDropped());
+        assertEquals(0, sender.getQueued());
+    }
+}
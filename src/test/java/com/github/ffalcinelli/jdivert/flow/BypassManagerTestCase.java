@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+import com.github.ffalcinelli.jdivert.ManagedHandle;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.windivert.StandInDLL;
+import org.junit.Test;
+
+import static com.github.ffalcinelli.jdivert.Enums.Layer;
+import static org.junit.Assert.*;
+
+public class BypassManagerTestCase {
+
+    private final StandInDLL dll = new StandInDLL();
+
+    private BypassManager manager() throws Exception {
+        ManagedHandle handle = new ManagedHandle("tcp or udp", Layer.NETWORK, 0) {
+            @Override
+            protected WinDivert newHandle(String filter) {
+                return new WinDivert(dll, filter, Layer.NETWORK, 0);
+            }
+        };
+        handle.setIdleTime(0);
+        return new BypassManager(handle.open());
+    }
+
+    @Test
+    public void swap() throws Exception {
+        BypassManager manager = manager();
+        ManagedHandle handle = manager.getHandle();
+        manager.setMinInterval(1000);
+        Packet packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(40000, 80).build();
+        Packet reply = new PacketBuilder().ip("10.0.0.2", "10.0.0.1").tcp(80, 40000).build();
+        assertTrue(manager.bypass(packet, 0));
+        assertTrue(manager.bypass(reply, 0));
+        assertEquals(1, manager.getFlows());
+
+        assertTrue(manager.update(1000));
+        assertEquals("(tcp or udp) and not ("
+                + "(tcp.SrcPort == 40000 and tcp.DstPort == 80 and ip.SrcAddr == 10.0.0.1 and ip.DstAddr == 10.0.0.2)"
+                + " or (tcp.SrcPort == 80 and tcp.DstPort == 40000 and ip.SrcAddr == 10.0.0.2 and ip.DstAddr == 10.0.0.1))",
+                handle.getFilter());
+        assertEquals(2, dll.getOpened());
+        assertEquals(handle.getFilter(), dll.getFilter(2));
+        assertFalse(dll.isOpen(1));
+
+        // Swaps are rate limited
+        Packet udp = new PacketBuilder().ip("2001:db8::1", "2001:db8::2").udp(5000, 53).build();
+        assertTrue(manager.bypass(udp, 1500));
+        assertFalse(manager.update(1999));
+        assertTrue(manager.update(2000));
+        assertTrue(handle.getFilter().contains("(udp.SrcPort == 5000 and udp.DstPort == 53 and "
+                + "ipv6.SrcAddr == 2001:db8:0:0:0:0:0:1 and ipv6.DstAddr == 2001:db8:0:0:0:0:0:2)"));
+        assertEquals(2, manager.getSwaps());
+        assertEquals(2, handle.getReloads());
+        assertTrue(dll.isOpen(3));
+    }
+
+    @Test
+    public void boundsAndExpiry() throws Exception {
+        BypassManager manager = manager();
+        manager.setMaxFlows(2);
+        manager.setMinInterval(0);
+        manager.setBypassTimeout(10000);
+        assertFalse(manager.bypass(new PacketBuilder().ip("10.0.0.1", "10.0.0.2").icmp(8, 0, 0).build(), 0));
+        assertTrue(manager.bypass(new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(1, 2).build(), 0));
+        assertTrue(manager.bypass(new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(3, 4).build(), 5000));
+        assertFalse(manager.bypass(new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(5, 6).build(), 5000));
+        assertTrue(manager.update(5000));
+        assertFalse(manager.update(6000));
+
+        // Bypassed flows come back to user space after the timeout
+        assertTrue(manager.update(10000));
+        assertEquals(1, manager.getFlows());
+        assertFalse(manager.getHandle().getFilter().contains("tcp.SrcPort == 1 "));
+        assertTrue(manager.update(15000));
+        assertEquals("tcp or udp", manager.getHandle().getFilter());
+        assertEquals(4, dll.getOpened());
+    }
+
+    @Test
+    public void bypassDuringReload() throws Exception {
+        final BypassManager manager = manager();
+        ManagedHandle handle = manager.getHandle();
+        handle.setIdleTime(200);
+        manager.setMinInterval(0);
+        assertTrue(manager.bypass(new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(1, 2).build(), 0));
+        final Exception[] error = new Exception[1];
+        Thread updater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    manager.update(1000);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        });
+        updater.start();
+        while (dll.getOpened() < 2) {
+            Thread.sleep(1);
+        }
+
+        // The old handle is draining: a receiver bypassing flows meanwhile is not held up by the swap
+        for (int i = 0; i < 10; i++) {
+            dll.inject(1, new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(1000 + i, 80).build().getRaw());
+            Packet packet = handle.recv();
+            long start = System.nanoTime();
+            assertTrue(manager.bypass(packet, 1000));
+            assertTrue(System.nanoTime() - start < 100000000L);
+        }
+        assertTrue(updater.isAlive());
+        updater.join(5000);
+        assertNull(error[0]);
+        assertEquals(10, handle.getLastDrained());
+        assertEquals(11, manager.getFlows());
+        assertEquals(1, manager.getSwaps());
+    }
+}
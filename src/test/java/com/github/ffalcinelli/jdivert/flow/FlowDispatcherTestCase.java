@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+import com.github.ffalcinelli.jdivert.CompletionPort;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.windivert.StandInDLL;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.ffalcinelli.jdivert.Enums.Layer;
+import static org.junit.Assert.*;
+
+public class FlowDispatcherTestCase {
+
+    @Test
+    public void symmetricHash() throws Exception {
+        Packet request = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(40000, 80).build();
+        Packet reply = new PacketBuilder().ip("10.0.0.2", "10.0.0.1").tcp(80, 40000).build();
+        Packet swapped = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(80, 40000).build();
+        assertEquals(FlowHash.symmetricHash(request), FlowHash.symmetricHash(reply));
+        assertNotEquals(FlowHash.symmetricHash(request), FlowHash.symmetricHash(swapped));
+        assertNotEquals(FlowHash.hash(request), FlowHash.hash(reply));
+        Packet v6 = new PacketBuilder().ip("2001:db8::1", "2001:db8::2").udp(5353, 53).build();
+        Packet v6Reply = new PacketBuilder().ip("2001:db8::2", "2001:db8::1").udp(53, 5353).build();
+        assertEquals(FlowHash.symmetricHash(v6), FlowHash.symmetricHash(v6Reply));
+
+        // Flows spread evenly over the workers
+        FlowDispatcher dispatcher = new FlowDispatcher(null, 4, 1, null);
+        int[] counts = new int[4];
+        for (int i = 0; i < 4000; i++) {
+            counts[dispatcher.workerOf(new PacketBuilder().ip("10.0.0.1", "10.0." + (i >> 8) + "." + (i & 0xFF))
+                    .tcp(40000 + i % 13, 443).build())]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 850 && count < 1150);
+        }
+    }
+
+    @Test
+    public void perFlowOrder() throws Exception {
+        StandInDLL dll = new StandInDLL();
+        WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0).open();
+        divert.setCompletionPort(new CompletionPort(dll, 1).start());
+        final int flows = 64;
+        final int[] workerOfFlow = new int[flows];
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+        // Per worker state, deliberately not synchronized
+        final Map<Integer, Map<Integer, Integer>> last = new HashMap<Integer, Map<Integer, Integer>>();
+        for (int i = 0; i < 4; i++) {
+            last.put(i, new HashMap<Integer, Integer>());
+        }
+        Arrays.fill(workerOfFlow, -1);
+        FlowDispatcher dispatcher = new FlowDispatcher(divert, 4, 100000, new FlowDispatcher.Handler() {
+            @Override
+            public boolean handle(Packet packet, int worker) {
+                boolean request = packet.getDstPort() == 80;
+                int flow = (request ? packet.getSrcPort() : packet.getDstPort()) - 40000;
+                int seq = packet.getByteBuffer().getShort(packet.getPayloadOffset());
+                Map<Integer, Integer> seen = last.get(worker);
+                Integer previous = seen.put(flow, seq);
+                if (previous != null && previous >= seq) {
+                    violations.incrementAndGet();
+                }
+                synchronized (workerOfFlow) {
+                    if (workerOfFlow[flow] >= 0 && workerOfFlow[flow] != worker) {
+                        violations.incrementAndGet();
+                    }
+                    workerOfFlow[flow] = worker;
+                }
+                handled.incrementAndGet();
+                return true;
+            }
+        });
+        for (int seq = 0; seq < 200; seq++) {
+            for (int flow = 0; flow < flows; flow++) {
+                byte[] payload = {(byte) (seq >> 8), (byte) seq};
+                PacketBuilder builder = seq % 2 == 0
+                        ? new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(40000 + flow, 80)
+                        : new PacketBuilder().ip("10.0.0.2", "10.0.0.1").tcp(80, 40000 + flow);
+                dll.inject(1, builder.payload(payload).build().getByteBuffer().array());
+            }
+        }
+        dispatcher.start(true);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (handled.get() < flows * 200 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        dispatcher.stop(true);
+        assertEquals(flows * 200, handled.get());
+        assertEquals(0, violations.get());
+        assertEquals(flows * 200, dll.getSent());
+        assertEquals(0, dispatcher.getDropped());
+        Set<Integer> used = new HashSet<Integer>();
+        for (int worker : workerOfFlow) {
+            used.add(worker);
+        }
+        assertEquals(4, used.size());
+    }
+
+    @Test
+    public void stopWithQueued() throws Exception {
+        StandInDLL dll = new StandInDLL();
+        WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0).open();
+        divert.setCompletionPort(new CompletionPort(dll, 1).start());
+        FlowDispatcher dispatcher = new FlowDispatcher(divert, 1, 16, new FlowDispatcher.Handler() {
+            @Override
+            public boolean handle(Packet packet, int worker) throws Exception {
+                Thread.sleep(10);
+                return true;
+            }
+        }).start(true);
+        byte[] packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).build().getByteBuffer().array();
+        for (int i = 0; i < 10; i++) {
+            dll.inject(1, packet);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getDispatched() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // Most packets still queued to the slow worker, all sent before the handle is closed
+        dispatcher.stop(true);
+        assertEquals(10, dll.getSent());
+        assertEquals(0, dispatcher.getErrors());
+        assertFalse(divert.isOpen());
+    }
+
+    @Test
+    public void receiveErrors() throws Exception {
+        // A receive throwing at runtime is counted, it does not end the receiver
+        StandInDLL dll = new StandInDLL();
+        final AtomicInteger calls = new AtomicInteger();
+        WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0) {
+            @Override
+            public Packet recv(long timeout, TimeUnit unit) throws WinDivertException {
+                Packet packet = super.recv(timeout, unit);
+                if (packet != null && calls.incrementAndGet() == 1) {
+                    throw new IllegalArgumentException("Unparsable");
+                }
+                return packet;
+            }
+        }.open();
+        divert.setCompletionPort(new CompletionPort(dll, 1).start());
+        final AtomicInteger handled = new AtomicInteger();
+        FlowDispatcher dispatcher = new FlowDispatcher(divert, 1, 16, new FlowDispatcher.Handler() {
+            @Override
+            public boolean handle(Packet packet, int worker) {
+                handled.incrementAndGet();
+                return true;
+            }
+        }).start(true);
+        byte[] packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).build().getByteBuffer().array();
+        for (int i = 0; i < 3; i++) {
+            dll.inject(1, packet);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handled.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        dispatcher.stop(true);
+        assertEquals(2, handled.get());
+        assertEquals(1, dispatcher.getErrors());
+    }
+
+    @Test
+    public void fullQueue() throws Exception {
+        FlowDispatcher dispatcher = new FlowDispatcher(null, 1, 2, null);
+        Packet packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).build();
+        assertTrue(dispatcher.dispatch(packet));
+        assertTrue(dispatcher.dispatch(packet));
+        assertFalse(dispatcher.dispatch(packet));
+        assertEquals(2, dispatcher.getDispatched());
+        assertEquals(1, dispatcher.getDropped());
+    }
+}
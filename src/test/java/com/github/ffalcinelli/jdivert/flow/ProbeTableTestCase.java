@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProbeTableTestCase {
+
+    private static int hash(long k0, long k1) {
+        // Few distinct hashes, so that probe sequences collide and wrap around
+        return (int) ((k0 * 31 + k1) % 97) * 0x01000193;
+    }
+
+    @Test
+    public void againstHashMap() {
+        Random random = new Random(42);
+        ProbeTable<String> table = new ProbeTable<String>(2, 3, 4);
+        Map<Long, String> model = new HashMap<Long, String>();
+        long[] key = new long[2];
+        for (int n = 0; n < 100000; n++) {
+            long k = random.nextInt(500);
+            key[0] = k;
+            key[1] = -k;
+            int h = hash(k, -k);
+            int slot = table.find(key, h);
+            assertEquals(model.containsKey(k), slot >= 0);
+            if (slot >= 0) {
+                assertEquals(model.get(k), table.value(slot));
+                assertEquals(k * 2, table.get(slot, 2));
+                if (random.nextBoolean()) {
+                    table.removeAt(slot);
+                    model.remove(k);
+                }
+            } else {
+                slot = table.add(key, h, "v" + k);
+                table.set(slot, 2, k * 2);
+                model.put(k, "v" + k);
+            }
+            assertEquals(model.size(), table.size());
+        }
+        assertTrue(table.capacity() >= 2 * table.size());
+    }
+
+    @Test
+    public void removeIf() {
+        final ProbeTable<Void> table = new ProbeTable<Void>(1, 2, 16);
+        long[] key = new long[1];
+        for (int k = 0; k < 1000; k++) {
+            key[0] = k;
+            table.set(table.add(key, k % 7, null), 1, k);
+        }
+        int removed = table.removeIf(new ProbeTable.Selector() {
+            @Override
+            public boolean select(int slot) {
+                return table.get(slot, 1) % 2 == 0;
+            }
+        });
+        // Records shifted back past the start of the table are only checked by the next sweep
+        removed += table.removeIf(new ProbeTable.Selector() {
+            @Override
+            public boolean select(int slot) {
+                return table.get(slot, 1) % 2 == 0;
+            }
+        });
+        assertEquals(500, removed);
+        assertEquals(500, table.size());
+        for (int k = 0; k < 1000; k++) {
+            key[0] = k;
+            assertEquals(k % 2 == 1, table.find(key, k % 7) >= 0);
+        }
+    }
+}
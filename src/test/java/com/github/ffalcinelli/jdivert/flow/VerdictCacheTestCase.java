@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.flow;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VerdictCacheTestCase {
+
+    @Test
+    public void flowKey() throws Exception {
+        Packet request = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(40000, 80).build();
+        Packet reply = new PacketBuilder().ip("10.0.0.2", "10.0.0.1").tcp(80, 40000).build();
+        FlowKey key = new FlowKey(request);
+        assertEquals(6, key.getProtocol());
+        assertEquals(40000, key.getSrcPort());
+        assertEquals(80, key.getDstPort());
+        assertFalse(key.equals(new FlowKey(reply)));
+        assertEquals(new FlowKey(reply), new FlowKey(key).reverse());
+        assertEquals(new FlowKey(reply).hash(), new FlowKey(key).reverse().hash());
+
+        Packet v6 = new PacketBuilder().ip("2001:db8::1", "2001:db8::2").udp(5353, 53).build();
+        key.set(v6);
+        assertEquals(17, key.getProtocol());
+        assertEquals(new FlowKey(v6), key);
+        assertFalse(key.equals(new FlowKey(new PacketBuilder().ip("2001:db8::1", "2001:db8::3").udp(5353, 53).build())));
+    }
+
+    @Test
+    public void hitsAndGenerations() throws Exception {
+        VerdictCache<String> cache = new VerdictCache<String>(4);
+        Packet syn = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(40000, 80).flags(Tcp.Flag.SYN).build();
+        Packet ack = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(40000, 80).flags(Tcp.Flag.ACK).build();
+        Packet reply = new PacketBuilder().ip("10.0.0.2", "10.0.0.1").tcp(80, 40000).flags(Tcp.Flag.ACK).build();
+        assertNull(cache.lookup(syn, 0));
+        cache.put(syn, "accept", 0);
+        assertEquals("accept", cache.lookup(ack, 1));
+        assertNull(cache.lookup(reply, 1));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        // Reloading the rules makes the verdict stale
+        assertEquals(1, cache.invalidate());
+        assertNull(cache.lookup(ack, 2));
+        cache.put(ack, "drop", 2);
+        assertEquals("drop", cache.lookup(ack, 3));
+        cache.put(reply, "accept", 3);
+        cache.invalidate();
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.expire(3));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void tcpState() throws Exception {
+        VerdictCache<String> cache = new VerdictCache<String>(1);
+        cache.setTcpTimeout(1000);
+        cache.setTcpTransitoryTimeout(10);
+        cache.setUdpTimeout(100);
+        Packet syn = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(40000, 80).flags(Tcp.Flag.SYN).build();
+        Packet ack = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(40000, 80).flags(Tcp.Flag.ACK).build();
+        Packet fin = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tcp(40000, 80)
+                .flags(Tcp.Flag.FIN, Tcp.Flag.ACK).build();
+        cache.put(syn, "accept", 0);
+        assertEquals("accept", cache.lookup(ack, 500));
+        assertEquals("accept", cache.lookup(ack, 1400));
+        assertNull(cache.lookup(ack, 2401));
+
+        // A FIN moves the flow to the transitory timeout
+        cache.put(syn, "accept", 0);
+        assertEquals("accept", cache.lookup(fin, 5));
+        assertEquals("accept", cache.lookup(ack, 15));
+        assertEquals(0, cache.expire(25));
+        assertEquals(1, cache.expire(26));
+
+        // A new connection reusing the 5-tuple is evaluated again
+        cache.put(syn, "accept", 0);
+        assertNull(cache.lookup(syn, 1));
+        assertEquals(0, cache.size());
+
+        Packet udp = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(5000, 53).build();
+        cache.put(udp, "drop", 0);
+        assertEquals("drop", cache.lookup(udp, 100));
+        assertTrue(cache.remove(udp));
+        assertFalse(cache.remove(udp));
+    }
+
+    @Test
+    public void manyFlows() throws Exception {
+        VerdictCache<Integer> cache = new VerdictCache<Integer>(2);
+        Packet[] packets = new Packet[5000];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = new PacketBuilder().ip("10.0." + (i >> 8) + "." + (i & 0xFF), "2.2.2.2")
+                    .udp(1024 + i % 7, 53).build();
+            cache.put(packets[i], i, 0);
+        }
+        assertEquals(packets.length, cache.size());
+        for (int i = 0; i < packets.length; i += 2) {
+            assertTrue(cache.remove(packets[i]));
+        }
+        for (int i = 0; i < packets.length; i++) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), cache.lookup(packets[i], 1));
+        }
+        assertEquals(packets.length / 2, cache.expire(1000000));
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction.INBOUND;
+import static com.github.ffalcinelli.jdivert.Enums.Direction.OUTBOUND;
+import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
+import static org.junit.Assert.*;
+
+public class DnsTestCase {
+
+    // PTR query for 8.8.8.8.in-addr.arpa from 192.168.43.9:51677 to 192.168.43.1:53
+    static final String QUERY = "4500004281bf000040112191c0a82b09c0a82b01c9dd0035002ef268" +
+            "528e01000001000000000000013801380138013807696e2d61646472046172706100000c0001";
+    // Response with a compressed owner name and PTR target "dns.google", TTL 3600
+    static final String RESPONSE = "528e81800001000100000000013801380138013807696e2d61646472046172706100000c0001" +
+            "c00c000c000100000e10000c03646e7306676f6f676c6500";
+
+    long now;
+    DnsCache cache;
+    Packet query;
+    byte[] scratch = new byte[DnsMessage.MAX_NAME_LENGTH];
+
+    static String ascii(byte[] data, int length) {
+        return new String(data, 0, length);
+    }
+
+    @Before
+    public void setUp() {
+        now = 1000000L;
+        cache = new DnsCache(16, 0, 86400) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        query = new Packet(parseHexBinary(QUERY), new int[]{7, 0}, OUTBOUND);
+    }
+
+    @Test
+    public void parseQuery() {
+        DnsMessage message = new DnsMessage();
+        assertTrue(message.wrap(query));
+        assertEquals(0x528e, message.getId());
+        assertFalse(message.isResponse());
+        assertEquals(1, message.getQuestionCount());
+        DnsMessage.Record record = new DnsMessage.Record();
+        assertTrue(message.next(record));
+        assertEquals(DnsMessage.Section.QUESTION, record.getSection());
+        assertEquals(DnsMessage.TYPE_PTR, record.getType());
+        assertEquals(DnsMessage.CLASS_IN, record.getDnsClass());
+        int length = message.readName(record.getNameOffset(), scratch);
+        assertEquals("8.8.8.8.in-addr.arpa", ascii(scratch, length));
+        assertFalse(message.next(record));
+        assertFalse(message.isMalformed());
+    }
+
+    @Test
+    public void parseResponse() {
+        byte[] data = parseHexBinary(RESPONSE);
+        DnsMessage message = new DnsMessage();
+        message.wrap(data, 0, data.length);
+        DnsMessage.Record record = new DnsMessage.Record();
+        assertTrue(message.next(record));
+        assertTrue(message.next(record));
+        assertEquals(DnsMessage.Section.ANSWER, record.getSection());
+        assertEquals(3600, record.getTtl());
+        assertEquals("8.8.8.8.in-addr.arpa", ascii(scratch, message.readName(record.getNameOffset(), scratch)));
+        assertEquals("dns.google", ascii(scratch, message.readName(record.getRdataOffset(), scratch)));
+        assertFalse(message.next(record));
+        assertTrue(message.toString().contains("an=1"));
+    }
+
+    @Test
+    public void malformed() {
+        byte[] data = parseHexBinary(RESPONSE);
+        // Pointer loop: the answer name points to itself
+        data[38] = (byte) 0xC0;
+        data[39] = 38;
+        DnsMessage message = new DnsMessage();
+        message.wrap(data, 0, data.length);
+        DnsMessage.Record record = new DnsMessage.Record();
+        assertTrue(message.next(record));
+        assertTrue(message.next(record));
+        assertEquals(-1, message.readName(record.getNameOffset(), scratch));
+        // Truncated rdata
+        message.wrap(data, 0, data.length - 3);
+        assertTrue(message.next(record));
+        assertFalse(message.next(record));
+        assertTrue(message.isMalformed());
+        assertFalse(message.wrap(data, 0, 5));
+    }
+
+    @Test
+    public void answerFromCache() {
+        DnsResponder responder = new DnsResponder(cache);
+        byte[] buffer = new byte[1500];
+        assertNull(responder.answer(query, buffer));
+
+        byte[] data = parseHexBinary(RESPONSE);
+        DnsMessage response = new DnsMessage();
+        response.wrap(data, 0, data.length);
+        assertTrue(cache.put(response));
+        assertEquals(1, cache.size());
+
+        now += 600 * 1000;
+        Packet answer = responder.answer(query, buffer);
+        assertNotNull(answer);
+        assertSame(buffer, answer.getByteBuffer().array());
+        assertEquals(INBOUND, answer.getDirection());
+        assertEquals("192.168.43.1", answer.getSrcAddr());
+        assertEquals("192.168.43.9", answer.getDstAddr());
+        assertEquals(53, (int) answer.getSrcPort());
+        assertEquals(51677, (int) answer.getDstPort());
+        assertEquals(answer.getByteBuffer().capacity(), answer.getIpv4().getTotalLength());
+        assertEquals(answer.getByteBuffer().capacity() - 20, answer.getUdp().getLength());
+
+        DnsMessage message = new DnsMessage();
+        message.wrap(answer);
+        assertTrue(message.isResponse());
+        assertEquals(0x528e, message.getId());
+        assertEquals(1, message.getAnswerCount());
+        DnsMessage.Record record = new DnsMessage.Record();
+        assertTrue(message.next(record));
+        assertTrue(message.next(record));
+        assertEquals(3000, record.getTtl());
+        assertEquals("8.8.8.8.in-addr.arpa", ascii(scratch, message.readName(record.getNameOffset(), scratch)));
+        assertEquals("dns.google", ascii(scratch, message.readName(record.getRdataOffset(), scratch)));
+
+        // Checksums are valid
+        byte[] raw = answer.getRaw();
+        assertEquals(0, Checksums.checksum(raw, 0, 20));
+        assertEquals(0, Checksums.fold(Checksums.sum(raw, 20, raw.length - 20,
+                Checksums.pseudoHeaderSum(raw, true, 17, raw.length - 20))));
+
+        // Expired
+        now += 3600 * 1000;
+        assertNull(responder.answer(query, buffer));
+        // Does not fit
+        now -= 3600 * 1000;
+        assertNull(responder.answer(query, new byte[60]));
+    }
+
+    @Test
+    public void cacheBounds() {
+        DnsCache small = new DnsCache(1, 10, 60) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        byte[] data = parseHexBinary(RESPONSE);
+        DnsMessage response = new DnsMessage();
+        response.wrap(data, 0, data.length);
+        assertTrue(small.put(response));
+        // Same question replaces the previous entry
+        assertTrue(small.put(response));
+        assertEquals(1, small.size());
+        byte[] name = "8.8.8.8.IN-ADDR.arpa".getBytes();
+        DnsCache.Entry entry = small.lookup(name, name.length, DnsMessage.TYPE_PTR, DnsMessage.CLASS_IN);
+        assertNotNull(entry);
+        assertEquals(now + 60 * 1000, entry.getExpiresAt());
+        assertNull(small.lookup(name, name.length, DnsMessage.TYPE_A, DnsMessage.CLASS_IN));
+        small.clear();
+        assertEquals(0, small.size());
+        // Queries are not cached
+        DnsMessage message = new DnsMessage();
+        message.wrap(query);
+        assertFalse(small.put(message));
+    }
+
+    @Test
+    public void glueRecords() {
+        // One answer and a glue A record in the additional section, with no authority record
+        byte[] data = parseHexBinary(RESPONSE.replaceFirst("^528e818000010001000000", "528e818000010001000001") +
+                "c032000100010000003c000408080808");
+        DnsMessage response = new DnsMessage();
+        response.wrap(data, 0, data.length);
+        assertTrue(cache.put(response));
+        byte[] name = "8.8.8.8.in-addr.arpa".getBytes();
+        DnsCache.Entry entry = cache.lookup(name, name.length, DnsMessage.TYPE_PTR, DnsMessage.CLASS_IN);
+        assertEquals(1, entry.getAnswerCount());
+        // The lifetime is the one of the answer, not of the glue record
+        assertEquals(now + 3600 * 1000, entry.getExpiresAt());
+    }
+
+    @Test
+    public void expiredElsewhere() {
+        // Once every entry expired, new names are stored whatever bucket they fall in
+        for (int i = 0; i < 16; i++) {
+            assertTrue(cache.put(answer("old" + i + ".test")));
+        }
+        now += 3600 * 1000;
+        int stored = 0;
+        for (int i = 0; i < 16; i++) {
+            if (cache.put(answer("new" + i + ".test"))) {
+                stored++;
+            }
+        }
+        assertEquals(16, stored);
+        assertEquals(16, cache.size());
+    }
+
+    private static DnsMessage answer(String name) {
+        StringBuilder hex = new StringBuilder("000181800001000100000000");
+        for (String label : name.split("\\.")) {
+            hex.append(String.format("%02x", label.length()));
+            for (char c : label.toCharArray()) {
+                hex.append(String.format("%02x", (int) c));
+            }
+        }
+        hex.append("0000010001").append("c00c000100010000003c00040a000001");
+        byte[] data = parseHexBinary(hex.toString());
+        DnsMessage message = new DnsMessage();
+        message.wrap(data, 0, data.length);
+        return message;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.github.ffalcinelli.jdivert.inspect.TlsClientHelloTestCase.packet;
+import static org.junit.Assert.*;
+
+public class HttpRequestHeadTestCase {
+
+    static final String REQUEST = "GET /index.html?q=1 HTTP/1.1\r\n" +
+            "Host: WWW.Example.com:8080 \r\n" +
+            "User-Agent: jdivert\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n" +
+            "body";
+
+    HttpRequestHead head;
+    byte[] request;
+
+    @Before
+    public void setUp() {
+        head = new HttpRequestHead("User-Agent", "Cookie");
+        request = REQUEST.getBytes();
+    }
+
+    @Test
+    public void singleSegment() {
+        Packet packet = packet(request, 1);
+        StreamBuffer stream = new StreamBuffer(1024);
+        assertEquals(HttpRequestHead.Status.DONE, head.parse(packet, stream));
+        assertTrue(stream.isEmpty());
+        assertSame(packet.getByteBuffer().array(), head.getBuffer());
+        assertEquals(packet.getPayloadOffset(), head.getMethodOffset());
+        assertEquals(3, head.getMethodLength());
+        assertTrue(head.methodEquals("GET"));
+        assertFalse(head.methodEquals("get"));
+        assertEquals("/index.html?q=1", head.getTarget());
+        assertTrue(head.targetStartsWith("/index"));
+        assertEquals("HTTP/1.1", head.getVersion());
+        assertEquals("WWW.Example.com:8080", head.getHost());
+        assertEquals("WWW.Example.com".length(), head.getHostNameLength());
+        assertTrue(head.hostEquals("www.example.com"));
+        assertTrue(head.hostEndsWith(".EXAMPLE.COM"));
+        assertEquals("jdivert", head.getHeader(0));
+        assertEquals(-1, head.getHeaderOffset(1));
+        assertNull(head.getHeader(1));
+        assertEquals(REQUEST.length() - "body".length(), head.getLength());
+        assertTrue(head.toString().contains("method=GET"));
+    }
+
+    @Test
+    public void acrossSegments() {
+        StreamBuffer stream = new StreamBuffer(1024);
+        int split = 40;
+        assertEquals(HttpRequestHead.Status.NEED_MORE, head.parse(packet(Arrays.copyOfRange(request, 0, split), 100), stream));
+        assertNull(head.getBuffer());
+        assertEquals(HttpRequestHead.Status.DONE, head.parse(packet(Arrays.copyOfRange(request, split, request.length), 100 + split), stream));
+        assertSame(stream.array(), head.getBuffer());
+        assertTrue(head.hostEquals("www.example.com"));
+        assertEquals("jdivert", head.getHeader(0));
+    }
+
+    @Test
+    public void everyPrefixNeedsMore() {
+        int headLength = REQUEST.length() - "body".length();
+        for (int i = 0; i < headLength; i++) {
+            assertEquals("prefix " + i, HttpRequestHead.Status.NEED_MORE, head.parse(request, 0, i));
+        }
+        assertEquals(HttpRequestHead.Status.DONE, head.parse(request, 0, headLength));
+    }
+
+    @Test
+    public void bareLineFeedsAndIpv6Host() {
+        byte[] data = "POST /x HTTP/1.0\nHost: [::1]:80\n\n".getBytes();
+        assertEquals(HttpRequestHead.Status.DONE, head.parse(data, 0, data.length));
+        assertEquals("[::1]".length(), head.getHostNameLength());
+        assertTrue(head.hostEquals("[::1]"));
+        assertEquals("HTTP/1.0", head.getVersion());
+    }
+
+    @Test
+    public void notHttp() {
+        byte[] tls = new byte[]{0x16, 0x03, 0x01, 0x00};
+        assertEquals(HttpRequestHead.Status.NOT_HTTP, head.parse(tls, 0, tls.length));
+        byte[] lower = "get / HTTP/1.1\r\n\r\n".getBytes();
+        assertEquals(HttpRequestHead.Status.NOT_HTTP, head.parse(lower, 0, lower.length));
+        byte[] http2 = "PRI * HTTP/2.0\r\n\r\n".getBytes();
+        assertEquals(HttpRequestHead.Status.NOT_HTTP, head.parse(http2, 0, http2.length));
+    }
+
+    @Test
+    public void malformed() {
+        byte[] twoHosts = "GET / HTTP/1.1\r\nHost: a\r\nHost: b\r\n\r\n".getBytes();
+        assertEquals(HttpRequestHead.Status.MALFORMED, head.parse(twoHosts, 0, twoHosts.length));
+        byte[] folded = "GET / HTTP/1.1\r\nHost: a\r\n b\r\n\r\n".getBytes();
+        assertEquals(HttpRequestHead.Status.MALFORMED, head.parse(folded, 0, folded.length));
+        byte[] badName = "GET / HTTP/1.1\r\nHo st: a\r\n\r\n".getBytes();
+        assertEquals(HttpRequestHead.Status.MALFORMED, head.parse(badName, 0, badName.length));
+        byte[] badEol = "GET / HTTP/1.1\rX".getBytes();
+        assertEquals(HttpRequestHead.Status.MALFORMED, head.parse(badEol, 0, badEol.length));
+        assertNull(head.getHost());
+    }
+
+    @Test
+    public void bufferFull() {
+        StreamBuffer stream = new StreamBuffer(48);
+        assertEquals(HttpRequestHead.Status.NEED_MORE, head.parse(packet(Arrays.copyOfRange(request, 0, 40), 1), stream));
+        assertEquals(HttpRequestHead.Status.BUFFER_FULL, head.parse(packet(Arrays.copyOfRange(request, 40, request.length), 41), stream));
+    }
+}
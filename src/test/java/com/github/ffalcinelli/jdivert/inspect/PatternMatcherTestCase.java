@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction.OUTBOUND;
+import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
+import static org.junit.Assert.*;
+
+public class PatternMatcherTestCase {
+
+    private static class Collector implements PatternMatcher.MatchListener {
+        List<String> matches = new ArrayList<String>();
+
+        @Override
+        public boolean onMatch(int ruleId, int start, int end) {
+            matches.add(ruleId + ":" + start + "-" + end);
+            return true;
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        byte[] data = new byte[s.length()];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) s.charAt(i);
+        return data;
+    }
+
+    @Test
+    public void overlappingPatterns() {
+        PatternMatcher matcher = PatternMatcher.builder()
+                .add("he", 1).add("she", 2).add("his", 3).add("hers", 4).build();
+        Collector collector = new Collector();
+        byte[] data = bytes("ushers");
+        assertEquals(3, matcher.scan(data, 0, data.length, matcher.newState(), collector));
+        assertTrue(collector.matches.contains("2:1-4"));
+        assertTrue(collector.matches.contains("1:2-4"));
+        assertTrue(collector.matches.contains("4:2-6"));
+        assertTrue(matcher.matches(data, 0, data.length));
+        assertFalse(matcher.matches(bytes("hush"), 0, 4));
+    }
+
+    @Test
+    public void acrossSegments() {
+        PatternMatcher matcher = PatternMatcher.builder().add("malware", 7).build();
+        PatternMatcher.State state = matcher.newState();
+        Collector collector = new Collector();
+        byte[] first = bytes("GET /mal");
+        byte[] second = bytes("ware HTTP/1.1");
+        assertEquals(0, matcher.scan(first, 0, first.length, state, collector));
+        assertEquals(1, matcher.scan(second, 0, second.length, state, collector));
+        assertEquals("7:-3-4", collector.matches.get(0));
+        assertEquals(first.length + second.length, state.getPosition());
+
+        state.reset();
+        assertEquals(0, state.getPosition());
+        assertEquals(0, matcher.scan(second, 0, second.length, state, collector));
+    }
+
+    @Test
+    public void ignoreCase() {
+        PatternMatcher matcher = PatternMatcher.caseInsensitiveBuilder().add("Host:", 1).build();
+        Collector collector = new Collector();
+        byte[] data = bytes("HOST: a\r\nhost: b");
+        assertEquals(2, matcher.scan(data, 0, data.length, matcher.newState(), collector));
+        assertFalse(PatternMatcher.builder().add("Host:", 1).build().matches(data, 0, data.length));
+    }
+
+    @Test
+    public void stopScanning() {
+        PatternMatcher matcher = PatternMatcher.builder().add("a", 1).build();
+        PatternMatcher.State state = matcher.newState();
+        byte[] data = bytes("xaaaa");
+        int count = matcher.scan(data, 0, data.length, state, new PatternMatcher.MatchListener() {
+            @Override
+            public boolean onMatch(int ruleId, int start, int end) {
+                return false;
+            }
+        });
+        assertEquals(1, count);
+        assertEquals(2, state.getPosition());
+    }
+
+    @Test
+    public void packetPayload() {
+        Packet packet = new Packet(parseHexBinary("45000051476040008006f005c0a856a936f274fdd84201bb0876cfd0c19f9320501800ff8dba0000170303" +
+                "00240000000000000c2f53831a37ed3c3a632f47440594cab95283b558bf82cb7784344c3314"), new int[]{0, 0}, OUTBOUND);
+        // "170303" is the TLS application data record header, while "45000051" lies in the Ip header
+        PatternMatcher matcher = PatternMatcher.builder()
+                .add(parseHexBinary("170303"), 1)
+                .add(parseHexBinary("45000051"), 2)
+                .build();
+        Collector collector = new Collector();
+        assertEquals(1, matcher.scan(packet, matcher.newState(), collector));
+        assertEquals("1:40-43", collector.matches.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyPattern() {
+        PatternMatcher.builder().add(new byte[0], 1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outOfBounds() {
+        PatternMatcher matcher = PatternMatcher.builder().add("a", 1).build();
+        matcher.scan(new byte[4], 2, 4, matcher.newState(), new Collector());
+    }
+
+    @Test
+    public void sameAsNaiveSearch() {
+        Random rnd = new Random(42);
+        PatternMatcher.Builder builder = PatternMatcher.builder();
+        List<byte[]> patterns = new ArrayList<byte[]>();
+        for (int i = 0; i < 500; i++) {
+            byte[] pattern = new byte[1 + rnd.nextInt(6)];
+            for (int j = 0; j < pattern.length; j++)
+                pattern[j] = (byte) ('a' + rnd.nextInt(4));
+            patterns.add(pattern);
+            builder.add(pattern, i);
+        }
+        PatternMatcher matcher = builder.build();
+        byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) ('a' + rnd.nextInt(5));
+
+        List<String> expected = new ArrayList<String>();
+        for (int p = 0; p < patterns.size(); p++) {
+            byte[] pattern = patterns.get(p);
+            for (int i = 0; i + pattern.length <= data.length; i++) {
+                boolean found = true;
+                for (int j = 0; j < pattern.length && found; j++)
+                    found = data[i + j] == pattern[j];
+                if (found)
+                    expected.add(p + ":" + i + "-" + (i + pattern.length));
+            }
+        }
+        // Split the data in two segments to exercise the streaming state as well
+        Collector collector = new Collector();
+        PatternMatcher.State state = matcher.newState();
+        matcher.scan(data, 0, 1000, state, collector);
+        matcher.scan(data, 1000, data.length - 1000, state, collector);
+        Collections.sort(expected);
+        Collections.sort(collector.matches);
+        assertEquals(expected, collector.matches);
+        assertTrue(matcher.toString().contains("patterns=500"));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.inspect;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction.OUTBOUND;
+import static com.github.ffalcinelli.jdivert.Util.parseHexBinary;
+import static org.junit.Assert.*;
+
+public class TlsClientHelloTestCase {
+
+    // Ipv4 + Tcp headers (no options) towards port 443, lengths are fixed up by packet()
+    static final String HEADERS = "45000000476040008006f005c0a856a936f274fdd84201bb0876cfd0c19f9320501800ff8dba0000";
+
+    byte[] hello;
+    TlsClientHello result;
+
+    static byte[] clientHello(String serverName, String[] alpn, int[] versions) {
+        Bytes ext = new Bytes();
+        if (serverName != null) {
+            ext.u16(0x0000).u16(serverName.length() + 5).u16(serverName.length() + 3).u8(0).u16(serverName.length()).ascii(serverName);
+        }
+        if (alpn != null) {
+            Bytes list = new Bytes();
+            for (String protocol : alpn)
+                list.u8(protocol.length()).ascii(protocol);
+            ext.u16(0x0010).u16(list.size() + 2).u16(list.size()).put(list.toArray());
+        }
+        if (versions != null) {
+            ext.u16(0x002B).u16(versions.length * 2 + 1).u8(versions.length * 2);
+            for (int version : versions)
+                ext.u16(version);
+        }
+        Bytes body = new Bytes();
+        body.u16(0x0303).put(new byte[32]).u8(32).put(new byte[32])
+                .u16(4).u16(0x1301).u16(0xC02F)
+                .u8(1).u8(0)
+                .u16(ext.size()).put(ext.toArray());
+        Bytes record = new Bytes();
+        record.u8(0x16).u16(0x0301).u16(body.size() + 4).u8(1).u8(0).u16(body.size()).put(body.toArray());
+        return record.toArray();
+    }
+
+    static Packet packet(byte[] payload, int seq) {
+        byte[] headers = parseHexBinary(HEADERS);
+        byte[] raw = Arrays.copyOf(headers, headers.length + payload.length);
+        System.arraycopy(payload, 0, raw, headers.length, payload.length);
+        Packet packet = new Packet(raw, new int[]{0, 0}, OUTBOUND);
+        packet.getIpv4().setTotalLength(raw.length);
+        packet.getTcp().setSeqNumber(seq);
+        return packet;
+    }
+
+    @Before
+    public void setUp() {
+        hello = clientHello("www.Example.com", new String[]{"h2", "http/1.1"}, new int[]{0x3A3A, 0x0304, 0x0303});
+        result = new TlsClientHello();
+    }
+
+    @Test
+    public void singleSegment() {
+        Packet packet = packet(hello, 1000);
+        StreamBuffer stream = new StreamBuffer(4096);
+        assertEquals(TlsClientHello.Status.DONE, result.parse(packet, stream));
+        assertTrue(stream.isEmpty());
+        assertSame(packet.getByteBuffer().array(), result.getBuffer());
+        assertEquals(packet.getPayloadOffset(), result.getOffset());
+        assertEquals(hello.length, result.getLength());
+        assertEquals("www.Example.com", result.getServerName());
+        assertTrue(result.serverNameEquals("www.example.com"));
+        assertTrue(result.serverNameEndsWith(".EXAMPLE.com"));
+        assertFalse(result.serverNameEndsWith("other.com"));
+        assertEquals(2, result.getAlpnProtocolCount());
+        assertEquals("h2", result.getAlpnProtocol(0));
+        assertEquals("http/1.1", result.getAlpnProtocol(1));
+        assertEquals(0x0301, result.getRecordVersion());
+        assertEquals(0x0303, result.getClientVersion());
+        assertEquals(0x0304, result.getVersion());
+        assertTrue(result.toString().contains("serverName=www.Example.com"));
+    }
+
+    @Test
+    public void splitSegments() {
+        StreamBuffer stream = new StreamBuffer(4096);
+        byte[] first = Arrays.copyOfRange(hello, 0, 50);
+        byte[] second = Arrays.copyOfRange(hello, 50, hello.length);
+        assertEquals(TlsClientHello.Status.NEED_MORE, result.parse(packet(first, 1000), stream));
+        assertEquals(50, stream.length());
+        // a retransmission is ignored
+        assertEquals(TlsClientHello.Status.NEED_MORE, result.parse(packet(first, 1000), stream));
+        assertEquals(50, stream.length());
+        assertEquals(TlsClientHello.Status.DONE, result.parse(packet(second, 1050), stream));
+        assertSame(stream.array(), result.getBuffer());
+        assertEquals("www.Example.com", result.getServerName());
+    }
+
+    @Test
+    public void bufferFull() {
+        StreamBuffer stream = new StreamBuffer(64);
+        assertEquals(TlsClientHello.Status.NEED_MORE, result.parse(packet(Arrays.copyOfRange(hello, 0, 50), 1), stream));
+        assertEquals(TlsClientHello.Status.BUFFER_FULL, result.parse(packet(Arrays.copyOfRange(hello, 50, hello.length), 51), stream));
+        assertNull(result.getBuffer());
+    }
+
+    @Test
+    public void noExtensions() {
+        byte[] plain = clientHello(null, null, null);
+        assertEquals(TlsClientHello.Status.DONE, result.parse(plain, 0, plain.length));
+        assertFalse(result.hasServerName());
+        assertNull(result.getServerName());
+        assertFalse(result.hasAlpn());
+        assertEquals(0, result.getAlpnProtocolCount());
+        assertEquals(0x0303, result.getVersion());
+    }
+
+    @Test
+    public void notClientHello() {
+        byte[] http = "GET / HTTP/1.1\r\n".getBytes();
+        assertEquals(TlsClientHello.Status.NOT_CLIENT_HELLO, result.parse(http, 0, http.length));
+        byte[] serverHello = hello.clone();
+        serverHello[5] = 2;
+        assertEquals(TlsClientHello.Status.NOT_CLIENT_HELLO, result.parse(serverHello, 0, serverHello.length));
+        assertEquals(TlsClientHello.Status.NEED_MORE, result.parse(hello, 0, 3));
+    }
+
+    @Test
+    public void malformed() {
+        byte[] broken = hello.clone();
+        // Bump the extensions length over the handshake end
+        int extensionsLength = 2 + 32 + 1 + 32 + 2 + 4 + 1 + 1;
+        broken[9 + extensionsLength] = (byte) 0xFF;
+        assertEquals(TlsClientHello.Status.MALFORMED, result.parse(broken, 0, broken.length));
+        // Handshake longer than its record
+        broken = hello.clone();
+        broken[6] = 1;
+        assertEquals(TlsClientHello.Status.UNSUPPORTED, result.parse(broken, 0, broken.length));
+    }
+
+    @Test
+    public void truncatedAtEveryLength() {
+        for (int i = 0; i < hello.length; i++) {
+            assertEquals(TlsClientHello.Status.NEED_MORE, result.parse(hello, 0, i));
+        }
+    }
+
+    static class Bytes {
+        byte[] data = new byte[64];
+        int size;
+
+        Bytes u8(int value) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = (byte) value;
+            return this;
+        }
+
+        Bytes u16(int value) {
+            return u8(value >> 8).u8(value);
+        }
+
+        Bytes put(byte[] bytes) {
+            for (byte b : bytes)
+                u8(b);
+            return this;
+        }
+
+        Bytes ascii(String s) {
+            for (int i = 0; i < s.length(); i++)
+                u8(s.charAt(i));
+            return this;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
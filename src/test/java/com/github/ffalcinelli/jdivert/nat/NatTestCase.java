@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import com.github.ffalcinelli.jdivert.Checksums;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.craft.Rejector;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.ffalcinelli.jdivert.Enums.Protocol;
+import static org.junit.Assert.*;
+
+public class NatTestCase {
+
+    static final byte[] EXTERNAL = new byte[]{(byte) 203, 0, 113, 1};
+
+    long now;
+    Nat nat;
+
+    static void assertChecksums(Packet packet) {
+        byte[] raw = packet.getRaw();
+        Packet copy = new Packet(raw.clone(), packet.getIface(), packet.getDirection());
+        Checksums.calculate(copy);
+        assertArrayEquals(copy.getRaw(), raw);
+    }
+
+    static byte[] ip(String address) throws Exception {
+        return InetAddress.getByName(address).getAddress();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        now = 1000000;
+        nat = new Nat(1000) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        nat.addSourceNat(ip("192.168.1.0"), 24, EXTERNAL);
+    }
+
+    @Test
+    public void sourceNatTcp() throws Exception {
+        Packet syn = new PacketBuilder().ip("192.168.1.10", "8.8.8.8").tcp(5000, 80).seq(7).flags(Tcp.Flag.SYN)
+                .payload("abc".getBytes()).build();
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(syn));
+        assertEquals("203.0.113.1", syn.getSrcAddr());
+        assertEquals("8.8.8.8", syn.getDstAddr());
+        int port = syn.getSrcPort();
+        assertTrue(port >= Nat.PORT_LOW);
+        assertEquals(80, (int) syn.getDstPort());
+        assertChecksums(syn);
+        assertEquals(1, nat.size());
+
+        Packet synAck = new PacketBuilder().ip("8.8.8.8", "203.0.113.1").tcp(80, port)
+                .flags(Tcp.Flag.SYN, Tcp.Flag.ACK).build();
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(synAck));
+        assertEquals("192.168.1.10", synAck.getDstAddr());
+        assertEquals(5000, (int) synAck.getDstPort());
+        assertChecksums(synAck);
+
+        Packet ack = new PacketBuilder().ip("192.168.1.10", "8.8.8.8").tcp(5000, 80).flags(Tcp.Flag.ACK).build();
+        nat.translate(ack);
+        assertEquals(port, (int) ack.getSrcPort());
+        assertEquals(1, nat.size());
+
+        // A different flow of the same host gets a different port on the same external address
+        Packet other = new PacketBuilder().ip("192.168.1.10", "8.8.4.4").tcp(5000, 80).build();
+        nat.translate(other);
+        assertEquals("203.0.113.1", other.getSrcAddr());
+        assertNotEquals(port, (int) other.getSrcPort());
+        assertEquals(2, nat.size());
+    }
+
+    @Test
+    public void protocolsSharingPorts() throws Exception {
+        // Ephemeral ports have the top bit set, which must not spill over the protocol in the table keys
+        assertNotEquals(NatTable.key2(6, 40000, 53), NatTable.key2(17, 40000, 53));
+        Packet tcp = new PacketBuilder().ip("192.168.1.10", "8.8.8.8").tcp(40000, 53).flags(Tcp.Flag.SYN).build();
+        Packet udp = new PacketBuilder().ip("192.168.1.10", "8.8.8.8").udp(40000, 53).build();
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(tcp));
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(udp));
+        assertEquals(2, nat.size());
+
+        Packet tcpReply = new PacketBuilder().ip("8.8.8.8", "203.0.113.1").tcp(53, tcp.getSrcPort())
+                .flags(Tcp.Flag.SYN, Tcp.Flag.ACK).build();
+        Packet udpReply = new PacketBuilder().ip("8.8.8.8", "203.0.113.1").udp(53, udp.getSrcPort()).build();
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(tcpReply));
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(udpReply));
+        assertEquals("192.168.1.10", tcpReply.getDstAddr());
+        assertEquals(40000, (int) tcpReply.getDstPort());
+        assertEquals(40000, (int) udpReply.getDstPort());
+        assertChecksums(tcpReply);
+        assertChecksums(udpReply);
+    }
+
+    @Test
+    public void notMatched() throws Exception {
+        Packet outside = new PacketBuilder().ip("10.0.0.1", "8.8.8.8").udp(1, 53).build();
+        byte[] before = outside.getRaw();
+        assertEquals(Nat.Result.NOT_MATCHED, nat.translate(outside));
+        assertArrayEquals(before, outside.getRaw());
+        Packet v6 = new PacketBuilder().ip("::1", "::2").udp(1, 53).build();
+        assertEquals(Nat.Result.NOT_MATCHED, nat.translate(v6));
+        Packet stray = new PacketBuilder().ip("8.8.8.8", "203.0.113.1").udp(53, 40000).build();
+        assertEquals(Nat.Result.NOT_MATCHED, nat.translate(stray));
+    }
+
+    @Test
+    public void udpWithoutChecksum() throws Exception {
+        Packet udp = new PacketBuilder().ip("192.168.1.20", "8.8.8.8").udp(4000, 53).payload(new byte[7]).build();
+        udp.getUdp().setChecksum(0);
+        nat.translate(udp);
+        assertEquals(0, udp.getUdp().getChecksum());
+        assertEquals(0, Checksums.checksum(udp.getByteBuffer().array(), 0, 20));
+    }
+
+    @Test
+    public void icmpEcho() throws Exception {
+        Packet request = new PacketBuilder().ip("192.168.1.30", "1.1.1.1").icmp(8, 0, 0x12340001).payload(new byte[32]).build();
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(request));
+        int id = request.getByteBuffer().getShort(24) & 0xFFFF;
+        assertEquals("203.0.113.1", request.getSrcAddr());
+        assertChecksums(request);
+
+        Packet reply = new PacketBuilder().ip("1.1.1.1", "203.0.113.1").icmp(0, 0, (id << 16) | 1).payload(new byte[32]).build();
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(reply));
+        assertEquals("192.168.1.30", reply.getDstAddr());
+        assertEquals(0x1234, reply.getByteBuffer().getShort(24) & 0xFFFF);
+        assertChecksums(reply);
+    }
+
+    @Test
+    public void icmpErrorInnerHeader() throws Exception {
+        Packet query = new PacketBuilder().ip("192.168.1.40", "9.9.9.9").udp(3333, 53).payload(new byte[20]).build();
+        byte[] original = query.getRaw();
+        nat.translate(query);
+        Packet unreachable = new Rejector().unreachable(query);
+        assertEquals("203.0.113.1", unreachable.getDstAddr());
+
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(unreachable));
+        assertEquals("9.9.9.9", unreachable.getSrcAddr());
+        assertEquals("192.168.1.40", unreachable.getDstAddr());
+        byte[] quoted = Arrays.copyOfRange(unreachable.getRaw(), 28, 28 + original.length);
+        assertArrayEquals(original, quoted);
+        assertChecksums(unreachable);
+    }
+
+    @Test
+    public void portForward() throws Exception {
+        nat.addDestinationNat(Protocol.TCP, EXTERNAL, 8080, ip("192.168.1.50"), 80);
+        Packet syn = new PacketBuilder().ip("5.5.5.5", "203.0.113.1").tcp(44444, 8080).flags(Tcp.Flag.SYN).build();
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(syn));
+        assertEquals("192.168.1.50", syn.getDstAddr());
+        assertEquals(80, (int) syn.getDstPort());
+        assertEquals("5.5.5.5", syn.getSrcAddr());
+        assertChecksums(syn);
+
+        // The reply must not be source natted with a new port
+        Packet synAck = new PacketBuilder().ip("192.168.1.50", "5.5.5.5").tcp(80, 44444).flags(Tcp.Flag.SYN, Tcp.Flag.ACK).build();
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(synAck));
+        assertEquals("203.0.113.1", synAck.getSrcAddr());
+        assertEquals(8080, (int) synAck.getSrcPort());
+        assertChecksums(synAck);
+        assertEquals(1, nat.size());
+    }
+
+    @Test
+    public void expiry() throws Exception {
+        nat.setUdpTimeout(1000);
+        nat.setTcpTransitoryTimeout(5000);
+        nat.translate(new PacketBuilder().ip("192.168.1.60", "8.8.8.8").udp(1000, 53).build());
+        nat.translate(new PacketBuilder().ip("192.168.1.60", "8.8.8.8").tcp(1000, 80).flags(Tcp.Flag.SYN).build());
+        assertEquals(2, nat.size());
+        now += 1001;
+        assertEquals(1, nat.expire());
+        assertEquals(1, nat.size());
+        assertEquals(1, nat.getTable().size());
+        now += 5000;
+        assertEquals(1, nat.expire());
+        assertEquals(0, nat.getTable().size());
+        Packet again = new PacketBuilder().ip("192.168.1.60", "8.8.8.8").udp(1000, 53).build();
+        assertEquals(Nat.Result.TRANSLATED, nat.translate(again));
+    }
+
+    @Test
+    public void exhausted() throws Exception {
+        Nat small = new Nat(2);
+        small.addSourceNat(ip("10.0.0.0"), 8, EXTERNAL);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(Nat.Result.TRANSLATED, small.translate(new PacketBuilder().ip("10.0.0.1", "8.8.8.8").udp(i, 53).build()));
+        }
+        assertEquals(Nat.Result.EXHAUSTED, small.translate(new PacketBuilder().ip("10.0.0.1", "8.8.8.8").udp(9, 53).build()));
+        assertEquals(2, small.size());
+    }
+
+    @Test
+    public void manyFlows() throws Exception {
+        Nat big = new Nat(200000);
+        big.addSourceNat(ip("10.0.0.0"), 8, EXTERNAL, new byte[]{(byte) 203, 0, 113, 2}, new byte[]{(byte) 203, 0, 113, 3});
+        PacketBuilder builder = new PacketBuilder();
+        Set<String> external = new HashSet<String>();
+        for (int i = 0; i < 100000; i++) {
+            Packet packet = builder.ip(new byte[]{10, 0, (byte) (i >> 8), (byte) i}, new byte[]{8, 8, 8, 8}).udp(2000 + (i % 7), 53).build();
+            assertEquals(Nat.Result.TRANSLATED, big.translate(packet));
+            assertTrue(external.add(packet.getSrcAddr() + ":" + packet.getSrcPort()));
+        }
+        assertEquals(100000, big.getTable().size());
+        Packet reply = builder.ip(new byte[]{8, 8, 8, 8}, new byte[]{(byte) 203, 0, 113, 1}).udp(53, 5000).build();
+        Nat.Result result = big.translate(reply);
+        assertEquals(Nat.Result.TRANSLATED, result);
+        assertEquals("10.", reply.getDstAddr().substring(0, 3));
+    }
+
+    @Test
+    public void portAllocator() throws Exception {
+        PortAllocator allocator = new PortAllocator(1000, 1099);
+        Set<Integer> ports = new HashSet<Integer>();
+        for (int i = 0; i < 100; i++) {
+            int port = allocator.allocate();
+            assertTrue(port >= 1000 && port <= 1099);
+            assertTrue(ports.add(port));
+        }
+        assertEquals(-1, allocator.allocate());
+        assertFalse(allocator.reserve(1050));
+        allocator.release(1050);
+        assertEquals(1, allocator.available());
+        assertTrue(allocator.reserve(1050));
+        allocator.release(5);
+
+        final PortAllocator shared = new PortAllocator(Nat.PORT_LOW, Nat.PORT_HIGH);
+        final ConcurrentHashMap<Integer, Boolean> taken = new ConcurrentHashMap<Integer, Boolean>();
+        final AtomicInteger duplicates = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int port;
+                    while ((port = shared.allocate()) >= 0) {
+                        if (taken.put(port, Boolean.TRUE) != null) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, duplicates.get());
+        assertEquals(Nat.PORT_HIGH - Nat.PORT_LOW + 1, taken.size());
+    }
+}
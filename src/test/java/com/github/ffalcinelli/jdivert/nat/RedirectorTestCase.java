@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.nat;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.headers.Tcp;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static com.github.ffalcinelli.jdivert.Enums.Direction.INBOUND;
+import static com.github.ffalcinelli.jdivert.Enums.Direction.OUTBOUND;
+import static com.github.ffalcinelli.jdivert.nat.NatTestCase.assertChecksums;
+import static org.junit.Assert.*;
+
+public class RedirectorTestCase {
+
+    long now;
+    Redirector redirector;
+
+    @Before
+    public void setUp() {
+        now = 1000;
+        redirector = new Redirector(8080, 80, 443) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void filter() {
+        assertEquals("outbound and tcp and (tcp.DstPort == 80 or tcp.DstPort == 443 or tcp.SrcPort == 8080)",
+                redirector.getFilter());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Packet syn = new PacketBuilder().ip("192.168.1.2", "93.184.216.34").tcp(50000, 443).flags(Tcp.Flag.SYN)
+                .direction(OUTBOUND).build();
+        assertEquals(Redirector.Result.REDIRECTED, redirector.redirect(syn));
+        assertEquals("93.184.216.34", syn.getSrcAddr());
+        assertEquals("192.168.1.2", syn.getDstAddr());
+        assertEquals(50000, (int) syn.getSrcPort());
+        assertEquals(8080, (int) syn.getDstPort());
+        assertEquals(INBOUND, syn.getDirection());
+        assertChecksums(syn);
+
+        InetAddress remote = InetAddress.getByName("93.184.216.34");
+        assertEquals(443, redirector.getOriginalPort(remote, 50000));
+        assertEquals(new InetSocketAddress(remote, 443), redirector.getOriginalDestination(new InetSocketAddress(remote, 50000)));
+        assertNull(redirector.getOriginalDestination(new InetSocketAddress(remote, 50001)));
+
+        Packet synAck = new PacketBuilder().ip("192.168.1.2", "93.184.216.34").tcp(8080, 50000)
+                .flags(Tcp.Flag.SYN, Tcp.Flag.ACK).payload(new byte[3]).direction(OUTBOUND).build();
+        assertEquals(Redirector.Result.RESTORED, redirector.redirect(synAck));
+        assertEquals("93.184.216.34", synAck.getSrcAddr());
+        assertEquals("192.168.1.2", synAck.getDstAddr());
+        assertEquals(443, (int) synAck.getSrcPort());
+        assertEquals(50000, (int) synAck.getDstPort());
+        assertEquals(INBOUND, synAck.getDirection());
+        assertChecksums(synAck);
+    }
+
+    @Test
+    public void ipv6() throws Exception {
+        Packet syn = new PacketBuilder().ip("2001:db8::2", "2001:db8::1").tcp(40000, 80).flags(Tcp.Flag.SYN).build();
+        assertEquals(Redirector.Result.REDIRECTED, redirector.redirect(syn));
+        assertChecksums(syn);
+        assertEquals(80, redirector.getOriginalPort(InetAddress.getByName("2001:db8::1"), 40000));
+        Packet reply = new PacketBuilder().ip("2001:db8::2", "2001:db8::1").tcp(8080, 40000).flags(Tcp.Flag.ACK).build();
+        assertEquals(Redirector.Result.RESTORED, redirector.redirect(reply));
+        assertEquals(80, (int) reply.getSrcPort());
+        assertChecksums(reply);
+    }
+
+    @Test
+    public void notMatched() throws Exception {
+        Packet other = new PacketBuilder().ip("192.168.1.2", "1.1.1.1").tcp(50000, 22).build();
+        assertEquals(Redirector.Result.NOT_MATCHED, redirector.redirect(other));
+        Packet unknownReply = new PacketBuilder().ip("192.168.1.2", "1.1.1.1").tcp(8080, 1234).build();
+        assertEquals(Redirector.Result.NOT_MATCHED, redirector.redirect(unknownReply));
+        assertEquals(OUTBOUND, unknownReply.getDirection());
+
+        redirector.bypass(60000);
+        assertTrue(redirector.isBypassed(60000));
+        Packet proxyOutgoing = new PacketBuilder().ip("192.168.1.2", "1.1.1.1").tcp(60000, 80).build();
+        assertEquals(Redirector.Result.NOT_MATCHED, redirector.redirect(proxyOutgoing));
+        redirector.unbypass(60000);
+        assertEquals(Redirector.Result.REDIRECTED, redirector.redirect(proxyOutgoing));
+    }
+
+    @Test
+    public void expiry() throws Exception {
+        redirector.setIdleTimeout(10000);
+        redirector.setClosedTimeout(100);
+        for (int port = 10000; port < 60000; port++) {
+            Packet syn = new PacketBuilder().ip("192.168.1.2", "10.0.0.1").tcp(port, 80).flags(Tcp.Flag.SYN).build();
+            redirector.redirect(syn);
+        }
+        assertEquals(50000, redirector.size());
+        Packet fin = new PacketBuilder().ip("192.168.1.2", "10.0.0.1").tcp(20000, 80).flags(Tcp.Flag.FIN, Tcp.Flag.ACK).build();
+        redirector.redirect(fin);
+        now += 101;
+        assertEquals(1, redirector.expire());
+        assertEquals(-1, redirector.getOriginalPort(InetAddress.getByName("10.0.0.1"), 20000));
+        now += 10000;
+        assertEquals(49999, redirector.expire());
+        assertEquals(0, redirector.size());
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.pipeline;
+
+import com.github.ffalcinelli.jdivert.CompletionPort;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.traffic.QosScheduler;
+import com.github.ffalcinelli.jdivert.windivert.StandInDLL;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.github.ffalcinelli.jdivert.Enums.Layer;
+import static org.junit.Assert.*;
+
+public class PipelineTestCase {
+
+    private static Pipeline pipeline(WinDivert divert, BufferPool pool, Pipeline.Threading threading,
+                                     final AtomicInteger mirrored) {
+        return new Pipeline(divert, pool, threading, 2)
+                .addStage("classify", Stages.classify(new QosScheduler.Classifier() {
+                    @Override
+                    public int classify(Packet packet) {
+                        return packet.getDstPort() == 53 ? 1 : packet.getDstPort() == 80 ? 2 : -1;
+                    }
+                }))
+                .addStage("filter", Stages.filter(new Stages.Matcher() {
+                    @Override
+                    public boolean matches(Packet packet, Pipeline.Context context) {
+                        return context.getMark() != 2 || packet.getSrcPort() < 2000;
+                    }
+                }))
+                .addStage("rewrite", Stages.rewrite(new Stages.Rewriter() {
+                    @Override
+                    public boolean rewrite(Packet packet) {
+                        if (packet.getSrcPort() == 1999) {
+                            throw new IllegalStateException("Cannot rewrite");
+                        }
+                        packet.setDstPort(packet.getDstPort() + 1000);
+                        // Checksums are left alone, the stand-in handle does not check them
+                        return false;
+                    }
+                }))
+                .addStage("mirror", Stages.mirror(new Stages.Sink() {
+                    @Override
+                    public void accept(Packet packet) {
+                        mirrored.incrementAndGet();
+                    }
+                }))
+                .addStage("log", Stages.log(Logger.getLogger(PipelineTestCase.class.getName()), Level.FINEST));
+    }
+
+    @Test
+    public void stages() throws Exception {
+        StandInDLL dll = new StandInDLL();
+        WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0).open();
+        BufferPool pool = new BufferPool(4, 1500);
+        AtomicInteger mirrored = new AtomicInteger();
+        Pipeline pipeline = pipeline(divert, pool, Pipeline.Threading.SHARED, mirrored);
+
+        Packet dns = new PacketBuilder(pool).ip("10.0.0.1", "10.0.0.2").udp(1000, 53).build();
+        assertEquals(Stage.Verdict.SEND, pipeline.process(dns));
+        assertEquals(1053, (int) dns.getDstPort());
+        assertEquals(Stage.Verdict.DROP, pipeline.process(
+                new PacketBuilder(pool).ip("10.0.0.1", "10.0.0.2").udp(1000, 443).build()));
+        assertEquals(Stage.Verdict.DROP, pipeline.process(
+                new PacketBuilder(pool).ip("10.0.0.1", "10.0.0.2").tcp(3000, 80).build()));
+        assertEquals(Stage.Verdict.DROP, pipeline.process(
+                new PacketBuilder(pool).ip("10.0.0.1", "10.0.0.2").tcp(1999, 80).build()));
+        try {
+            pipeline.addStage("late", Stages.filter(null));
+            fail("Stages must be fixed once packets are processed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // Every buffer went back to the pool, sent or not
+        assertEquals(4, pool.available());
+        assertEquals(0, pool.getMisses());
+        assertEquals(1, dll.getSent());
+        assertEquals(1, mirrored.get());
+        List<StageStats> stats = pipeline.getStats();
+        assertEquals(5, stats.size());
+        assertEquals("classify", stats.get(0).getName());
+        assertEquals(4, stats.get(0).getPackets());
+        assertEquals(1, stats.get(0).getDropped());
+        assertEquals(3, stats.get(1).getPackets());
+        assertEquals(1, stats.get(1).getDropped());
+        assertEquals(2, stats.get(2).getPackets());
+        assertEquals(1, stats.get(2).getErrors());
+        assertEquals(1, stats.get(2).getPassed());
+        assertEquals(1, stats.get(4).getPackets());
+        assertEquals(1, stats.get(4).getLatency().getTotal());
+        StageStats totals = pipeline.getTotals();
+        assertEquals(4, totals.getPackets());
+        assertEquals(1, totals.getSent());
+        assertEquals(3, totals.getDropped());
+        assertTrue(totals.getBusyNanos() >= stats.get(0).getBusyNanos());
+    }
+
+    private static void run(Pipeline.Threading threading) throws Exception {
+        StandInDLL dll = new StandInDLL();
+        WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0).open();
+        // The flow receiver waits for packets with timed receives, completed through the port
+        CompletionPort port = new CompletionPort(dll, 1).start();
+        divert.setCompletionPort(port);
+        BufferPool pool = new BufferPool(64, 1500);
+        AtomicInteger mirrored = new AtomicInteger();
+        Pipeline pipeline = pipeline(divert, pool, threading, mirrored).start();
+        for (int i = 0; i < 1000; i++) {
+            PacketBuilder builder = new PacketBuilder().ip("10.0.0.1", "10.0.0.2");
+            dll.inject(1, (i % 2 == 0 ? builder.udp(1000 + i % 7, 53) : builder.udp(1000, 443))
+                    .build().getByteBuffer().array());
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pipeline.getTotals().getPackets() < 1000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        pipeline.stop();
+        assertFalse(pipeline.isRunning());
+        assertFalse(divert.isOpen());
+        StageStats totals = pipeline.getTotals();
+        assertEquals(1000, totals.getPackets());
+        assertEquals(500, totals.getSent());
+        assertEquals(500, totals.getDropped());
+        assertEquals(500, dll.getSent());
+        assertEquals(500, mirrored.get());
+        assertEquals(64, pool.available());
+        port.close();
+    }
+
+    @Test
+    public void shared() throws Exception {
+        run(Pipeline.Threading.SHARED);
+    }
+
+    @Test
+    public void flowAffine() throws Exception {
+        run(Pipeline.Threading.FLOW_AFFINE);
+    }
+
+    @Test
+    public void receiveErrors() throws Exception {
+        // A receive throwing at runtime is counted, it does not end the flow receiver
+        StandInDLL dll = new StandInDLL();
+        final AtomicInteger calls = new AtomicInteger();
+        WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0) {
+            @Override
+            public Packet recv(BufferPool pool, long timeout, TimeUnit unit) throws WinDivertException {
+                Packet packet = super.recv(pool, timeout, unit);
+                if (packet != null && calls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("Unparsable");
+                }
+                return packet;
+            }
+        }.open();
+        CompletionPort port = new CompletionPort(dll, 1).start();
+        divert.setCompletionPort(port);
+        Pipeline pipeline = new Pipeline(divert, null, Pipeline.Threading.FLOW_AFFINE, 2).start();
+        for (int i = 0; i < 3; i++) {
+            dll.inject(1, new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1000 + i, 53).build()
+                    .getByteBuffer().array());
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dll.getSent() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        pipeline.stop();
+        assertEquals(2, dll.getSent());
+        assertEquals(1, pipeline.getTotals().getErrors());
+        port.close();
+    }
+
+    @Test
+    public void restart() throws Exception {
+        // Stopping keeps the counters but drops the contexts of the threads, new threads start from worker 0
+        StandInDLL dll = new StandInDLL();
+        WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0).open();
+        CompletionPort port = new CompletionPort(dll, 1).start();
+        divert.setCompletionPort(port);
+        final AtomicInteger highest = new AtomicInteger();
+        Pipeline pipeline = new Pipeline(divert, null, Pipeline.Threading.SHARED, 2)
+                .addStage("worker", new Stage() {
+                    @Override
+                    public Verdict process(Packet packet, Pipeline.Context context) {
+                        synchronized (highest) {
+                            highest.set(Math.max(highest.get(), context.getWorker()));
+                        }
+                        return Verdict.NEXT;
+                    }
+                });
+        for (int run = 1; run <= 2; run++) {
+            if (run == 2) {
+                divert.open();
+            }
+            pipeline.start();
+            for (int i = 0; i < 100; i++) {
+                dll.inject(run, new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1000 + i, 53).build()
+                        .getByteBuffer().array());
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pipeline.getTotals().getPackets() < run * 100 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            pipeline.stop();
+            assertEquals(run * 100, pipeline.getTotals().getPackets());
+            assertEquals(run * 100, pipeline.getStats().get(0).getPassed());
+        }
+        assertTrue(highest.get() < 2);
+        port.close();
+    }
+
+    @Test
+    public void stopSendsQueued() throws Exception {
+        // Packets still queued to the flow workers when stopping are sent before the handle is closed
+        StandInDLL dll = new StandInDLL();
+        final WinDivert divert = new WinDivert(dll, "true", Layer.NETWORK, 0).open();
+        CompletionPort port = new CompletionPort(dll, 1).start();
+        divert.setCompletionPort(port);
+        BufferPool pool = new BufferPool(64, 1500);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Pipeline pipeline = new Pipeline(divert, pool, Pipeline.Threading.FLOW_AFFINE, 2)
+                .addStage("hold", new Stage() {
+                    @Override
+                    public Verdict process(Packet packet, Pipeline.Context context) throws Exception {
+                        release.await();
+                        return Verdict.NEXT;
+                    }
+                }).start();
+        for (int i = 0; i < 100; i++) {
+            dll.inject(1, new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1000 + i, 53).build()
+                    .getByteBuffer().array());
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dll.getQueued(1) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.stop();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        stopper.start();
+        Thread.sleep(50);
+        assertTrue(divert.isOpen());
+        release.countDown();
+        stopper.join(5000);
+        assertFalse(divert.isOpen());
+        StageStats totals = pipeline.getTotals();
+        assertEquals(100, totals.getPackets());
+        assertEquals(100, totals.getSent());
+        assertEquals(0, totals.getErrors());
+        assertEquals(100, dll.getSent());
+        assertEquals(64, pool.available());
+        port.close();
+    }
+}
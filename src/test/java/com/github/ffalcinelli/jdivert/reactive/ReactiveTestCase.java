@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.reactive;
+
+import com.github.ffalcinelli.jdivert.CompletionPort;
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.WinDivert;
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import com.github.ffalcinelli.jdivert.windivert.StandInDLL;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.ffalcinelli.jdivert.Enums.Layer;
+import static org.junit.Assert.*;
+
+public class ReactiveTestCase {
+
+    private final StandInDLL dll = new StandInDLL();
+    // The stand-in has one completion queue, its handles share a port
+    private final CompletionPort port = new CompletionPort(dll, 1).start();
+
+    private static byte[] packet(int port) throws Exception {
+        return new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(port, 53).build().getByteBuffer().array();
+    }
+
+    private PacketPublisher publisher(int count, PacketPublisher.OverflowPolicy policy) throws Exception {
+        WinDivert divert = new WinDivert(dll, "udp", Layer.NETWORK, 0).open();
+        divert.setCompletionPort(port);
+        for (int i = 0; i < count; i++) {
+            dll.inject(1, packet(1000 + i));
+        }
+        return new PacketPublisher(divert, 4, policy);
+    }
+
+    private static void await(PacketPublisher publisher, long received) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (settled(publisher) < received && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(received, publisher.getReceived());
+        assertEquals(received, settled(publisher));
+    }
+
+    private static long settled(PacketPublisher publisher) {
+        // Every received packet is either buffered, delivered, dropped or passed
+        return publisher.getBuffered() + publisher.getDelivered() + publisher.getDropped() + publisher.getPassed();
+    }
+
+    @Test
+    public void dropNewest() throws Exception {
+        PacketPublisher publisher = publisher(10, PacketPublisher.OverflowPolicy.DROP_NEWEST);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        await(publisher, 10);
+        assertEquals(6, publisher.getDropped());
+        assertEquals(4, publisher.getBuffered());
+        assertTrue(recorder.ports.isEmpty());
+        recorder.subscription.request(10);
+        assertEquals(ports(1000, 1001, 1002, 1003), recorder.ports);
+        assertEquals(0, publisher.getPassed());
+        publisher.close();
+        assertTrue(recorder.completed);
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        PacketPublisher publisher = publisher(10, PacketPublisher.OverflowPolicy.DROP_OLDEST);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        await(publisher, 10);
+        recorder.subscription.request(2);
+        assertEquals(ports(1006, 1007), recorder.ports);
+        recorder.subscription.request(2);
+        assertEquals(ports(1006, 1007, 1008, 1009), recorder.ports);
+        assertEquals(6, publisher.getDropped());
+        publisher.close();
+    }
+
+    @Test
+    public void pass() throws Exception {
+        PacketPublisher publisher = publisher(10, PacketPublisher.OverflowPolicy.PASS);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        await(publisher, 10);
+        // The overflow goes on to its destination rather than being lost
+        assertEquals(6, publisher.getPassed());
+        assertEquals(6, dll.getSent());
+        assertEquals(0, publisher.getDropped());
+
+        // Cancelling passes the buffered packets as well
+        recorder.subscription.cancel();
+        assertEquals(10, publisher.getPassed());
+        assertEquals(10, dll.getSent());
+        assertEquals(0, publisher.getDelivered());
+
+        // And keeps passing what arrives until closed
+        for (int i = 10; i < 13; i++) {
+            dll.inject(1, packet(1000 + i));
+        }
+        await(publisher, 13);
+        assertEquals(13, dll.getSent());
+        publisher.close();
+        assertFalse(recorder.completed);
+        assertFalse(dll.isOpen(1));
+    }
+
+    @Test
+    public void receiveErrors() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        WinDivert divert = new WinDivert(dll, "udp", Layer.NETWORK, 0) {
+            @Override
+            public Packet recv(long timeout, TimeUnit unit) throws WinDivertException {
+                if (calls.incrementAndGet() == 3) {
+                    throw new IllegalStateException("Unparsable packet");
+                }
+                return super.recv(timeout, unit);
+            }
+        }.open();
+        divert.setCompletionPort(port);
+        dll.inject(1, packet(1000));
+        dll.inject(1, packet(1001));
+        PacketPublisher publisher = new PacketPublisher(divert, 4, PacketPublisher.OverflowPolicy.DROP_NEWEST);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recorder.error == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // The subscriber is told, the packets it did not take go on to their destination
+        assertTrue(recorder.error instanceof IllegalStateException);
+        assertEquals(1, publisher.getErrors());
+        assertEquals(2, publisher.getPassed());
+
+        // The receiver survives it and passes what arrives next
+        dll.inject(1, packet(1002));
+        await(publisher, 3);
+        assertEquals(3, dll.getSent());
+        publisher.close();
+        assertFalse(recorder.completed);
+    }
+
+    @Test
+    public void endToEnd() throws Exception {
+        WinDivert divert = new WinDivert(dll, "udp", Layer.NETWORK, 0).open();
+        divert.setCompletionPort(port);
+        PacketPublisher publisher = new PacketPublisher(divert, 16, PacketPublisher.OverflowPolicy.DROP_NEWEST);
+        PacketSink sink = new PacketSink(divert, 8);
+        publisher.subscribe(sink);
+        for (int i = 0; i < 100; i++) {
+            dll.inject(1, packet(1000 + i));
+        }
+        await(publisher, 100);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.getSent() + publisher.getDropped() < 100 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(100, sink.getSent() + publisher.getDropped());
+        assertEquals(sink.getSent(), dll.getSent());
+        assertEquals(0, sink.getErrors());
+        publisher.close();
+        assertTrue(sink.await(5, TimeUnit.SECONDS));
+        assertNull(sink.getFailure());
+    }
+
+    @Test
+    public void protocolErrors() throws Exception {
+        PacketPublisher publisher = publisher(0, PacketPublisher.OverflowPolicy.DROP_NEWEST);
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        Recorder second = new Recorder();
+        publisher.subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+
+        recorder.subscription.request(0);
+        assertTrue(recorder.error instanceof IllegalArgumentException);
+        publisher.close();
+        assertFalse(recorder.completed);
+    }
+
+    private static List<Integer> ports(Integer... ports) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (Integer port : ports) {
+            list.add(port);
+        }
+        return list;
+    }
+
+    private static class Recorder implements Flow.Subscriber<Packet> {
+        final List<Integer> ports = new ArrayList<Integer>();
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+        volatile boolean completed;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Packet packet) {
+            synchronized (ports) {
+                ports.add(packet.getSrcPort());
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
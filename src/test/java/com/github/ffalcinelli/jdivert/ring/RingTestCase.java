@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.ring;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RingTestCase {
+
+    @Test
+    public void batches() {
+        List<Ring<String>> rings = new ArrayList<Ring<String>>();
+        rings.add(new SpscRing<String>(3, WaitStrategy.PARK));
+        rings.add(new MpscRing<String>(3, WaitStrategy.PARK));
+        for (Ring<String> ring : rings) {
+            assertEquals(4, ring.capacity());
+            assertNull(ring.poll());
+            assertTrue(ring.offer("a", 1));
+            // Only the room left is claimed
+            assertEquals(3, ring.offer(new Object[]{"x", "b", "c", "d", "e"}, new long[]{0, 2, 3, 4, 5}, 1, 4));
+            assertFalse(ring.offer("f"));
+            assertEquals(4, ring.size());
+            final StringBuilder sb = new StringBuilder();
+            assertEquals(3, ring.drain(new Ring.Consumer<String>() {
+                @Override
+                public void accept(String element, long meta) {
+                    sb.append(element).append(meta);
+                }
+            }, 3));
+            assertEquals("a1b2c3", sb.toString());
+            assertEquals(3, ring.offer(new Object[]{"f", "g", "h", "i"}, null, 0, 4));
+            assertEquals("d", ring.poll());
+            assertEquals("f", ring.poll());
+            assertEquals("g", ring.poll());
+            assertEquals("h", ring.poll());
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    public void throwingConsumer() {
+        List<Ring<String>> rings = new ArrayList<Ring<String>>();
+        rings.add(new SpscRing<String>(4, WaitStrategy.PARK));
+        rings.add(new MpscRing<String>(4, WaitStrategy.PARK));
+        for (Ring<String> ring : rings) {
+            assertEquals(3, ring.offer(new Object[]{"a", "b", "c"}, null, 0, 3));
+            try {
+                ring.drain(new Ring.Consumer<String>() {
+                    @Override
+                    public void accept(String element, long meta) {
+                        if (element.equals("b")) {
+                            throw new IllegalStateException(element);
+                        }
+                    }
+                }, 3);
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            // The failing element is gone, the next one is still there and its room is not reused
+            assertEquals(1, ring.size());
+            assertEquals(3, ring.offer(new Object[]{"d", "e", "f"}, null, 0, 3));
+            assertEquals("c", ring.poll());
+            assertEquals("d", ring.poll());
+        }
+    }
+
+    private static void transfer(final Ring<Long> ring, final int producers, final int count) throws Exception {
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Long[] batch = new Long[16];
+                    long[] metas = new long[16];
+                    try {
+                        for (int i = 0; i < count; ) {
+                            if (i % 3 == 0) {
+                                ring.put((long) i, producer);
+                                i++;
+                                continue;
+                            }
+                            int n = Math.min(batch.length, count - i);
+                            for (int j = 0; j < n; j++) {
+                                batch[j] = (long) (i + j);
+                                metas[j] = producer;
+                            }
+                            int offset = 0;
+                            while (offset < n) {
+                                int added = ring.offer(batch, metas, offset, n - offset);
+                                if (added == 0) {
+                                    Thread.yield();
+                                }
+                                offset += added;
+                            }
+                            i += n;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        final long[] next = new long[producers];
+        final int[] errors = new int[1];
+        Ring.Consumer<Long> consumer = new Ring.Consumer<Long>() {
+            @Override
+            public void accept(Long element, long meta) {
+                // Elements of each producer arrive in order
+                if (element != next[(int) meta]++) {
+                    errors[0]++;
+                }
+            }
+        };
+        long total = 0;
+        while (total < (long) producers * count) {
+            total += ring.take(consumer, 32);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors[0]);
+        for (long n : next) {
+            assertEquals(count, n);
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void spsc() throws Exception {
+        // Busy spinning is kept short, it starves the other side on a single core
+        transfer(new SpscRing<Long>(64, WaitStrategy.BUSY_SPIN), 1, 1000);
+        transfer(new SpscRing<Long>(64, WaitStrategy.YIELD), 1, 200000);
+        transfer(new SpscRing<Long>(64, WaitStrategy.PARK), 1, 200000);
+    }
+
+    @Test
+    public void mpsc() throws Exception {
+        transfer(new MpscRing<Long>(64, WaitStrategy.BUSY_SPIN), 4, 250);
+        transfer(new MpscRing<Long>(64, WaitStrategy.YIELD), 4, 50000);
+        transfer(new MpscRing<Long>(64, WaitStrategy.PARK), 4, 50000);
+    }
+
+    @Test(timeout = 5000)
+    public void interrupt() throws Exception {
+        final Ring<String> ring = new SpscRing<String>(1, WaitStrategy.PARK);
+        final Thread consumer = Thread.currentThread();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignore) {
+                }
+                consumer.interrupt();
+            }
+        }).start();
+        try {
+            ring.take(new Ring.Consumer<String>() {
+                @Override
+                public void accept(String element, long meta) {
+                }
+            }, 1);
+            fail();
+        } catch (InterruptedException expected) {
+        }
+    }
+}
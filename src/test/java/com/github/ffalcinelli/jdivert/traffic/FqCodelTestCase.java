@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import org.junit.Test;
+
+import static com.github.ffalcinelli.jdivert.craft.PacketBuilderTestCase.assertChecksums;
+import static org.junit.Assert.*;
+
+public class FqCodelTestCase {
+
+    static final long MILLIS = 1000000L;
+
+    long now;
+
+    static Packet packet(int srcPort, int ecn) throws Exception {
+        return new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tos(ecn).udp(srcPort, 2).payload(new byte[972]).build();
+    }
+
+    FqCodel fqCodel(int limit) {
+        return new FqCodel(null, null, 0, 32, 1024, limit, Codel.DEFAULT_TARGET, Codel.DEFAULT_INTERVAL) {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void controlLaw() {
+        Codel codel = new Codel(5 * MILLIS, 100 * MILLIS, 1500);
+        assertFalse(codel.shouldDrop(MILLIS, 0, 10000));
+        // Above target from 10ms, for a whole interval
+        assertFalse(codel.shouldDrop(20 * MILLIS, 10 * MILLIS, 10000));
+        assertFalse(codel.shouldDrop(20 * MILLIS, 109 * MILLIS, 10000));
+        assertTrue(codel.shouldDrop(20 * MILLIS, 110 * MILLIS, 10000));
+        assertTrue(codel.isDropping());
+        // Next drops after interval / sqrt(count)
+        assertFalse(codel.shouldDrop(20 * MILLIS, 209 * MILLIS, 10000));
+        assertTrue(codel.shouldDrop(20 * MILLIS, 210 * MILLIS, 10000));
+        assertEquals(2, codel.getCount());
+        assertFalse(codel.shouldDrop(20 * MILLIS, 280 * MILLIS, 10000));
+        assertTrue(codel.shouldDrop(20 * MILLIS, 281 * MILLIS, 10000));
+        // A small backlog or a short sojourn ends the dropping state
+        assertFalse(codel.shouldDrop(20 * MILLIS, 400 * MILLIS, 1000));
+        assertFalse(codel.isDropping());
+        codel.empty();
+        assertFalse(codel.shouldDrop(MILLIS, 500 * MILLIS, 10000));
+    }
+
+    @Test
+    public void sparseFlowFirst() throws Exception {
+        FqCodel queue = fqCodel(1000);
+        for (int i = 0; i < 50; i++) {
+            queue.enqueue(packet(1000, 0));
+        }
+        queue.enqueue(packet(2000, 0));
+        int position = 0;
+        while (queue.dequeue().getSrcPort() != 2000) {
+            position++;
+        }
+        assertTrue(position <= 2);
+        assertEquals(50 - position, queue.getQueued());
+    }
+
+    @Test
+    public void standingQueue() throws Exception {
+        FqCodel dropping = fqCodel(10000);
+        FqCodel marking = fqCodel(10000);
+        // A flow arriving twice as fast as it leaves: the queue, and the sojourn time, grow
+        int sent = 0;
+        int marked = 0;
+        for (int i = 0; i < 4000; i++) {
+            now = i * MILLIS / 2;
+            dropping.enqueue(packet(1000, DiffServ.NOT_ECT));
+            marking.enqueue(packet(1000, DiffServ.ECT_0));
+            if (i % 2 == 0) {
+                if (dropping.dequeue() != null) {
+                    sent++;
+                }
+                Packet packet = marking.dequeue();
+                if (DiffServ.getEcn(packet) == DiffServ.CE) {
+                    assertChecksums(packet);
+                    marked++;
+                }
+            }
+        }
+        assertTrue(dropping.getDropped() > 10);
+        assertEquals(2000, sent);
+        assertEquals(0, marking.getDropped());
+        assertTrue(marked > 10);
+        assertTrue(dropping.getSojournHistogram().getPercentile(99) > 100 * MILLIS);
+    }
+
+    @Test
+    public void limit() throws Exception {
+        FqCodel queue = fqCodel(10);
+        for (int i = 0; i < 8; i++) {
+            queue.enqueue(packet(1000, 0));
+        }
+        queue.enqueue(packet(2000, 0));
+        queue.enqueue(packet(3000, 0));
+        queue.enqueue(packet(4000, 0));
+        assertEquals(10, queue.getQueued());
+        assertEquals(1, queue.getDropped());
+        int bulk = 0;
+        Packet packet;
+        while ((packet = queue.dequeue()) != null) {
+            if (packet.getSrcPort() == 1000) {
+                bulk++;
+            }
+        }
+        assertEquals(7, bulk);
+    }
+
+    @Test
+    public void stopReleases() throws Exception {
+        BufferPool pool = new BufferPool(8, 1500);
+        FqCodel queue = new FqCodel(null, pool, 0, 32, 1024, 10, Codel.DEFAULT_TARGET, Codel.DEFAULT_INTERVAL);
+        for (int port = 1; port <= 5; port++) {
+            queue.enqueue(new PacketBuilder(pool).ip("10.0.0.1", "10.0.0.2").udp(port, 2).build());
+        }
+        assertEquals(3, pool.available());
+        // Never started, the queued packets are dropped and their buffers released, later ones refused
+        queue.stop();
+        assertEquals(0, queue.getQueued());
+        assertEquals(8, pool.available());
+        queue.enqueue(new PacketBuilder(pool).ip("10.0.0.1", "10.0.0.2").udp(6, 2).build());
+        assertEquals(0, queue.getQueued());
+        assertEquals(6, queue.getDropped());
+        assertEquals(8, pool.available());
+    }
+
+    @Test
+    public void histogram() {
+        SojournHistogram histogram = new SojournHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 0; i < 90; i++) {
+            histogram.record(500);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(3 * MILLIS);
+        }
+        assertEquals(100, histogram.getTotal());
+        assertEquals(90, histogram.getCount(0));
+        assertEquals(1000, histogram.getPercentile(50));
+        assertEquals(4096000, histogram.getPercentile(99));
+        assertEquals(SojournHistogram.BUCKETS - 1, SojournHistogram.bucket(Long.MAX_VALUE));
+        histogram.reset();
+        assertEquals(0, histogram.getTotal());
+    }
+}
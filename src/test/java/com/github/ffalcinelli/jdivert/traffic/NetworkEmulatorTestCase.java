@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NetworkEmulatorTestCase {
+
+    static final long MILLIS = 1000000L;
+
+    Shaper shaper;
+
+    static Packet packet(int id) throws Exception {
+        return new PacketBuilder().ip("10.0.0.1", "10.0.0.2").id(id).udp(1, 2).payload(new byte[972]).build();
+    }
+
+    static int id(Packet packet) {
+        return packet.getIpv4().getID();
+    }
+
+    NetworkEmulator emulator(long seed) {
+        shaper = new Shaper(null, null, 100000, MILLIS) {
+            @Override
+            protected long nanoTime() {
+                return 0;
+            }
+        };
+        return new NetworkEmulator(shaper, null, seed);
+    }
+
+    List<Integer> run(NetworkEmulator emulator, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            emulator.emulate(packet(i), i * MILLIS);
+        }
+        List<Packet> out = new ArrayList<Packet>();
+        shaper.poll(Long.MAX_VALUE / 2, out);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Packet packet : out) {
+            ids.add(id(packet));
+        }
+        return ids;
+    }
+
+    @Test
+    public void delay() throws Exception {
+        NetworkEmulator emulator = emulator(1).delay(50 * MILLIS);
+        assertTrue(emulator.emulate(packet(1), 0));
+        List<Packet> out = new ArrayList<Packet>();
+        assertEquals(0, shaper.poll(50 * MILLIS - 1, out));
+        assertEquals(1, shaper.poll(50 * MILLIS, out));
+    }
+
+    @Test
+    public void deterministic() throws Exception {
+        NetworkEmulator first = emulator(7).delay(20 * MILLIS)
+                .jitter(10 * MILLIS, NetworkEmulator.Distribution.NORMAL, 0.25).loss(0.1, 0.5).duplicate(0.05).reorder(0.1);
+        List<Integer> once = run(first, 2000);
+        NetworkEmulator second = emulator(7).delay(20 * MILLIS)
+                .jitter(10 * MILLIS, NetworkEmulator.Distribution.NORMAL, 0.25).loss(0.1, 0.5).duplicate(0.05).reorder(0.1);
+        assertEquals(once, run(second, 2000));
+        assertEquals(first.getLost(), second.getLost());
+        NetworkEmulator other = emulator(8).delay(20 * MILLIS)
+                .jitter(10 * MILLIS, NetworkEmulator.Distribution.NORMAL, 0.25).loss(0.1, 0.5).duplicate(0.05).reorder(0.1);
+        assertFalse(once.equals(run(other, 2000)));
+    }
+
+    @Test
+    public void lossAndDuplication() throws Exception {
+        NetworkEmulator emulator = emulator(1).loss(0.2, 0).duplicate(0.1);
+        int sent = run(emulator, 10000).size();
+        assertEquals(2000, emulator.getLost(), 200);
+        assertEquals(800, emulator.getDuplicated(), 100);
+        assertEquals(10000 - emulator.getLost() + emulator.getDuplicated(), sent);
+    }
+
+    @Test
+    public void correlatedLoss() throws Exception {
+        // Correlation keeps the loss rate but makes longer bursts
+        NetworkEmulator bursty = emulator(1).loss(0.1, 0.9);
+        List<Integer> ids = run(bursty, 20000);
+        int bursts = 0;
+        int expected = 0;
+        for (int id : ids) {
+            if (id != expected) {
+                bursts++;
+            }
+            expected = id + 1;
+        }
+        assertTrue(bursty.getLost() > 0);
+        assertTrue(bursty.getLost() / (double) bursts > 2);
+    }
+
+    @Test
+    public void reorder() throws Exception {
+        NetworkEmulator emulator = emulator(1).delay(10 * MILLIS).reorder(0.25);
+        List<Integer> ids = run(emulator, 1000);
+        int inversions = 0;
+        for (int i = 1; i < ids.size(); i++) {
+            if (ids.get(i) < ids.get(i - 1)) {
+                inversions++;
+            }
+        }
+        assertEquals(1000, ids.size());
+        assertEquals(250, emulator.getReordered(), 50);
+        assertTrue(inversions > 100);
+    }
+
+    @Test
+    public void rate() throws Exception {
+        // 1000 bytes packets at 100 kB/s leave every 10ms
+        NetworkEmulator emulator = emulator(1).rate(100000);
+        for (int i = 0; i < 5; i++) {
+            emulator.emulate(packet(i), 0);
+        }
+        List<Packet> out = new ArrayList<Packet>();
+        assertEquals(1, shaper.poll(MILLIS, out));
+        assertEquals(1, shaper.poll(10 * MILLIS, out));
+        assertEquals(0, shaper.poll(20 * MILLIS - 1, out));
+        assertEquals(3, shaper.poll(40 * MILLIS, out));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.ffalcinelli.jdivert.craft.PacketBuilderTestCase.assertChecksums;
+import static org.junit.Assert.*;
+
+public class QosSchedulerTestCase {
+
+    QosScheduler scheduler;
+    int bulk;
+    int video;
+    int voice;
+
+    static Packet packet(int tos, int size) throws Exception {
+        return new PacketBuilder().ip("10.0.0.1", "10.0.0.2").tos(tos).udp(1, 2).payload(new byte[size - 28]).build();
+    }
+
+    @Before
+    public void setUp() {
+        scheduler = new QosScheduler(null, null, 0, 32);
+        bulk = scheduler.addClass(1, 1500, 100);
+        video = scheduler.addClass(1, 4500, 100);
+        voice = scheduler.addClass(0, 1500, 10);
+        scheduler.mapDscp(34, video);
+        scheduler.mapDscp(46, voice);
+    }
+
+    @Test
+    public void diffServ() throws Exception {
+        Packet packet = packet(46 << 2 | DiffServ.ECT_0, 100);
+        assertEquals(46, DiffServ.getDscp(packet));
+        assertEquals(DiffServ.ECT_0, DiffServ.getEcn(packet));
+        DiffServ.setEcn(packet, DiffServ.CE);
+        DiffServ.setDscp(packet, 10);
+        assertEquals(10, packet.getIpv4().getDSCP());
+        assertEquals(DiffServ.CE, packet.getIpv4().getECN());
+        assertChecksums(packet);
+
+        Packet ipv6 = new PacketBuilder().ip("2001:db8::1", "2001:db8::2").tos(0xB8).flowLabel(0xABCDE).udp(1, 2).build();
+        assertEquals(46, DiffServ.getDscp(ipv6));
+        DiffServ.setDscp(ipv6, 63);
+        DiffServ.setEcn(ipv6, DiffServ.ECT_1);
+        assertEquals(0x6FDABCDE, ipv6.getByteBuffer().getInt(0));
+    }
+
+    @Test
+    public void strictPriority() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(scheduler.enqueue(packet(0, 1000)));
+        }
+        assertTrue(scheduler.enqueue(packet(46 << 2, 100)));
+        assertEquals(1, scheduler.getQueued(voice));
+        assertEquals(5, scheduler.getQueued(bulk));
+        assertEquals(46, DiffServ.getDscp(scheduler.dequeue()));
+        assertEquals(0, DiffServ.getDscp(scheduler.dequeue()));
+        assertTrue(scheduler.enqueue(packet(46 << 2, 100)));
+        assertEquals(46, DiffServ.getDscp(scheduler.dequeue()));
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(scheduler.dequeue());
+        }
+        assertNull(scheduler.dequeue());
+    }
+
+    @Test
+    public void deficitRoundRobin() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            scheduler.enqueue(packet(0, 1500));
+            scheduler.enqueue(packet(34 << 2, 500));
+        }
+        // Video has three times the quantum of bulk, with smaller packets
+        int bulkBytes = 0;
+        int videoBytes = 0;
+        for (int i = 0; i < 80; i++) {
+            Packet packet = scheduler.dequeue();
+            if (DiffServ.getDscp(packet) == 34) {
+                videoBytes += packet.getByteBuffer().capacity();
+            } else {
+                bulkBytes += packet.getByteBuffer().capacity();
+            }
+        }
+        assertEquals(3.0, videoBytes / (double) bulkBytes, 0.2);
+    }
+
+    @Test
+    public void boundedAndRemark() throws Exception {
+        scheduler.setRemark(voice, 40);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(scheduler.enqueue(packet(46 << 2, 100)));
+        }
+        assertFalse(scheduler.enqueue(packet(46 << 2, 100)));
+        assertEquals(1, scheduler.getDropped());
+        assertFalse(scheduler.enqueue(packet(0, 100), 7));
+        Packet packet = scheduler.dequeue();
+        assertEquals(40, DiffServ.getDscp(packet));
+        assertChecksums(packet);
+
+        scheduler.setClassifier(new QosScheduler.Classifier() {
+            @Override
+            public int classify(Packet packet) {
+                return packet.getDstPort() == 2 ? -1 : 0;
+            }
+        });
+        assertFalse(scheduler.enqueue(packet(0, 100)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mapInvalidDscp() {
+        scheduler.mapDscp(64, voice);
+    }
+
+    @Test
+    public void codel() throws Exception {
+        final long[] now = {0};
+        QosScheduler managed = new QosScheduler(null, null, 0, 32) {
+            @Override
+            protected long nanoTime() {
+                return now[0];
+            }
+        };
+        int c = managed.addClass(0, 1500, 1000);
+        managed.setCodel(c, new Codel());
+        for (int i = 0; i < 1000; i++) {
+            now[0] = i * 1000000L;
+            managed.enqueue(packet(0, 1000));
+            if (i % 2 == 0) {
+                managed.dequeue();
+            }
+        }
+        assertTrue(managed.getDropped() > 0);
+        assertTrue(managed.getSojournHistogram(c).getTotal() > 500);
+    }
+
+    @Test
+    public void pacedSender() throws Exception {
+        final List<Packet> sent = new ArrayList<Packet>();
+        // 1000 bytes packets at 1MB/s, a millisecond each
+        QosScheduler paced = new QosScheduler(null, null, 1000000, 4) {
+            @Override
+            protected void send(List<Packet> batch) {
+                synchronized (sent) {
+                    sent.addAll(batch);
+                    sent.notifyAll();
+                }
+            }
+        };
+        paced.addClass(0, 1500, 100);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            paced.enqueue(packet(0, 1000));
+        }
+        paced.start();
+        synchronized (sent) {
+            while (sent.size() < 20) {
+                sent.wait(5000);
+            }
+        }
+        assertTrue(System.nanoTime() - start >= 18000000L);
+        paced.stop();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTestCase {
+
+    static final long SECOND = 1000000000L;
+
+    static Packet udp(String src, String dst, int srcPort, int size) throws Exception {
+        return new PacketBuilder().ip(src, dst).udp(srcPort, 53).payload(new byte[size]).build();
+    }
+
+    @Test
+    public void tokenBucket() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = 42 * SECOND;
+        assertTrue(bucket.isFull(now));
+        assertEquals(5, bucket.getAvailable(now));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryConsume(1, now));
+        }
+        assertFalse(bucket.tryConsume(1, now));
+        assertEquals(0, bucket.getAvailable(now));
+        // 10 tokens per second, one every 100ms
+        assertFalse(bucket.tryConsume(1, now + SECOND / 10 - 1));
+        assertTrue(bucket.tryConsume(1, now + SECOND / 10));
+        assertFalse(bucket.tryConsume(6, now + 10 * SECOND));
+        assertTrue(bucket.tryConsume(5, now + 10 * SECOND));
+        assertFalse(bucket.isFull(now + 10 * SECOND));
+        assertTrue(bucket.isFull(now + 10 * SECOND + SECOND / 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRate() {
+        new TokenBucket(0, 1);
+    }
+
+    @Test
+    public void perFlowBytes() throws Exception {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Key.FLOW, RateLimiter.Unit.BYTES, 1000, 1000);
+        Packet first = udp("10.0.0.1", "10.0.0.2", 1000, 472);
+        Packet second = udp("10.0.0.1", "10.0.0.2", 1001, 472);
+        assertEquals(500, first.getByteBuffer().capacity());
+        assertTrue(limiter.allow(first, 0));
+        assertTrue(limiter.allow(first, 0));
+        assertFalse(limiter.allow(first, 0));
+        assertTrue(limiter.allow(second, 0));
+        assertEquals(2, limiter.size());
+        assertTrue(limiter.allow(first, SECOND / 2));
+        // The second flow has refilled by now, the first one has not
+        assertEquals(1, limiter.expire(SECOND / 2));
+        assertEquals(1, limiter.expire(2 * SECOND));
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    public void sourcePrefix() throws Exception {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Key.SOURCE, RateLimiter.Unit.PACKETS, 1, 1);
+        limiter.setPrefixLength(24, 48);
+        assertTrue(limiter.allow(udp("10.0.0.1", "1.1.1.1", 1000, 0), 0));
+        assertFalse(limiter.allow(udp("10.0.0.2", "1.1.1.1", 1000, 0), 0));
+        assertTrue(limiter.allow(udp("10.0.1.1", "1.1.1.1", 1000, 0), 0));
+        assertTrue(limiter.allow(udp("2001:db8:1::1", "2001:db8::53", 1000, 0), 0));
+        assertFalse(limiter.allow(udp("2001:db8:1:2::1", "2001:db8::53", 1000, 0), 0));
+        assertTrue(limiter.allow(udp("2001:db8:2::1", "2001:db8::53", 1000, 0), 0));
+    }
+
+    @Test
+    public void iface() throws Exception {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Key.INTERFACE, RateLimiter.Unit.PACKETS, 1, 1);
+        PacketBuilder builder = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2);
+        assertTrue(limiter.allow(builder.iface(3, 0).build(), 0));
+        assertFalse(limiter.allow(builder.iface(3, 0).build(), 0));
+        assertTrue(limiter.allow(builder.iface(4, 0).build(), 0));
+    }
+
+    @Test
+    public void hierarchy() throws Exception {
+        RateLimiter all = new RateLimiter(RateLimiter.Key.ALL, RateLimiter.Unit.PACKETS, 1, 3);
+        RateLimiter flow = new RateLimiter(RateLimiter.Key.FLOW, RateLimiter.Unit.PACKETS, 1, 2, all);
+        assertTrue(flow.allow(udp("10.0.0.1", "10.0.0.2", 1, 0), 0));
+        assertTrue(flow.allow(udp("10.0.0.1", "10.0.0.2", 1, 0), 0));
+        assertFalse(flow.allow(udp("10.0.0.1", "10.0.0.2", 1, 0), 0));
+        assertTrue(flow.allow(udp("10.0.0.1", "10.0.0.2", 2, 0), 0));
+        // The aggregate is exhausted, the refused flow keeps its tokens
+        assertFalse(flow.allow(udp("10.0.0.1", "10.0.0.2", 3, 0), 0));
+        assertTrue(flow.allow(udp("10.0.0.1", "10.0.0.2", 3, 0), SECOND));
+        assertFalse(flow.allow(udp("10.0.0.1", "10.0.0.2", 3, 0), SECOND));
+        assertTrue(flow.allow(udp("10.0.0.1", "10.0.0.2", 3, 0), 2 * SECOND));
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        final RateLimiter limiter = new RateLimiter(RateLimiter.Key.FLOW, RateLimiter.Unit.PACKETS, 1, 10000);
+        final Packet packet = udp("10.0.0.1", "10.0.0.2", 1, 0);
+        final AtomicInteger allowed = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        if (limiter.allow(packet, 0)) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(10000, allowed.get());
+    }
+}
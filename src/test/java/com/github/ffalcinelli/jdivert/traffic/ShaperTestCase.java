@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.traffic;
+
+import com.github.ffalcinelli.jdivert.Packet;
+import com.github.ffalcinelli.jdivert.craft.BufferPool;
+import com.github.ffalcinelli.jdivert.craft.PacketBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ShaperTestCase {
+
+    static final long MILLIS = 1000000L;
+
+    @Test
+    public void wheelAccuracy() {
+        // Deadlines spread over three levels, checked for expiry within one tick
+        Random random = new Random(42);
+        long origin = -5 * MILLIS;
+        TimerWheel<Long> wheel = new TimerWheel<Long>(200000, MILLIS, origin);
+        for (int i = 0; i < 200000; i++) {
+            long deadline = origin + (long) (random.nextDouble() * 100000 * MILLIS);
+            assertTrue(wheel.add(deadline, deadline));
+        }
+        assertFalse(wheel.add(origin, 0));
+        List<Long> out = new ArrayList<Long>();
+        long now = origin;
+        long previous = Long.MIN_VALUE;
+        int expired = 0;
+        while (wheel.size() > 0) {
+            long last = (now - origin) / MILLIS;
+            now += random.nextInt(20) * MILLIS / 3;
+            out.clear();
+            expired += wheel.advance(now, out);
+            for (long deadline : out) {
+                long tick = Math.max((deadline - origin + MILLIS - 1) / MILLIS, 1);
+                // Never early, never later than the first advance past the tick
+                assertTrue(deadline <= now);
+                assertTrue(tick > last);
+                assertTrue(tick >= previous);
+                previous = tick;
+            }
+        }
+        assertEquals(200000, expired);
+    }
+
+    @Test
+    public void wheelEdges() {
+        TimerWheel<String> wheel = new TimerWheel<String>(4, MILLIS, 0);
+        wheel.add("past", -10 * MILLIS);
+        wheel.add("far", Long.MAX_VALUE);
+        wheel.add("second", 1000 * MILLIS);
+        List<String> out = new ArrayList<String>();
+        assertEquals(0, wheel.advance(MILLIS - 1, out));
+        assertEquals(1, wheel.advance(MILLIS, out));
+        assertEquals("past", out.get(0));
+        assertEquals(0, wheel.advance(999 * MILLIS, out));
+        assertEquals(1, wheel.advance(1000 * MILLIS, out));
+        assertEquals("second", out.get(1));
+        assertEquals(1, wheel.size());
+        assertEquals(1, wheel.clear(out));
+        assertEquals("far", out.get(2));
+        assertEquals(0, wheel.size());
+        assertTrue(wheel.add("again", 1001 * MILLIS));
+        assertEquals(1, wheel.advance(1001 * MILLIS, out));
+    }
+
+    @Test
+    public void shaping() throws Exception {
+        final long[] now = {0};
+        final List<Packet> sent = new ArrayList<Packet>();
+        Shaper shaper = new Shaper(null, null, 1000, MILLIS) {
+            @Override
+            protected long nanoTime() {
+                return now[0];
+            }
+
+            @Override
+            protected void send(List<Packet> batch) {
+                sent.addAll(batch);
+            }
+        };
+        // 100 kB/s, 1000 bytes packets leave every 10ms, up to 50ms of backlog
+        int slow = shaper.addClass(100000, 50 * MILLIS);
+        int fast = shaper.addClass(1000000000, 0);
+        Packet packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).payload(new byte[972]).build();
+        for (int i = 0; i < 6; i++) {
+            assertTrue(shaper.shape(packet, slow));
+        }
+        assertFalse(shaper.shape(packet, slow));
+        assertTrue(shaper.shape(packet, fast));
+        assertEquals(1, shaper.getDropped());
+        assertEquals(7, shaper.getQueued());
+
+        List<Packet> out = new ArrayList<Packet>();
+        assertEquals(2, shaper.poll(MILLIS, out));
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(0, shaper.poll(i * 10 * MILLIS - 1, out));
+            assertEquals(1, shaper.poll(i * 10 * MILLIS, out));
+        }
+        assertEquals(0, shaper.getQueued());
+    }
+
+    @Test
+    public void senderThread() throws Exception {
+        final List<Packet> sent = new ArrayList<Packet>();
+        Shaper shaper = new Shaper(null, null, 1000, MILLIS) {
+            @Override
+            protected void send(List<Packet> batch) {
+                synchronized (sent) {
+                    sent.addAll(batch);
+                    sent.notifyAll();
+                }
+            }
+        };
+        int c = shaper.addClass(1000000, 1000 * MILLIS);
+        shaper.start();
+        Packet packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).payload(new byte[972]).build();
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(shaper.shape(packet, c));
+        }
+        synchronized (sent) {
+            while (sent.size() < 10) {
+                sent.wait(5000);
+            }
+        }
+        // Ten 1000 bytes packets at 1MB/s take at least 9ms
+        assertTrue(System.nanoTime() - start >= 9 * MILLIS);
+        shaper.stop();
+    }
+
+    @Test
+    public void senderErrors() throws Exception {
+        // Without a handle every send fails, the sender thread counts the errors and goes on
+        Shaper shaper = new Shaper(null, null, 1000, MILLIS).start();
+        int c = shaper.addClass(1000000000, 1000 * MILLIS);
+        Packet packet = new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).build();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(shaper.shape(packet, c));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (shaper.getErrors() <= i && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(3, shaper.getErrors());
+        assertEquals(0, shaper.getSent());
+        shaper.stop();
+    }
+
+    @Test
+    public void stopReleases() throws Exception {
+        BufferPool pool = new BufferPool(8, 1500);
+        Shaper shaper = new Shaper(null, pool, 1000, MILLIS).start();
+        // 1000 bytes packets at 1kB/s, a second each, parked until after stop
+        int c = shaper.addClass(1000, 10000 * MILLIS);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(shaper.shape(new PacketBuilder(pool).ip("10.0.0.1", "10.0.0.2").udp(1, 2).payload(new byte[972])
+                    .build(), c, System.nanoTime() + 1000 * MILLIS));
+        }
+        assertEquals(3, pool.available());
+        shaper.stop();
+        assertEquals(0, shaper.getQueued());
+        assertEquals(5, shaper.getDropped());
+        assertEquals(8, pool.available());
+        assertFalse(shaper.schedule(new PacketBuilder().ip("10.0.0.1", "10.0.0.2").udp(1, 2).build(), 0));
+    }
+}
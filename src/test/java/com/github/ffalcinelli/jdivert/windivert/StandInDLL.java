@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) Fabio Falcinelli 2016.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.ffalcinelli.jdivert.windivert;
+
+import com.github.ffalcinelli.jdivert.exceptions.WinDivertException;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.LongByReference;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sun.jna.platform.win32.WinDef.BOOL;
+import static com.sun.jna.platform.win32.WinNT.HANDLE;
+
+/**
+ * An in memory {@link WinDivertDLL}, to run handles where the driver is not available.
+ * <p>
+ * Handles are numbered in opening order starting from 1. Packets {@link #inject(int, byte[]) injected} in a handle are
+ * queued until received, sent packets are counted. Closing a handle fails the pending and later calls on it with
+ * {@code ERROR_INVALID_HANDLE}, as the driver does.
+ * </p><p>
+ * The stand-in is also the {@link IoPort} of its overlapped operations: those which cannot complete at once fail with
+ * {@code ERROR_IO_PENDING}, and every completion, immediate or not, is queued on the port.
+ * </p>
+ */
+public class StandInDLL implements WinDivertDLL, IoPort {
+
+    public static final int ERROR_INVALID_HANDLE = 6;
+    public static final int ERROR_OPERATION_ABORTED = 995;
+    public static final int ERROR_IO_PENDING = 997;
+    private static final byte[] CLOSED = new byte[0];
+    private static final int[] PORT_CLOSED = new int[0];
+
+    private final List<StandInHandle> handles = new ArrayList<StandInHandle>();
+    private final AtomicLong sent = new AtomicLong();
+    private final BlockingQueue<Object[]> completions = new LinkedBlockingQueue<Object[]>();
+
+    private static BOOL fail(int code) {
+        Native.setLastError(code);
+        return new BOOL(false);
+    }
+
+    private static BOOL succeed() {
+        Native.setLastError(0);
+        return new BOOL(true);
+    }
+
+    private synchronized StandInHandle get(HANDLE handle) {
+        int id = handle == null ? 0 : (int) Pointer.nativeValue(handle.getPointer());
+        return id <= 0 || id > handles.size() ? null : handles.get(id - 1);
+    }
+
+    /**
+     * Queue a packet on a handle.
+     *
+     * @param handle The handle number.
+     * @param packet The raw packet.
+     */
+    public synchronized void inject(int handle, byte[] packet) {
+        StandInHandle h = handles.get(handle - 1);
+        if (h.closed) {
+            return;
+        }
+        Object[] recv = h.pending.poll();
+        if (recv != null) {
+            complete(recv, packet);
+        } else {
+            h.queue.add(packet);
+        }
+    }
+
+    public synchronized int getOpened() {
+        return handles.size();
+    }
+
+    public synchronized String getFilter(int handle) {
+        return handles.get(handle - 1).filter;
+    }
+
+    public synchronized boolean isOpen(int handle) {
+        return !handles.get(handle - 1).closed;
+    }
+
+    public synchronized int getQueued(int handle) {
+        return handles.get(handle - 1).queue.size();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    @Override
+    public HANDLE WinDivertOpen(String filter, int layer, short priority, long flags) {
+        int id;
+        synchronized (this) {
+            handles.add(new StandInHandle(filter));
+            id = handles.size();
+        }
+        Native.setLastError(0);
+        return new HANDLE(Pointer.createConstant(id));
+    }
+
+    @Override
+    public BOOL WinDivertRecv(HANDLE handle, Pointer pPacket, int packetLen, Pointer pAddr, IntByReference recvLen) {
+        StandInHandle h = get(handle);
+        if (h == null || h.closed) {
+            return fail(ERROR_INVALID_HANDLE);
+        }
+        byte[] packet;
+        try {
+            packet = h.queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return fail(ERROR_OPERATION_ABORTED);
+        }
+        if (packet == CLOSED) {
+            // Wake up the next receiver too
+            h.queue.add(CLOSED);
+            return fail(ERROR_OPERATION_ABORTED);
+        }
+        int length = Math.min(packet.length, packetLen);
+        pPacket.write(0, packet, 0, length);
+        recvLen.setValue(length);
+        return succeed();
+    }
+
+    @Override
+    public BOOL WinDivertSend(HANDLE handle, Pointer pPacket, int packetLen, Pointer pAddr, IntByReference sendLen) {
+        StandInHandle h = get(handle);
+        if (h == null || h.closed) {
+            return fail(ERROR_INVALID_HANDLE);
+        }
+        sent.incrementAndGet();
+        sendLen.setValue(packetLen);
+        return succeed();
+    }
+
+    @Override
+    public synchronized BOOL WinDivertRecvEx(HANDLE handle, Pointer pPacket, int packetLen, long flags, Pointer pAddr,
+                                             IntByReference recvLen, Pointer lpOverlapped) {
+        StandInHandle h = get(handle);
+        if (h == null || h.closed) {
+            return fail(ERROR_INVALID_HANDLE);
+        }
+        Object[] recv = {pPacket, packetLen, lpOverlapped};
+        byte[] packet = h.queue.poll();
+        if (packet == null) {
+            h.pending.add(recv);
+            return fail(ERROR_IO_PENDING);
+        }
+        int length = complete(recv, packet);
+        if (recvLen != null) {
+            recvLen.setValue(length);
+        }
+        return succeed();
+    }
+
+    private int complete(Object[] recv, byte[] packet) {
+        int length = Math.min(packet.length, (Integer) recv[1]);
+        ((Pointer) recv[0]).write(0, packet, 0, length);
+        completions.add(new Object[]{recv[2], length, 0});
+        return length;
+    }
+
+    @Override
+    public BOOL WinDivertSendEx(HANDLE handle, Pointer pPacket, int packetLen, long flags, Pointer pAddr,
+                                IntByReference sendLen, Pointer lpOverlapped) {
+        StandInHandle h = get(handle);
+        if (h == null || h.closed) {
+            return fail(ERROR_INVALID_HANDLE);
+        }
+        sent.incrementAndGet();
+        if (sendLen != null) {
+            sendLen.setValue(packetLen);
+        }
+        completions.add(new Object[]{lpOverlapped, packetLen, 0});
+        return succeed();
+    }
+
+    @Override
+    public BOOL WinDivertSetParam(HANDLE handle, int param, long value) {
+        StandInHandle h = get(handle);
+        if (h == null || h.closed) {
+            return fail(ERROR_INVALID_HANDLE);
+        }
+        h.params[param] = value;
+        return succeed();
+    }
+
+    @Override
+    public BOOL WinDivertGetParam(HANDLE handle, int param, LongByReference pValue) {
+        StandInHandle h = get(handle);
+        if (h == null || h.closed) {
+            return fail(ERROR_INVALID_HANDLE);
+        }
+        pValue.setValue(h.params[param]);
+        return succeed();
+    }
+
+    @Override
+    public BOOL WinDivertClose(HANDLE handle) {
+        StandInHandle h = get(handle);
+        if (h == null || h.closed) {
+            return fail(ERROR_INVALID_HANDLE);
+        }
+        synchronized (this) {
+            h.closed = true;
+            h.queue.add(CLOSED);
+            for (Object[] recv : h.pending) {
+                completions.add(new Object[]{recv[2], 0, ERROR_OPERATION_ABORTED});
+            }
+            h.pending.clear();
+        }
+        return succeed();
+    }
+
+    @Override
+    public int WinDivertHelperCalcChecksums(Pointer pPacket, int packetLen, long flags) {
+        return 0;
+    }
+
+    @Override
+    public void associate(HANDLE handle) throws WinDivertException {
+        if (get(handle) == null) {
+            throw new WinDivertException(ERROR_INVALID_HANDLE);
+        }
+    }
+
+    @Override
+    public Pointer take(IntByReference transferred, IntByReference error) {
+        Object[] completion;
+        try {
+            completion = completions.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (completion[0] == PORT_CLOSED) {
+            // Wake up the next waiter too
+            completions.add(completion);
+            return null;
+        }
+        transferred.setValue((Integer) completion[1]);
+        error.setValue((Integer) completion[2]);
+        return (Pointer) completion[0];
+    }
+
+    @Override
+    public void close() {
+        completions.add(new Object[]{PORT_CLOSED});
+    }
+
+    private static class StandInHandle {
+        final String filter;
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+        // Overlapped receives waiting for a packet: buffer, length and OVERLAPPED
+        final Queue<Object[]> pending = new ArrayDeque<Object[]>();
+        final long[] params = {1024, 512};
+        volatile boolean closed;
+
+        StandInHandle(String filter) {
+            this.filter = filter;
+        }
+    }
+}